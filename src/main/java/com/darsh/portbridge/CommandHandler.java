@@ -1,6 +1,8 @@
 package com.darsh.portbridge;
 
+import com.darsh.portbridge.tunnel.PlayerStats;
 import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
 import com.mojang.brigadier.context.CommandContext;
 import net.minecraft.commands.CommandSourceStack;
 import net.minecraft.commands.Commands;
@@ -9,8 +11,12 @@ import net.neoforged.bus.api.SubscribeEvent;
 import net.neoforged.fml.common.EventBusSubscriber;
 import net.neoforged.neoforge.event.RegisterCommandsEvent;
 
+import java.util.List;
+
 @EventBusSubscriber(modid = PortBridge.MODID)
 public class CommandHandler {
+    private static final int DEFAULT_EVENT_COUNT = 20;
+    private static final int MAX_PLAYER_LINES = 50;
     private static PortBridge instance;
 
     public static void setInstance(PortBridge mod) {
@@ -25,6 +31,11 @@ public class CommandHandler {
                 .requires(source -> source.hasPermission(2)) // Operator level
                 .then(Commands.literal("status").executes(CommandHandler::status))
                 .then(Commands.literal("diag").executes(CommandHandler::diag))
+                .then(Commands.literal("events")
+                        .executes(context -> events(context, DEFAULT_EVENT_COUNT))
+                        .then(Commands.argument("count", IntegerArgumentType.integer(1, EventLog.CAPACITY))
+                                .executes(context -> events(context, IntegerArgumentType.getInteger(context, "count")))))
+                .then(Commands.literal("players").executes(CommandHandler::players))
                 .then(Commands.literal("retry").executes(CommandHandler::retry))
                 .then(Commands.literal("enable").executes(CommandHandler::enable))
                 .then(Commands.literal("disable").executes(CommandHandler::disable))
@@ -85,13 +96,44 @@ public class CommandHandler {
         return 1;
     }
 
+    private static int events(CommandContext<CommandSourceStack> context, int count) {
+        CommandSourceStack source = context.getSource();
+        var events = EventLog.recent(count);
+        source.sendSuccess(() -> Component.literal("§6=== PortBridge Events (" + events.size() + " of " + EventLog.getTotalRecorded() + ") ===§r"), false);
+        for (String line : events) {
+            source.sendSuccess(() -> Component.literal(line), false);
+        }
+        return events.size();
+    }
+
+    private static int players(CommandContext<CommandSourceStack> context) {
+        if (instance == null) return 0;
+
+        CommandSourceStack source = context.getSource();
+        var exposureManager = instance.getExposureManager();
+        PlayerStats stats = exposureManager != null ? exposureManager.getTunnelService().getPlayerStats() : null;
+        if (stats == null) {
+            source.sendSuccess(() -> Component.literal("Per-player tunnel accounting is disabled"), false);
+            return 0;
+        }
+
+        source.sendSuccess(() -> Component.literal("§6=== PortBridge Tunnel Players (" + stats.size() + ") ===§r"), false);
+        for (String line : stats.describe(MAX_PLAYER_LINES)) {
+            source.sendSuccess(() -> Component.literal(line), false);
+        }
+        if (stats.getUntracked() > 0) {
+            source.sendSuccess(() -> Component.literal("§cUntracked logins (table full): " + stats.getUntracked() + "§r"), false);
+        }
+        return stats.size();
+    }
+
     private static int retry(CommandContext<CommandSourceStack> context) {
         if (instance == null) return 0;
 
         CommandSourceStack source = context.getSource();
         var exposureManager = instance.getExposureManager();
         if (exposureManager != null) {
-            exposureManager.start(Config.INTERNAL_PORT.get(), Config.EXTERNAL_PORT.get());
+            exposureManager.retry(Config.INTERNAL_PORT.get(), Config.EXTERNAL_PORT.get());
             source.sendSuccess(() -> Component.literal("Retrying exposure methods..."), false);
         }
         return 1;
@@ -101,8 +143,11 @@ public class CommandHandler {
         if (instance == null) return 0;
 
         CommandSourceStack source = context.getSource();
-        instance.enablePortForwarding();
-        source.sendSuccess(() -> Component.literal("Port forwarding enabled"), false);
+        if (instance.enablePortForwarding()) {
+            source.sendSuccess(() -> Component.literal("Port forwarding enabled"), false);
+        } else {
+            source.sendSuccess(() -> Component.literal("Port forwarding is already running; use /portbridge retry to restart it"), false);
+        }
         return 1;
     }
 
@@ -119,8 +164,13 @@ public class CommandHandler {
         if (instance == null) return 0;
 
         CommandSourceStack source = context.getSource();
-        instance.reloadConfig();
-        source.sendSuccess(() -> Component.literal("Config reloaded"), false);
+        List<String> applied = instance.reloadConfig();
+        if (applied.isEmpty()) {
+            source.sendSuccess(() -> Component.literal("Config is up to date; nothing to apply"), false);
+        }
+        for (String line : applied) {
+            source.sendSuccess(() -> Component.literal(line), false);
+        }
         return 1;
     }
 }
\ No newline at end of file
@@ -5,6 +5,10 @@ import net.neoforged.fml.common.EventBusSubscriber;
 import net.neoforged.fml.event.config.ModConfigEvent;
 import net.neoforged.neoforge.common.ModConfigSpec;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 @EventBusSubscriber(modid = PortBridge.MODID)
 public class Config {
     private static final ModConfigSpec.Builder BUILDER = new ModConfigSpec.Builder();
@@ -45,12 +49,28 @@ public class Config {
             .comment("URL to query for public IP fallback (e.g., https://api.ipify.org)")
             .define("publicIPFallbackURL", "https://api.ipify.org");
 
+    public static final ModConfigSpec.ConfigValue<String> PUBLIC_IP_SOURCES = BUILDER
+            .comment("Public IP sources queried in parallel: UPNP, NATPMP, HTTP (HTTP needs enablePublicIPFallback)")
+            .define("publicIp.sources", "UPNP,NATPMP,HTTP");
+
+    public static final ModConfigSpec.ConfigValue<String> PUBLIC_IP_EXTRA_URLS = BUILDER
+            .comment("Extra HTTP echo services queried next to publicIPFallbackURL (comma-separated)")
+            .define("publicIp.extraServiceURLs", "https://checkip.amazonaws.com,https://icanhazip.com");
+
+    public static final ModConfigSpec.IntValue PUBLIC_IP_CACHE_TTL = BUILDER
+            .comment("How long a resolved public IP is cached in seconds; it is refreshed in the background before expiry")
+            .defineInRange("publicIp.cacheTtlSeconds", 300, 10, 86400);
+
+    public static final ModConfigSpec.IntValue PUBLIC_IP_QUORUM = BUILDER
+            .comment("Number of sources that must agree on the public IP (1 = first valid answer wins)")
+            .defineInRange("publicIp.quorum", 1, 1, 5);
+
     public static final ModConfigSpec.BooleanValue DRY_RUN = BUILDER
             .comment("When true, do not perform real UPnP calls; simulate actions for testing")
             .define("advanced.dryRun", false);
 
     public static final ModConfigSpec.ConfigValue<String> ALLOWED_SUBNETS = BUILDER
-            .comment("Comma-separated list of allowed subnets for UPnP attempts (CIDR). Example: 192.168.0.0/16,10.0.0.0/8")
+            .comment("Comma-separated list of allowed subnets for UPnP attempts (IPv4 or IPv6 CIDR). Example: 192.168.0.0/16,10.0.0.0/8,fd00::/8")
             .define("allowedSubnets", "192.168.0.0/16,10.0.0.0/8");
 
     public static final ModConfigSpec.ConfigValue<String> ADDITIONAL_PORTS = BUILDER
@@ -69,6 +89,36 @@ public class Config {
             .comment("Enable debug logging for troubleshooting")
             .define("debugLogging", false);
 
+    public static final ModConfigSpec.ConfigValue<String> EVENTS_FILE = BUILDER
+            .comment("File that mirrors the /portbridge events history through a memory map, so it survives a crash (empty = memory only)")
+            .define("events.file", "");
+
+    public static final ModConfigSpec.IntValue WAN_WATCH_INTERVAL = BUILDER
+            .comment("Seconds between WAN address checks on the gateway; a change is re-announced to operators (0 = disabled)")
+            .defineInRange("wanWatch.intervalSeconds", 30, 0, 3600);
+
+    public static final ModConfigSpec.ConfigValue<String> UPNP_JOURNAL_FILE = BUILDER
+            .comment("File recording the UPnP mappings this server created, so mappings left behind by a crash are removed on the next start (empty = disabled)")
+            .define("upnp.journalFile", "portbridge-upnp.journal");
+
+    // NAT-PMP / PCP Configuration
+    public static final ModConfigSpec.BooleanValue NATPMP_ENABLED = BUILDER
+            .comment("Try NAT-PMP/PCP port mapping alongside UPnP")
+            .define("natpmp.enabled", true);
+
+    public static final ModConfigSpec.ConfigValue<String> NATPMP_GATEWAY = BUILDER
+            .comment("Gateway address for NAT-PMP/PCP requests (empty = detect default gateway)")
+            .define("natpmp.gateway", "");
+
+    // Exposure Strategy
+    public static final ModConfigSpec.ConfigValue<String> EXPOSURE_STRATEGIES = BUILDER
+            .comment("Exposure methods in priority order as method:startDelayMillis (NATPMP, UPNP, TUNNEL). A method starts after its delay, or as soon as every method started before it has failed. The first to succeed wins.")
+            .define("exposure.strategies", "NATPMP:0,UPNP:0,TUNNEL:8000");
+
+    public static final ModConfigSpec.IntValue SHUTDOWN_TIMEOUT = BUILDER
+            .comment("Seconds server stop waits for port mappings to be removed and tunnel streams to close; anything left is logged")
+            .defineInRange("exposure.shutdownTimeoutSeconds", 5, 1, 60);
+
     // Tunnel Configuration
     public static final ModConfigSpec.BooleanValue TUNNEL_ENABLED = BUILDER
             .comment("Enable tunnel-based port exposure (fallback or primary method)")
@@ -87,7 +137,7 @@ public class Config {
             .defineInRange("tunnel.relay.port", 7000, 1, 65535);
 
     public static final ModConfigSpec.IntValue TUNNEL_RECONNECT_BASE_DELAY = BUILDER
-            .comment("Base delay in seconds for tunnel reconnection attempts (exponential backoff)")
+            .comment("Base delay in seconds for tunnel reconnection attempts; each delay is drawn between this and three times the previous one (decorrelated jitter)")
             .defineInRange("tunnel.reconnect.baseDelaySeconds", 5, 1, 60);
 
     public static final ModConfigSpec.IntValue TUNNEL_RECONNECT_MAX_DELAY = BUILDER
@@ -95,14 +145,199 @@ public class Config {
             .defineInRange("tunnel.reconnect.maxDelaySeconds", 120, 10, 3600);
 
     public static final ModConfigSpec.IntValue TUNNEL_KEEPALIVE_INTERVAL = BUILDER
-            .comment("Keepalive interval in seconds for tunnel connection")
+            .comment("Shortest keepalive interval in seconds for the tunnel connection; the interval starts here and grows while the link stays up")
             .defineInRange("tunnel.keepAliveSeconds", 20, 5, 120);
 
+    public static final ModConfigSpec.IntValue TUNNEL_KEEPALIVE_MAX = BUILDER
+            .comment("Longest keepalive interval in seconds the tunnel will try while learning how long the NAT keeps an idle connection")
+            .defineInRange("tunnel.keepAlive.maxSeconds", 240, 10, 3600);
+
+    public static final ModConfigSpec.IntValue TUNNEL_KEEPALIVE_TIMEOUT = BUILDER
+            .comment("Seconds to wait for an answer to a keepalive before the relay connection is considered dead")
+            .defineInRange("tunnel.keepAlive.timeoutSeconds", 10, 2, 120);
+
+    public static final ModConfigSpec.IntValue TUNNEL_UDP_IDLE_TIMEOUT = BUILDER
+            .comment("Seconds without a datagram in either direction before a tunnelled UDP flow is closed")
+            .defineInRange("tunnel.udp.idleTimeoutSeconds", 60, 5, 3600);
+
+    public static final ModConfigSpec.IntValue TUNNEL_UDP_MAX_FLOWS = BUILDER
+            .comment("Most UDP flows (player address and port pairs) forwarded through the tunnel at once")
+            .defineInRange("tunnel.udp.maxFlows", 256, 1, 4096);
+
+    public static final ModConfigSpec.BooleanValue TUNNEL_UDP_DIRECT = BUILDER
+            .comment("Let players send UDP straight to this server when the relay confirms the NAT accepts it; the relay stays as fallback")
+            .define("tunnel.udp.direct", false);
+
+    public static final ModConfigSpec.IntValue TUNNEL_DNS_CACHE = BUILDER
+            .comment("Seconds to reuse the relay's resolved addresses before looking the name up again")
+            .defineInRange("tunnel.dnsCacheSeconds", 60, 0, 3600);
+
+    public static final ModConfigSpec.BooleanValue TUNNEL_TLS_ENABLED = BUILDER
+            .comment("Encrypt the relay link (control connection and data channels) with TLS")
+            .define("tunnel.tls.enabled", false);
+
+    public static final ModConfigSpec.ConfigValue<String> TUNNEL_TLS_SERVER_NAME = BUILDER
+            .comment("Name expected in the relay's certificate (empty = tunnel.relay.host)")
+            .define("tunnel.tls.serverName", "");
+
+    public static final ModConfigSpec.BooleanValue TUNNEL_PROXY_PROTOCOL = BUILDER
+            .comment("Prefix tunnelled connections with a PROXY protocol v2 header so the server sees real player IPs")
+            .define("tunnel.proxyProtocol", false);
+
+    public static final ModConfigSpec.IntValue TUNNEL_LOCAL_POOL_SIZE = BUILDER
+            .comment("Pre-connected sockets kept open to the local server for incoming tunnel connections (0 = disabled)")
+            .defineInRange("tunnel.localPool.size", 2, 0, 32);
+
+    public static final ModConfigSpec.IntValue TUNNEL_LOCAL_POOL_MAX_IDLE = BUILDER
+            .comment("Seconds a pre-connected socket may stay idle before it is replaced; keep below the server's 30 second read timeout")
+            .defineInRange("tunnel.localPool.maxIdleSeconds", 20, 1, 25);
+
+    public static final ModConfigSpec.IntValue TUNNEL_LOCAL_CONNECT_TIMEOUT = BUILDER
+            .comment("Timeout in milliseconds for connecting to the local server")
+            .defineInRange("tunnel.localConnectTimeoutMs", 3000, 100, 30000);
+
+    public static final ModConfigSpec.ConfigValue<String> TUNNEL_DATA_MODE = BUILDER
+            .comment("SHARED (players share the control connection) or PER_CONNECTION (a separate relay connection per player, if the relay supports it)")
+            .define("tunnel.dataMode", "SHARED");
+
+    public static final ModConfigSpec.IntValue TUNNEL_DATA_POOL_MIN = BUILDER
+            .comment("Idle relay data channels always kept ready in PER_CONNECTION mode")
+            .defineInRange("tunnel.dataPool.min", 1, 0, 64);
+
+    public static final ModConfigSpec.IntValue TUNNEL_DATA_POOL_MAX = BUILDER
+            .comment("Upper bound for the adaptive data channel pool")
+            .defineInRange("tunnel.dataPool.max", 8, 1, 256);
+
+    public static final ModConfigSpec.IntValue TUNNEL_DATA_POOL_MAX_IDLE = BUILDER
+            .comment("Seconds an idle data channel is kept before it is closed and replaced")
+            .defineInRange("tunnel.dataPool.maxIdleSeconds", 60, 5, 3600);
+
+    // Tunnel Admission Control
+    public static final ModConfigSpec.BooleanValue TUNNEL_ADMISSION_ENABLED = BUILDER
+            .comment("Rate-limit tunnelled connections per source before they reach the server")
+            .define("tunnel.admission.enabled", true);
+
+    public static final ModConfigSpec.IntValue TUNNEL_ADMISSION_IP_RATE = BUILDER
+            .comment("Connections per minute allowed from a single source IP")
+            .defineInRange("tunnel.admission.perIpPerMinute", 20, 1, 10000);
+
+    public static final ModConfigSpec.IntValue TUNNEL_ADMISSION_IP_BURST = BUILDER
+            .comment("Connections a single source IP may open back to back before the rate applies")
+            .defineInRange("tunnel.admission.perIpBurst", 8, 1, 1000);
+
+    public static final ModConfigSpec.IntValue TUNNEL_ADMISSION_SUBNET_RATE = BUILDER
+            .comment("Connections per minute allowed from one /24 (IPv4) or /64 (IPv6)")
+            .defineInRange("tunnel.admission.perSubnetPerMinute", 60, 1, 100000);
+
+    public static final ModConfigSpec.IntValue TUNNEL_ADMISSION_SUBNET_BURST = BUILDER
+            .comment("Burst size for the per-subnet limit")
+            .defineInRange("tunnel.admission.perSubnetBurst", 24, 1, 10000);
+
+    public static final ModConfigSpec.IntValue TUNNEL_ADMISSION_MAX_CONNECTIONS = BUILDER
+            .comment("Maximum concurrent tunnelled connections")
+            .defineInRange("tunnel.admission.maxConnections", 200, 1, 10000);
+
+    public static final ModConfigSpec.IntValue TUNNEL_ADMISSION_MAX_PENDING = BUILDER
+            .comment("Maximum tunnelled connections the server has not answered yet")
+            .defineInRange("tunnel.admission.maxPending", 32, 1, 10000);
+
+    public static final ModConfigSpec.IntValue TUNNEL_ADMISSION_PENALTY = BUILDER
+            .comment("Seconds a source IP is rejected outright after exceeding its rate")
+            .defineInRange("tunnel.admission.penaltySeconds", 60, 0, 86400);
+
+    public static final ModConfigSpec.ConfigValue<String> TUNNEL_ADMISSION_EXEMPT = BUILDER
+            .comment("Comma-separated CIDRs that bypass the per-source limits (global caps still apply)")
+            .define("tunnel.admission.exemptSubnets", "");
+
+    // Per-player tunnel accounting
+    public static final ModConfigSpec.BooleanValue TUNNEL_PLAYER_STATS_ENABLED = BUILDER
+            .comment("Attribute tunnel traffic to players by reading the login packet (shown by /portbridge players)")
+            .define("tunnel.playerStats.enabled", true);
+
+    public static final ModConfigSpec.IntValue TUNNEL_PLAYER_STATS_CAPACITY = BUILDER
+            .comment("Distinct players tracked per server run; later players are counted only as untracked")
+            .defineInRange("tunnel.playerStats.capacity", 1024, 16, 65536);
+
+    public static final ModConfigSpec.ConfigValue<String> TUNNEL_PLAYER_STATS_FILE = BUILDER
+            .comment("Binary file that per-player traffic rollups are appended to (empty = no rollups)")
+            .define("tunnel.playerStats.file", "");
+
+    public static final ModConfigSpec.IntValue TUNNEL_PLAYER_STATS_ROLLUP = BUILDER
+            .comment("Minutes between per-player traffic rollups")
+            .defineInRange("tunnel.playerStats.rollupMinutes", 10, 1, 1440);
+
+    // Metrics
+    public static final ModConfigSpec.BooleanValue METRICS_ENABLED = BUILDER
+            .comment("Serve Prometheus metrics over HTTP at /metrics")
+            .define("metrics.enabled", false);
+
+    public static final ModConfigSpec.ConfigValue<String> METRICS_BIND = BUILDER
+            .comment("Address and port for the metrics endpoint (host:port; keep it on loopback or a private interface)")
+            .define("metrics.bind", "127.0.0.1:9464");
+
     static final ModConfigSpec SPEC = BUILDER.build();
 
+    // Compiled from ALLOWED_SUBNETS once per load instead of on every check
+    private static volatile SubnetSet allowedSubnets;
+    private static volatile SubnetSet admissionExemptSubnets;
+    // What the running exposure was last configured from
+    private static ConfigSnapshot snapshot;
+
+    public static SubnetSet getAllowedSubnets() {
+        SubnetSet set = allowedSubnets;
+        if (set == null) {
+            set = compileSubnets(ALLOWED_SUBNETS.get(), "allowedSubnets");
+            allowedSubnets = set;
+        }
+        return set;
+    }
+
+    public static SubnetSet getAdmissionExemptSubnets() {
+        SubnetSet set = admissionExemptSubnets;
+        if (set == null) {
+            set = compileSubnets(TUNNEL_ADMISSION_EXEMPT.get(), "tunnel.admission.exemptSubnets");
+            admissionExemptSubnets = set;
+        }
+        return set;
+    }
+
+    static SubnetSet compileSubnets(String csv, String key) {
+        SubnetSet set = SubnetSet.parse(csv);
+        if (!set.getInvalidEntries().isEmpty()) {
+            PortBridge.LOGGER.warn("[PortBridge] Ignoring invalid {} entries: {}", key, set.getInvalidEntries());
+        }
+        return set;
+    }
+
     @SubscribeEvent
     static void onLoad(final ModConfigEvent event) {
-        // Config reloaded
-        PortBridge.LOGGER.info("PortBridge config reloaded");
+        if (event instanceof ModConfigEvent.Unloading) return;
+        allowedSubnets = compileSubnets(ALLOWED_SUBNETS.get(), "allowedSubnets");
+        admissionExemptSubnets = compileSubnets(TUNNEL_ADMISSION_EXEMPT.get(), "tunnel.admission.exemptSubnets");
+        List<String> applied = applyChanges();
+        PortBridge.LOGGER.info("PortBridge config reloaded{}", applied.isEmpty() ? "" : ": " + String.join("; ", applied));
+    }
+
+    /**
+     * Compares the current values with the snapshot from the previous load and
+     * applies only what changed to the running exposure. Returns one line per
+     * problem found or action taken.
+     */
+    public static synchronized List<String> applyChanges() {
+        ConfigSnapshot previous = snapshot;
+        ConfigSnapshot current = ConfigSnapshot.capture();
+        snapshot = current;
+
+        List<String> out = new ArrayList<>();
+        for (String problem : current.getProblems()) {
+            PortBridge.LOGGER.warn("[PortBridge] Config: {}", problem);
+            out.add("Problem: " + problem);
+        }
+        if (previous == null) return out;
+        Map<ConfigSnapshot.Change, List<String>> changes = previous.diff(current);
+        if (!changes.isEmpty()) {
+            out.addAll(PortBridge.applyConfigChanges(changes));
+        }
+        return out;
     }
 }
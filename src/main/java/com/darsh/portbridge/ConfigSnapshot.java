@@ -0,0 +1,182 @@
+package com.darsh.portbridge;
+
+import net.neoforged.neoforge.common.ModConfigSpec;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The values of every setting the running exposure depends on, read once per
+ * config load. Comparing the snapshot taken at the last load with a new one
+ * tells reload exactly which parts to touch, so a routine edit such as one
+ * {@code additionalPorts} entry does not restart the tunnel or re-map every port.
+ */
+public final class ConfigSnapshot {
+    /**
+     * What a changed setting requires of the running exposure.
+     */
+    public enum Change {
+        // Map or unmap the affected entries only
+        PORTS,
+        // The main port moved, so the published address changes: restart exposure
+        MAIN_PORT,
+        // Which methods may run; restart only if the active one is no longer allowed
+        STRATEGIES,
+        // Reconnect the tunnel to the new relay
+        RELAY,
+        KEEPALIVE,
+        RECONNECT,
+        ADMISSION,
+        // Read when the tunnel connects; applies at the next reconnect
+        NEXT_CONNECT,
+        // Read when an exposure attempt starts; applies at the next start or retry
+        NEXT_EXPOSURE,
+        // Read once at server start
+        RESTART
+    }
+
+    private static final class Setting {
+        final String key;
+        final ModConfigSpec.ConfigValue<?> value;
+        final Change change;
+
+        Setting(String key, ModConfigSpec.ConfigValue<?> value, Change change) {
+            this.key = key;
+            this.value = value;
+            this.change = change;
+        }
+    }
+
+    // Settings not listed here (retries, public IP lookup, operator messages, logging,
+    // shutdown timeout, DNS cache) are read on every use and need no action on reload
+    private static final List<Setting> SETTINGS = List.of(
+            new Setting("additionalPorts", Config.ADDITIONAL_PORTS, Change.PORTS),
+            new Setting("leaseDuration", Config.LEASE_DURATION, Change.PORTS),
+            new Setting("internalPort", Config.INTERNAL_PORT, Change.MAIN_PORT),
+            new Setting("externalPort", Config.EXTERNAL_PORT, Change.MAIN_PORT),
+            new Setting("enablePortForwarding", Config.ENABLE_PORT_FORWARDING, Change.STRATEGIES),
+            new Setting("natpmp.enabled", Config.NATPMP_ENABLED, Change.STRATEGIES),
+            new Setting("exposure.strategies", Config.EXPOSURE_STRATEGIES, Change.STRATEGIES),
+            new Setting("tunnel.enabled", Config.TUNNEL_ENABLED, Change.STRATEGIES),
+            new Setting("tunnel.mode", Config.TUNNEL_MODE, Change.STRATEGIES),
+            new Setting("tunnel.relay.host", Config.TUNNEL_RELAY_HOST, Change.RELAY),
+            new Setting("tunnel.relay.port", Config.TUNNEL_RELAY_PORT, Change.RELAY),
+            new Setting("tunnel.tls.enabled", Config.TUNNEL_TLS_ENABLED, Change.RELAY),
+            new Setting("tunnel.tls.serverName", Config.TUNNEL_TLS_SERVER_NAME, Change.RELAY),
+            new Setting("tunnel.dataMode", Config.TUNNEL_DATA_MODE, Change.RELAY),
+            new Setting("tunnel.udp.direct", Config.TUNNEL_UDP_DIRECT, Change.RELAY),
+            new Setting("tunnel.keepAliveSeconds", Config.TUNNEL_KEEPALIVE_INTERVAL, Change.KEEPALIVE),
+            new Setting("tunnel.keepAlive.maxSeconds", Config.TUNNEL_KEEPALIVE_MAX, Change.KEEPALIVE),
+            new Setting("tunnel.keepAlive.timeoutSeconds", Config.TUNNEL_KEEPALIVE_TIMEOUT, Change.KEEPALIVE),
+            new Setting("tunnel.reconnect.baseDelaySeconds", Config.TUNNEL_RECONNECT_BASE_DELAY, Change.RECONNECT),
+            new Setting("tunnel.reconnect.maxDelaySeconds", Config.TUNNEL_RECONNECT_MAX_DELAY, Change.RECONNECT),
+            new Setting("tunnel.admission.enabled", Config.TUNNEL_ADMISSION_ENABLED, Change.ADMISSION),
+            new Setting("tunnel.admission.perIpPerMinute", Config.TUNNEL_ADMISSION_IP_RATE, Change.ADMISSION),
+            new Setting("tunnel.admission.perIpBurst", Config.TUNNEL_ADMISSION_IP_BURST, Change.ADMISSION),
+            new Setting("tunnel.admission.perSubnetPerMinute", Config.TUNNEL_ADMISSION_SUBNET_RATE, Change.ADMISSION),
+            new Setting("tunnel.admission.perSubnetBurst", Config.TUNNEL_ADMISSION_SUBNET_BURST, Change.ADMISSION),
+            new Setting("tunnel.admission.maxConnections", Config.TUNNEL_ADMISSION_MAX_CONNECTIONS, Change.ADMISSION),
+            new Setting("tunnel.admission.maxPending", Config.TUNNEL_ADMISSION_MAX_PENDING, Change.ADMISSION),
+            new Setting("tunnel.admission.penaltySeconds", Config.TUNNEL_ADMISSION_PENALTY, Change.ADMISSION),
+            new Setting("tunnel.admission.exemptSubnets", Config.TUNNEL_ADMISSION_EXEMPT, Change.ADMISSION),
+            new Setting("tunnel.localPool.size", Config.TUNNEL_LOCAL_POOL_SIZE, Change.NEXT_CONNECT),
+            new Setting("tunnel.localPool.maxIdleSeconds", Config.TUNNEL_LOCAL_POOL_MAX_IDLE, Change.NEXT_CONNECT),
+            new Setting("tunnel.localConnectTimeoutMs", Config.TUNNEL_LOCAL_CONNECT_TIMEOUT, Change.NEXT_CONNECT),
+            new Setting("tunnel.dataPool.min", Config.TUNNEL_DATA_POOL_MIN, Change.NEXT_CONNECT),
+            new Setting("tunnel.dataPool.max", Config.TUNNEL_DATA_POOL_MAX, Change.NEXT_CONNECT),
+            new Setting("tunnel.dataPool.maxIdleSeconds", Config.TUNNEL_DATA_POOL_MAX_IDLE, Change.NEXT_CONNECT),
+            new Setting("tunnel.udp.idleTimeoutSeconds", Config.TUNNEL_UDP_IDLE_TIMEOUT, Change.NEXT_CONNECT),
+            new Setting("tunnel.udp.maxFlows", Config.TUNNEL_UDP_MAX_FLOWS, Change.NEXT_CONNECT),
+            new Setting("refreshInterval", Config.REFRESH_INTERVAL, Change.NEXT_EXPOSURE),
+            new Setting("wanWatch.intervalSeconds", Config.WAN_WATCH_INTERVAL, Change.NEXT_EXPOSURE),
+            new Setting("natpmp.gateway", Config.NATPMP_GATEWAY, Change.NEXT_EXPOSURE),
+            new Setting("advanced.dryRun", Config.DRY_RUN, Change.NEXT_EXPOSURE),
+            new Setting("allowedSubnets", Config.ALLOWED_SUBNETS, Change.NEXT_EXPOSURE),
+            new Setting("tunnel.proxyProtocol", Config.TUNNEL_PROXY_PROTOCOL, Change.RESTART),
+            new Setting("tunnel.playerStats.enabled", Config.TUNNEL_PLAYER_STATS_ENABLED, Change.RESTART),
+            new Setting("tunnel.playerStats.capacity", Config.TUNNEL_PLAYER_STATS_CAPACITY, Change.RESTART),
+            new Setting("tunnel.playerStats.file", Config.TUNNEL_PLAYER_STATS_FILE, Change.RESTART),
+            new Setting("tunnel.playerStats.rollupMinutes", Config.TUNNEL_PLAYER_STATS_ROLLUP, Change.RESTART),
+            new Setting("events.file", Config.EVENTS_FILE, Change.RESTART),
+            new Setting("upnp.journalFile", Config.UPNP_JOURNAL_FILE, Change.RESTART),
+            new Setting("metrics.enabled", Config.METRICS_ENABLED, Change.RESTART),
+            new Setting("metrics.bind", Config.METRICS_BIND, Change.RESTART));
+
+    private static final List<String> STRATEGY_NAMES = List.of("NATPMP", "UPNP", "TUNNEL");
+
+    private final Object[] values;
+    private final List<String> problems;
+
+    private ConfigSnapshot(Object[] values, List<String> problems) {
+        this.values = values;
+        this.problems = problems;
+    }
+
+    /**
+     * Reads the current values and checks the ones whose format the spec cannot.
+     */
+    public static ConfigSnapshot capture() {
+        Object[] values = new Object[SETTINGS.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = SETTINGS.get(i).value.get();
+        }
+
+        List<String> problems = new ArrayList<>();
+        String ports = Config.ADDITIONAL_PORTS.get();
+        if (ports != null && !ports.isBlank()) {
+            for (String entry : ports.split(",")) {
+                if (!isValidPortEntry(entry.trim())) {
+                    problems.add("additionalPorts entry '" + entry.trim() + "' is not name:internal:external:protocol:enabled");
+                }
+            }
+        }
+        for (String entry : Config.EXPOSURE_STRATEGIES.get().split(",")) {
+            String name = entry.trim().split(":")[0].toUpperCase();
+            if (!name.isEmpty() && !STRATEGY_NAMES.contains(name)) {
+                problems.add("exposure.strategies has unknown method '" + name + "'");
+            }
+        }
+        if (Config.TUNNEL_RECONNECT_BASE_DELAY.get() > Config.TUNNEL_RECONNECT_MAX_DELAY.get()) {
+            problems.add("tunnel.reconnect.baseDelaySeconds is larger than maxDelaySeconds");
+        }
+        return new ConfigSnapshot(values, problems);
+    }
+
+    private static boolean isValidPortEntry(String entry) {
+        String[] parts = entry.split(":");
+        if (parts.length < 5) return false;
+        try {
+            int internal = Integer.parseInt(parts[1].trim());
+            int external = Integer.parseInt(parts[2].trim());
+            String protocol = parts[3].trim().toUpperCase();
+            return internal >= 1 && internal <= 65535 && external >= 1 && external <= 65535
+                    && (protocol.equals("TCP") || protocol.equals("UDP"));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Settings that differ in {@code newer}, grouped by what they require.
+     */
+    public Map<Change, List<String>> diff(ConfigSnapshot newer) {
+        Map<Change, List<String>> changes = new EnumMap<>(Change.class);
+        for (int i = 0; i < values.length; i++) {
+            if (!Objects.equals(values[i], newer.values[i])) {
+                Setting setting = SETTINGS.get(i);
+                changes.computeIfAbsent(setting.change, c -> new ArrayList<>()).add(setting.key);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Values that are in range but cannot be used as written; reload still applies the rest.
+     */
+    public List<String> getProblems() {
+        return problems;
+    }
+}
@@ -0,0 +1,225 @@
+package com.darsh.portbridge;
+
+import com.darsh.portbridge.tunnel.AdmissionController;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size history of what the tunnel, UPnP and exposure code did, for
+ * {@code /portbridge events}. Records are numeric only and live in parallel
+ * primitive arrays, so {@link #record} allocates nothing and takes no lock:
+ * a writer claims a sequence number, fills its slot and publishes it, and a
+ * reader drops any slot that changed while it was being copied.
+ *
+ * With {@code events.file} set, every record is also written to a memory-mapped
+ * file, which the OS keeps even if the JVM dies.
+ */
+public final class EventLog {
+    public enum Type {
+        // Labels name the port, value, code and duration fields; null fields are not shown
+        EXPOSED(null, null, "method", null),
+        EXPOSURE_FAILED(null, null, "method", null),
+        ADDRESS_CHANGED(null, null, "method", null),
+        UPNP_GATEWAY_FOUND(null, null, null, "took"),
+        UPNP_GATEWAY_MISSING(null, null, null, "took"),
+        UPNP_MAPPED("port", "lease", null, null),
+        UPNP_MAP_FAILED("port", null, "error", null),
+        UPNP_RENEWED("port", "lease", null, "took"),
+        UPNP_RENEW_FAILED("port", null, "error", "took"),
+        UPNP_ORPHANS_REMOVED(null, "count", null, "took"),
+        NATPMP_MAPPED("port", "lifetime", null, null),
+        NATPMP_MAP_FAILED("port", null, null, null),
+        GATEWAY_REBOOTED(null, null, null, null),
+        TUNNEL_CONNECTED("relayPort", null, null, "took"),
+        TUNNEL_CONNECT_FAILED("relayPort", null, null, "took"),
+        TUNNEL_DISCONNECTED(null, null, null, "uptime"),
+        TUNNEL_RECONNECT_SCHEDULED(null, "attempt", null, "delay"),
+        STREAM_OPENED("srcPort", null, null, null),
+        STREAM_REJECTED("srcPort", null, "verdict", null),
+        STREAM_CLOSED(null, "bytes", null, "lifetime");
+
+        private static final Type[] VALUES = values();
+
+        final String portLabel;
+        final String valueLabel;
+        final String codeLabel;
+        final String durationLabel;
+
+        Type(String portLabel, String valueLabel, String codeLabel, String durationLabel) {
+            this.portLabel = portLabel;
+            this.valueLabel = valueLabel;
+            this.codeLabel = codeLabel;
+            this.durationLabel = durationLabel;
+        }
+    }
+
+    private static final String[] METHODS = {"UPnP", "NAT-PMP", "TUNNEL"};
+
+    public static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+    // Slot state while a writer is filling it; published slots hold sequence + 1
+    private static final long WRITING = -1;
+
+    private static final AtomicLong next = new AtomicLong();
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private static final long[] times = new long[CAPACITY];
+    private static final int[] types = new int[CAPACITY];
+    private static final int[] ports = new int[CAPACITY];
+    private static final long[] values = new long[CAPACITY];
+    private static final int[] codes = new int[CAPACITY];
+    private static final long[] durations = new long[CAPACITY];
+
+    // File layout: header, then CAPACITY fixed-size records at slot * RECORD_SIZE
+    private static final int FILE_MAGIC = 0x50424556; // "PBEV"
+    private static final int FILE_VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 48;
+    private static volatile MappedByteBuffer file;
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private EventLog() {
+    }
+
+    public static void record(Type type) {
+        record(type, 0, 0, 0, 0);
+    }
+
+    public static void record(Type type, int port) {
+        record(type, port, 0, 0, 0);
+    }
+
+    /**
+     * Appends one event, overwriting the oldest once the buffer is full.
+     * Safe from any thread; {@code durationMs} is elapsed time, not a timestamp.
+     */
+    public static void record(Type type, int port, long value, int code, long durationMs) {
+        long seq = next.getAndIncrement();
+        int slot = (int) (seq & MASK);
+        long now = System.currentTimeMillis();
+
+        published.setOpaque(slot, WRITING);
+        VarHandle.storeStoreFence();
+        times[slot] = now;
+        types[slot] = type.ordinal();
+        ports[slot] = port;
+        values[slot] = value;
+        codes[slot] = code;
+        durations[slot] = durationMs;
+        published.setRelease(slot, seq + 1);
+
+        MappedByteBuffer mapped = file;
+        if (mapped != null) {
+            int at = HEADER_SIZE + slot * RECORD_SIZE;
+            mapped.putLong(at + 8, now);
+            mapped.putInt(at + 16, type.ordinal());
+            mapped.putInt(at + 20, port);
+            mapped.putLong(at + 24, value);
+            mapped.putInt(at + 32, code);
+            mapped.putLong(at + 36, durationMs);
+            // Sequence last so a reader of the file can tell a complete record from a torn one
+            mapped.putLong(at, seq + 1);
+        }
+    }
+
+    /**
+     * Code for the {@code method} field of exposure events.
+     */
+    public static int methodCode(String method) {
+        for (int i = 0; i < METHODS.length; i++) {
+            if (METHODS[i].equals(method)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * The newest {@code limit} events, oldest first, formatted for chat.
+     */
+    public static List<String> recent(int limit) {
+        long end = next.get();
+        long start = Math.max(0, end - Math.min(limit, CAPACITY));
+        List<String> out = new ArrayList<>((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            int slot = (int) (seq & MASK);
+            if (published.getAcquire(slot) != seq + 1) continue; // overwritten or still being written
+            long time = times[slot];
+            int type = types[slot];
+            int port = ports[slot];
+            long value = values[slot];
+            int code = codes[slot];
+            long duration = durations[slot];
+            VarHandle.loadLoadFence();
+            if (published.get(slot) != seq + 1) continue; // a writer lapped us mid-copy
+            out.add(format(time, Type.VALUES[type], port, value, code, duration));
+        }
+        return out;
+    }
+
+    private static String format(long time, Type type, int port, long value, int code, long duration) {
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(TIME_FORMAT.format(Instant.ofEpochMilli(time))).append(' ').append(type.name());
+        if (type.portLabel != null) sb.append(' ').append(type.portLabel).append('=').append(port);
+        if (type.valueLabel != null) sb.append(' ').append(type.valueLabel).append('=').append(value);
+        if (type.codeLabel != null) sb.append(' ').append(type.codeLabel).append('=').append(describeCode(type, code));
+        if (type.durationLabel != null) sb.append(' ').append(type.durationLabel).append('=').append(duration).append("ms");
+        return sb.toString();
+    }
+
+    private static String describeCode(Type type, int code) {
+        if ("method".equals(type.codeLabel) && code >= 0 && code < METHODS.length) {
+            return METHODS[code];
+        }
+        if (type == Type.STREAM_REJECTED) {
+            AdmissionController.Verdict[] verdicts = AdmissionController.Verdict.values();
+            if (code >= 0 && code < verdicts.length) return verdicts[code].name();
+        }
+        return Integer.toString(code);
+    }
+
+    public static long getTotalRecorded() {
+        return next.get();
+    }
+
+    /**
+     * Mirrors records into a memory-mapped file from now on. The file is
+     * recreated, so it holds only this run's events.
+     */
+    public static void mapTo(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) CAPACITY * RECORD_SIZE);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            mapped.putInt(0, FILE_MAGIC);
+            mapped.putInt(4, FILE_VERSION);
+            mapped.putInt(8, CAPACITY);
+            mapped.putInt(12, RECORD_SIZE);
+            mapped.putLong(16, System.currentTimeMillis());
+            file = mapped;
+        }
+    }
+
+    /**
+     * Stops mirroring and flushes what was written to disk.
+     */
+    public static void unmap() {
+        MappedByteBuffer mapped = file;
+        file = null;
+        if (mapped != null) {
+            mapped.force();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.darsh.portbridge;
+
+/**
+ * IPv4/IPv6 literal parsing that never falls back to a DNS lookup,
+ * unlike {@link java.net.InetAddress#getByName}.
+ */
+public final class IPLiterals {
+    private IPLiterals() {
+    }
+
+    /**
+     * Parses a dotted-quad or IPv6 literal (brackets allowed) into 4 or 16 bytes, or null.
+     * An IPv6 zone ID (fe80::1%eth0) is dropped; it names the link, not the address.
+     */
+    public static byte[] parse(String s) {
+        if (s == null) return null;
+        s = s.trim();
+        if (s.length() > 2 && s.charAt(0) == '[' && s.charAt(s.length() - 1) == ']') {
+            s = s.substring(1, s.length() - 1);
+        }
+        if (s.isEmpty()) return null;
+        if (s.indexOf(':') < 0) return parseV4(s);
+        int zone = s.indexOf('%');
+        if (zone >= 0) {
+            if (zone == 0 || zone == s.length() - 1) return null;
+            s = s.substring(0, zone);
+        }
+        return parseV6(s);
+    }
+
+    public static byte[] parseV4(String s) {
+        byte[] out = new byte[4];
+        int part = 0;
+        int val = -1;
+        int digits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                val = (val < 0 ? 0 : val) * 10 + (c - '0');
+                if (++digits > 3 || val > 255) return null;
+            } else if (c == '.') {
+                if (val < 0 || part == 3) return null;
+                out[part++] = (byte) val;
+                val = -1;
+                digits = 0;
+            } else {
+                return null;
+            }
+        }
+        if (val < 0 || part != 3) return null;
+        out[3] = (byte) val;
+        return out;
+    }
+
+    public static byte[] parseV6(String s) {
+        byte[] out = new byte[16];
+        int n = s.length();
+        int pos = 0;
+        int compressAt = -1;
+        int i = 0;
+
+        if (s.startsWith("::")) {
+            compressAt = 0;
+            i = 2;
+            if (n == 2) return out;
+        } else if (s.charAt(0) == ':') {
+            return null;
+        }
+
+        while (i < n) {
+            if (pos >= 16) return null;
+            int start = i;
+            int val = 0;
+            int digits = 0;
+            while (i < n && Character.digit(s.charAt(i), 16) >= 0) {
+                val = (val << 4) | Character.digit(s.charAt(i), 16);
+                if (++digits > 4) break;
+                i++;
+            }
+            if (i < n && s.charAt(i) == '.') {
+                // Embedded IPv4 in the last 32 bits, e.g. ::ffff:192.0.2.1
+                if (pos > 12) return null;
+                byte[] v4 = parseV4(s.substring(start));
+                if (v4 == null) return null;
+                System.arraycopy(v4, 0, out, pos, 4);
+                pos += 4;
+                break;
+            }
+            if (digits == 0 || digits > 4) return null;
+            out[pos++] = (byte) (val >> 8);
+            out[pos++] = (byte) val;
+            if (i == n) break;
+            if (s.charAt(i) != ':') return null;
+            i++;
+            if (i < n && s.charAt(i) == ':') {
+                if (compressAt >= 0) return null;
+                compressAt = pos;
+                i++;
+            } else if (i == n) {
+                return null;
+            }
+        }
+
+        if (compressAt >= 0) {
+            if (pos == 16) return null;
+            int tail = pos - compressAt;
+            System.arraycopy(out, compressAt, out, 16 - tail, tail);
+            for (int k = compressAt; k < 16 - tail; k++) {
+                out[k] = 0;
+            }
+        } else if (pos != 16) {
+            return null;
+        }
+        return out;
+    }
+
+    public static boolean isLiteral(String s) {
+        return parse(s) != null;
+    }
+
+    /**
+     * Formats host and port as a join address, bracketing IPv6 literals.
+     */
+    public static String formatAddress(String host, int port) {
+        if (host != null && host.indexOf(':') >= 0 && !host.startsWith("[")) {
+            return "[" + host + "]:" + port;
+        }
+        return host + ":" + port;
+    }
+
+    /**
+     * Splits "host:port" or "[v6]:port" into host (without brackets) and port.
+     */
+    public static String[] splitAddress(String address) {
+        if (address == null) return new String[] {"", ""};
+        int colon = address.lastIndexOf(':');
+        if (colon < 0 || (address.indexOf(':') != colon && !address.startsWith("["))) {
+            return new String[] {address, ""};
+        }
+        String host = address.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        return new String[] {host, address.substring(colon + 1)};
+    }
+}
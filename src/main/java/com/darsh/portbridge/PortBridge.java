@@ -13,7 +13,15 @@ import net.neoforged.neoforge.event.server.ServerStoppingEvent;
 import org.slf4j.Logger;
 
 import com.mojang.logging.LogUtils;
+import com.darsh.portbridge.exposure.ExposureListener;
 import com.darsh.portbridge.exposure.ExposureManager;
+import com.darsh.portbridge.exposure.ExposureService;
+import com.darsh.portbridge.metrics.MetricsServer;
+import com.darsh.portbridge.tunnel.ProxyProtocolDecoder;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
 
 @Mod(PortBridge.MODID)
 @EventBusSubscriber(modid = PortBridge.MODID)
@@ -24,6 +32,7 @@ public class PortBridge {
     private static PortForwardingManager portForwardingManager;
     private static PublicIPResolver publicIPResolver;
     private static ExposureManager exposureManager;
+    private static MetricsServer metricsServer;
     private static String publicAddress;
     private static MinecraftServer server;
 
@@ -37,28 +46,64 @@ public class PortBridge {
         server = event.getServer();
         LOGGER.info("[PortBridge] Server started, initializing exposure methods");
 
-        exposureManager = new ExposureManager();
-        exposureManager.start(Config.INTERNAL_PORT.get(), Config.EXTERNAL_PORT.get());
+        if (Config.TUNNEL_PROXY_PROTOCOL.get()) {
+            ProxyProtocolDecoder.install(server);
+        }
 
-        // Wait for exposure to complete
-        new Thread(() -> {
+        String eventsFile = Config.EVENTS_FILE.get();
+        if (eventsFile != null && !eventsFile.isBlank()) {
             try {
-                Thread.sleep(5000); // Wait 5 seconds
+                EventLog.mapTo(Path.of(eventsFile.trim()));
+            } catch (Exception e) {
+                LOGGER.warn("[PortBridge] Could not map event log file {}: {}", eventsFile, e.getMessage());
+            }
+        }
+
+        exposureManager = new ExposureManager();
+        // Announce the address as soon as the first exposure method succeeds
+        exposureManager.addListener(new ExposureListener() {
+            @Override
+            public void onExposed(ExposureService service, String address) {
                 printPublicAddress();
                 if (Config.ENABLE_OPERATOR_BROADCAST.get()) {
-                    broadcastToOperators();
+                    server.execute(PortBridge::broadcastToOperators);
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
             }
-        }, "PortBridge-Init").start();
+
+            @Override
+            public void onFailed(ExposureService service, String error) {
+                printPublicAddress();
+            }
+
+            @Override
+            public void onAddressChanged(ExposureService service, String oldAddress, String newAddress) {
+                publicAddress = newAddress;
+                LOGGER.info("[PortBridge] Public address changed: {} -> {}", oldAddress, newAddress);
+                if (Config.ENABLE_OPERATOR_BROADCAST.get()) {
+                    server.execute(PortBridge::broadcastToOperators);
+                }
+            }
+        });
+        exposureManager.start(Config.INTERNAL_PORT.get(), Config.EXTERNAL_PORT.get());
+
+        if (Config.METRICS_ENABLED.get()) {
+            metricsServer = new MetricsServer(exposureManager);
+            if (!metricsServer.start()) {
+                metricsServer = null;
+            }
+        }
     }
 
     @SubscribeEvent
     public static void onServerStopping(ServerStoppingEvent event) {
+        if (metricsServer != null) {
+            metricsServer.stop();
+            metricsServer = null;
+        }
         if (exposureManager != null) {
             exposureManager.shutdown();
         }
+        EventLog.unmap();
     }
 
     private static void printPublicAddress() {
@@ -88,8 +133,9 @@ public class PortBridge {
 
         String address = exposureManager.getPublicAddress();
         String method = exposureManager.getExposureMethod();
-        String publicIp = address != null && address.contains(":") ? address.split(":")[0] : "";
-        String port = address != null && address.contains(":") ? address.split(":")[1] : "";
+        String[] hostPort = IPLiterals.splitAddress(address);
+        String publicIp = hostPort[0];
+        String port = hostPort[1];
 
         String template = Config.OP_BROADCAST_TEMPLATE.get();
         String msgText = template.replace("{public_ip}", publicIp)
@@ -119,10 +165,11 @@ public class PortBridge {
         return exposureManager;
     }
 
-    public void enablePortForwarding() {
+    public boolean enablePortForwarding() {
         if (exposureManager != null) {
-            exposureManager.start(Config.INTERNAL_PORT.get(), Config.EXTERNAL_PORT.get());
+            return exposureManager.start(Config.INTERNAL_PORT.get(), Config.EXTERNAL_PORT.get());
         }
+        return false;
     }
 
     public void disablePortForwarding() {
@@ -131,7 +178,18 @@ public class PortBridge {
         }
     }
 
-    public void reloadConfig() {
-        // Config is automatically reloaded via event
+    /**
+     * Applies config edits that were not picked up yet; the file watcher normally
+     * applies them as soon as the file is saved.
+     */
+    public List<String> reloadConfig() {
+        return Config.applyChanges();
+    }
+
+    static List<String> applyConfigChanges(Map<ConfigSnapshot.Change, List<String>> changes) {
+        if (exposureManager == null) {
+            return List.of();
+        }
+        return exposureManager.applyConfig(changes);
     }
 }
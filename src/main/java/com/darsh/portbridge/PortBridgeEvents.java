@@ -0,0 +1,148 @@
+package com.darsh.portbridge;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder events for the tunnel and UPnP paths. They cost next to nothing
+ * unless a recording enables them, e.g.
+ * {@code -XX:StartFlightRecording:settings=default,filename=portbridge.jfr} or
+ * {@code jcmd <pid> JFR.start}. Call sites check {@code isEnabled()} before
+ * gathering fields.
+ */
+public final class PortBridgeEvents {
+    private PortBridgeEvents() {
+    }
+
+    @Name("portbridge.TunnelConnect")
+    @Label("Tunnel Connect")
+    @Description("TCP connect, optional TLS handshake and REGISTER with the relay")
+    @Category({"PortBridge", "Tunnel"})
+    @StackTrace(false)
+    public static final class TunnelConnect extends Event {
+        @Label("Relay")
+        public String relay;
+        @Label("TLS")
+        public boolean tls;
+        @Label("Success")
+        public boolean success;
+        @Label("Public Address")
+        public String publicAddress;
+        @Label("Error")
+        public String error;
+    }
+
+    @Name("portbridge.StreamOpen")
+    @Label("Stream Open")
+    @Description("A tunnelled player connection was bound to a local socket")
+    @Category({"PortBridge", "Tunnel"})
+    @StackTrace(false)
+    public static final class StreamOpen extends Event {
+        @Label("Connection ID")
+        public String connectionId;
+        @Label("Source")
+        public String source;
+        @Label("Warm Local Socket")
+        public boolean warmLocal;
+        @Label("Dedicated Data Channel")
+        public boolean dataChannel;
+    }
+
+    @Name("portbridge.StreamClose")
+    @Label("Stream Close")
+    @Description("Lifetime and byte counts of a tunnelled player connection")
+    @Category({"PortBridge", "Tunnel"})
+    @StackTrace(false)
+    public static final class StreamClose extends Event {
+        @Label("Connection ID")
+        public String connectionId;
+        @Label("Bytes From Relay")
+        @DataAmount
+        public long bytesIn;
+        @Label("Bytes To Relay")
+        @DataAmount
+        public long bytesOut;
+        @Label("Established")
+        public boolean established;
+    }
+
+    @Name("portbridge.FlowStall")
+    @Label("Flow Control Stall")
+    @Description("A forwarder write blocked because the receiving side was not draining")
+    @Category({"PortBridge", "Tunnel"})
+    @StackTrace(false)
+    public static final class FlowStall extends Event {
+        @Label("Connection ID")
+        public String connectionId;
+        @Label("Direction")
+        public String direction;
+        @Label("Bytes")
+        @DataAmount
+        public int bytes;
+        @Label("Blocked")
+        @Timespan(Timespan.NANOSECONDS)
+        public long blocked;
+    }
+
+    @Name("portbridge.RelayRtt")
+    @Label("Relay RTT")
+    @Description("Round trip from KEEPALIVE to the relay's HEARTBEAT")
+    @Category({"PortBridge", "Tunnel"})
+    @StackTrace(false)
+    public static final class RelayRtt extends Event {
+        @Label("RTT")
+        @Timespan(Timespan.MILLISECONDS)
+        public long rtt;
+    }
+
+    @Name("portbridge.SsdpDiscovery")
+    @Label("SSDP Discovery")
+    @Description("UPnP gateway search and device description fetch")
+    @Category({"PortBridge", "UPnP"})
+    @StackTrace(false)
+    public static final class SsdpDiscovery extends Event {
+        @Label("Found")
+        public boolean found;
+        @Label("Location")
+        public String location;
+        @Label("Service Type")
+        public String serviceType;
+    }
+
+    @Name("portbridge.SoapAction")
+    @Label("SOAP Action")
+    @Description("One UPnP control request")
+    @Category({"PortBridge", "UPnP"})
+    @StackTrace(false)
+    public static final class SoapAction extends Event {
+        @Label("Action")
+        public String action;
+        @Label("HTTP Status")
+        public int httpStatus;
+        @Label("UPnP Error Code")
+        public int errorCode;
+        @Label("Success")
+        public boolean success;
+    }
+
+    @Name("portbridge.LeaseRenewal")
+    @Label("Lease Renewal")
+    @Description("Renewal of a UPnP port mapping lease")
+    @Category({"PortBridge", "UPnP"})
+    @StackTrace(false)
+    public static final class LeaseRenewal extends Event {
+        @Label("External Port")
+        public int externalPort;
+        @Label("Lease")
+        @Timespan(Timespan.SECONDS)
+        public long lease;
+        @Label("Success")
+        public boolean success;
+    }
+}
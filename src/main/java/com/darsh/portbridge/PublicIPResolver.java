@@ -5,94 +5,302 @@ import org.slf4j.Logger;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Resolves the public IP from several sources in parallel and caches the answer.
+ * Callers that must not block (status, broadcasts) use {@link #getCachedPublicIP()}.
+ */
 public class PublicIPResolver {
     private static final Logger LOGGER = PortBridge.LOGGER;
-    private static final Pattern IP_PATTERN = Pattern.compile("^\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}$");
-    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+    private static final int HTTP_TIMEOUT_MS = 3000;
+    private static final long RESOLVE_TIMEOUT_MS = 8000;
+    // Short delays, since every retry has to fit inside RESOLVE_TIMEOUT_MS
+    private static final RetryPolicy ECHO_RETRY = new RetryPolicy("IP echo", () -> 500, () -> 2000, Config.RETRY_COUNT::get);
+
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(4, r -> {
         Thread t = new Thread(r, "PortBridge-IPResolver");
         t.setDaemon(true);
         return t;
     });
 
+    private final Object lock = new Object();
+    private volatile String cachedIp;
+    private volatile String cachedSource;
+    private volatile long cachedAt;
+    private CompletableFuture<String> inFlight;
+    private ScheduledFuture<?> refreshTask;
+    private volatile SimpleUPnP upnp;
+    private volatile SimpleNatPmp natPmp;
+
+    private interface Source {
+        String name();
+
+        String query() throws Exception;
+
+        default void cancel() {
+        }
+    }
+
+    /**
+     * Reuse an already discovered gateway instead of running SSDP again.
+     */
+    public void useUPnP(SimpleUPnP upnp) {
+        this.upnp = upnp;
+    }
+
+    public void useNatPmp(SimpleNatPmp natPmp) {
+        this.natPmp = natPmp;
+    }
+
+    /**
+     * Last known public IP without touching the network; may be stale or null.
+     */
+    public String getCachedPublicIP() {
+        return cachedIp;
+    }
+
+    public String getCachedSource() {
+        return cachedSource;
+    }
+
+    public long getCacheAgeMillis() {
+        return cachedAt == 0 ? -1 : System.currentTimeMillis() - cachedAt;
+    }
+
+    /**
+     * Completes immediately from a fresh cache entry, otherwise joins or starts a resolution.
+     */
     public CompletableFuture<String> getPublicIP() {
-        CompletableFuture<String> future = new CompletableFuture<>();
+        String ip = cachedIp;
+        if (ip != null && getCacheAgeMillis() < ttlMillis()) {
+            return CompletableFuture.completedFuture(ip);
+        }
+        return refresh();
+    }
 
-        executor.submit(() -> {
-            try {
-                String ip = null;
+    public CompletableFuture<String> refresh() {
+        synchronized (lock) {
+            if (inFlight != null && !inFlight.isDone()) {
+                return inFlight;
+            }
+            inFlight = resolve();
+            return inFlight;
+        }
+    }
 
-                // Try UPnP first
-                SimpleUPnP upnp = new SimpleUPnP();
-                if (upnp.isUPnPAvailable()) {
-                    ip = upnp.getExternalIP();
-                    if (isValidIP(ip)) {
-                        if (Config.DEBUG_LOGGING.get()) {
-                            LOGGER.debug("[PortBridge] Public IP from UPnP: {}", ip);
-                        }
-                        future.complete(ip);
-                        return;
+    /**
+     * Records an address learned elsewhere (e.g. the WAN watcher) as the current answer.
+     */
+    public void updateCache(String ip, String source) {
+        if (!isValidIP(ip)) return;
+        cachedIp = ip;
+        cachedSource = source;
+        cachedAt = System.currentTimeMillis();
+        scheduleBackgroundRefresh();
+    }
+
+    private CompletableFuture<String> resolve() {
+        List<Source> sources = buildSources();
+        CompletableFuture<String> result = new CompletableFuture<>();
+        if (sources.isEmpty()) {
+            result.complete(cachedIp);
+            return result;
+        }
+
+        int quorum = Math.min(Config.PUBLIC_IP_QUORUM.get(), sources.size());
+        Map<String, Integer> votes = new HashMap<>();
+        AtomicInteger remaining = new AtomicInteger(sources.size());
+        List<Future<?>> tasks = new ArrayList<>();
+
+        for (Source source : sources) {
+            tasks.add(executor.submit(() -> {
+                String ip = null;
+                try {
+                    ip = source.query();
+                    if (ip != null) ip = ip.trim();
+                } catch (Exception e) {
+                    if (Config.DEBUG_LOGGING.get()) {
+                        LOGGER.debug("[PortBridge] Public IP source {} failed: {}", source.name(), e.getMessage());
                     }
                 }
 
-                // Fallback to external service
-                if (Config.ENABLE_PUBLIC_IP_FALLBACK.get()) {
-                    ip = getPublicIPFromService();
+                synchronized (votes) {
                     if (isValidIP(ip)) {
-                        if (Config.DEBUG_LOGGING.get()) {
-                            LOGGER.debug("[PortBridge] Public IP from service: {}", ip);
+                        int count = votes.merge(ip, 1, Integer::sum);
+                        if (count >= quorum && result.complete(ip)) {
+                            if (Config.DEBUG_LOGGING.get()) {
+                                LOGGER.debug("[PortBridge] Public IP from {}: {}", source.name(), ip);
+                            }
+                            cache(ip, source.name());
                         }
-                        future.complete(ip);
-                        return;
+                    }
+                    if (remaining.decrementAndGet() == 0 && !result.isDone()) {
+                        // No quorum: fall back to the most common answer, if any
+                        String best = votes.entrySet().stream().max(Map.Entry.comparingByValue()).map(Map.Entry::getKey).orElse(null);
+                        if (best != null) cache(best, "plurality");
+                        result.complete(best != null ? best : cachedIp);
                     }
                 }
+            }));
+        }
 
-                future.complete(null); // No IP found
-            } catch (Exception e) {
-                LOGGER.error("[PortBridge] Error getting public IP", e);
-                future.complete(null);
+        ScheduledFuture<?> timeout = executor.schedule(() -> result.complete(cachedIp), RESOLVE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        result.whenComplete((ip, err) -> {
+            timeout.cancel(false);
+            for (Source source : sources) {
+                source.cancel();
+            }
+            for (Future<?> task : tasks) {
+                task.cancel(true);
             }
         });
-
-        return future;
+        return result;
     }
 
-    private String getPublicIPFromService() {
-        try {
-            URL url = new URL(Config.PUBLIC_IP_FALLBACK_URL.get());
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            conn.setConnectTimeout(5000);
-            conn.setReadTimeout(5000);
-
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
-                String line = reader.readLine();
-                if (line != null) {
-                    line = line.trim();
-                    if (isValidIP(line)) {
-                        return line;
+    private List<Source> buildSources() {
+        List<Source> sources = new ArrayList<>();
+        for (String name : Config.PUBLIC_IP_SOURCES.get().split(",")) {
+            switch (name.trim().toUpperCase()) {
+                case "UPNP":
+                    sources.add(new Source() {
+                        public String name() { return "UPnP"; }
+
+                        public String query() {
+                            SimpleUPnP gateway = upnp;
+                            if (gateway == null) {
+                                gateway = new SimpleUPnP();
+                                if (!gateway.isUPnPAvailable()) return null;
+                                upnp = gateway;
+                            }
+                            return gateway.getExternalIP();
+                        }
+                    });
+                    break;
+                case "NATPMP":
+                    sources.add(new Source() {
+                        public String name() { return "NAT-PMP"; }
+
+                        public String query() {
+                            SimpleNatPmp gateway = natPmp;
+                            if (gateway == null) {
+                                InetAddress address = SimpleNatPmp.detectGateway();
+                                if (address == null) return null;
+                                gateway = new SimpleNatPmp(address);
+                                natPmp = gateway;
+                            }
+                            return gateway.getExternalAddress();
+                        }
+                    });
+                    break;
+                case "HTTP":
+                    if (!Config.ENABLE_PUBLIC_IP_FALLBACK.get()) break;
+                    List<String> urls = new ArrayList<>();
+                    urls.add(Config.PUBLIC_IP_FALLBACK_URL.get());
+                    for (String url : Config.PUBLIC_IP_EXTRA_URLS.get().split(",")) {
+                        if (!url.isBlank() && !urls.contains(url.trim())) urls.add(url.trim());
+                    }
+                    for (String url : urls) {
+                        sources.add(new HttpSource(url));
+                    }
+                    break;
+                default:
+                    if (!name.isBlank()) {
+                        LOGGER.warn("[PortBridge] Unknown public IP source: {}", name);
                     }
-                }
             }
-        } catch (Exception e) {
-            if (Config.DEBUG_LOGGING.get()) {
-                LOGGER.debug("[PortBridge] Failed to get IP from service: {}", e.getMessage());
+        }
+        return sources;
+    }
+
+    private static final class HttpSource implements Source {
+        private final String url;
+        private volatile HttpURLConnection conn;
+
+        HttpSource(String url) {
+            this.url = url;
+        }
+
+        public String name() {
+            return url;
+        }
+
+        public String query() throws Exception {
+            return ECHO_RETRY.call(url, true, this::fetch);
+        }
+
+        private String fetch() throws Exception {
+            conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setRequestMethod("GET");
+            conn.setConnectTimeout(HTTP_TIMEOUT_MS);
+            conn.setReadTimeout(HTTP_TIMEOUT_MS);
+
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.US_ASCII))) {
+                return reader.readLine();
             }
         }
-        return null;
+
+        public void cancel() {
+            HttpURLConnection c = conn;
+            if (c != null) c.disconnect();
+        }
+    }
+
+    private void cache(String ip, String source) {
+        String previous = cachedIp;
+        cachedIp = ip;
+        cachedSource = source;
+        cachedAt = System.currentTimeMillis();
+        if (previous != null && !previous.equals(ip)) {
+            LOGGER.info("[PortBridge] Public IP changed: {} -> {}", previous, ip);
+        }
+        scheduleBackgroundRefresh();
     }
 
-    private boolean isValidIP(String ip) {
-        return ip != null && IP_PATTERN.matcher(ip).matches();
+    // Refresh before expiry so readers never see an expired entry
+    private void scheduleBackgroundRefresh() {
+        synchronized (lock) {
+            if (refreshTask != null) refreshTask.cancel(false);
+            if (executor.isShutdown()) return;
+            long delay = ttlMillis() * 4 / 5;
+            refreshTask = executor.schedule(this::refresh, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static long ttlMillis() {
+        return Config.PUBLIC_IP_CACHE_TTL.get() * 1000L;
+    }
+
+    /**
+     * Accepts IPv4 and IPv6 literals that can be a public address (no loopback,
+     * wildcard, link-local or multicast).
+     */
+    public static boolean isValidIP(String ip) {
+        byte[] raw = IPLiterals.parse(ip);
+        if (raw == null) return false;
+        try {
+            InetAddress addr = InetAddress.getByAddress(raw);
+            return !(addr.isAnyLocalAddress() || addr.isLoopbackAddress()
+                    || addr.isLinkLocalAddress() || addr.isMulticastAddress());
+        } catch (Exception e) {
+            return false;
+        }
     }
 
     public void shutdown() {
-        executor.shutdown();
+        executor.shutdownNow();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,217 @@
+package com.darsh.portbridge;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Retry timing shared by everything that talks to a remote peer: relay
+ * reconnects, UPnP SOAP actions and the public IP echo services.
+ *
+ * Delays use decorrelated jitter: each one is drawn between the base delay and
+ * three times the previous one, capped. Servers that lost the same relay at the
+ * same moment therefore spread their reconnects out instead of arriving in
+ * lockstep. Each target (relay address, gateway control URL, echo URL) has a
+ * circuit breaker that stops calls to it after repeated failures and lets one
+ * trial call through per cooldown until it answers again. Synchronous retries
+ * also draw from a budget that refills as calls are made, so a target that
+ * fails everything cannot turn each call into several.
+ */
+public final class RetryPolicy {
+    private static final List<RetryPolicy> POLICIES = new CopyOnWriteArrayList<>();
+    // Consecutive failures that open a target's breaker
+    private static final int BREAKER_THRESHOLD = 5;
+    // Each call earns this fraction of a retry; unused retries accumulate up to BUDGET_MAX
+    private static final double BUDGET_RATIO = 0.2;
+    private static final double BUDGET_MAX = 10;
+
+    private final String name;
+    private final LongSupplier baseMs;
+    private final LongSupplier capMs;
+    private final IntSupplier maxRetries;
+    private final Map<String, Breaker> breakers = new ConcurrentHashMap<>();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private double budget = BUDGET_MAX;
+
+    @FunctionalInterface
+    public interface Action<T> {
+        /**
+         * Returns the result; throws on a failure worth retrying. A null result
+         * is a definite answer from the target and is not retried.
+         */
+        T run() throws Exception;
+    }
+
+    /**
+     * The suppliers are read on every use, so reloaded settings apply to the next delay.
+     */
+    public RetryPolicy(String name, LongSupplier baseMs, LongSupplier capMs, IntSupplier maxRetries) {
+        this.name = name;
+        this.baseMs = baseMs;
+        this.capMs = capMs;
+        this.maxRetries = maxRetries;
+        POLICIES.add(this);
+    }
+
+    /**
+     * A fresh sequence of delays. Not thread-safe; each sequence of retries owns one.
+     */
+    public Backoff backoff() {
+        return new Backoff();
+    }
+
+    public final class Backoff {
+        private long previous;
+
+        public long nextDelayMs() {
+            long base = Math.max(1, baseMs.getAsLong());
+            long cap = Math.max(base, capMs.getAsLong());
+            long upper = Math.min(cap, (previous == 0 ? base : previous) * 3);
+            long delay = upper > base ? ThreadLocalRandom.current().nextLong(base, upper + 1) : base;
+            previous = delay;
+            return delay;
+        }
+
+        public void reset() {
+            previous = 0;
+        }
+    }
+
+    private final class Breaker {
+        private final Backoff cooldown = new Backoff();
+        private int failures;
+        private long openUntil;
+
+        synchronized boolean allow(long now) {
+            if (failures < BREAKER_THRESHOLD) return true;
+            if (now - openUntil < 0) return false;
+            // Half-open: this call is the trial, and the next one waits out another cooldown
+            openUntil = now + TimeUnit.MILLISECONDS.toNanos(cooldown.nextDelayMs());
+            return true;
+        }
+
+        synchronized void success() {
+            failures = 0;
+            cooldown.reset();
+        }
+
+        synchronized void failure(long now) {
+            if (++failures == BREAKER_THRESHOLD) {
+                openUntil = now + TimeUnit.MILLISECONDS.toNanos(cooldown.nextDelayMs());
+            }
+        }
+
+        synchronized long remainingMs(long now) {
+            if (failures < BREAKER_THRESHOLD) return 0;
+            return Math.max(0, TimeUnit.NANOSECONDS.toMillis(openUntil - now));
+        }
+
+        synchronized String describe(long now) {
+            if (failures < BREAKER_THRESHOLD) return "closed";
+            long remaining = TimeUnit.NANOSECONDS.toSeconds(openUntil - now);
+            return remaining > 0 ? "open " + remaining + "s" : "half-open";
+        }
+    }
+
+    private Breaker breaker(String target) {
+        return breakers.computeIfAbsent(target, t -> new Breaker());
+    }
+
+    /**
+     * Whether a call to {@code target} may go out now. Every allowed call must be
+     * followed by {@link #success} or {@link #failure}.
+     */
+    public boolean allow(String target) {
+        return breaker(target).allow(System.nanoTime());
+    }
+
+    public void success(String target) {
+        breaker(target).success();
+    }
+
+    public void failure(String target) {
+        breaker(target).failure(System.nanoTime());
+    }
+
+    /**
+     * Milliseconds until the breaker for {@code target} lets a trial through, or 0 if it is closed.
+     */
+    public long openRemainingMs(String target) {
+        return breaker(target).remainingMs(System.nanoTime());
+    }
+
+    /**
+     * Runs {@code action} against {@code target}. With {@code retry} set, thrown
+     * failures are retried up to the configured count after jittered delays, as
+     * long as the budget allows. Throws the last failure, or an IOException
+     * without calling the target when its breaker is open.
+     */
+    public <T> T call(String target, boolean retry, Action<T> action) throws Exception {
+        synchronized (this) {
+            budget = Math.min(BUDGET_MAX, budget + BUDGET_RATIO);
+        }
+        Breaker breaker = breaker(target);
+        Backoff backoff = null;
+        int attempt = 0;
+        while (true) {
+            if (!breaker.allow(System.nanoTime())) {
+                rejected.increment();
+                throw new IOException(name + " circuit open for " + target);
+            }
+            try {
+                T result = action.run();
+                breaker.success();
+                return result;
+            } catch (Exception e) {
+                breaker.failure(System.nanoTime());
+                if (!retry || attempt >= maxRetries.getAsInt() || !takeRetry() || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+            }
+            if (backoff == null) backoff = new Backoff();
+            attempt++;
+            retries.increment();
+            long delay = backoff.nextDelayMs();
+            if (Config.DEBUG_LOGGING.get()) {
+                PortBridge.LOGGER.debug("[PortBridge] Retrying {} call to {} in {} ms (retry {})", name, target, delay, attempt);
+            }
+            Thread.sleep(delay);
+        }
+    }
+
+    private synchronized boolean takeRetry() {
+        if (budget < 1) return false;
+        budget -= 1;
+        return true;
+    }
+
+    /**
+     * One line per policy: retries made, calls refused by open breakers, and every breaker not closed.
+     */
+    public static List<String> describeAll() {
+        List<String> lines = new ArrayList<>();
+        long now = System.nanoTime();
+        for (RetryPolicy policy : POLICIES) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(policy.name).append(": retries=").append(policy.retries.sum())
+                    .append(" rejected=").append(policy.rejected.sum());
+            for (Map.Entry<String, Breaker> e : policy.breakers.entrySet()) {
+                String state = e.getValue().describe(now);
+                if (!state.equals("closed")) {
+                    sb.append(" ").append(e.getKey()).append("=").append(state);
+                }
+            }
+            lines.add(sb.toString());
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,355 @@
+package com.darsh.portbridge;
+
+import org.slf4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.Enumeration;
+
+/**
+ * Minimal NAT-PMP (RFC 6886) and PCP (RFC 6887) client.
+ * PCP is tried first; gateways that only speak NAT-PMP are detected from their
+ * "unsupported version" reply and every later request uses NAT-PMP instead.
+ */
+public class SimpleNatPmp {
+    private static final Logger LOGGER = PortBridge.LOGGER;
+    private static final int GATEWAY_PORT = 5351;
+    private static final int INITIAL_TIMEOUT_MS = 250;
+    private static final int MAX_ATTEMPTS = 4;
+
+    private static final int NATPMP_VERSION = 0;
+    private static final int PCP_VERSION = 2;
+    private static final int OP_EXTERNAL_ADDRESS = 0;
+    private static final int OP_MAP_UDP = 1;
+    private static final int OP_MAP_TCP = 2;
+    private static final int PCP_OP_MAP = 1;
+    private static final int RESULT_UNSUPPORTED_VERSION = 1;
+
+    private final InetAddress gateway;
+    private final int port;
+    private final byte[] nonce = new byte[12];
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(60);
+    private final ByteBuffer recvBuffer = ByteBuffer.allocate(1100);
+    private DatagramChannel channel;
+    private Selector selector;
+    private boolean pcpSupported = true;
+    private long lastEpoch = -1;
+    private long lastEpochAt;
+    private boolean rebootDetected;
+    private String externalAddress;
+    // The last live PCP mapping; PCP has no address request, so polls renew this instead
+    private Mapping pcpProbe;
+
+    public static class Mapping {
+        public final String protocol;
+        public final int internalPort;
+        public final int externalPort;
+        public final int lifetime;
+        public final String externalAddress;
+
+        Mapping(String protocol, int internalPort, int externalPort, int lifetime, String externalAddress) {
+            this.protocol = protocol;
+            this.internalPort = internalPort;
+            this.externalPort = externalPort;
+            this.lifetime = lifetime;
+            this.externalAddress = externalAddress;
+        }
+    }
+
+    public SimpleNatPmp(InetAddress gateway) {
+        this(gateway, GATEWAY_PORT);
+    }
+
+    // A gateway on another port is only ever a stand-in, such as the tests' fake gateway
+    SimpleNatPmp(InetAddress gateway, int port) {
+        this.gateway = gateway;
+        this.port = port;
+        new SecureRandom().nextBytes(nonce);
+    }
+
+    /**
+     * Finds the default gateway. Uses the kernel routing table where available and
+     * otherwise assumes the router sits at .1 of the first site-local IPv4 network.
+     */
+    public static InetAddress detectGateway() {
+        Path routes = Paths.get("/proc/net/route");
+        if (Files.isReadable(routes)) {
+            try (BufferedReader reader = Files.newBufferedReader(routes, StandardCharsets.US_ASCII)) {
+                String line = reader.readLine(); // header
+                while ((line = reader.readLine()) != null) {
+                    String[] cols = line.trim().split("\\s+");
+                    if (cols.length < 4 || !"00000000".equals(cols[1])) continue;
+                    if ((Integer.parseInt(cols[3], 16) & 0x2) == 0) continue; // RTF_GATEWAY
+                    int gw = (int) Long.parseLong(cols[2], 16);
+                    return InetAddress.getByAddress(new byte[] {
+                            (byte) gw, (byte) (gw >>> 8), (byte) (gw >>> 16), (byte) (gw >>> 24)
+                    });
+                }
+            } catch (Exception e) {
+                LOGGER.debug("[PortBridge] Could not read routing table", e);
+            }
+        }
+
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces.hasMoreElements()) {
+                NetworkInterface iface = interfaces.nextElement();
+                if (iface.isLoopback() || !iface.isUp()) continue;
+
+                Enumeration<InetAddress> addresses = iface.getInetAddresses();
+                while (addresses.hasMoreElements()) {
+                    InetAddress addr = addresses.nextElement();
+                    if (addr instanceof Inet4Address && addr.isSiteLocalAddress()) {
+                        byte[] b = addr.getAddress();
+                        b[3] = 1;
+                        return InetAddress.getByAddress(b);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.debug("[PortBridge] Could not guess gateway address", e);
+        }
+        return null;
+    }
+
+    public InetAddress getGateway() {
+        return gateway;
+    }
+
+    public boolean isPcpSupported() {
+        return pcpSupported;
+    }
+
+    public String getLastExternalAddress() {
+        return externalAddress;
+    }
+
+    /**
+     * Returns true once if the gateway epoch showed that it lost its mapping table
+     * (reboot or restart) since the previous response.
+     */
+    public synchronized boolean consumeRebootDetected() {
+        boolean detected = rebootDetected;
+        rebootDetected = false;
+        return detected;
+    }
+
+    /**
+     * The gateway's external address, or null. A PCP-only gateway ignores the
+     * NAT-PMP address request, so once a mapping was made with PCP the poll
+     * renews it instead; that reply carries the epoch and the address as well.
+     */
+    public synchronized String getExternalAddress() {
+        Mapping probe = pcpProbe;
+        if (pcpSupported && probe != null) {
+            Mapping renewed = map(probe.protocol, probe.internalPort, probe.externalPort, probe.lifetime);
+            return renewed != null ? renewed.externalAddress : null;
+        }
+        try {
+            sendBuffer.clear();
+            sendBuffer.put((byte) NATPMP_VERSION).put((byte) OP_EXTERNAL_ADDRESS);
+            sendBuffer.flip();
+
+            ByteBuffer resp = transact(NATPMP_VERSION, OP_EXTERNAL_ADDRESS, 12);
+            if (resp == null || resp.getShort(2) != 0) return null;
+            checkEpoch(resp.getInt(4) & 0xffffffffL);
+
+            byte[] ip = new byte[4];
+            resp.position(8);
+            resp.get(ip);
+            externalAddress = InetAddress.getByAddress(ip).getHostAddress();
+            return externalAddress;
+        } catch (IOException e) {
+            LOGGER.debug("[PortBridge] NAT-PMP external address request failed", e);
+            return null;
+        }
+    }
+
+    /**
+     * Creates or renews a mapping in a single round trip. With PCP the reply also
+     * carries the external address, so no separate address query is needed.
+     */
+    public synchronized Mapping map(String protocol, int internalPort, int suggestedExternalPort, int lifetime) {
+        try {
+            return pcpSupported
+                    ? pcpMap(protocol, internalPort, suggestedExternalPort, lifetime)
+                    : natPmpMap(protocol, internalPort, suggestedExternalPort, lifetime);
+        } catch (IOException e) {
+            LOGGER.debug("[PortBridge] NAT-PMP/PCP mapping request failed", e);
+            return null;
+        }
+    }
+
+    public synchronized boolean unmap(String protocol, int internalPort) {
+        Mapping result = map(protocol, internalPort, 0, 0);
+        return result != null;
+    }
+
+    private Mapping pcpMap(String protocol, int internalPort, int suggestedExternalPort, int lifetime) throws IOException {
+        openChannel();
+        byte[] client = toIPv6Bytes(((InetSocketAddress) channel.getLocalAddress()).getAddress());
+
+        sendBuffer.clear();
+        sendBuffer.put((byte) PCP_VERSION).put((byte) PCP_OP_MAP).putShort((short) 0).putInt(lifetime);
+        sendBuffer.put(client);
+        sendBuffer.put(nonce);
+        sendBuffer.put((byte) ("UDP".equalsIgnoreCase(protocol) ? 17 : 6)).put((byte) 0).putShort((short) 0);
+        sendBuffer.putShort((short) internalPort).putShort((short) suggestedExternalPort);
+        sendBuffer.put(new byte[10]).putShort((short) 0xffff).putInt(0); // ::ffff:0.0.0.0, any IPv4
+        sendBuffer.flip();
+
+        ByteBuffer resp = transact(PCP_VERSION, PCP_OP_MAP, 60);
+        if (resp == null) {
+            if (!pcpSupported) {
+                return natPmpMap(protocol, internalPort, suggestedExternalPort, lifetime);
+            }
+            return null;
+        }
+
+        int result = resp.get(3) & 0xff;
+        checkEpoch(resp.getInt(8) & 0xffffffffL);
+        if (result == RESULT_UNSUPPORTED_VERSION) {
+            pcpSupported = false;
+            return natPmpMap(protocol, internalPort, suggestedExternalPort, lifetime);
+        }
+        if (result != 0) {
+            LOGGER.debug("[PortBridge] PCP MAP refused with result code {}", result);
+            return null;
+        }
+
+        byte[] ip = new byte[16];
+        resp.position(44);
+        resp.get(ip);
+        externalAddress = InetAddress.getByAddress(ip).getHostAddress();
+        Mapping mapping = new Mapping(protocol, internalPort, resp.getShort(42) & 0xffff, resp.getInt(4), externalAddress);
+        if (lifetime > 0 && mapping.lifetime > 0) {
+            pcpProbe = mapping;
+        } else if (pcpProbe != null && pcpProbe.internalPort == internalPort && pcpProbe.protocol.equalsIgnoreCase(protocol)) {
+            pcpProbe = null;
+        }
+        return mapping;
+    }
+
+    private Mapping natPmpMap(String protocol, int internalPort, int suggestedExternalPort, int lifetime) throws IOException {
+        int op = "UDP".equalsIgnoreCase(protocol) ? OP_MAP_UDP : OP_MAP_TCP;
+        sendBuffer.clear();
+        sendBuffer.put((byte) NATPMP_VERSION).put((byte) op).putShort((short) 0);
+        sendBuffer.putShort((short) internalPort).putShort((short) suggestedExternalPort).putInt(lifetime);
+        sendBuffer.flip();
+
+        ByteBuffer resp = transact(NATPMP_VERSION, op, 16);
+        if (resp == null) return null;
+
+        int result = resp.getShort(2) & 0xffff;
+        checkEpoch(resp.getInt(4) & 0xffffffffL);
+        if (result != 0) {
+            LOGGER.debug("[PortBridge] NAT-PMP mapping refused with result code {}", result);
+            return null;
+        }
+        return new Mapping(protocol, resp.getShort(8) & 0xffff, resp.getShort(10) & 0xffff, resp.getInt(12), externalAddress);
+    }
+
+    /**
+     * Sends the request in {@code sendBuffer} with the RFC 6886 retransmission
+     * schedule (250 ms doubling) and returns the matching response, or null on timeout.
+     */
+    private ByteBuffer transact(int version, int op, int minLength) throws IOException {
+        openChannel();
+        int timeout = INITIAL_TIMEOUT_MS;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            sendBuffer.rewind();
+            channel.write(sendBuffer);
+
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining;
+            while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+                if (selector.select(remaining) == 0) continue;
+                selector.selectedKeys().clear();
+
+                recvBuffer.clear();
+                if (channel.read(recvBuffer) <= 0) continue;
+                recvBuffer.flip();
+                if (recvBuffer.remaining() < 4) continue;
+
+                int respVersion = recvBuffer.get(0) & 0xff;
+                int respOp = recvBuffer.get(1) & 0xff;
+                if (version == PCP_VERSION && respVersion == NATPMP_VERSION) {
+                    // NAT-PMP only gateway answering our PCP request
+                    pcpSupported = false;
+                    return null;
+                }
+                if (respVersion != version || respOp != (0x80 | op)) continue;
+                if (version == PCP_VERSION && (recvBuffer.get(3) & 0xff) == RESULT_UNSUPPORTED_VERSION) {
+                    return recvBuffer;
+                }
+                if (recvBuffer.remaining() < minLength) continue;
+                if (version == PCP_VERSION && !nonceMatches(recvBuffer)) continue;
+                return recvBuffer;
+            }
+            timeout *= 2;
+        }
+        return null;
+    }
+
+    private boolean nonceMatches(ByteBuffer resp) {
+        for (int i = 0; i < nonce.length; i++) {
+            if (resp.get(24 + i) != nonce[i]) return false;
+        }
+        return true;
+    }
+
+    // RFC 6886 section 3.6: an epoch that advanced slower than our clock means state was lost
+    private void checkEpoch(long epoch) {
+        long now = System.currentTimeMillis();
+        if (lastEpoch >= 0) {
+            long elapsed = (now - lastEpochAt) / 1000L;
+            if (epoch < lastEpoch + (elapsed * 7 / 8) - 2) {
+                rebootDetected = true;
+                LOGGER.info("[PortBridge] Gateway epoch went backwards ({} -> {}), mappings were lost", lastEpoch, epoch);
+            }
+        }
+        lastEpoch = epoch;
+        lastEpochAt = now;
+    }
+
+    private void openChannel() throws IOException {
+        if (channel != null && channel.isOpen()) return;
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.connect(new InetSocketAddress(gateway, port));
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    private static byte[] toIPv6Bytes(InetAddress address) {
+        byte[] raw = address.getAddress();
+        if (raw.length == 16) return raw;
+        byte[] mapped = new byte[16];
+        mapped[10] = (byte) 0xff;
+        mapped[11] = (byte) 0xff;
+        System.arraycopy(raw, 0, mapped, 12, 4);
+        return mapped;
+    }
+
+    public synchronized void close() {
+        try {
+            if (selector != null) selector.close();
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            LOGGER.debug("[PortBridge] Error closing NAT-PMP channel", e);
+        }
+    }
+}
@@ -1,25 +1,67 @@
 package com.darsh.portbridge;
 
 import org.slf4j.Logger;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.*;
 import java.net.*;
-import java.util.Enumeration;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class SimpleUPnP {
     private static final Logger LOGGER = PortBridge.LOGGER;
     private static final String UPNP_DISCOVERY = "M-SEARCH * HTTP/1.1\r\nHOST: 239.255.255.250:1900\r\nST: urn:schemas-upnp-org:device:InternetGatewayDevice:1\r\nMAN: \"ssdp:discover\"\r\nMX: 2\r\n\r\n";
+    private static final Pattern LOCATION_PATTERN = Pattern.compile("^LOCATION:\\s*(\\S+)", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+
+    // One factory for every parse; StAX factories are thread-safe once configured
+    private static final XMLInputFactory XML_INPUT = createInputFactory();
+
+    private static final SoapTemplate ADD_PORT_MAPPING = new SoapTemplate("AddPortMapping",
+            "NewRemoteHost", "NewExternalPort", "NewProtocol", "NewInternalPort", "NewInternalClient",
+            "NewEnabled", "NewPortMappingDescription", "NewLeaseDuration");
+    private static final SoapTemplate DELETE_PORT_MAPPING = new SoapTemplate("DeletePortMapping",
+            "NewRemoteHost", "NewExternalPort", "NewProtocol");
+    private static final SoapTemplate GET_SPECIFIC_PORT_MAPPING = new SoapTemplate("GetSpecificPortMappingEntry",
+            "NewRemoteHost", "NewExternalPort", "NewProtocol");
+    private static final SoapTemplate GET_EXTERNAL_IP = new SoapTemplate("GetExternalIPAddress");
+
+    // Routers serve SOAP from tiny HTTP servers; a few requests at a time is all they handle well
+    private static final int MAX_PARALLEL_DELETES = 4;
+    // DeletePortMapping fault for a mapping the router does not have, e.g. one whose lease ran out
+    private static final int ERROR_NO_SUCH_ENTRY = 714;
+
+    // retryCount/retryDelay apply to SOAP actions that change mappings; queries are polled again anyway
+    private static final RetryPolicy SOAP_RETRY = new RetryPolicy("UPnP",
+            () -> Config.RETRY_DELAY.get() * 1000L, () -> Config.RETRY_DELAY.get() * 4000L, Config.RETRY_COUNT::get);
+
+    private static final ThreadLocal<SoapBuffer> SOAP_BUFFER = ThreadLocal.withInitial(SoapBuffer::new);
+
     private String controlURL;
     private String serviceType;
     private String lastLocation;
+    // Diagnostics only; parallel deletes each read their own outcome from SoapReply
+    private volatile int lastHttpStatus;
+    private volatile int lastErrorCode;
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
 
     public boolean isUPnPAvailable() {
         try {
@@ -31,10 +73,28 @@ public class SimpleUPnP {
     }
 
     private void discoverGateway() throws IOException {
+        PortBridgeEvents.SsdpDiscovery event = new PortBridgeEvents.SsdpDiscovery();
+        event.begin();
+        long start = System.nanoTime();
+        try {
+            searchGateway();
+        } finally {
+            EventLog.record(controlURL != null ? EventLog.Type.UPNP_GATEWAY_FOUND : EventLog.Type.UPNP_GATEWAY_MISSING,
+                    0, 0, 0, (System.nanoTime() - start) / 1_000_000);
+            if (event.shouldCommit()) {
+                event.found = controlURL != null;
+                event.location = lastLocation;
+                event.serviceType = serviceType;
+                event.commit();
+            }
+        }
+    }
+
+    private void searchGateway() throws IOException {
         DatagramSocket socket = new DatagramSocket();
         socket.setSoTimeout(3000);
 
-        byte[] sendData = UPNP_DISCOVERY.getBytes();
+        byte[] sendData = UPNP_DISCOVERY.getBytes(StandardCharsets.US_ASCII);
         DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, InetAddress.getByName("239.255.255.250"), 1900);
         socket.send(sendPacket);
 
@@ -43,7 +103,7 @@ public class SimpleUPnP {
 
         try {
             socket.receive(recvPacket);
-            String response = new String(recvPacket.getData(), 0, recvPacket.getLength());
+            String response = new String(recvPacket.getData(), 0, recvPacket.getLength(), StandardCharsets.US_ASCII);
             parseDiscoveryResponse(response);
         } finally {
             socket.close();
@@ -51,8 +111,7 @@ public class SimpleUPnP {
     }
 
     private void parseDiscoveryResponse(String response) {
-        Pattern locationPattern = Pattern.compile("LOCATION: (.*)", Pattern.CASE_INSENSITIVE);
-        Matcher matcher = locationPattern.matcher(response);
+        Matcher matcher = LOCATION_PATTERN.matcher(response);
         if (matcher.find()) {
             String location = matcher.group(1).trim();
             this.lastLocation = location;
@@ -71,105 +130,126 @@ public class SimpleUPnP {
         conn.setConnectTimeout(5000);
         conn.setReadTimeout(5000);
 
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
-            StringBuilder xml = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                xml.append(line);
-            }
-            parseServiceDescription(xml.toString());
+        try (InputStream in = new BufferedInputStream(conn.getInputStream())) {
+            parseServiceDescription(in, url);
         }
     }
 
-    private void parseServiceDescription(String xml) throws Exception {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document doc = builder.parse(new InputSource(new StringReader(xml)));
-
-        NodeList serviceList = doc.getElementsByTagName("service");
-        for (int i = 0; i < serviceList.getLength(); i++) {
-            Element service = (Element) serviceList.item(i);
-            String serviceType = getElementValue(service, "serviceType");
-            if (serviceType != null && serviceType.contains("WANIPConnection") || serviceType.contains("WANPPPConnection")) {
-                this.serviceType = serviceType;
-                this.controlURL = getElementValue(service, "controlURL");
-                break;
+    /**
+     * Streams the device description and stops at the first WANIPConnection or
+     * WANPPPConnection service, so large descriptions are never held in memory.
+     */
+    private void parseServiceDescription(InputStream in, URL location) throws XMLStreamException, MalformedURLException {
+        XMLStreamReader reader = XML_INPUT.createXMLStreamReader(in);
+        try {
+            String urlBase = null;
+            String type = null;
+            String control = null;
+            boolean inService = false;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("service".equals(name)) {
+                        inService = true;
+                        type = null;
+                        control = null;
+                    } else if ("URLBase".equals(name)) {
+                        urlBase = reader.getElementText().trim();
+                    } else if (inService && "serviceType".equals(name)) {
+                        type = reader.getElementText().trim();
+                    } else if (inService && "controlURL".equals(name)) {
+                        control = reader.getElementText().trim();
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && "service".equals(reader.getLocalName())) {
+                    inService = false;
+                    if (type != null && control != null
+                            && (type.contains("WANIPConnection") || type.contains("WANPPPConnection"))) {
+                        URL base = urlBase != null && !urlBase.isEmpty() ? new URL(urlBase) : location;
+                        this.serviceType = type;
+                        this.controlURL = new URL(base, control).toString();
+                        return;
+                    }
+                }
             }
+        } finally {
+            reader.close();
         }
     }
 
-    private String getElementValue(Element parent, String tagName) {
-        NodeList nodes = parent.getElementsByTagName(tagName);
-        if (nodes.getLength() > 0) {
-            return nodes.item(0).getTextContent();
-        }
-        return null;
+    public boolean openPortTCP(int externalPort, int internalPort, String internalIP, String description, int leaseDuration) {
+        return openPort("TCP", externalPort, internalPort, internalIP, description, leaseDuration);
     }
 
-    public boolean openPortTCP(int externalPort, int internalPort, String internalIP, String description, int leaseDuration) {
+    public boolean openPort(String protocol, int externalPort, int internalPort, String internalIP, String description, int leaseDuration) {
         if (controlURL == null) return false;
-
-        String soapAction = "\"" + serviceType + "#AddPortMapping\"";
-        String body = "<?xml version=\"1.0\"?><s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\"><s:Body><u:AddPortMapping xmlns:u=\"" + serviceType + "\"><NewRemoteHost></NewRemoteHost><NewExternalPort>" + externalPort + "</NewExternalPort><NewProtocol>TCP</NewProtocol><NewInternalPort>" + internalPort + "</NewInternalPort><NewInternalClient>" + internalIP + "</NewInternalClient><NewEnabled>1</NewEnabled><NewPortMappingDescription>" + description + "</NewPortMappingDescription><NewLeaseDuration>" + leaseDuration + "</NewLeaseDuration></u:AddPortMapping></s:Body></s:Envelope>";
-
-        return sendSOAPRequest(soapAction, body);
+        return invoke(ADD_PORT_MAPPING, true, null, "", Integer.toString(externalPort), protocol,
+                Integer.toString(internalPort), internalIP, "1", description, Integer.toString(leaseDuration)).value != null;
     }
 
     public boolean closePortTCP(int externalPort) {
-        if (controlURL == null) return false;
-
-        String soapAction = "\"" + serviceType + "#DeletePortMapping\"";
-        String body = "<?xml version=\"1.0\"?><s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\"><s:Body><u:DeletePortMapping xmlns:u=\"" + serviceType + "\"><NewRemoteHost></NewRemoteHost><NewExternalPort>" + externalPort + "</NewExternalPort><NewProtocol>TCP</NewProtocol></u:DeletePortMapping></s:Body></s:Envelope>";
-
-        return sendSOAPRequest(soapAction, body);
+        return closePort("TCP", externalPort);
     }
 
-    public boolean isMappedTCP(int externalPort) {
+    /**
+     * Deletes a mapping. A mapping the router no longer has counts as deleted.
+     */
+    public boolean closePort(String protocol, int externalPort) {
         if (controlURL == null) return false;
-
-        String soapAction = "\"" + serviceType + "#GetSpecificPortMappingEntry\"";
-        String body = "<?xml version=\"1.0\"?><s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\"><s:Body><u:GetSpecificPortMappingEntry xmlns:u=\"" + serviceType + "\"><NewRemoteHost></NewRemoteHost><NewExternalPort>" + externalPort + "</NewExternalPort><NewProtocol>TCP</NewProtocol></u:GetSpecificPortMappingEntry></s:Body></s:Envelope>";
-
-        return sendSOAPRequest(soapAction, body);
+        SoapReply reply = invoke(DELETE_PORT_MAPPING, true, null, "", Integer.toString(externalPort), protocol);
+        return reply.value != null || reply.errorCode == ERROR_NO_SUCH_ENTRY;
     }
 
-    public String getExternalIP() {
-        if (controlURL == null) return null;
-
-        String soapAction = "\"" + serviceType + "#GetExternalIPAddress\"";
-        String body = "<?xml version=\"1.0\"?><s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\"><s:Body><u:GetExternalIPAddress xmlns:u=\"" + serviceType + "\"></u:GetExternalIPAddress></s:Body></s:Envelope>";
-
+    /**
+     * Deletes several TCP mappings concurrently against the already discovered
+     * control URL, so no request waits on SSDP again, and gives up at
+     * {@code deadlineNanos} ({@link System#nanoTime} based). Returns the ports
+     * that were not confirmed deleted.
+     */
+    public List<Integer> closePortsTCP(Collection<Integer> externalPorts, long deadlineNanos) {
+        List<Integer> ports = new ArrayList<>(externalPorts);
+        if (controlURL == null || ports.isEmpty()) return ports;
+
+        List<Callable<Boolean>> deletes = new ArrayList<>(ports.size());
+        for (int port : ports) {
+            deletes.add(() -> closePortTCP(port));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(ports.size(), MAX_PARALLEL_DELETES), r -> {
+            Thread t = new Thread(r, "PortBridge-UPnP-Delete");
+            t.setDaemon(true);
+            return t;
+        });
+        List<Integer> left = new ArrayList<>();
         try {
-            URL url = new URL(controlURL);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("SOAPAction", soapAction);
-            conn.setRequestProperty("Content-Type", "text/xml");
-            conn.setDoOutput(true);
-            conn.setConnectTimeout(5000);
-            conn.setReadTimeout(5000);
-
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(body.getBytes());
-            }
-
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
-                StringBuilder response = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    response.append(line);
-                }
-                // Parse the response for NewExternalIPAddress
-                Pattern ipPattern = Pattern.compile("<NewExternalIPAddress>(.*?)</NewExternalIPAddress>");
-                Matcher matcher = ipPattern.matcher(response.toString());
-                if (matcher.find()) {
-                    return matcher.group(1);
+            List<Future<Boolean>> results = pool.invokeAll(deletes, Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+            for (int i = 0; i < ports.size(); i++) {
+                Future<Boolean> result = results.get(i);
+                if (result.isCancelled() || !Boolean.TRUE.equals(result.get())) {
+                    left.add(ports.get(i));
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ports;
         } catch (Exception e) {
-            LOGGER.debug("Failed to get external IP", e);
+            LOGGER.debug("[PortBridge] Error deleting port mappings", e);
+            return ports;
+        } finally {
+            pool.shutdownNow();
         }
-        return null;
+        return left;
+    }
+
+    public boolean isMappedTCP(int externalPort) {
+        if (controlURL == null) return false;
+        return invoke(GET_SPECIFIC_PORT_MAPPING, false, null, "", Integer.toString(externalPort), "TCP").value != null;
+    }
+
+    public String getExternalIP() {
+        if (controlURL == null) return null;
+        String ip = invoke(GET_EXTERNAL_IP, false, "NewExternalIPAddress").value;
+        return ip == null || ip.isEmpty() ? null : ip;
     }
 
     // Expose discovery details for diagnostics
@@ -185,26 +265,214 @@ public class SimpleUPnP {
         return lastLocation;
     }
 
-    private boolean sendSOAPRequest(String soapAction, String body) {
+    public int getLastHttpStatus() {
+        return lastHttpStatus;
+    }
+
+    /**
+     * UPnP error code from the last SOAP fault (e.g. 718 ConflictInMappingEntry), or 0.
+     */
+    public int getLastErrorCode() {
+        return lastErrorCode;
+    }
+
+    /**
+     * Outcome of one SOAP action: the text of the result element ("" when none
+     * was wanted) on HTTP 200, or null with the HTTP status and UPnP fault code.
+     */
+    private static final class SoapReply {
+        static final SoapReply FAILED = new SoapReply(null, 0, 0);
+
+        final String value;
+        final int httpStatus;
+        final int errorCode;
+
+        SoapReply(String value, int httpStatus, int errorCode) {
+            this.value = value;
+            this.httpStatus = httpStatus;
+            this.errorCode = errorCode;
+        }
+    }
+
+    /**
+     * Sends one SOAP action through the gateway's circuit breaker, retrying
+     * transport failures if {@code retry} is set. Never returns null; a request
+     * that got no answer has a null value and a status of 0.
+     */
+    private SoapReply invoke(SoapTemplate action, boolean retry, String resultElement, String... args) {
+        PortBridgeEvents.SoapAction event = new PortBridgeEvents.SoapAction();
+        event.begin();
+        SoapReply reply;
         try {
-            URL url = new URL(controlURL);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("SOAPAction", soapAction);
-            conn.setRequestProperty("Content-Type", "text/xml");
-            conn.setDoOutput(true);
-            conn.setConnectTimeout(5000);
-            conn.setReadTimeout(5000);
-
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(body.getBytes());
+            reply = SOAP_RETRY.call(controlURL, retry, () -> post(action, resultElement, args));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reply = SoapReply.FAILED;
+        } catch (Exception e) {
+            LOGGER.debug("SOAP request failed", e);
+            reply = SoapReply.FAILED;
+        }
+        lastHttpStatus = reply.httpStatus;
+        lastErrorCode = reply.errorCode;
+        if (event.shouldCommit()) {
+            event.action = action.name;
+            event.httpStatus = reply.httpStatus;
+            event.errorCode = reply.errorCode;
+            event.success = reply.value != null;
+            event.commit();
+        }
+        return reply;
+    }
+
+    // Throws on transport failures and on server errors without a UPnP fault; a fault is a reply with a null value
+    private SoapReply post(SoapTemplate action, String resultElement, String... args) throws IOException, XMLStreamException {
+        SoapBuffer body = SOAP_BUFFER.get();
+        body.reset();
+        action.write(body, serviceType, args);
+
+        URL url = new URL(controlURL);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("SOAPAction", "\"" + serviceType + "#" + action.name + "\"");
+        conn.setRequestProperty("Content-Type", "text/xml; charset=\"utf-8\"");
+        conn.setDoOutput(true);
+        conn.setConnectTimeout(5000);
+        conn.setReadTimeout(5000);
+        // Routers rarely accept chunked requests, so send a Content-Length
+        conn.setFixedLengthStreamingMode(body.size());
+
+        try (OutputStream os = conn.getOutputStream()) {
+            body.writeTo(os);
+        }
+
+        int responseCode = conn.getResponseCode();
+        if (responseCode != 200) {
+            int errorCode = readErrorCode(conn);
+            // A UPnP fault (e.g. 718 conflict) is an answer; a bare 5xx is the router struggling
+            if (errorCode == 0 && responseCode >= 500) {
+                throw new IOException("HTTP " + responseCode + " from " + controlURL);
+            }
+            return new SoapReply(null, responseCode, errorCode);
+        }
+
+        try (InputStream in = new BufferedInputStream(conn.getInputStream())) {
+            if (resultElement == null) {
+                in.transferTo(OutputStream.nullOutputStream());
+                return new SoapReply("", responseCode, 0);
             }
+            String value = findElementText(in, resultElement);
+            // Drain so the keep-alive connection can be reused by the next poll
+            in.transferTo(OutputStream.nullOutputStream());
+            return new SoapReply(value != null ? value : "", responseCode, 0);
+        }
+    }
 
-            int responseCode = conn.getResponseCode();
-            return responseCode == 200;
+    private int readErrorCode(HttpURLConnection conn) {
+        try (InputStream err = conn.getErrorStream()) {
+            if (err == null) return 0;
+            String code = findElementText(new BufferedInputStream(err), "errorCode");
+            return code != null ? Integer.parseInt(code.trim()) : 0;
         } catch (Exception e) {
-            LOGGER.debug("SOAP request failed", e);
-            return false;
+            return 0;
+        }
+    }
+
+    private static String findElementText(InputStream in, String localName) throws XMLStreamException {
+        XMLStreamReader reader = XML_INPUT.createXMLStreamReader(in);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && localName.equals(reader.getLocalName())) {
+                    return reader.getElementText().trim();
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Pre-encoded envelope for one SOAP action. Only the service type and argument
+     * values are encoded per request, and they are XML-escaped on the way out.
+     */
+    private static final class SoapTemplate {
+        private static final String ENVELOPE_OPEN = "<?xml version=\"1.0\"?><s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\"><s:Body><u:";
+
+        final String name;
+        private final byte[] head;
+        private final byte[] tail;
+        private final byte[][] openTags;
+        private final byte[][] closeTags;
+
+        SoapTemplate(String name, String... argNames) {
+            this.name = name;
+            this.head = (ENVELOPE_OPEN + name + " xmlns:u=\"").getBytes(StandardCharsets.UTF_8);
+            this.tail = ("</u:" + name + "></s:Body></s:Envelope>").getBytes(StandardCharsets.UTF_8);
+            this.openTags = new byte[argNames.length][];
+            this.closeTags = new byte[argNames.length][];
+            for (int i = 0; i < argNames.length; i++) {
+                openTags[i] = ("<" + argNames[i] + ">").getBytes(StandardCharsets.UTF_8);
+                closeTags[i] = ("</" + argNames[i] + ">").getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        void write(SoapBuffer out, String serviceType, String... args) {
+            out.write(head, 0, head.length);
+            out.writeEscaped(serviceType);
+            out.write('"');
+            out.write('>');
+            for (int i = 0; i < openTags.length; i++) {
+                out.write(openTags[i], 0, openTags[i].length);
+                out.writeEscaped(i < args.length ? args[i] : "");
+                out.write(closeTags[i], 0, closeTags[i].length);
+            }
+            out.write(tail, 0, tail.length);
+        }
+    }
+
+    /**
+     * Reusable request body buffer (one per thread) with XML escaping.
+     */
+    private static final class SoapBuffer extends ByteArrayOutputStream {
+        SoapBuffer() {
+            super(1024);
+        }
+
+        void writeEscaped(String value) {
+            if (value == null) return;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '&': writeAscii("&amp;"); break;
+                    case '<': writeAscii("&lt;"); break;
+                    case '>': writeAscii("&gt;"); break;
+                    case '"': writeAscii("&quot;"); break;
+                    case '\'': writeAscii("&apos;"); break;
+                    default:
+                        if (c < 0x80) {
+                            write(c);
+                        } else if (c < 0x800) {
+                            write(0xc0 | (c >> 6));
+                            write(0x80 | (c & 0x3f));
+                        } else if (Character.isHighSurrogate(c) && i + 1 < value.length()) {
+                            int cp = Character.toCodePoint(c, value.charAt(++i));
+                            write(0xf0 | (cp >> 18));
+                            write(0x80 | ((cp >> 12) & 0x3f));
+                            write(0x80 | ((cp >> 6) & 0x3f));
+                            write(0x80 | (cp & 0x3f));
+                        } else {
+                            write(0xe0 | (c >> 12));
+                            write(0x80 | ((c >> 6) & 0x3f));
+                            write(0x80 | (c & 0x3f));
+                        }
+                }
+            }
+        }
+
+        private void writeAscii(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                write(s.charAt(i));
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,202 @@
+package com.darsh.portbridge;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable set of CIDR ranges compiled into sorted, merged 128-bit intervals.
+ * IPv4 is stored as IPv4-mapped IPv6 (::ffff:a.b.c.d), so one table serves both
+ * families. Lookups are a binary search over primitive arrays and do not allocate.
+ */
+public final class SubnetSet {
+    public static final SubnetSet EMPTY = new SubnetSet(new long[0], new long[0], new long[0], new long[0], Collections.emptyList());
+
+    private static final long V4_MAPPED_PREFIX = 0x0000ffff00000000L;
+
+    // Range i covers [startHi:startLo, endHi:endLo], compared as unsigned 128-bit values
+    private final long[] startHi;
+    private final long[] startLo;
+    private final long[] endHi;
+    private final long[] endLo;
+    private final List<String> invalidEntries;
+
+    private SubnetSet(long[] startHi, long[] startLo, long[] endHi, long[] endLo, List<String> invalidEntries) {
+        this.startHi = startHi;
+        this.startLo = startLo;
+        this.endHi = endHi;
+        this.endLo = endLo;
+        this.invalidEntries = invalidEntries;
+    }
+
+    /**
+     * Compiles a comma-separated list of CIDRs or bare addresses. Entries that are
+     * not IP literals are skipped and reported by {@link #getInvalidEntries()};
+     * hostnames are never resolved.
+     */
+    public static SubnetSet parse(String csv) {
+        if (csv == null || csv.isBlank()) return EMPTY;
+
+        List<long[]> ranges = new ArrayList<>();
+        List<String> invalid = new ArrayList<>();
+        for (String entry : csv.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            long[] range = parseRange(entry);
+            if (range == null) {
+                invalid.add(entry);
+            } else {
+                ranges.add(range);
+            }
+        }
+
+        ranges.sort((a, b) -> compare(a[0], a[1], b[0], b[1]));
+
+        // Merge overlapping and adjacent ranges so every key falls in at most one interval
+        List<long[]> merged = new ArrayList<>();
+        for (long[] r : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && (compare(r[0], r[1], last[2], last[3]) <= 0 || isSuccessor(last[2], last[3], r[0], r[1]))) {
+                if (compare(r[2], r[3], last[2], last[3]) > 0) {
+                    last[2] = r[2];
+                    last[3] = r[3];
+                }
+            } else {
+                merged.add(r);
+            }
+        }
+
+        int n = merged.size();
+        long[] sHi = new long[n];
+        long[] sLo = new long[n];
+        long[] eHi = new long[n];
+        long[] eLo = new long[n];
+        for (int i = 0; i < n; i++) {
+            long[] r = merged.get(i);
+            sHi[i] = r[0];
+            sLo[i] = r[1];
+            eHi[i] = r[2];
+            eLo[i] = r[3];
+        }
+        return new SubnetSet(sHi, sLo, eHi, eLo, Collections.unmodifiableList(invalid));
+    }
+
+    private static long[] parseRange(String cidr) {
+        int slash = cidr.indexOf('/');
+        String host = slash < 0 ? cidr : cidr.substring(0, slash);
+        byte[] raw = IPLiterals.parse(host);
+        if (raw == null) return null;
+
+        int bits = raw.length * 8;
+        int prefix = bits;
+        if (slash >= 0) {
+            try {
+                prefix = Integer.parseInt(cidr.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (prefix < 0 || prefix > bits) return null;
+        }
+
+        long hi;
+        long lo;
+        if (raw.length == 4) {
+            hi = 0;
+            lo = V4_MAPPED_PREFIX | (toInt(raw, 0) & 0xffffffffL);
+            prefix += 96;
+        } else {
+            hi = toLong(raw, 0);
+            lo = toLong(raw, 8);
+        }
+
+        long maskHi = prefix >= 64 ? -1L : (prefix == 0 ? 0 : -1L << (64 - prefix));
+        long maskLo = prefix <= 64 ? 0 : (prefix == 128 ? -1L : -1L << (128 - prefix));
+        return new long[] {hi & maskHi, lo & maskLo, hi | ~maskHi, lo | ~maskLo};
+    }
+
+    public boolean isEmpty() {
+        return startHi.length == 0;
+    }
+
+    public int size() {
+        return startHi.length;
+    }
+
+    /**
+     * Entries from the source list that were ignored because they are not valid CIDRs.
+     */
+    public List<String> getInvalidEntries() {
+        return invalidEntries;
+    }
+
+    /**
+     * Tests an IPv4 address given as a big-endian int.
+     */
+    public boolean containsV4(int address) {
+        return contains(0, V4_MAPPED_PREFIX | (address & 0xffffffffL));
+    }
+
+    /**
+     * Tests a 128-bit address (IPv4 as ::ffff:a.b.c.d).
+     */
+    public boolean contains(long hi, long lo) {
+        int low = 0;
+        int high = startHi.length - 1;
+        int candidate = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (compare(startHi[mid], startLo[mid], hi, lo) <= 0) {
+                candidate = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return candidate >= 0 && compare(hi, lo, endHi[candidate], endLo[candidate]) <= 0;
+    }
+
+    public boolean contains(byte[] address) {
+        if (address == null) return false;
+        if (address.length == 4) return containsV4(toInt(address, 0));
+        if (address.length == 16) return contains(toLong(address, 0), toLong(address, 8));
+        return false;
+    }
+
+    public boolean contains(InetAddress address) {
+        return address != null && contains(address.getAddress());
+    }
+
+    /**
+     * Tests an address literal; anything that does not parse as an IP is not contained.
+     */
+    public boolean contains(String address) {
+        return contains(IPLiterals.parse(address));
+    }
+
+    private static int compare(long aHi, long aLo, long bHi, long bLo) {
+        int c = Long.compareUnsigned(aHi, bHi);
+        return c != 0 ? c : Long.compareUnsigned(aLo, bLo);
+    }
+
+    // True when b == a + 1 in 128-bit arithmetic
+    private static boolean isSuccessor(long aHi, long aLo, long bHi, long bLo) {
+        if (aLo == -1L) {
+            return aHi != -1L && bLo == 0 && bHi == aHi + 1;
+        }
+        return bHi == aHi && bLo == aLo + 1;
+    }
+
+    private static int toInt(byte[] b, int off) {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+    }
+
+    private static long toLong(byte[] b, int off) {
+        return (toInt(b, off) & 0xffffffffL) << 32 | (toInt(b, off + 4) & 0xffffffffL);
+    }
+
+    @Override
+    public String toString() {
+        return "SubnetSet(" + startHi.length + " ranges" + (invalidEntries.isEmpty() ? "" : ", invalid " + invalidEntries) + ")";
+    }
+}
@@ -0,0 +1,17 @@
+package com.darsh.portbridge.exposure;
+
+/**
+ * Receives exposure progress. Callbacks run on the reporting service's thread.
+ */
+public interface ExposureListener {
+    void onExposed(ExposureService service, String publicAddress);
+
+    default void onFailed(ExposureService service, String error) {
+    }
+
+    /**
+     * The public address of an active service changed without re-exposing (e.g. the ISP rotated the WAN IP).
+     */
+    default void onAddressChanged(ExposureService service, String oldAddress, String newAddress) {
+    }
+}
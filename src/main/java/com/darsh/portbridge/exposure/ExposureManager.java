@@ -1,103 +1,453 @@
 package com.darsh.portbridge.exposure;
 
 import com.darsh.portbridge.Config;
+import com.darsh.portbridge.ConfigSnapshot;
 import org.slf4j.Logger;
 import com.darsh.portbridge.PortBridge;
+import com.darsh.portbridge.PublicIPResolver;
+import com.darsh.portbridge.RetryPolicy;
+import com.darsh.portbridge.tunnel.RelayTls;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class ExposureManager {
     private static final Logger LOGGER = PortBridge.LOGGER;
 
     private UPnPExposureService upnpService;
+    private NatPmpExposureService natPmpService;
     private TunnelExposureService tunnelService;
-    private ExposureService activeService;
+    private final PublicIPResolver ipResolver;
+    private volatile ExposureService activeService;
     private String tunnelMode;
 
+    private final ScheduledExecutorService scheduler;
+    private final List<ExposureListener> listeners = new CopyOnWriteArrayList<>();
+    private final Object lock = new Object();
+    private List<Strategy> strategies;
+    private int internalPort;
+    private int externalPort;
+    private volatile String lastFailure;
+    private boolean failureReported;
+
+    private static final class Strategy {
+        final ExposureService service;
+        final long delayMs;
+        boolean started;
+        boolean failed;
+        ScheduledFuture<?> timer;
+
+        Strategy(ExposureService service, long delayMs) {
+            this.service = service;
+            this.delayMs = delayMs;
+        }
+
+        @Override
+        public String toString() {
+            return service.getExposureMethod() + "@" + delayMs + "ms";
+        }
+    }
+
     public ExposureManager() {
-        this.upnpService = new UPnPExposureService();
+        this.ipResolver = new PublicIPResolver();
+        this.upnpService = new UPnPExposureService(ipResolver);
+        this.natPmpService = new NatPmpExposureService(ipResolver);
         this.tunnelService = new TunnelExposureService();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "PortBridge-Exposure");
+            t.setDaemon(true);
+            return t;
+        });
+
+        ExposureListener serviceListener = new ExposureListener() {
+            @Override
+            public void onExposed(ExposureService service, String publicAddress) {
+                handleExposed(service, publicAddress);
+            }
+
+            @Override
+            public void onFailed(ExposureService service, String error) {
+                handleFailed(service, error);
+            }
+
+            @Override
+            public void onAddressChanged(ExposureService service, String oldAddress, String newAddress) {
+                if (service != activeService) return;
+                for (ExposureListener listener : listeners) {
+                    listener.onAddressChanged(service, oldAddress, newAddress);
+                }
+            }
+        };
+        upnpService.setListener(serviceListener);
+        natPmpService.setListener(serviceListener);
+        tunnelService.setListener(serviceListener);
+    }
+
+    public void addListener(ExposureListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ExposureListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts every configured strategy at its offset from {@code exposure.strategies}.
+     * A strategy is brought forward as soon as everything started before it has failed.
+     * The first one to expose the server wins and the rest are cancelled.
+     * Does nothing and returns false while a previous start is still running or
+     * exposed; use {@link #retry} to restart.
+     */
+    public boolean start(int internalPort, int externalPort) {
+        List<Strategy> launchNow = new ArrayList<>();
+
+        synchronized (lock) {
+            if (strategies != null && (activeService != null || !failureReported)) {
+                return false;
+            }
+            tunnelMode = Config.TUNNEL_MODE.get();
+            cancelPending(null);
+            this.internalPort = internalPort;
+            this.externalPort = externalPort;
+            this.activeService = null;
+            this.failureReported = false;
+            this.strategies = buildStrategies(tunnelMode);
+
+            if (strategies.isEmpty()) {
+                lastFailure = "No exposure method enabled in config";
+            }
+            for (Strategy strategy : strategies) {
+                if (strategy.delayMs <= 0) {
+                    strategy.started = true;
+                    launchNow.add(strategy);
+                } else {
+                    strategy.timer = scheduler.schedule(() -> launchDelayed(strategy), strategy.delayMs, TimeUnit.MILLISECONDS);
+                }
+            }
+            LOGGER.info("[PortBridge] Exposure strategies: {}", strategies);
+        }
+
+        if (launchNow.isEmpty() && strategies.isEmpty()) {
+            LOGGER.warn("[PortBridge] {}", lastFailure);
+            notifyFailed(null, lastFailure);
+        }
+        for (Strategy strategy : launchNow) {
+            launch(strategy);
+        }
+        return true;
+    }
+
+    /**
+     * Stops whatever is running or exposed and starts the strategies again.
+     */
+    public void retry(int internalPort, int externalPort) {
+        synchronized (lock) {
+            stop();
+            start(internalPort, externalPort);
+        }
     }
 
-    public void start(int internalPort, int externalPort) {
-        tunnelMode = Config.TUNNEL_MODE.get();
+    /**
+     * Applies a config reload to what is running, touching only the parts whose
+     * settings changed: players on the tunnel stay connected unless the relay
+     * itself changed. Returns one line per action, for {@code /portbridge reload}.
+     */
+    public List<String> applyConfig(Map<ConfigSnapshot.Change, List<String>> changes) {
+        List<String> actions = new ArrayList<>();
+        ExposureService active;
+        synchronized (lock) {
+            if (strategies == null) {
+                actions.add("Exposure is not running; changes apply when it starts");
+                return actions;
+            }
+            active = activeService;
+        }
+
+        if (changes.containsKey(ConfigSnapshot.Change.MAIN_PORT)
+                || (changes.containsKey(ConfigSnapshot.Change.STRATEGIES) && active != null && !isStillAllowed(active))) {
+            retry(Config.INTERNAL_PORT.get(), Config.EXTERNAL_PORT.get());
+            actions.add("Restarted exposure (" + describe(changes, ConfigSnapshot.Change.MAIN_PORT, ConfigSnapshot.Change.STRATEGIES) + ")");
+            return withRestartNote(actions, changes);
+        }
+        if (changes.containsKey(ConfigSnapshot.Change.STRATEGIES)) {
+            actions.add("Exposure strategies apply from the next start (" + describe(changes, ConfigSnapshot.Change.STRATEGIES) + ")");
+        }
 
-        if ("FORCE".equalsIgnoreCase(tunnelMode)) {
-            LOGGER.info("[PortBridge] Tunnel mode: FORCE");
-            startTunnel(internalPort);
-        } else if ("AUTO".equalsIgnoreCase(tunnelMode) && Config.TUNNEL_ENABLED.get()) {
-            LOGGER.info("[PortBridge] Tunnel mode: AUTO");
-            startUPnPWithTunnelFallback(internalPort, externalPort);
+        boolean tunnelRestarted = false;
+        if (changes.containsKey(ConfigSnapshot.Change.PORTS)) {
+            if (active == upnpService) {
+                upnpService.syncPorts(internalPort, externalPort);
+                actions.add("Updating UPnP port mappings");
+            } else if (active == natPmpService) {
+                natPmpService.syncPorts(internalPort, externalPort);
+                actions.add("Updating NAT-PMP/PCP port mappings");
+            } else if (active == tunnelService && tunnelService.udpPortsChanged()) {
+                // Reconnecting would drop every player on the tunnel, so older relays wait for the next reconnect
+                if (tunnelService.syncUdpPorts()) {
+                    actions.add("Updating UDP ports on the tunnel connection");
+                } else {
+                    actions.add("UDP port changes apply at the next tunnel reconnect");
+                }
+            }
+        }
+        if (changes.containsKey(ConfigSnapshot.Change.RELAY) && tunnelService.getState() != ExposureService.State.IDLE) {
+            if (!tunnelRestarted) {
+                tunnelService.restart();
+                tunnelRestarted = true;
+            }
+            actions.add("Reconnecting the tunnel (" + describe(changes, ConfigSnapshot.Change.RELAY) + ")");
         } else {
-            LOGGER.info("[PortBridge] UPnP mode");
-            startUPnP(internalPort, externalPort);
+            if (changes.containsKey(ConfigSnapshot.Change.KEEPALIVE) || changes.containsKey(ConfigSnapshot.Change.RECONNECT)) {
+                tunnelService.retune();
+                actions.add("Retuned tunnel keepalive and reconnect backoff");
+            }
+            if (changes.containsKey(ConfigSnapshot.Change.ADMISSION)) {
+                tunnelService.reconfigureAdmission();
+                actions.add("Updated tunnel admission limits");
+            }
+        }
+        // Not worth dropping connected players for; the reconnect above, if any, already picked them up
+        if (changes.containsKey(ConfigSnapshot.Change.NEXT_CONNECT) && !tunnelRestarted
+                && tunnelService.getState() != ExposureService.State.IDLE) {
+            actions.add("Applies at the next tunnel reconnect: " + describe(changes, ConfigSnapshot.Change.NEXT_CONNECT));
+        }
+        if (changes.containsKey(ConfigSnapshot.Change.NEXT_EXPOSURE)) {
+            actions.add("Applies the next time exposure starts (/portbridge retry to apply now): "
+                    + describe(changes, ConfigSnapshot.Change.NEXT_EXPOSURE));
         }
+        return withRestartNote(actions, changes);
     }
 
-    private void startUPnPWithTunnelFallback(int internalPort, int externalPort) {
-        LOGGER.info("[PortBridge] Attempting UPnP first, tunnel as fallback");
-        upnpService.start(internalPort, externalPort);
+    private static List<String> withRestartNote(List<String> actions, Map<ConfigSnapshot.Change, List<String>> changes) {
+        if (changes.containsKey(ConfigSnapshot.Change.RESTART)) {
+            actions.add("Needs a server restart: " + describe(changes, ConfigSnapshot.Change.RESTART));
+        }
+        return actions;
+    }
+
+    private static String describe(Map<ConfigSnapshot.Change, List<String>> changes, ConfigSnapshot.Change... kinds) {
+        List<String> keys = new ArrayList<>();
+        for (ConfigSnapshot.Change kind : kinds) {
+            keys.addAll(changes.getOrDefault(kind, List.of()));
+        }
+        return String.join(", ", keys);
+    }
+
+    // Only asks; the running mode changes when start publishes it under the lock
+    private boolean isStillAllowed(ExposureService service) {
+        for (Strategy s : buildStrategies(Config.TUNNEL_MODE.get())) {
+            if (s.service == service) return true;
+        }
+        return false;
+    }
 
-        // Check UPnP status after delay
-        new Thread(() -> {
+    private List<Strategy> buildStrategies(String tunnelMode) {
+        boolean tunnelOnly = "FORCE".equalsIgnoreCase(tunnelMode);
+        boolean tunnelAllowed = Config.TUNNEL_ENABLED.get() && (tunnelOnly || "AUTO".equalsIgnoreCase(tunnelMode));
+        boolean directAllowed = !tunnelOnly && Config.ENABLE_PORT_FORWARDING.get();
+
+        List<Strategy> out = new ArrayList<>();
+        for (String entry : Config.EXPOSURE_STRATEGIES.get().split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts[0].isEmpty()) continue;
+            long delay = 0;
             try {
-                Thread.sleep(10000); // Wait 10 seconds for UPnP to complete
-                if (!upnpService.isActive()) {
-                    LOGGER.info("[PortBridge] UPnP failed, falling back to tunnel");
-                    startTunnel(internalPort);
-                } else {
-                    activeService = upnpService;
-                    LOGGER.info("[PortBridge] UPnP active, skipping tunnel");
+                delay = parts.length > 1 ? Long.parseLong(parts[1].trim()) : 0;
+            } catch (NumberFormatException e) {
+                LOGGER.warn("[PortBridge] Invalid exposure strategy delay: {}", entry);
+            }
+
+            ExposureService service;
+            switch (parts[0].trim().toUpperCase()) {
+                case "NATPMP":
+                    service = directAllowed && Config.NATPMP_ENABLED.get() ? natPmpService : null;
+                    break;
+                case "UPNP":
+                    service = directAllowed ? upnpService : null;
+                    break;
+                case "TUNNEL":
+                    service = tunnelAllowed ? tunnelService : null;
+                    // Nothing to wait for when the tunnel is the only method
+                    if (tunnelOnly) delay = 0;
+                    break;
+                default:
+                    LOGGER.warn("[PortBridge] Unknown exposure strategy: {}", parts[0]);
+                    service = null;
+            }
+            if (service != null) {
+                out.add(new Strategy(service, Math.max(0, delay)));
+            }
+        }
+        return out;
+    }
+
+    private void launchDelayed(Strategy strategy) {
+        synchronized (lock) {
+            if (strategy.started || activeService != null || !strategies.contains(strategy)) return;
+            strategy.started = true;
+        }
+        launch(strategy);
+    }
+
+    private void launch(Strategy strategy) {
+        LOGGER.info("[PortBridge] Starting exposure method: {}", strategy.service.getExposureMethod());
+        strategy.service.start(internalPort, strategy.service == tunnelService ? -1 : externalPort);
+    }
+
+    private void handleExposed(ExposureService service, String address) {
+        synchronized (lock) {
+            Strategy winner = findStrategy(service);
+            if (winner == null) return;
+            if (activeService != null && activeService != service) {
+                // Lost the race after another method already won
+                service.cancel(!isDirect(service) || !isDirect(activeService));
+                return;
+            }
+            if (activeService == null) {
+                activeService = service;
+                LOGGER.info("[PortBridge] {} exposed the server first", service.getExposureMethod());
+                cancelPending(winner);
+            }
+        }
+        for (ExposureListener listener : listeners) {
+            listener.onExposed(service, address);
+        }
+    }
+
+    private void handleFailed(ExposureService service, String error) {
+        List<Strategy> launchNow = new ArrayList<>();
+        boolean allFailed;
+
+        synchronized (lock) {
+            Strategy failed = findStrategy(service);
+            if (failed == null || activeService != null) return;
+            failed.failed = true;
+            lastFailure = error;
+
+            // Everything started so far has failed: bring the next strategy forward
+            boolean pendingStarted = strategies.stream().anyMatch(s -> s.started && !s.failed);
+            if (!pendingStarted) {
+                for (Strategy s : strategies) {
+                    if (!s.started) {
+                        if (s.timer != null) s.timer.cancel(false);
+                        s.started = true;
+                        launchNow.add(s);
+                        break;
+                    }
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
             }
-        }, "PortBridge-FallbackCheck").start();
+            allFailed = strategies.stream().allMatch(s -> s.failed);
+            if (allFailed) {
+                if (failureReported) return;
+                failureReported = true;
+            }
+        }
+
+        if (allFailed) {
+            LOGGER.warn("[PortBridge] All exposure methods failed");
+            notifyFailed(service, error);
+        }
+        for (Strategy strategy : launchNow) {
+            LOGGER.info("[PortBridge] {} failed, trying {} now", service.getExposureMethod(), strategy.service.getExposureMethod());
+            launch(strategy);
+        }
+    }
+
+    private void notifyFailed(ExposureService service, String error) {
+        for (ExposureListener listener : listeners) {
+            listener.onFailed(service, error);
+        }
     }
 
-    private void startUPnP(int internalPort, int externalPort) {
-        upnpService.start(internalPort, externalPort);
-        activeService = upnpService;
+    // Must hold lock. Cancels every strategy except the winner.
+    private void cancelPending(Strategy winner) {
+        if (strategies == null) return;
+        for (Strategy s : strategies) {
+            if (s == winner) continue;
+            if (s.timer != null) {
+                s.timer.cancel(false);
+            }
+            if (s.started) {
+                // UPnP and NAT-PMP may share one router table entry, so a losing direct
+                // method must not delete the winner's mapping
+                boolean release = winner == null || !isDirect(s.service) || !isDirect(winner.service);
+                s.service.cancel(release);
+            }
+        }
     }
 
-    private void startTunnel(int internalPort) {
-        if (!Config.TUNNEL_ENABLED.get()) {
-            LOGGER.warn("[PortBridge] Tunnel disabled in config");
-            return;
+    private Strategy findStrategy(ExposureService service) {
+        if (strategies == null) return null;
+        for (Strategy s : strategies) {
+            if (s.service == service) return s;
         }
-        tunnelService.start(internalPort, -1);
-        activeService = tunnelService;
+        return null;
+    }
+
+    private boolean isDirect(ExposureService service) {
+        return service == upnpService || service == natPmpService;
+    }
+
+    public UPnPExposureService getUPnPService() {
+        return upnpService;
+    }
+
+    public NatPmpExposureService getNatPmpService() {
+        return natPmpService;
+    }
+
+    public TunnelExposureService getTunnelService() {
+        return tunnelService;
+    }
+
+    public PublicIPResolver getIPResolver() {
+        return ipResolver;
     }
 
     public boolean isExposed() {
-        return activeService != null && activeService.isActive();
+        ExposureService service = activeService;
+        return service != null && service.isActive();
     }
 
     public String getPublicAddress() {
-        if (activeService != null) {
-            return activeService.getPublicAddress();
+        ExposureService service = activeService;
+        if (service != null) {
+            return service.getPublicAddress();
         }
         return null;
     }
 
     public String getExposureMethod() {
-        if (activeService != null) {
-            return activeService.getExposureMethod();
+        ExposureService service = activeService;
+        if (service != null) {
+            return service.getExposureMethod();
         }
         return "NONE";
     }
 
     public String getLastError() {
-        if (activeService != null) {
-            return activeService.getLastError();
+        ExposureService service = activeService;
+        if (service != null) {
+            return service.getLastError();
         }
-        return null;
+        return lastFailure;
     }
 
     public String getDiagnostics() {
         StringBuilder sb = new StringBuilder();
+        ExposureService activeService = this.activeService;
 
         sb.append("=== PortBridge Exposure Status ===\n");
         sb.append("Exposed: ").append(isExposed()).append("\n");
         sb.append("Method: ").append(getExposureMethod()).append("\n");
+        if (activeService != null) {
+            sb.append("State: ").append(activeService.getState()).append("\n");
+        }
 
         if (activeService instanceof TunnelExposureService) {
             TunnelExposureService tunnel = (TunnelExposureService) activeService;
@@ -105,6 +455,25 @@ public class ExposureManager {
             sb.append("Session ID: ").append(tunnel.getSessionId()).append("\n");
             sb.append("Latency: ").append(tunnel.getLatency()).append("ms\n");
             sb.append("Bytes Transferred: ").append(tunnel.getBytesTransferred()).append("\n");
+            sb.append("Local Pool: ").append(tunnel.getLocalPoolStats()).append("\n");
+            sb.append("Data Channels: ").append(tunnel.getDataPoolStats()).append("\n");
+            sb.append("Shared Writer: ").append(tunnel.getWriterStats()).append("\n");
+            if (RelayTls.isEnabled()) {
+                sb.append("TLS Handshakes: ").append(RelayTls.getStats()).append("\n");
+            }
+            sb.append("Admission: ").append(tunnel.getAdmissionStats()).append("\n");
+            sb.append("Keepalive: ").append(tunnel.getKeepaliveStats()).append("\n");
+            sb.append("UDP: ").append(tunnel.getUdpStats()).append("\n");
+        }
+
+        String cachedIp = ipResolver.getCachedPublicIP();
+        if (cachedIp != null) {
+            sb.append("Public IP (cached): ").append(cachedIp).append(" via ").append(ipResolver.getCachedSource())
+                    .append(", ").append(ipResolver.getCacheAgeMillis() / 1000).append("s old\n");
+        }
+
+        if (activeService == null && lastFailure != null) {
+            sb.append("Last Error: ").append(lastFailure).append("\n");
         }
 
         if (activeService != null) {
@@ -123,28 +492,68 @@ public class ExposureManager {
                     sb.append("  - ").append(info).append("\n");
                 }
             }
+
+            if (activeService instanceof NatPmpExposureService) {
+                NatPmpExposureService natPmp = (NatPmpExposureService) activeService;
+                sb.append("Protocol: ").append(natPmp.getProtocol()).append("\n");
+                sb.append("Gateway: ").append(natPmp.getGatewayAddress()).append("\n");
+                sb.append("Mapped Ports:\n");
+                for (String info : natPmp.getMappedPortsInfo()) {
+                    sb.append("  - ").append(info).append("\n");
+                }
+            }
+        }
+
+        sb.append("Retries:\n");
+        for (String line : RetryPolicy.describeAll()) {
+            sb.append("  - ").append(line).append("\n");
         }
 
         return sb.toString();
     }
 
     public void stop() {
-        if (upnpService != null) {
-            upnpService.stop();
+        synchronized (lock) {
+            cancelPending(null);
+            strategies = null;
+            activeService = null;
         }
-        if (tunnelService != null) {
-            tunnelService.stop();
-        }
-        activeService = null;
     }
 
+    /**
+     * Releases every service under one deadline ({@code exposure.shutdownTimeoutSeconds}).
+     * All services start releasing at once, so the slowest gateway bounds the
+     * stop time rather than the sum of them; whatever is left is logged.
+     */
     public void shutdown() {
-        if (upnpService != null) {
-            upnpService.shutdown();
-        }
-        if (tunnelService != null) {
-            tunnelService.shutdown();
+        synchronized (lock) {
+            if (strategies != null) {
+                for (Strategy s : strategies) {
+                    if (s.timer != null) s.timer.cancel(false);
+                }
+            }
+            strategies = null;
         }
+        scheduler.shutdownNow();
+        ipResolver.shutdown();
+
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(Config.SHUTDOWN_TIMEOUT.get());
+        upnpService.beginShutdown(deadline);
+        natPmpService.beginShutdown(deadline);
+        tunnelService.beginShutdown(deadline);
+
+        List<String> left = new ArrayList<>();
+        left.addAll(upnpService.awaitShutdown(deadline));
+        left.addAll(natPmpService.awaitShutdown(deadline));
+        left.addAll(tunnelService.awaitShutdown(deadline));
         activeService = null;
+
+        long tookMs = (System.nanoTime() - start) / 1_000_000;
+        if (left.isEmpty()) {
+            LOGGER.info("[PortBridge] Exposure released in {} ms", tookMs);
+        } else {
+            LOGGER.warn("[PortBridge] Shutdown deadline passed after {} ms, left behind: {}", tookMs, String.join(", ", left));
+        }
     }
 }
@@ -1,29 +1,150 @@
 package com.darsh.portbridge.exposure;
 
 import org.slf4j.Logger;
+import com.darsh.portbridge.EventLog;
 import com.darsh.portbridge.PortBridge;
-import java.util.UUID;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Base for one way of exposing the server. The lifecycle is a state machine
+ * whose transitions are compare-and-set, so a retry racing a renewal or a late
+ * result cannot leave two copies of the service running. Timers are registered
+ * with the states they belong to and are cancelled as soon as the service
+ * leaves those states, so restarting never stacks up refresh or monitor tasks.
+ */
 public abstract class ExposureService {
     protected static final Logger LOGGER = PortBridge.LOGGER;
 
-    protected String lastError;
-    protected boolean active;
-    protected String publicAddress;
-    protected String exposureMethod;
+    public enum State {
+        IDLE,
+        DISCOVERING,
+        MAPPING,
+        ACTIVE,
+        RENEWING,
+        DEGRADED,
+        STOPPING
+    }
+
+    protected volatile String lastError;
+    protected volatile String publicAddress;
+    protected final String exposureMethod;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.IDLE);
+    private final AtomicInteger attemptId = new AtomicInteger();
+    private final List<OwnedTask> tasks = new CopyOnWriteArrayList<>();
+    private volatile CompletableFuture<String> ready = new CompletableFuture<>();
+    private volatile ExposureListener listener;
+
+    private static final class OwnedTask {
+        final Future<?> future;
+        final EnumSet<State> states;
+
+        OwnedTask(Future<?> future, EnumSet<State> states) {
+            this.future = future;
+            this.states = states;
+        }
+    }
 
     public ExposureService(String method) {
         this.exposureMethod = method;
-        this.active = false;
-        this.lastError = null;
     }
 
-    public abstract boolean start(int internalPort, int externalPort);
+    /**
+     * Starts an attempt if the service is idle. Returns false, and does nothing,
+     * if it is already running.
+     */
+    public final synchronized boolean start(int internalPort, int externalPort) {
+        if (state.get() != State.IDLE) {
+            return false;
+        }
+        // Published before the state, so whenReady() in DISCOVERING never returns the previous attempt's future
+        ready = new CompletableFuture<>();
+        if (!state.compareAndSet(State.IDLE, State.DISCOVERING)) {
+            return false;
+        }
+        int attempt = attemptId.incrementAndGet();
+        onStart(attempt, internalPort, externalPort);
+        return true;
+    }
+
+    /**
+     * Runs the attempt asynchronously; called in DISCOVERING.
+     */
+    protected abstract void onStart(int attempt, int internalPort, int externalPort);
+
+    /**
+     * Releases what the service holds. Owned timers are already cancelled and
+     * results from the old attempt are already ignored. With {@code releaseMappings}
+     * false, mappings are left on the router to expire.
+     */
+    protected abstract void onStop(boolean releaseMappings);
+
+    /**
+     * Stops the service and removes its mappings. Does nothing if it is idle or already stopping.
+     */
+    public final void stop() {
+        shutdownState(true);
+    }
 
-    public abstract void stop();
+    /**
+     * Abandons the current attempt. Results that arrive afterwards are ignored.
+     * With {@code release} false, mappings already created are left to expire
+     * instead of being deleted (another service may share the same router entry).
+     */
+    public final void cancel(boolean release) {
+        shutdownState(release);
+    }
+
+    /**
+     * Stops and starts again, whatever state the service was in.
+     */
+    public final boolean retry(int internalPort, int externalPort) {
+        stop();
+        return start(internalPort, externalPort);
+    }
+
+    private void shutdownState(boolean release) {
+        State current;
+        do {
+            current = state.get();
+            if (current == State.IDLE || current == State.STOPPING) return;
+        } while (!state.compareAndSet(current, State.STOPPING));
+
+        attemptId.incrementAndGet();
+        cancelTasksOutside(State.STOPPING);
+        try {
+            onStop(release);
+        } finally {
+            state.set(State.IDLE);
+        }
+    }
+
+    public void setListener(ExposureListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Completes with the public address of the current attempt, or exceptionally
+     * when the attempt fails. While the service retries on its own, each failed
+     * try completes the future exceptionally and the next call returns a new one.
+     */
+    public CompletableFuture<String> whenReady() {
+        return ready;
+    }
+
+    public State getState() {
+        return state.get();
+    }
 
     public boolean isActive() {
-        return active;
+        State current = state.get();
+        return current == State.ACTIVE || current == State.RENEWING;
     }
 
     public String getPublicAddress() {
@@ -45,4 +166,122 @@ public abstract class ExposureService {
     protected void setError(String error) {
         this.lastError = error;
     }
+
+    protected boolean isCurrentAttempt(int id) {
+        return attemptId.get() == id;
+    }
+
+    /**
+     * Moves from {@code from} to {@code to} if the service is still in {@code from}.
+     * Owned tasks that do not cover {@code to} are cancelled.
+     */
+    protected boolean transition(State from, State to) {
+        if (!state.compareAndSet(from, to)) return false;
+        cancelTasksOutside(to);
+        return true;
+    }
+
+    /**
+     * Ties a scheduled task to the given states; it is cancelled when the service
+     * leaves them. Cancelled at once if the service already left them.
+     */
+    protected <T extends Future<?>> T own(T future, State first, State... rest) {
+        if (future == null) return null;
+        // One-shot tasks that re-arm themselves would otherwise pile up here
+        tasks.removeIf(t -> t.future.isDone());
+        OwnedTask task = new OwnedTask(future, EnumSet.of(first, rest));
+        tasks.add(task);
+        // The state may have moved on while the task was being scheduled
+        if (!task.states.contains(state.get())) {
+            future.cancel(false);
+            tasks.remove(task);
+        }
+        return future;
+    }
+
+    private void cancelTasksOutside(State current) {
+        for (OwnedTask task : tasks) {
+            if (!task.states.contains(current)) {
+                task.future.cancel(false);
+                tasks.remove(task);
+            }
+        }
+    }
+
+    /**
+     * Moves the attempt to ACTIVE and reports the address. Returns false if the
+     * attempt was superseded or stopped in the meantime, in which case nothing
+     * should be scheduled for it. Recovering from DEGRADED is not a new exposure:
+     * listeners hear about it only if the address changed.
+     */
+    protected boolean markExposed(int id, String address) {
+        if (!isCurrentAttempt(id)) return false;
+        if (transition(State.DEGRADED, State.ACTIVE)) {
+            // Pending only if a retry failed while degraded
+            ready.complete(address);
+            markAddressChanged(address);
+            return true;
+        }
+        if (!transition(State.DISCOVERING, State.ACTIVE) && !transition(State.MAPPING, State.ACTIVE)) {
+            return false;
+        }
+        setPublicAddress(address);
+        EventLog.record(EventLog.Type.EXPOSED, 0, 0, EventLog.methodCode(exposureMethod), 0);
+        ready.complete(address);
+        ExposureListener l = listener;
+        if (l != null) {
+            l.onExposed(this, address);
+        }
+        return true;
+    }
+
+    protected void markAddressChanged(String address) {
+        String old = publicAddress;
+        if (address == null || address.equals(old)) return;
+        setPublicAddress(address);
+        boolean exposed = isActive() || state.get() == State.DEGRADED;
+        if (exposed) {
+            EventLog.record(EventLog.Type.ADDRESS_CHANGED, 0, 0, EventLog.methodCode(exposureMethod), 0);
+        }
+        ExposureListener l = listener;
+        if (exposed && l != null) {
+            l.onAddressChanged(this, old, address);
+        }
+    }
+
+    /**
+     * Ends the attempt: the service returns to IDLE and the failure is reported.
+     */
+    protected void markFailed(int id, String error) {
+        setError(error);
+        if (!isCurrentAttempt(id)) return;
+        State current;
+        do {
+            current = state.get();
+            if (current == State.IDLE || current == State.STOPPING) return;
+        } while (!state.compareAndSet(current, State.IDLE));
+        cancelTasksOutside(State.IDLE);
+        reportFailure(ready, error);
+    }
+
+    /**
+     * Reports a failure while the service keeps trying on its own, without leaving
+     * its state. The next try gets a fresh ready future.
+     */
+    protected void markRetrying(int id, String error) {
+        setError(error);
+        if (!isCurrentAttempt(id)) return;
+        CompletableFuture<String> failed = ready;
+        ready = new CompletableFuture<>();
+        reportFailure(failed, error);
+    }
+
+    private void reportFailure(CompletableFuture<String> failed, String error) {
+        EventLog.record(EventLog.Type.EXPOSURE_FAILED, 0, 0, EventLog.methodCode(exposureMethod), 0);
+        failed.completeExceptionally(new IllegalStateException(error));
+        ExposureListener l = listener;
+        if (l != null) {
+            l.onFailed(this, error);
+        }
+    }
 }
@@ -0,0 +1,135 @@
+package com.darsh.portbridge.exposure;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only record of the UPnP mappings this server created, in a
+ * memory-mapped file that is forced to disk on every change. A crash leaves
+ * the journal saying which mappings were still open, so the next start can
+ * remove them in one batch instead of running into conflicts with its own
+ * stale entries. Used from the UPnP executor only.
+ */
+final class MappingJournal {
+    // File layout: header, then CAPACITY fixed-size records; only the first count are valid
+    private static final int MAGIC = 0x50424D4A; // "PBMJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 16;
+    private static final int CAPACITY = 256;
+    private static final int ADD = 1;
+    private static final int REMOVE = 2;
+
+    private final MappedByteBuffer buffer;
+    private int count;
+
+    private MappingJournal(MappedByteBuffer buffer, int count) {
+        this.buffer = buffer;
+        this.count = count;
+    }
+
+    /**
+     * Opens the journal, keeping what an earlier run left in it. A missing or
+     * unreadable file starts empty.
+     */
+    static MappingJournal open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) CAPACITY * RECORD_SIZE);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            int count = mapped.getInt(12);
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION || mapped.getInt(8) != CAPACITY
+                    || count < 0 || count > CAPACITY) {
+                mapped.putInt(0, MAGIC);
+                mapped.putInt(4, VERSION);
+                mapped.putInt(8, CAPACITY);
+                mapped.putInt(12, 0);
+                mapped.force();
+                count = 0;
+            }
+            return new MappingJournal(mapped, count);
+        }
+    }
+
+    void added(int externalPort, int internalPort, int leaseSeconds) {
+        append(ADD, externalPort, internalPort, leaseSeconds);
+    }
+
+    void removed(int externalPort) {
+        append(REMOVE, externalPort, 0, 0);
+    }
+
+    /**
+     * External ports added and not removed since the journal was last reset.
+     */
+    List<Integer> live() {
+        return new ArrayList<>(replay().keySet());
+    }
+
+    /**
+     * Forgets every entry, once they have been dealt with.
+     */
+    void reset() {
+        count = 0;
+        buffer.putInt(12, 0);
+        buffer.force();
+    }
+
+    private void append(int op, int externalPort, int internalPort, int leaseSeconds) {
+        if (count == CAPACITY) {
+            compact();
+            // Only reachable with CAPACITY distinct open ports; the entry is then not journaled
+            if (count == CAPACITY) return;
+        }
+        write(count, op, externalPort, internalPort, leaseSeconds);
+        // The count goes last, so a record torn by a crash is never read
+        count++;
+        buffer.putInt(12, count);
+        buffer.force();
+    }
+
+    // Rewrites the live entries as the only records; renewals never append, so this is rare.
+    // Same order as append: records are forced before the shorter count is. A crash part way
+    // through leaves the old count, and a prefix of live ADDs followed by the old tail replays
+    // to the same live set.
+    private void compact() {
+        Map<Integer, int[]> live = replay();
+        int at = 0;
+        for (Map.Entry<Integer, int[]> e : live.entrySet()) {
+            write(at++, ADD, e.getKey(), e.getValue()[0], e.getValue()[1]);
+        }
+        buffer.force();
+        count = at;
+        buffer.putInt(12, count);
+        buffer.force();
+    }
+
+    private Map<Integer, int[]> replay() {
+        Map<Integer, int[]> live = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            int at = HEADER_SIZE + i * RECORD_SIZE;
+            int externalPort = buffer.getInt(at + 4);
+            if (buffer.getInt(at) == ADD) {
+                live.put(externalPort, new int[] {buffer.getInt(at + 8), buffer.getInt(at + 12)});
+            } else {
+                live.remove(externalPort);
+            }
+        }
+        return live;
+    }
+
+    private void write(int index, int op, int externalPort, int internalPort, int leaseSeconds) {
+        int at = HEADER_SIZE + index * RECORD_SIZE;
+        buffer.putInt(at, op);
+        buffer.putInt(at + 4, externalPort);
+        buffer.putInt(at + 8, internalPort);
+        buffer.putInt(at + 12, leaseSeconds);
+    }
+}
@@ -0,0 +1,321 @@
+package com.darsh.portbridge.exposure;
+
+import com.darsh.portbridge.Config;
+import com.darsh.portbridge.EventLog;
+import com.darsh.portbridge.IPLiterals;
+import com.darsh.portbridge.PublicIPResolver;
+import com.darsh.portbridge.SimpleNatPmp;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class NatPmpExposureService extends ExposureService {
+    // NAT-PMP treats lifetime 0 as "delete", so indefinite leases use the RFC's recommended value
+    private static final int DEFAULT_LIFETIME = 7200;
+    // Lower bound on the renewal delay, so a gateway granting a few seconds is not hammered
+    private static final int MIN_RENEW_SECONDS = 5;
+
+    private final ScheduledExecutorService executor;
+    private final PublicIPResolver ipResolver;
+    private final Map<String, SimpleNatPmp.Mapping> mappings = new ConcurrentHashMap<>();
+    private SimpleNatPmp natPmp;
+    private List<PortMappingEntry> entries;
+    private int lifetime;
+    // Shortest lifetime the gateway granted in the last round of requests; it may grant less than asked
+    private int grantedLifetime;
+    private ScheduledFuture<?> renewTask;
+    private int mainExternalPort = -1;
+    private volatile WanAddressWatcher wanWatcher;
+
+    public NatPmpExposureService(PublicIPResolver ipResolver) {
+        super("NAT-PMP");
+        this.ipResolver = ipResolver;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "PortBridge-NATPMP");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    protected void onStart(int attempt, int internalPort, int externalPort) {
+        own(executor.submit(() -> attemptMapping(attempt, internalPort, externalPort)), State.DISCOVERING, State.MAPPING);
+    }
+
+    private void attemptMapping(int attempt, int internalPort, int externalPort) {
+        try {
+            InetAddress gateway = resolveGateway();
+            if (gateway == null) {
+                markFailed(attempt, "Could not determine default gateway for NAT-PMP/PCP");
+                LOGGER.warn("[PortBridge] {}", lastError);
+                return;
+            }
+
+            if (!isCurrentAttempt(attempt) || !transition(State.DISCOVERING, State.MAPPING)) return;
+
+            if (natPmp == null || !natPmp.getGateway().equals(gateway)) {
+                natPmp = new SimpleNatPmp(gateway);
+                ipResolver.useNatPmp(natPmp);
+            }
+            entries = PortMappingEntry.resolve(internalPort, externalPort);
+            lifetime = Config.LEASE_DURATION.get() > 0 ? Config.LEASE_DURATION.get() : DEFAULT_LIFETIME;
+
+            if (!mapAll()) {
+                markFailed(attempt, "NAT-PMP/PCP not available on gateway " + gateway.getHostAddress());
+                LOGGER.warn("[PortBridge] {}", lastError);
+                return;
+            }
+
+            String externalIp = natPmp.getLastExternalAddress();
+            if (externalIp == null) {
+                externalIp = natPmp.getExternalAddress();
+            }
+            if (externalIp == null) {
+                markFailed(attempt, "NAT-PMP/PCP gateway did not report an external address");
+                LOGGER.warn("[PortBridge] {}", lastError);
+                return;
+            }
+
+            ipResolver.updateCache(externalIp, "NAT-PMP");
+            String address = IPLiterals.formatAddress(externalIp, mainExternalPort);
+            LOGGER.info("[PortBridge] {} port mapping successful", natPmp.isPcpSupported() ? "PCP" : "NAT-PMP");
+            LOGGER.info("[PortBridge] Public address: {}", address);
+
+            if (!markExposed(attempt, address)) return;
+
+            // The WAN watcher also catches gateway reboots via the epoch
+            scheduleRenewal();
+            wanWatcher = new WanAddressWatcher(this::checkGateway, externalIp, this::onWanAddressChanged);
+            own(wanWatcher.start(executor), State.ACTIVE, State.RENEWING, State.DEGRADED);
+        } catch (Exception e) {
+            markFailed(attempt, "NAT-PMP error: " + e.getMessage());
+            LOGGER.error("[PortBridge] {}", lastError, e);
+        }
+    }
+
+    private InetAddress resolveGateway() {
+        String configured = Config.NATPMP_GATEWAY.get();
+        if (configured != null && !configured.isBlank()) {
+            try {
+                return InetAddress.getByName(configured.trim());
+            } catch (Exception e) {
+                LOGGER.warn("[PortBridge] Invalid natpmp.gateway '{}'", configured);
+            }
+        }
+        return SimpleNatPmp.detectGateway();
+    }
+
+    // Renews at half the shortest granted lifetime; re-armed after every round, since the gateway may grant a different one
+    private void scheduleRenewal() {
+        if (renewTask != null) {
+            renewTask.cancel(false);
+        }
+        long renewSeconds = Math.max(MIN_RENEW_SECONDS, grantedLifetime / 2);
+        renewTask = own(executor.schedule(this::renewMappings, renewSeconds, TimeUnit.SECONDS),
+                State.ACTIVE, State.RENEWING, State.DEGRADED);
+    }
+
+    /**
+     * Maps every entry; returns false only if the main Minecraft port failed.
+     * Leaves the shortest lifetime granted in {@link #grantedLifetime}.
+     */
+    private boolean mapAll() {
+        boolean mainMapped = false;
+        int shortest = lifetime;
+        for (PortMappingEntry pe : entries) {
+            SimpleNatPmp.Mapping mapping = natPmp.map(pe.protocol, pe.internalPort, pe.externalPort, lifetime);
+            if (mapping == null) {
+                EventLog.record(EventLog.Type.NATPMP_MAP_FAILED, pe.externalPort);
+                LOGGER.warn("[PortBridge] Failed to map port {} via NAT-PMP/PCP", pe);
+                continue;
+            }
+            mappings.put(pe.protocol + ":" + pe.internalPort, mapping);
+            if (mapping.lifetime > 0) {
+                shortest = Math.min(shortest, mapping.lifetime);
+            }
+            EventLog.record(EventLog.Type.NATPMP_MAPPED, mapping.externalPort, mapping.lifetime, 0, 0);
+            if (mapping.externalPort != pe.externalPort) {
+                LOGGER.warn("[PortBridge] Gateway assigned external port {} instead of {} for {}", mapping.externalPort, pe.externalPort, pe.name);
+            }
+            if (Config.DEBUG_LOGGING.get()) {
+                LOGGER.debug("[PortBridge] Mapped {} -> {} lifetime={}s", pe, mapping.externalPort, mapping.lifetime);
+            }
+            if (pe == entries.get(0)) {
+                mainMapped = true;
+                mainExternalPort = mapping.externalPort;
+            }
+        }
+        grantedLifetime = shortest;
+        return mainMapped;
+    }
+
+    private void renewMappings() {
+        if (natPmp == null) return;
+        if (!transition(State.ACTIVE, State.RENEWING) && !transition(State.DEGRADED, State.RENEWING)) return;
+        boolean renewed = false;
+        try {
+            if (!mapAll()) {
+                LOGGER.warn("[PortBridge] Failed to renew NAT-PMP/PCP mapping for the server port");
+                return;
+            }
+            renewed = true;
+            String externalIp = natPmp.getLastExternalAddress();
+            if (externalIp != null) {
+                markAddressChanged(IPLiterals.formatAddress(externalIp, mainExternalPort));
+            }
+        } catch (Exception e) {
+            LOGGER.error("[PortBridge] Error renewing NAT-PMP/PCP mapping", e);
+        } finally {
+            // Stay exposed but flagged; the next renewal or WAN check tries again
+            if (transition(State.RENEWING, renewed ? State.ACTIVE : State.DEGRADED)) {
+                scheduleRenewal();
+            }
+        }
+    }
+
+    /**
+     * Applies a reloaded {@code additionalPorts} or {@code leaseDuration}: removed
+     * entries are unmapped and the rest re-requested, which for NAT-PMP/PCP is an
+     * in-place renewal of mappings that already exist.
+     */
+    public void syncPorts(int internalPort, int externalPort) {
+        executor.submit(() -> {
+            State state = getState();
+            if (natPmp == null || state != State.ACTIVE && state != State.DEGRADED) return;
+            try {
+                List<PortMappingEntry> wanted = PortMappingEntry.resolve(internalPort, externalPort);
+                for (PortMappingEntry old : entries) {
+                    if (wanted.contains(old)) continue;
+                    String key = old.protocol + ":" + old.internalPort;
+                    SimpleNatPmp.Mapping mapping = mappings.get(key);
+                    if (mapping != null && natPmp.unmap(mapping.protocol, mapping.internalPort)) {
+                        mappings.remove(key);
+                        LOGGER.info("[PortBridge] Removed NAT-PMP/PCP mapping no longer configured: {}", old);
+                    }
+                }
+                entries = wanted;
+                lifetime = Config.LEASE_DURATION.get() > 0 ? Config.LEASE_DURATION.get() : DEFAULT_LIFETIME;
+                mapAll();
+                scheduleRenewal();
+            } catch (Exception e) {
+                LOGGER.error("[PortBridge] Error updating NAT-PMP/PCP mappings after config reload", e);
+            }
+        });
+    }
+
+    private String checkGateway() {
+        State state = getState();
+        if (state != State.ACTIVE && state != State.DEGRADED || natPmp == null) return null;
+        String ip = natPmp.getExternalAddress();
+        if (natPmp.consumeRebootDetected()) {
+            EventLog.record(EventLog.Type.GATEWAY_REBOOTED);
+            LOGGER.info("[PortBridge] Gateway restarted, re-creating NAT-PMP/PCP mappings");
+            renewMappings();
+        }
+        return ip;
+    }
+
+    private void onWanAddressChanged(String oldIp, String newIp) {
+        ipResolver.updateCache(newIp, "NAT-PMP");
+        markAddressChanged(IPLiterals.formatAddress(newIp, mainExternalPort));
+    }
+
+    @Override
+    protected void onStop(boolean releaseMappings) {
+        if (wanWatcher != null) {
+            wanWatcher.stop();
+            wanWatcher = null;
+        }
+        if (!releaseMappings) {
+            // Left on the gateway to expire with their lifetime
+            mappings.clear();
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(Config.SHUTDOWN_TIMEOUT.get());
+        executor.submit(() -> removeMappings(deadline));
+    }
+
+    // Requests share the gateway's one UDP socket, so they go out one by one until the deadline
+    private void removeMappings(long deadlineNanos) {
+        SimpleNatPmp gateway = natPmp;
+        if (gateway == null || mappings.isEmpty()) return;
+        try {
+            for (Map.Entry<String, SimpleNatPmp.Mapping> entry : mappings.entrySet()) {
+                if (System.nanoTime() >= deadlineNanos) break;
+                SimpleNatPmp.Mapping mapping = entry.getValue();
+                if (gateway.unmap(mapping.protocol, mapping.internalPort)) {
+                    mappings.remove(entry.getKey());
+                } else {
+                    LOGGER.warn("[PortBridge] Error removing NAT-PMP/PCP mapping for port {}", mapping.internalPort);
+                }
+            }
+            if (mappings.isEmpty()) {
+                LOGGER.info("[PortBridge] NAT-PMP/PCP port mappings removed");
+            } else {
+                LOGGER.warn("[PortBridge] {} NAT-PMP/PCP mappings were not removed; they expire with their lifetime", mappings.size());
+            }
+        } catch (Exception e) {
+            LOGGER.error("[PortBridge] Error closing NAT-PMP/PCP mapping", e);
+        }
+    }
+
+    // Diagnostics helpers
+    public String getProtocol() {
+        if (natPmp == null) return null;
+        return natPmp.isPcpSupported() ? "PCP" : "NAT-PMP";
+    }
+
+    public String getGatewayAddress() {
+        return natPmp != null ? natPmp.getGateway().getHostAddress() : null;
+    }
+
+    public java.util.List<String> getMappedPortsInfo() {
+        java.util.List<String> out = new java.util.ArrayList<>();
+        for (SimpleNatPmp.Mapping m : mappings.values()) {
+            out.add(m.protocol + " " + m.internalPort + " -> " + m.externalPort + " (lifetime: " + m.lifetime + "s)");
+        }
+        return out;
+    }
+
+    public int getMappingCount() {
+        return mappings.size();
+    }
+
+    /**
+     * Stops the service and queues removal of its mappings without waiting.
+     */
+    public void beginShutdown(long deadlineNanos) {
+        stop();
+        // Also retries anything an earlier stop could not remove; a no-op once the map is empty
+        executor.submit(() -> removeMappings(deadlineNanos));
+        executor.shutdown();
+    }
+
+    /**
+     * Waits for the removals queued by {@link #beginShutdown} until the deadline
+     * and returns the mappings that are still on the gateway.
+     */
+    public List<String> awaitShutdown(long deadlineNanos) {
+        boolean finished = false;
+        try {
+            finished = executor.awaitTermination(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+        // close() waits for a request still in flight, which would overrun the deadline
+        if (finished && natPmp != null) {
+            natPmp.close();
+        }
+        List<String> left = new java.util.ArrayList<>();
+        for (SimpleNatPmp.Mapping m : mappings.values()) {
+            left.add("NAT-PMP " + m.protocol + " " + m.externalPort);
+        }
+        return left;
+    }
+}
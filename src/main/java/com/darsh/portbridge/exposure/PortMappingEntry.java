@@ -0,0 +1,68 @@
+package com.darsh.portbridge.exposure;
+
+import com.darsh.portbridge.Config;
+import com.darsh.portbridge.PortBridge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * One port to expose: the Minecraft port itself or an entry from {@code additionalPorts}.
+ */
+final class PortMappingEntry {
+    final String name;
+    final int internalPort;
+    final int externalPort;
+    final String protocol;
+
+    PortMappingEntry(String name, int internalPort, int externalPort, String protocol) {
+        this.name = name;
+        this.internalPort = internalPort;
+        this.externalPort = externalPort;
+        this.protocol = protocol;
+    }
+
+    /**
+     * Builds the list of ports to map: main server port first, then the enabled
+     * entries of {@code additionalPorts} ({@code name:internal:external:protocol:enabled}).
+     */
+    static List<PortMappingEntry> resolve(int internalPort, int externalPort) {
+        List<PortMappingEntry> entries = new ArrayList<>();
+        entries.add(new PortMappingEntry("minecraft", internalPort, externalPort > 0 ? externalPort : internalPort, "TCP"));
+
+        String extra = Config.ADDITIONAL_PORTS.get();
+        if (extra != null && !extra.isBlank()) {
+            for (String e : extra.split(",")) {
+                try {
+                    String[] parts = e.trim().split(":");
+                    if (parts.length >= 5 && Boolean.parseBoolean(parts[4])) {
+                        entries.add(new PortMappingEntry(parts[0], Integer.parseInt(parts[1]),
+                                Integer.parseInt(parts[2]), parts[3].toUpperCase()));
+                    }
+                } catch (Exception ex) {
+                    PortBridge.LOGGER.warn("[PortBridge] Invalid additionalPorts entry: {}", e);
+                }
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof PortMappingEntry)) return false;
+        PortMappingEntry other = (PortMappingEntry) o;
+        return internalPort == other.internalPort && externalPort == other.externalPort
+                && name.equals(other.name) && protocol.equals(other.protocol);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, internalPort, externalPort, protocol);
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + internalPort + "->" + externalPort + "/" + protocol;
+    }
+}
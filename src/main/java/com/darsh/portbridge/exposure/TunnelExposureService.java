@@ -1,20 +1,42 @@
 package com.darsh.portbridge.exposure;
 
 import com.darsh.portbridge.Config;
+import com.darsh.portbridge.EventLog;
+import com.darsh.portbridge.RetryPolicy;
+import com.darsh.portbridge.metrics.PortBridgeMetrics;
+import com.darsh.portbridge.tunnel.KeepaliveController;
+import com.darsh.portbridge.tunnel.PlayerStats;
 import com.darsh.portbridge.tunnel.TunnelClient;
 import com.darsh.portbridge.tunnel.TunnelSession;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class TunnelExposureService extends ExposureService {
+    // Reconnect delays come from decorrelated jitter, so a relay restart is not followed by every server at once
+    private static final RetryPolicy RELAY_RETRY = new RetryPolicy("relay",
+            () -> Config.TUNNEL_RECONNECT_BASE_DELAY.get() * 1000L,
+            () -> Config.TUNNEL_RECONNECT_MAX_DELAY.get() * 1000L,
+            () -> Integer.MAX_VALUE);
+
     private final ScheduledExecutorService executor;
-    private TunnelClient tunnelClient;
-    private TunnelSession session;
-    private int reconnectAttempts;
-    private long baseDelayMs;
-    private long maxDelayMs;
+    private volatile TunnelClient tunnelClient;
+    private volatile TunnelSession session;
+    private volatile int reconnectAttempts;
+    // Only used from the executor, or before onStart hands over to it
+    private final RetryPolicy.Backoff reconnectBackoff = RELAY_RETRY.backoff();
+    private volatile int lastInternalPort;
+    private volatile List<PortMappingEntry> udpEntries = List.of();
+    private final PlayerStats playerStats;
+    // What the keepalive learned about the path is kept across reconnects
+    private final KeepaliveController keepalive = new KeepaliveController();
+    private final Path rollupFile;
 
     public TunnelExposureService() {
         super("TUNNEL");
@@ -24,77 +46,175 @@ public class TunnelExposureService extends ExposureService {
             return t;
         });
         this.reconnectAttempts = 0;
-        this.baseDelayMs = 5000;
-        this.maxDelayMs = 120000;
+
+        // Outlives individual tunnel clients so totals survive reconnects
+        this.playerStats = Config.TUNNEL_PLAYER_STATS_ENABLED.get() ? new PlayerStats(Config.TUNNEL_PLAYER_STATS_CAPACITY.get()) : null;
+        String rollupFile = Config.TUNNEL_PLAYER_STATS_FILE.get();
+        if (playerStats != null && rollupFile != null && !rollupFile.isBlank()) {
+            long interval = Config.TUNNEL_PLAYER_STATS_ROLLUP.get();
+            Path path = Path.of(rollupFile.trim());
+            executor.scheduleWithFixedDelay(() -> writeRollup(path), interval, interval, TimeUnit.MINUTES);
+            this.rollupFile = path;
+        } else {
+            this.rollupFile = null;
+        }
+    }
+
+    private void writeRollup(Path path) {
+        try {
+            playerStats.rollup(path);
+        } catch (Exception e) {
+            LOGGER.warn("[PortBridge] Could not write player traffic rollup to {}: {}", path, e.getMessage());
+        }
     }
 
     @Override
-    public boolean start(int internalPort, int externalPort) {
-        executor.submit(() -> attemptTunnelConnection(internalPort));
-        return true;
+    protected void onStart(int attempt, int internalPort, int externalPort) {
+        reconnectAttempts = 0;
+        reconnectBackoff.reset();
+        lastInternalPort = internalPort;
+        own(executor.submit(() -> attemptTunnelConnection(attempt, internalPort)), State.DISCOVERING);
     }
 
-    private void attemptTunnelConnection(int internalPort) {
+    private void attemptTunnelConnection(int attempt, int internalPort) {
+        if (!isCurrentAttempt(attempt)) return;
+        String relayHost = Config.TUNNEL_RELAY_HOST.get();
+        int relayPort = Config.TUNNEL_RELAY_PORT.get();
+        String target = relayHost + ":" + relayPort;
+        if (!RELAY_RETRY.allow(target)) {
+            // The relay's breaker is open; scheduleReconnect waits until it lets a trial through
+            scheduleReconnect(attempt, internalPort, target);
+            return;
+        }
         try {
-            String relayHost = Config.TUNNEL_RELAY_HOST.get();
-            int relayPort = Config.TUNNEL_RELAY_PORT.get();
 
             String serverUUID = UUID.randomUUID().toString();
             String worldName = "world";
 
+            // Each client owns its own threads, so the one being replaced must release them
+            TunnelClient previous = tunnelClient;
+            if (previous != null) {
+                previous.shutdown();
+            }
             session = new TunnelSession(serverUUID, internalPort, worldName);
-            tunnelClient = new TunnelClient(relayHost, relayPort, session);
+            TunnelClient client = new TunnelClient(relayHost, relayPort, session, playerStats, keepalive);
+            udpEntries = resolveUdp(internalPort);
+            for (PortMappingEntry entry : udpEntries) {
+                client.forwardUdp(entry.internalPort, entry.externalPort);
+            }
+            tunnelClient = client;
 
-            if (tunnelClient.connect()) {
-                active = true;
+            if (client.connect()) {
+                RELAY_RETRY.success(target);
+                if (!markExposed(attempt, client.getPublicAddress())) {
+                    // Stopped or superseded while connecting
+                    client.shutdown();
+                    return;
+                }
                 reconnectAttempts = 0;
-                setPublicAddress(tunnelClient.getPublicAddress());
+                reconnectBackoff.reset();
                 LOGGER.info("[PortBridge] Tunnel connection established");
-                LOGGER.info("[PortBridge] Public address: {}", publicAddress);
+                LOGGER.info("[PortBridge] Public address: {}", client.getPublicAddress());
 
-                // Start monitoring for disconnects
-                executor.scheduleWithFixedDelay(this::monitorConnection, 10, 10, TimeUnit.SECONDS);
+                // Monitor for disconnects while the tunnel is up
+                own(executor.scheduleWithFixedDelay(() -> monitorConnection(attempt, internalPort), 10, 10, TimeUnit.SECONDS),
+                        State.ACTIVE);
             } else {
-                setError("Failed to connect to tunnel relay");
-                scheduleReconnect(internalPort);
+                RELAY_RETRY.failure(target);
+                markRetrying(attempt, "Failed to connect to tunnel relay");
+                scheduleReconnect(attempt, internalPort, target);
             }
         } catch (Exception e) {
-            setError("Tunnel error: " + e.getMessage());
+            RELAY_RETRY.failure(target);
+            markRetrying(attempt, "Tunnel error: " + e.getMessage());
             LOGGER.error("[PortBridge] {}", lastError, e);
-            scheduleReconnect(internalPort);
+            scheduleReconnect(attempt, internalPort, target);
+        }
+    }
+
+    private void monitorConnection(int attempt, int internalPort) {
+        TunnelClient client = tunnelClient;
+        if (client == null || client.isConnected()) return;
+        if (!transition(State.ACTIVE, State.DEGRADED)) return;
+        LOGGER.warn("[PortBridge] Tunnel disconnected. Reason: {}", client.getLastDisconnectReason());
+        setError("Tunnel disconnected: " + client.getLastDisconnectReason());
+        scheduleReconnect(attempt, internalPort, Config.TUNNEL_RELAY_HOST.get() + ":" + Config.TUNNEL_RELAY_PORT.get());
+    }
+
+    private void scheduleReconnect(int attempt, int internalPort, String target) {
+        if (!isCurrentAttempt(attempt)) return;
+        reconnectAttempts++;
+        PortBridgeMetrics.TUNNEL_RECONNECTS.increment();
+        long delay = Math.max(reconnectBackoff.nextDelayMs(), RELAY_RETRY.openRemainingMs(target));
+        EventLog.record(EventLog.Type.TUNNEL_RECONNECT_SCHEDULED, 0, reconnectAttempts, 0, delay);
+        LOGGER.info("[PortBridge] Scheduling tunnel reconnect in {} ms (attempt {})", delay, reconnectAttempts);
+        own(executor.schedule(() -> attemptTunnelConnection(attempt, internalPort), delay, TimeUnit.MILLISECONDS),
+                State.DISCOVERING, State.DEGRADED);
+    }
+
+    @Override
+    protected void onStop(boolean releaseMappings) {
+        TunnelClient client = tunnelClient;
+        if (client != null) {
+            client.close("Shutdown requested");
         }
     }
 
-    private void monitorConnection(int internalPort) {
-        if (!active) return;
+    /**
+     * Picks up reloaded keepalive settings without touching the connection.
+     * Reconnect delays read their settings on every use.
+     */
+    public void retune() {
+        keepalive.configure();
+    }
 
-        if (!tunnelClient.isConnected()) {
-            LOGGER.warn("[PortBridge] Tunnel disconnected. Reason: {}", tunnelClient.getLastDisconnectReason());
-            active = false;
-            scheduleReconnect(internalPort);
+    public void reconfigureAdmission() {
+        TunnelClient client = tunnelClient;
+        if (client != null) {
+            client.getAdmission().reconfigure();
         }
     }
 
-    private void monitorConnection() {
-        if (active && tunnelClient != null && !tunnelClient.isConnected()) {
-            LOGGER.warn("[PortBridge] Tunnel disconnected. Reason: {}", tunnelClient.getLastDisconnectReason());
-            active = false;
+    // The relay forwards TCP for the main port only; UDP entries are carried as datagrams
+    private static List<PortMappingEntry> resolveUdp(int internalPort) {
+        List<PortMappingEntry> udp = new ArrayList<>();
+        for (PortMappingEntry entry : PortMappingEntry.resolve(internalPort, -1)) {
+            if ("UDP".equals(entry.protocol)) udp.add(entry);
         }
+        return udp;
     }
 
-    private void scheduleReconnect(int internalPort) {
-        reconnectAttempts++;
-        long delay = Math.min(baseDelayMs * (long) Math.pow(2, reconnectAttempts - 1), maxDelayMs);
-        LOGGER.info("[PortBridge] Scheduling tunnel reconnect in {} ms (attempt {})", delay, reconnectAttempts);
-        executor.schedule(() -> attemptTunnelConnection(internalPort), delay, TimeUnit.MILLISECONDS);
+    /**
+     * Whether the UDP entries of {@code additionalPorts} differ from those registered
+     * with the relay.
+     */
+    public boolean udpPortsChanged() {
+        return !resolveUdp(lastInternalPort).equals(udpEntries);
     }
 
-    @Override
-    public void stop() {
-        active = false;
-        if (tunnelClient != null) {
-            tunnelClient.close("Shutdown requested");
+    /**
+     * Registers added UDP entries and unregisters removed ones on the live relay
+     * connection. Returns false if the relay cannot do that, or the tunnel is not
+     * connected; the entries are then registered on the next connect.
+     */
+    public boolean syncUdpPorts() {
+        List<PortMappingEntry> wanted = resolveUdp(lastInternalPort);
+        Map<Integer, Integer> ports = new LinkedHashMap<>();
+        for (PortMappingEntry entry : wanted) {
+            ports.put(entry.internalPort, entry.externalPort);
         }
+        TunnelClient client = tunnelClient;
+        if (client == null || !client.syncUdp(ports)) return false;
+        udpEntries = wanted;
+        return true;
+    }
+
+    /**
+     * Reconnects to the relay currently configured. Streams on the old relay are
+     * closed, since they cannot move to another one.
+     */
+    public void restart() {
+        retry(lastInternalPort, -1);
     }
 
     public long getLatency() {
@@ -111,6 +231,46 @@ public class TunnelExposureService extends ExposureService {
         return 0;
     }
 
+    public String getLocalPoolStats() {
+        if (tunnelClient != null) {
+            return tunnelClient.getLocalPoolStats();
+        }
+        return "N/A";
+    }
+
+    public String getDataPoolStats() {
+        if (tunnelClient != null) {
+            return tunnelClient.getDataPoolStats();
+        }
+        return "N/A";
+    }
+
+    public int getActiveStreams() {
+        TunnelClient client = tunnelClient;
+        return client != null ? client.getAdmission().getOpenConnections() : 0;
+    }
+
+    public String getAdmissionStats() {
+        if (tunnelClient != null) {
+            return tunnelClient.getAdmission().getStats();
+        }
+        return "N/A";
+    }
+
+    public String getUdpStats() {
+        TunnelClient client = tunnelClient;
+        return client != null ? client.getUdpStats() : "N/A";
+    }
+
+    public String getWriterStats() {
+        TunnelClient client = tunnelClient;
+        return client != null ? client.getWriterStats() : "N/A";
+    }
+
+    public String getKeepaliveStats() {
+        return keepalive.getStats();
+    }
+
     public String getSessionId() {
         if (session != null) {
             return session.getSessionId();
@@ -119,20 +279,51 @@ public class TunnelExposureService extends ExposureService {
     }
 
     public String getStatus() {
-        if (!active) {
-            return "DISCONNECTED";
-        }
-        if (tunnelClient != null && tunnelClient.isConnected()) {
-            return "CONNECTED";
+        switch (getState()) {
+            case IDLE:
+            case STOPPING:
+                return "DISCONNECTED";
+            case ACTIVE:
+                TunnelClient client = tunnelClient;
+                return client != null && client.isConnected() ? "CONNECTED" : "RECONNECTING";
+            default:
+                return "RECONNECTING";
         }
-        return "RECONNECTING";
     }
 
-    public void shutdown() {
+    public PlayerStats getPlayerStats() {
+        return playerStats;
+    }
+
+    /**
+     * Closes the tunnel, sending CLOSE for every open stream, without waiting.
+     */
+    public void beginShutdown(long deadlineNanos) {
         stop();
-        if (tunnelClient != null) {
-            tunnelClient.shutdown();
+        TunnelClient client = tunnelClient;
+        if (client != null) {
+            client.shutdown();
         }
         executor.shutdownNow();
     }
+
+    /**
+     * Waits for stream threads to exit until the deadline and returns what is still open.
+     */
+    public java.util.List<String> awaitShutdown(long deadlineNanos) {
+        int open = 0;
+        try {
+            TunnelClient client = tunnelClient;
+            if (client != null) {
+                open = client.awaitTermination(deadlineNanos);
+            }
+            executor.awaitTermination(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (rollupFile != null) {
+            writeRollup(rollupFile);
+        }
+        return open > 0 ? java.util.List.of("tunnel: " + open + " streams still open") : java.util.List.of();
+    }
 }
@@ -1,6 +1,9 @@
 package com.darsh.portbridge.exposure;
 
 import com.darsh.portbridge.Config;
+import com.darsh.portbridge.EventLog;
+import com.darsh.portbridge.IPLiterals;
+import com.darsh.portbridge.PortBridgeEvents;
 import com.darsh.portbridge.PublicIPResolver;
 import com.darsh.portbridge.SimpleUPnP;
 import java.net.InetAddress;
@@ -13,46 +16,67 @@ import java.util.concurrent.TimeUnit;
 public class UPnPExposureService extends ExposureService {
     private final ScheduledExecutorService executor;
     private SimpleUPnP upnp;
-    private PublicIPResolver ipResolver;
+    private final PublicIPResolver ipResolver;
     private int currentExternalPort = -1;
     private long leaseDuration;
     private java.util.Map<Integer, Long> mappedPortsExpiry = new java.util.concurrent.ConcurrentHashMap<>();
     private String lastWanIp;
+    private volatile WanAddressWatcher wanWatcher;
+    private final MappingJournal journal;
+    private java.util.List<PortMappingEntry> mappedEntries = java.util.List.of();
 
-    public UPnPExposureService() {
+    // Stale entries are deleted in parallel, so this covers a handful of slow SOAP calls
+    private static final long BATCH_DELETE_TIMEOUT_MS = 5000;
+
+    public UPnPExposureService(PublicIPResolver ipResolver) {
         super("UPnP");
+        this.ipResolver = ipResolver;
         this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
             Thread t = new Thread(r, "PortBridge-UPnP");
             t.setDaemon(true);
             return t;
         });
+        this.journal = openJournal();
+    }
+
+    private static MappingJournal openJournal() {
+        String file = Config.UPNP_JOURNAL_FILE.get();
+        if (file == null || file.isBlank()) return null;
+        try {
+            return MappingJournal.open(java.nio.file.Path.of(file.trim()));
+        } catch (Exception e) {
+            LOGGER.warn("[PortBridge] Could not open UPnP mapping journal {}: {}", file, e.getMessage());
+            return null;
+        }
     }
 
     @Override
-    public boolean start(int internalPort, int externalPort) {
-        executor.submit(() -> attemptUPnP(internalPort, externalPort));
-        return true;
+    protected void onStart(int attempt, int internalPort, int externalPort) {
+        own(executor.submit(() -> attemptUPnP(attempt, internalPort, externalPort)), State.DISCOVERING, State.MAPPING);
     }
 
-    private void attemptUPnP(int internalPort, int externalPort) {
+    private void attemptUPnP(int attempt, int internalPort, int externalPort) {
         try {
+            currentExternalPort = -1;
             upnp = new SimpleUPnP();
             if (!upnp.isUPnPAvailable()) {
-                setError("UPnP not available on this network");
+                markFailed(attempt, "UPnP not available on this network");
                 LOGGER.warn("[PortBridge] {}", lastError);
                 return;
             }
+            if (!isCurrentAttempt(attempt) || !transition(State.DISCOVERING, State.MAPPING)) return;
+            ipResolver.useUPnP(upnp);
             String localIP = getLocalIP();
             if (localIP == null) {
-                setError("Could not determine local IP address");
+                markFailed(attempt, "Could not determine local IP address");
                 LOGGER.warn("[PortBridge] {}", lastError);
                 return;
             }
 
             // Check allowed subnets
             String allowed = Config.ALLOWED_SUBNETS.get();
-            if (allowed != null && !allowed.isBlank() && !isIPInAllowedSubnets(localIP, allowed)) {
-                setError("Local IP " + localIP + " is not within allowed subnets: " + allowed);
+            if (allowed != null && !allowed.isBlank() && !Config.getAllowedSubnets().contains(localIP)) {
+                markFailed(attempt, "Local IP " + localIP + " is not within allowed subnets: " + allowed);
                 LOGGER.warn("[PortBridge] {}", lastError);
                 return;
             }
@@ -60,178 +84,259 @@ public class UPnPExposureService extends ExposureService {
             int leaseDuration = Config.LEASE_DURATION.get();
 
             // Build list of ports to map: main server port + additional ports from config
-            class PortEntry { String name; int in; int out; String proto; boolean enabled; }
-
-            java.util.List<PortEntry> portsToMap = new java.util.ArrayList<>();
-            PortEntry main = new PortEntry();
-            main.name = "minecraft";
-            main.in = internalPort;
-            main.out = externalPort > 0 ? externalPort : internalPort;
-            main.proto = "TCP";
-            main.enabled = true;
-            portsToMap.add(main);
-
-            String extra = Config.ADDITIONAL_PORTS.get();
-            if (extra != null && !extra.isBlank()) {
-                String[] entries = extra.split(",");
-                for (String e : entries) {
-                    try {
-                        String[] parts = e.trim().split(":");
-                        if (parts.length >= 5) {
-                            PortEntry pe = new PortEntry();
-                            pe.name = parts[0];
-                            pe.in = Integer.parseInt(parts[1]);
-                            pe.out = Integer.parseInt(parts[2]);
-                            pe.proto = parts[3].toUpperCase();
-                            pe.enabled = Boolean.parseBoolean(parts[4]);
-                            if (pe.enabled) portsToMap.add(pe);
-                        }
-                    } catch (Exception ex) {
-                        LOGGER.warn("[PortBridge] Invalid additionalPorts entry: {}", e);
-                    }
-                }
-            }
+            java.util.List<PortMappingEntry> portsToMap = PortMappingEntry.resolve(internalPort, externalPort);
 
             // Dry-run handling: simulate mapping without calling UPnP
             if (Config.DRY_RUN.get()) {
-                ipResolver = new PublicIPResolver();
-                ipResolver.getPublicIP().thenAccept(ip -> {
-                    String publicIp = ip != null ? ip : "0.0.0.0";
+                // A failed lookup is simulated too; only a missing TCP port ends the attempt
+                ipResolver.getPublicIP().whenComplete((ip, error) -> {
+                    String publicIp = error == null && ip != null ? ip : "0.0.0.0";
                     // Simulate mapping for the first TCP port (minecraft)
-                    PortEntry firstTcp = portsToMap.stream().filter(p -> "TCP".equalsIgnoreCase(p.proto)).findFirst().orElse(null);
+                    PortMappingEntry firstTcp = portsToMap.stream().filter(p -> "TCP".equalsIgnoreCase(p.protocol)).findFirst().orElse(null);
                     if (firstTcp != null) {
-                        setPublicAddress(publicIp + ":" + firstTcp.out);
-                        active = true;
-                        currentExternalPort = firstTcp.out;
+                        currentExternalPort = firstTcp.externalPort;
                         this.leaseDuration = leaseDuration;
                         LOGGER.info("[PortBridge] DRY-RUN: Would create UPnP mappings: {}", portsToMap);
+                        markExposed(attempt, IPLiterals.formatAddress(publicIp, firstTcp.externalPort));
+                    } else {
+                        markFailed(attempt, "DRY-RUN: no TCP port to map in " + portsToMap);
+                        LOGGER.warn("[PortBridge] {}", lastError);
                     }
                 });
                 return;
             }
 
+            removeOrphans(upnp);
+
             // Attempt to create mappings
             boolean anySuccess = false;
-            for (PortEntry pe : portsToMap) {
-                boolean success = false;
-                if ("TCP".equalsIgnoreCase(pe.proto)) {
-                    success = upnp.openPortTCP(pe.out, pe.in, localIP, "PortBridge-Minecraft-" + pe.name, leaseDuration);
-                } else {
-                    // For now, treat UDP as not implemented in SimpleUPnP but attempt TCP call as placeholder
-                    success = upnp.openPortTCP(pe.out, pe.in, localIP, "PortBridge-" + pe.name, leaseDuration);
-                }
-
-                if (success) {
+            mappedEntries = portsToMap;
+            for (PortMappingEntry pe : portsToMap) {
+                if (mapEntry(pe, localIP, leaseDuration)) {
                     anySuccess = true;
-                    long expiry = leaseDuration <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + (leaseDuration * 1000L);
-                    mappedPortsExpiry.put(pe.out, expiry);
-                    if (Config.DEBUG_LOGGING.get()) {
-                        LOGGER.debug("[PortBridge] Mapped {} {}->{} (proto={}) expiry={}ms", pe.name, pe.in, pe.out, pe.proto, expiry);
-                    }
                     // Set public address from resolver for the first mapped port
                     if (currentExternalPort <= 0) {
-                        currentExternalPort = pe.out;
+                        currentExternalPort = pe.externalPort;
                     }
-                } else {
-                    LOGGER.warn("[PortBridge] Failed to map port {} ({}->{})", pe.name, pe.in, pe.out);
                 }
             }
 
             if (anySuccess) {
-                ipResolver = new PublicIPResolver();
-                ipResolver.getPublicIP().thenAccept(ip -> {
-                    if (ip != null) {
+                ipResolver.getPublicIP().whenComplete((ip, error) -> {
+                    if (error == null && ip != null) {
                         lastWanIp = ip;
-                        String address = ip + ":" + currentExternalPort;
-                        setPublicAddress(address);
-                        active = true;
+                        String address = IPLiterals.formatAddress(ip, currentExternalPort);
                         this.leaseDuration = leaseDuration;
 
                         LOGGER.info("[PortBridge] UPnP port forwarding successful");
                         LOGGER.info("[PortBridge] Public address: {}", address);
 
-                        // Schedule periodic refresh check
-                        executor.scheduleAtFixedRate(this::refreshMapping, Math.max(60, Config.REFRESH_INTERVAL.get()), Math.max(60, Config.REFRESH_INTERVAL.get()), TimeUnit.SECONDS);
+                        if (!markExposed(attempt, address)) return;
+
+                        // Refresh and WAN checks run only while exposed; leaving those states cancels them
+                        long refresh = Math.max(60, Config.REFRESH_INTERVAL.get());
+                        own(executor.scheduleWithFixedDelay(this::refreshMapping, refresh, refresh, TimeUnit.SECONDS),
+                                State.ACTIVE, State.RENEWING, State.DEGRADED);
+
+                        // Watch the WAN address through the already discovered control URL
+                        SimpleUPnP gateway = upnp;
+                        wanWatcher = new WanAddressWatcher(gateway::getExternalIP, ip, this::onWanAddressChanged);
+                        own(wanWatcher.start(executor), State.ACTIVE, State.RENEWING, State.DEGRADED);
+                    } else {
+                        // Nothing was exposed through these mappings; queued ahead of any next attempt
+                        if (isCurrentAttempt(attempt)) {
+                            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(Config.SHUTDOWN_TIMEOUT.get());
+                            executor.submit(() -> removeMappings(deadline));
+                        }
+                        markFailed(attempt, "UPnP mapped the port but the public IP could not be determined"
+                                + (error != null ? ": " + error.getMessage() : ""));
+                        LOGGER.warn("[PortBridge] {}", lastError);
                     }
                 });
             } else {
-                setError("Failed to create any UPnP port mappings");
+                markFailed(attempt, "Failed to create any UPnP port mappings");
                 LOGGER.warn("[PortBridge] {}", lastError);
             }
         } catch (Exception e) {
-            setError("UPnP error: " + e.getMessage());
+            markFailed(attempt, "UPnP error: " + e.getMessage());
             LOGGER.error("[PortBridge] {}", lastError, e);
         }
     }
 
-    private boolean isIPInAllowedSubnets(String ip, String allowedCsv) {
-        try {
-            String[] parts = allowedCsv.split(",");
-            for (String p : parts) {
-                p = p.trim();
-                if (p.isEmpty()) continue;
-                if (cidrMatches(ip, p)) return true;
+    private boolean mapEntry(PortMappingEntry pe, String localIP, int leaseDuration) {
+        // For now, treat UDP as not implemented in SimpleUPnP but attempt TCP call as placeholder
+        boolean success = upnp.openPortTCP(pe.externalPort, pe.internalPort, localIP, description(pe), leaseDuration);
+
+        if (success) {
+            EventLog.record(EventLog.Type.UPNP_MAPPED, pe.externalPort, leaseDuration, 0, 0);
+            long expiry = leaseDuration <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + (leaseDuration * 1000L);
+            mappedPortsExpiry.put(pe.externalPort, expiry);
+            if (journal != null) {
+                journal.added(pe.externalPort, pe.internalPort, leaseDuration);
             }
-        } catch (Exception e) {
-            LOGGER.debug("[PortBridge] Error checking allowed subnets", e);
+            if (Config.DEBUG_LOGGING.get()) {
+                LOGGER.debug("[PortBridge] Mapped {} {}->{} (proto={}) expiry={}ms", pe.name, pe.internalPort, pe.externalPort, pe.protocol, expiry);
+            }
+        } else {
+            EventLog.record(EventLog.Type.UPNP_MAP_FAILED, pe.externalPort, 0, upnp.getLastErrorCode(), 0);
+            LOGGER.warn("[PortBridge] Failed to map port {} ({}->{})", pe.name, pe.internalPort, pe.externalPort);
         }
-        return false;
+        return success;
     }
 
-    // Simple CIDR match for IPv4
-    private boolean cidrMatches(String ip, String cidr) {
-        try {
-            String[] parts = cidr.split("/");
-            if (parts.length != 2) return false;
-            long ipLong = inet4ToLong(InetAddress.getByName(ip));
-            long cidrBase = inet4ToLong(InetAddress.getByName(parts[0]));
-            int prefix = Integer.parseInt(parts[1]);
-            long mask = prefix == 0 ? 0 : 0xffffffffL << (32 - prefix) & 0xffffffffL;
-            return (ipLong & mask) == (cidrBase & mask);
-        } catch (Exception e) {
-            return false;
-        }
+    private static String description(PortMappingEntry pe) {
+        return "TCP".equalsIgnoreCase(pe.protocol) ? "PortBridge-Minecraft-" + pe.name : "PortBridge-" + pe.name;
+    }
+
+    /**
+     * Brings the router in line with the current {@code additionalPorts} and
+     * {@code leaseDuration} after a config reload. Entries that are unchanged are
+     * left alone, so connections through them are not disturbed.
+     */
+    public void syncPorts(int internalPort, int externalPort) {
+        executor.submit(() -> {
+            State state = getState();
+            if (upnp == null || state != State.ACTIVE && state != State.DEGRADED) return;
+            try {
+                java.util.List<PortMappingEntry> wanted = PortMappingEntry.resolve(internalPort, externalPort);
+                int lease = Config.LEASE_DURATION.get();
+                boolean leaseChanged = lease != leaseDuration;
+
+                java.util.List<Integer> stale = new java.util.ArrayList<>();
+                for (PortMappingEntry old : mappedEntries) {
+                    if (!wanted.contains(old) && mappedPortsExpiry.containsKey(old.externalPort)) {
+                        stale.add(old.externalPort);
+                    }
+                }
+                // An entry that only changed its internal port keeps its external port mapped
+                for (PortMappingEntry pe : wanted) {
+                    stale.remove((Integer) pe.externalPort);
+                }
+                if (!stale.isEmpty()) {
+                    java.util.List<Integer> left = upnp.closePortsTCP(stale, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_DELETE_TIMEOUT_MS));
+                    for (Integer port : stale) {
+                        if (left.contains(port)) continue;
+                        mappedPortsExpiry.remove(port);
+                        if (journal != null) journal.removed(port);
+                    }
+                    LOGGER.info("[PortBridge] Removed UPnP mappings no longer configured: {}", stale);
+                }
+
+                String localIP = getLocalIP();
+                if (localIP != null) {
+                    for (PortMappingEntry pe : wanted) {
+                        if (leaseChanged || !mappedEntries.contains(pe)) {
+                            mapEntry(pe, localIP, lease);
+                        }
+                    }
+                }
+                leaseDuration = lease;
+                mappedEntries = wanted;
+            } catch (Exception e) {
+                LOGGER.error("[PortBridge] Error updating UPnP mappings after config reload", e);
+            }
+        });
     }
 
-    private long inet4ToLong(InetAddress inet) {
-        byte[] addr = inet.getAddress();
-        long r = 0;
-        for (byte b : addr) {
-            r = (r << 8) | (b & 0xff);
+    /**
+     * Deletes, in one parallel batch, the mappings the journal says an earlier
+     * run left open (after a crash, or a stop that could not reach the router).
+     * Ports about to be mapped again are cleared too, so the new AddPortMapping
+     * does not hit a conflict with our own stale entry.
+     */
+    private void removeOrphans(SimpleUPnP gateway) {
+        if (journal == null) return;
+        java.util.List<Integer> orphans = journal.live();
+        if (orphans.isEmpty()) return;
+
+        long start = System.nanoTime();
+        java.util.List<Integer> left = gateway.closePortsTCP(orphans, start + TimeUnit.MILLISECONDS.toNanos(BATCH_DELETE_TIMEOUT_MS));
+        long tookMs = (System.nanoTime() - start) / 1_000_000;
+        java.util.List<Integer> removed = new java.util.ArrayList<>(orphans);
+        removed.removeAll(left);
+        removed.forEach(mappedPortsExpiry::remove);
+        if (left.isEmpty()) {
+            journal.reset();
+        } else {
+            // The rest stay journaled, so the next start tries them again
+            removed.forEach(journal::removed);
+        }
+        EventLog.record(EventLog.Type.UPNP_ORPHANS_REMOVED, 0, removed.size(), 0, tookMs);
+        LOGGER.info("[PortBridge] Removed {} stale UPnP mappings from a previous run in {} ms", removed.size(), tookMs);
+        if (!left.isEmpty() && Config.DEBUG_LOGGING.get()) {
+            LOGGER.debug("[PortBridge] Stale mappings not removed (timed out, refused, or already gone); kept for next start: {}", left);
         }
-        return r & 0xffffffffL;
+    }
+
+    private void onWanAddressChanged(String oldIp, String newIp) {
+        lastWanIp = newIp;
+        ipResolver.updateCache(newIp, "UPnP");
+        markAddressChanged(IPLiterals.formatAddress(newIp, currentExternalPort));
     }
 
     private void refreshMapping() {
-        try {
-            if (!active || upnp == null) return;
+        if (upnp == null) return;
+
+        // Renewed as currently configured, so a reload's change of internal port is kept.
+        // A port a reload dropped but could not delete is not renewed; it is left to expire.
+        java.util.Map<Integer, PortMappingEntry> configured = new java.util.HashMap<>();
+        for (PortMappingEntry pe : mappedEntries) {
+            configured.put(pe.externalPort, pe);
+        }
+
+        // Renew if less than 25% of lease remaining or less than 60s
+        long now = System.currentTimeMillis();
+        java.util.List<PortMappingEntry> due = new java.util.ArrayList<>();
+        for (java.util.Map.Entry<Integer, Long> entry : mappedPortsExpiry.entrySet()) {
+            long expiry = entry.getValue();
+            PortMappingEntry pe = configured.get(entry.getKey());
+            if (expiry == Long.MAX_VALUE || pe == null) continue; // indefinite, or no longer configured
+            long timeLeft = expiry - now;
+            if (timeLeft < (leaseDuration * 1000L) / 4 || timeLeft < 60000) {
+                due.add(pe);
+            }
+        }
+        if (due.isEmpty()) return;
+        if (!transition(State.ACTIVE, State.RENEWING) && !transition(State.DEGRADED, State.RENEWING)) return;
 
+        boolean renewed = false;
+        try {
             String localIP = getLocalIP();
             if (localIP == null) return;
 
-            long now = System.currentTimeMillis();
-            for (java.util.Map.Entry<Integer, Long> entry : mappedPortsExpiry.entrySet()) {
-                int extPort = entry.getKey();
-                long expiry = entry.getValue();
-                if (expiry == Long.MAX_VALUE) continue; // indefinite
-
-                long timeLeft = expiry - now;
-                // Renew if less than 25% of lease remaining or less than 60s
-                if (timeLeft < (leaseDuration * 1000L) / 4 || timeLeft < 60000) {
-                    boolean ok = upnp.openPortTCP(extPort, Config.INTERNAL_PORT.get(), localIP, "PortBridge-Minecraft", (int) leaseDuration);
-                    if (ok) {
-                        long newExpiry = System.currentTimeMillis() + (leaseDuration * 1000L);
-                        mappedPortsExpiry.put(extPort, newExpiry);
-                        if (Config.DEBUG_LOGGING.get()) {
-                            LOGGER.debug("[PortBridge] Renewed mapping for port {} newExpiry={}", extPort, newExpiry);
-                        }
-                    } else {
-                        LOGGER.warn("[PortBridge] Failed to renew mapping for port {}", extPort);
+            renewed = true;
+            for (PortMappingEntry pe : due) {
+                int extPort = pe.externalPort;
+                PortBridgeEvents.LeaseRenewal event = new PortBridgeEvents.LeaseRenewal();
+                event.begin();
+                long start = System.nanoTime();
+                boolean ok = upnp.openPortTCP(pe.externalPort, pe.internalPort, localIP, description(pe), (int) leaseDuration);
+                long tookMs = (System.nanoTime() - start) / 1_000_000;
+                if (event.shouldCommit()) {
+                    event.externalPort = extPort;
+                    event.lease = leaseDuration;
+                    event.success = ok;
+                    event.commit();
+                }
+                if (ok) {
+                    EventLog.record(EventLog.Type.UPNP_RENEWED, extPort, leaseDuration, 0, tookMs);
+                    long newExpiry = System.currentTimeMillis() + (leaseDuration * 1000L);
+                    mappedPortsExpiry.put(extPort, newExpiry);
+                    if (Config.DEBUG_LOGGING.get()) {
+                        LOGGER.debug("[PortBridge] Renewed mapping for port {} newExpiry={}", extPort, newExpiry);
                     }
+                } else {
+                    renewed = false;
+                    EventLog.record(EventLog.Type.UPNP_RENEW_FAILED, extPort, 0, upnp.getLastErrorCode(), tookMs);
+                    LOGGER.warn("[PortBridge] Failed to renew mapping for port {}", extPort);
                 }
             }
         } catch (Exception e) {
+            renewed = false;
             LOGGER.error("[PortBridge] Error refreshing UPnP mapping", e);
+        } finally {
+            // A failed renewal leaves the lease running out; the next refresh tries again
+            transition(State.RENEWING, renewed ? State.ACTIVE : State.DEGRADED);
         }
     }
 
@@ -257,28 +362,49 @@ public class UPnPExposureService extends ExposureService {
     }
 
     @Override
-    public void stop() {
-        active = false;
-        executor.submit(() -> {
-            try {
-                if (upnp != null && !mappedPortsExpiry.isEmpty()) {
-                    for (Integer ext : mappedPortsExpiry.keySet()) {
-                        try {
-                            upnp.closePortTCP(ext);
-                            if (Config.DEBUG_LOGGING.get()) {
-                                LOGGER.debug("[PortBridge] Removed mapping for port {}", ext);
-                            }
-                        } catch (Exception ex) {
-                            LOGGER.warn("[PortBridge] Error removing mapping for port {}", ext, ex);
-                        }
+    protected void onStop(boolean releaseMappings) {
+        if (wanWatcher != null) {
+            wanWatcher.stop();
+            wanWatcher = null;
+        }
+        if (!releaseMappings) {
+            // Left on the router to expire with their lease. The winner may share these
+            // entries, so they must not come back as orphans for the next start to delete.
+            if (journal != null) {
+                mappedPortsExpiry.keySet().forEach(journal::removed);
+            }
+            mappedPortsExpiry.clear();
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(Config.SHUTDOWN_TIMEOUT.get());
+        executor.submit(() -> removeMappings(deadline));
+    }
+
+    private void removeMappings(long deadlineNanos) {
+        SimpleUPnP gateway = upnp;
+        if (gateway == null || mappedPortsExpiry.isEmpty()) return;
+        try {
+            java.util.List<Integer> ports = new java.util.ArrayList<>(mappedPortsExpiry.keySet());
+            java.util.List<Integer> left = gateway.closePortsTCP(ports, deadlineNanos);
+            for (Integer port : ports) {
+                if (!left.contains(port)) {
+                    mappedPortsExpiry.remove(port);
+                    if (journal != null) {
+                        journal.removed(port);
+                    }
+                    if (Config.DEBUG_LOGGING.get()) {
+                        LOGGER.debug("[PortBridge] Removed mapping for port {}", port);
                     }
-                    mappedPortsExpiry.clear();
-                    LOGGER.info("[PortBridge] UPnP port mappings removed");
                 }
-            } catch (Exception e) {
-                LOGGER.error("[PortBridge] Error closing UPnP mapping", e);
             }
-        });
+            if (left.isEmpty()) {
+                LOGGER.info("[PortBridge] UPnP port mappings removed");
+            } else {
+                LOGGER.warn("[PortBridge] Could not remove UPnP mappings for ports {}; they expire with their lease", left);
+            }
+        } catch (Exception e) {
+            LOGGER.error("[PortBridge] Error closing UPnP mapping", e);
+        }
     }
 
     // Diagnostics helpers
@@ -300,15 +426,42 @@ public class UPnPExposureService extends ExposureService {
         return out;
     }
 
+    /**
+     * Live view of external port to lease expiry (epoch millis, Long.MAX_VALUE if indefinite).
+     */
+    public java.util.Map<Integer, Long> getLeaseExpiries() {
+        return java.util.Collections.unmodifiableMap(mappedPortsExpiry);
+    }
+
     public String getLastWanIp() {
         return lastWanIp;
     }
 
-    public void shutdown() {
+    /**
+     * Stops the service and queues removal of its mappings without waiting.
+     */
+    public void beginShutdown(long deadlineNanos) {
         stop();
+        // Also retries anything an earlier stop could not remove; a no-op once the map is empty
+        executor.submit(() -> removeMappings(deadlineNanos));
+        executor.shutdown();
+    }
+
+    /**
+     * Waits for the removals queued by {@link #beginShutdown} until the deadline
+     * and returns the mappings that are still on the router.
+     */
+    public java.util.List<String> awaitShutdown(long deadlineNanos) {
+        try {
+            executor.awaitTermination(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         executor.shutdownNow();
-        if (ipResolver != null) {
-            ipResolver.shutdown();
+        java.util.List<String> left = new java.util.ArrayList<>();
+        for (Integer port : mappedPortsExpiry.keySet()) {
+            left.add("UPnP TCP " + port);
         }
+        return left;
     }
 }
@@ -0,0 +1,65 @@
+package com.darsh.portbridge.exposure;
+
+import com.darsh.portbridge.Config;
+import com.darsh.portbridge.PortBridge;
+import com.darsh.portbridge.PublicIPResolver;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Polls the gateway's WAN address and reports changes. Each poll is one request
+ * to an already discovered gateway, so it is cheap enough to run every 30 seconds.
+ */
+final class WanAddressWatcher {
+    interface ChangeHandler {
+        void onChange(String oldIp, String newIp);
+    }
+
+    private final Supplier<String> source;
+    private final ChangeHandler handler;
+    private volatile String lastIp;
+    private ScheduledFuture<?> task;
+
+    WanAddressWatcher(Supplier<String> source, String initialIp, ChangeHandler handler) {
+        this.source = source;
+        this.lastIp = initialIp;
+        this.handler = handler;
+    }
+
+    /**
+     * Schedules polling and returns the task, or null if watching is disabled.
+     */
+    ScheduledFuture<?> start(ScheduledExecutorService executor) {
+        stop();
+        int interval = Config.WAN_WATCH_INTERVAL.get();
+        if (interval <= 0) return null;
+        task = executor.scheduleWithFixedDelay(this::poll, interval, interval, TimeUnit.SECONDS);
+        return task;
+    }
+
+    void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    void poll() {
+        try {
+            String ip = source.get();
+            if (!PublicIPResolver.isValidIP(ip) || ip.equals(lastIp)) return;
+            String old = lastIp;
+            lastIp = ip;
+            PortBridge.LOGGER.info("[PortBridge] WAN address changed: {} -> {}", old, ip);
+            handler.onChange(old, ip);
+        } catch (Exception e) {
+            PortBridge.LOGGER.debug("[PortBridge] WAN address check failed", e);
+        }
+    }
+
+    String getLastIp() {
+        return lastIp;
+    }
+}
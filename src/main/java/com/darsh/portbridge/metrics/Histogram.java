@@ -0,0 +1,44 @@
+package com.darsh.portbridge.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket histogram in the Prometheus layout. Recording and scraping are
+ * lock-free; a scrape may see an observation in one bucket before the sum.
+ */
+public final class Histogram {
+    private final double[] bounds;
+    private final AtomicLongArray buckets;
+    private final DoubleAdder sum = new DoubleAdder();
+    private final LongAdder count = new LongAdder();
+
+    public Histogram(double... bounds) {
+        this.bounds = bounds.clone();
+        this.buckets = new AtomicLongArray(bounds.length);
+    }
+
+    public void observe(double value) {
+        for (int i = 0; i < bounds.length; i++) {
+            if (value <= bounds[i]) {
+                buckets.incrementAndGet(i);
+                break;
+            }
+        }
+        sum.add(value);
+        count.increment();
+    }
+
+    void write(StringBuilder out, String name) {
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += buckets.get(i);
+            out.append(name).append("_bucket{le=\"").append(bounds[i]).append("\"} ").append(cumulative).append('\n');
+        }
+        long total = count.sum();
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(Math.max(total, cumulative)).append('\n');
+        out.append(name).append("_sum ").append(sum.sum()).append('\n');
+        out.append(name).append("_count ").append(total).append('\n');
+    }
+}
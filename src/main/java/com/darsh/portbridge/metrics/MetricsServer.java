@@ -0,0 +1,172 @@
+package com.darsh.portbridge.metrics;
+
+import com.darsh.portbridge.Config;
+import com.darsh.portbridge.PortBridge;
+import com.darsh.portbridge.exposure.ExposureManager;
+import com.darsh.portbridge.exposure.NatPmpExposureService;
+import com.darsh.portbridge.exposure.TunnelExposureService;
+import com.darsh.portbridge.exposure.UPnPExposureService;
+import com.darsh.portbridge.tunnel.AdmissionController;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves {@code /metrics} in the Prometheus text format from the JDK's built-in
+ * HTTP server, on its own thread. A scrape only reads volatile fields and
+ * atomic counters, so it never blocks forwarding.
+ */
+public class MetricsServer {
+    private static final Logger LOGGER = PortBridge.LOGGER;
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final ExposureManager exposureManager;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public MetricsServer(ExposureManager exposureManager) {
+        this.exposureManager = exposureManager;
+    }
+
+    public boolean start() {
+        String bind = Config.METRICS_BIND.get();
+        try {
+            InetSocketAddress address = parseBind(bind);
+            server = HttpServer.create(address, 0);
+            executor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "PortBridge-Metrics");
+                t.setDaemon(true);
+                return t;
+            });
+            server.setExecutor(executor);
+            server.createContext("/metrics", this::handle);
+            server.start();
+            LOGGER.info("[PortBridge] Metrics endpoint listening on http://{}/metrics", bind);
+            return true;
+        } catch (Exception e) {
+            LOGGER.error("[PortBridge] Could not start metrics endpoint on {}", bind, e);
+            stop();
+            return false;
+        }
+    }
+
+    private static InetSocketAddress parseBind(String bind) {
+        int colon = bind.lastIndexOf(':');
+        if (colon < 0) {
+            return new InetSocketAddress(Integer.parseInt(bind.trim()));
+        }
+        String host = bind.substring(0, colon).replace("[", "").replace("]", "");
+        return new InetSocketAddress(host, Integer.parseInt(bind.substring(colon + 1).trim()));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    String render() {
+        StringBuilder sb = new StringBuilder(2048);
+
+        header(sb, "portbridge_exposed", "gauge", "1 if the server is reachable from the internet");
+        sample(sb, "portbridge_exposed", exposureManager.isExposed() ? 1 : 0);
+        header(sb, "portbridge_exposure_method", "gauge", "Active exposure method");
+        String method = exposureManager.getExposureMethod();
+        sb.append("portbridge_exposure_method{method=\"").append(escape(method)).append("\"} 1\n");
+
+        UPnPExposureService upnp = exposureManager.getUPnPService();
+        NatPmpExposureService natPmp = exposureManager.getNatPmpService();
+        int mapped = (upnp != null ? upnp.getLeaseExpiries().size() : 0) + (natPmp != null ? natPmp.getMappingCount() : 0);
+        header(sb, "portbridge_mapped_ports", "gauge", "Port mappings held on the gateway (UPnP and NAT-PMP)");
+        sample(sb, "portbridge_mapped_ports", mapped);
+        if (upnp != null) {
+            header(sb, "portbridge_upnp_lease_remaining_seconds", "gauge", "Time left on each UPnP lease (-1 = indefinite)");
+            long now = System.currentTimeMillis();
+            for (Map.Entry<Integer, Long> e : upnp.getLeaseExpiries().entrySet()) {
+                long left = e.getValue() == Long.MAX_VALUE ? -1 : Math.max(0, (e.getValue() - now) / 1000);
+                sb.append("portbridge_upnp_lease_remaining_seconds{port=\"").append(e.getKey()).append("\"} ").append(left).append('\n');
+            }
+        }
+
+        TunnelExposureService tunnel = exposureManager.getTunnelService();
+        header(sb, "portbridge_tunnel_connected", "gauge", "1 while the relay connection is up");
+        sample(sb, "portbridge_tunnel_connected", tunnel != null && "CONNECTED".equals(tunnel.getStatus()) ? 1 : 0);
+        header(sb, "portbridge_tunnel_streams_active", "gauge", "Open tunnelled player connections");
+        sample(sb, "portbridge_tunnel_streams_active", tunnel != null ? tunnel.getActiveStreams() : 0);
+
+        header(sb, "portbridge_tunnel_received_bytes_total", "counter", "Bytes received from the relay");
+        sample(sb, "portbridge_tunnel_received_bytes_total", PortBridgeMetrics.TUNNEL_BYTES_IN.sum());
+        header(sb, "portbridge_tunnel_sent_bytes_total", "counter", "Bytes sent to the relay");
+        sample(sb, "portbridge_tunnel_sent_bytes_total", PortBridgeMetrics.TUNNEL_BYTES_OUT.sum());
+        header(sb, "portbridge_tunnel_streams_total", "counter", "Tunnelled player connections opened");
+        sample(sb, "portbridge_tunnel_streams_total", PortBridgeMetrics.TUNNEL_STREAMS_OPENED.sum());
+        header(sb, "portbridge_tunnel_connects_total", "counter", "Successful relay registrations");
+        sample(sb, "portbridge_tunnel_connects_total", PortBridgeMetrics.TUNNEL_CONNECTS.sum());
+        header(sb, "portbridge_tunnel_reconnects_total", "counter", "Scheduled relay reconnect attempts");
+        sample(sb, "portbridge_tunnel_reconnects_total", PortBridgeMetrics.TUNNEL_RECONNECTS.sum());
+        header(sb, "portbridge_tunnel_datagrams_total", "counter", "UDP datagrams forwarded through the tunnel");
+        sb.append("portbridge_tunnel_datagrams_total{direction=\"in\"} ").append(PortBridgeMetrics.TUNNEL_DATAGRAMS_IN.sum()).append('\n');
+        sb.append("portbridge_tunnel_datagrams_total{direction=\"out\"} ").append(PortBridgeMetrics.TUNNEL_DATAGRAMS_OUT.sum()).append('\n');
+        sb.append("portbridge_tunnel_datagrams_total{direction=\"dropped\"} ").append(PortBridgeMetrics.TUNNEL_DATAGRAMS_DROPPED.sum()).append('\n');
+
+        header(sb, "portbridge_tunnel_relay_rtt_seconds", "histogram", "KEEPALIVE to HEARTBEAT round trip");
+        PortBridgeMetrics.RELAY_RTT_SECONDS.write(sb, "portbridge_tunnel_relay_rtt_seconds");
+
+        header(sb, "portbridge_tunnel_admission_total", "counter", "Admission decisions for tunnelled connections");
+        for (AdmissionController.Verdict v : AdmissionController.Verdict.values()) {
+            sb.append("portbridge_tunnel_admission_total{verdict=\"").append(v.name().toLowerCase())
+                    .append("\"} ").append(PortBridgeMetrics.ADMISSION.get(v.ordinal())).append('\n');
+        }
+
+        long ipAge = exposureManager.getIPResolver().getCacheAgeMillis();
+        if (ipAge >= 0) {
+            header(sb, "portbridge_public_ip_age_seconds", "gauge", "Age of the cached public IP");
+            sample(sb, "portbridge_public_ip_age_seconds", ipAge / 1000);
+        }
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, long value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String escape(String value) {
+        if (value == null) return "";
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+}
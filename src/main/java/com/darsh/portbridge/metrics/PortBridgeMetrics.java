@@ -0,0 +1,27 @@
+package com.darsh.portbridge.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters that outlive individual tunnel clients, so exported
+ * counters stay monotonic across reconnects. Updated from the forwarding threads
+ * with striped adders; nothing here takes a lock.
+ */
+public final class PortBridgeMetrics {
+    public static final LongAdder TUNNEL_BYTES_IN = new LongAdder();
+    public static final LongAdder TUNNEL_BYTES_OUT = new LongAdder();
+    public static final LongAdder TUNNEL_STREAMS_OPENED = new LongAdder();
+    public static final LongAdder TUNNEL_CONNECTS = new LongAdder();
+    public static final LongAdder TUNNEL_RECONNECTS = new LongAdder();
+    public static final LongAdder TUNNEL_DATAGRAMS_IN = new LongAdder();
+    public static final LongAdder TUNNEL_DATAGRAMS_OUT = new LongAdder();
+    public static final LongAdder TUNNEL_DATAGRAMS_DROPPED = new LongAdder();
+    public static final Histogram RELAY_RTT_SECONDS = new Histogram(0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5);
+
+    // Indexed by AdmissionController.Verdict ordinal
+    public static final AtomicLongArray ADMISSION = new AtomicLongArray(8);
+
+    private PortBridgeMetrics() {
+    }
+}
@@ -0,0 +1,311 @@
+package com.darsh.portbridge.tunnel;
+
+import com.darsh.portbridge.Config;
+import com.darsh.portbridge.IPLiterals;
+import com.darsh.portbridge.SubnetSet;
+import com.darsh.portbridge.metrics.PortBridgeMetrics;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides whether a tunnelled connection may reach the local server before any
+ * socket or thread is spent on it. Combines per-IP and per-subnet token buckets
+ * (/24 for IPv4, /64 for IPv6), a global cap on open connections and a cap on
+ * connections still waiting for the server's first response.
+ *
+ * {@link #admit} is called from the relay reader thread only; the release
+ * methods may be called from any thread.
+ */
+public class AdmissionController {
+    public enum Verdict {
+        ACCEPT,
+        BLOCKED,
+        IP_RATE,
+        SUBNET_RATE,
+        TOO_MANY_CONNECTIONS,
+        TOO_MANY_PENDING
+    }
+
+    private static final long V4_MAPPED_PREFIX = 0x0000ffff00000000L;
+    private static final long V4_SUBNET_MASK = 0xffffffffffffff00L; // /24
+    private static final int TABLE_SIZE = 4096;
+
+    // Limits can be changed by a config reload while connections are open
+    private volatile boolean enabled;
+    private volatile int maxConnections;
+    private volatile int maxPending;
+    private volatile long penaltyNanos;
+    private volatile SubnetSet exempt;
+    private volatile RateTable perIp;
+    private volatile RateTable perSubnet;
+
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLongArray counts = new AtomicLongArray(Verdict.values().length);
+
+    public AdmissionController() {
+        reconfigure();
+    }
+
+    // Rates are per minute, the penalty in seconds
+    AdmissionController(int ipRate, int ipBurst, int subnetRate, int subnetBurst, int maxConnections,
+                        int maxPending, long penaltySeconds, SubnetSet exempt) {
+        configure(true, ipRate, ipBurst, subnetRate, subnetBurst, maxConnections, maxPending, penaltySeconds, exempt);
+    }
+
+    /**
+     * Re-reads the limits from config. Open and pending counts carry over, so
+     * connections already admitted are unaffected; rate buckets start fresh only
+     * if their rate or burst changed.
+     */
+    public void reconfigure() {
+        configure(Config.TUNNEL_ADMISSION_ENABLED.get(),
+                Config.TUNNEL_ADMISSION_IP_RATE.get(), Config.TUNNEL_ADMISSION_IP_BURST.get(),
+                Config.TUNNEL_ADMISSION_SUBNET_RATE.get(), Config.TUNNEL_ADMISSION_SUBNET_BURST.get(),
+                Config.TUNNEL_ADMISSION_MAX_CONNECTIONS.get(), Config.TUNNEL_ADMISSION_MAX_PENDING.get(),
+                Config.TUNNEL_ADMISSION_PENALTY.get(), Config.getAdmissionExemptSubnets());
+    }
+
+    private void configure(boolean enabled, int ipRate, int ipBurst, int subnetRate, int subnetBurst,
+                           int maxConnections, int maxPending, long penaltySeconds, SubnetSet exempt) {
+        this.enabled = enabled;
+        this.maxConnections = maxConnections;
+        this.maxPending = maxPending;
+        this.penaltyNanos = penaltySeconds * 1_000_000_000L;
+        this.exempt = exempt;
+        if (perIp == null || !perIp.hasLimits(ipRate, ipBurst)) {
+            this.perIp = new RateTable(TABLE_SIZE, ipRate, ipBurst);
+        }
+        if (perSubnet == null || !perSubnet.hasLimits(subnetRate, subnetBurst)) {
+            this.perSubnet = new RateTable(TABLE_SIZE, subnetRate, subnetBurst);
+        }
+    }
+
+    /**
+     * Admits or rejects a connection from the given source literal (null if the
+     * relay did not send one). An accepted connection counts as open and pending
+     * until {@link #established} and {@link #release} are called.
+     */
+    public Verdict admit(String sourceIp) {
+        return admit(sourceIp, System.nanoTime());
+    }
+
+    Verdict admit(String sourceIp, long now) {
+        Verdict verdict = decide(sourceIp, now);
+        counts.incrementAndGet(verdict.ordinal());
+        PortBridgeMetrics.ADMISSION.incrementAndGet(verdict.ordinal());
+        return verdict;
+    }
+
+    private Verdict decide(String sourceIp, long now) {
+        if (!enabled) {
+            open.incrementAndGet();
+            pending.incrementAndGet();
+            return Verdict.ACCEPT;
+        }
+
+        RateTable perIp = this.perIp;
+        RateTable perSubnet = this.perSubnet;
+        byte[] raw = IPLiterals.parse(sourceIp);
+        boolean limited = raw != null && !exempt.contains(raw);
+        long hi = 0;
+        long lo = 0;
+        if (limited) {
+            if (raw.length == 4) {
+                lo = V4_MAPPED_PREFIX | (toInt(raw, 0) & 0xffffffffL);
+            } else {
+                hi = toLong(raw, 0);
+                lo = toLong(raw, 8);
+            }
+        }
+
+        if (limited && perIp.isBlocked(hi, lo, now)) {
+            return Verdict.BLOCKED;
+        }
+        if (open.get() >= maxConnections) {
+            return Verdict.TOO_MANY_CONNECTIONS;
+        }
+        if (pending.get() >= maxPending) {
+            return Verdict.TOO_MANY_PENDING;
+        }
+        if (limited) {
+            // Per IP first, so one source over its own limit cannot drain its neighbours' subnet bucket
+            if (!perIp.tryAcquire(hi, lo, now)) {
+                // Repeat offenders are turned away by the cheap blocked check until the penalty ends
+                perIp.block(hi, lo, now, now + penaltyNanos);
+                return Verdict.IP_RATE;
+            }
+            boolean v4 = raw.length == 4;
+            long subnetHi = v4 ? 0 : hi;
+            long subnetLo = v4 ? lo & V4_SUBNET_MASK : 0;
+            if (!perSubnet.tryAcquire(subnetHi, subnetLo, now)) {
+                return Verdict.SUBNET_RATE;
+            }
+        }
+
+        open.incrementAndGet();
+        pending.incrementAndGet();
+        return Verdict.ACCEPT;
+    }
+
+    /**
+     * The local server answered an admitted connection; it no longer counts as pending.
+     */
+    public void established() {
+        pending.decrementAndGet();
+    }
+
+    /**
+     * An admitted connection closed; {@code wasPending} if it never reached {@link #established}.
+     */
+    public void release(boolean wasPending) {
+        open.decrementAndGet();
+        if (wasPending) {
+            pending.decrementAndGet();
+        }
+    }
+
+    public int getOpenConnections() {
+        return open.get();
+    }
+
+    public int getPendingConnections() {
+        return pending.get();
+    }
+
+    public long getCount(Verdict verdict) {
+        return counts.get(verdict.ordinal());
+    }
+
+    public long getRejectedCount() {
+        long total = 0;
+        for (Verdict v : Verdict.values()) {
+            if (v != Verdict.ACCEPT) total += counts.get(v.ordinal());
+        }
+        return total;
+    }
+
+    public String getStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("open=").append(open.get()).append(" pending=").append(pending.get());
+        for (Verdict v : Verdict.values()) {
+            long c = counts.get(v.ordinal());
+            if (c > 0) sb.append(' ').append(v.name().toLowerCase()).append('=').append(c);
+        }
+        return sb.toString();
+    }
+
+    private static int toInt(byte[] b, int off) {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+    }
+
+    private static long toLong(byte[] b, int off) {
+        return (toInt(b, off) & 0xffffffffL) << 32 | (toInt(b, off + 4) & 0xffffffffL);
+    }
+
+    /**
+     * Fixed-size open-addressing table of token buckets keyed by 128-bit address.
+     * A bucket that has refilled completely and is not blocked carries no state,
+     * so its slot counts as free; when a probe window is full the least recently
+     * touched slot is evicted. Memory stays bounded however many sources show up.
+     */
+    static final class RateTable {
+        private static final int PROBE_LIMIT = 8;
+
+        private final int mask;
+        private final long[] keyHi;
+        private final long[] keyLo;
+        private final float[] tokens;
+        private final long[] touched;
+        private final long[] blockedUntil;
+        private final boolean[] used;
+        private final double tokensPerNano;
+        private final float burst;
+        private final long refillNanos;
+        private final int perMinute;
+
+        RateTable(int size, int perMinute, int burst) {
+            this.perMinute = perMinute;
+            this.mask = size - 1;
+            this.keyHi = new long[size];
+            this.keyLo = new long[size];
+            this.tokens = new float[size];
+            this.touched = new long[size];
+            this.blockedUntil = new long[size];
+            this.used = new boolean[size];
+            this.tokensPerNano = perMinute / 60e9;
+            this.burst = burst;
+            this.refillNanos = (long) (burst / tokensPerNano);
+        }
+
+        boolean hasLimits(int perMinute, int burst) {
+            return this.perMinute == perMinute && this.burst == burst;
+        }
+
+        boolean tryAcquire(long hi, long lo, long now) {
+            int slot = slot(hi, lo, now);
+            float available = (float) Math.min(burst, tokens[slot] + (now - touched[slot]) * tokensPerNano);
+            touched[slot] = now;
+            if (available < 1f) {
+                tokens[slot] = available;
+                return false;
+            }
+            tokens[slot] = available - 1f;
+            return true;
+        }
+
+        boolean isBlocked(long hi, long lo, long now) {
+            int i = find(hi, lo);
+            return i >= 0 && blockedUntil[i] - now > 0;
+        }
+
+        void block(long hi, long lo, long now, long until) {
+            blockedUntil[slot(hi, lo, now)] = until;
+        }
+
+        private int find(long hi, long lo) {
+            int start = hash(hi, lo);
+            for (int p = 0; p < PROBE_LIMIT; p++) {
+                int i = (start + p) & mask;
+                if (used[i] && keyHi[i] == hi && keyLo[i] == lo) return i;
+            }
+            return -1;
+        }
+
+        // Finds the key's slot, claiming an idle or the stalest slot in the probe window if absent
+        private int slot(long hi, long lo, long now) {
+            int start = hash(hi, lo);
+            int victim = -1;
+            boolean victimFree = false;
+            for (int p = 0; p < PROBE_LIMIT; p++) {
+                int i = (start + p) & mask;
+                if (used[i] && keyHi[i] == hi && keyLo[i] == lo) return i;
+                if (!used[i] || isIdle(i, now)) {
+                    if (!victimFree) {
+                        victim = i;
+                        victimFree = true;
+                    }
+                } else if (!victimFree && (victim < 0 || touched[i] - touched[victim] < 0)) {
+                    victim = i;
+                }
+            }
+            used[victim] = true;
+            keyHi[victim] = hi;
+            keyLo[victim] = lo;
+            tokens[victim] = burst;
+            touched[victim] = now;
+            blockedUntil[victim] = now;
+            return victim;
+        }
+
+        private boolean isIdle(int i, long now) {
+            return now - touched[i] >= refillNanos && blockedUntil[i] - now <= 0;
+        }
+
+        private int hash(long hi, long lo) {
+            long h = (hi * 0x9E3779B97F4A7C15L) ^ (lo * 0xC2B2AE3D27D4EB4FL);
+            h ^= h >>> 29;
+            return (int) h & mask;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.darsh.portbridge.tunnel;
+
+import com.darsh.portbridge.Config;
+
+/**
+ * Decides when the relay link needs a KEEPALIVE. Anything received from the
+ * relay proves the path is alive and refreshes the NAT entry, so no keepalive
+ * is sent while traffic comes in. Once the link is idle, the interval starts at
+ * the configured floor and grows after each answered probe, to find how long
+ * the NAT or relay really keeps an idle connection. When a probe goes
+ * unanswered after a longer idle gap than any that worked, that gap is taken as
+ * the limit and the interval settles just under it. What was learned outlives
+ * reconnects, since it describes the network path rather than one connection.
+ *
+ * A dead peer is noticed at most one interval plus the probe timeout after the
+ * last thing it sent. {@link #tick} runs on one timer thread; {@link #onInbound}
+ * may be called from any thread.
+ */
+public final class KeepaliveController {
+    // Each answered probe lets the next idle gap be this much longer
+    private static final double GROWTH = 1.5;
+    // Settle this far under a learned limit, to leave room for jitter in the NAT's timer
+    private static final double SETTLE_FRACTION = 0.8;
+
+    private volatile long floorNanos;
+    private volatile long ceilingNanos;
+    private volatile long timeoutNanos;
+    private volatile long intervalNanos;
+    // Longest idle gap after which a probe was answered, and shortest after which one was not
+    private long longestGoodIdle;
+    private long learnedLimit = Long.MAX_VALUE;
+
+    // Per connection
+    private volatile long lastInbound;
+    private long probeSentAt;
+    private long probeIdle;
+
+    public KeepaliveController() {
+        configure();
+    }
+
+    KeepaliveController(long floorSeconds, long ceilingSeconds, long timeoutSeconds) {
+        configure(floorSeconds, ceilingSeconds, timeoutSeconds);
+    }
+
+    /**
+     * Re-reads floor, ceiling and timeout; the current interval is clamped into the new range.
+     */
+    public void configure() {
+        configure(Config.TUNNEL_KEEPALIVE_INTERVAL.get(), Config.TUNNEL_KEEPALIVE_MAX.get(),
+                Config.TUNNEL_KEEPALIVE_TIMEOUT.get());
+    }
+
+    void configure(long floorSeconds, long ceilingSeconds, long timeoutSeconds) {
+        long floor = floorSeconds * 1_000_000_000L;
+        long ceiling = Math.max(floor, ceilingSeconds * 1_000_000_000L);
+        floorNanos = floor;
+        ceilingNanos = ceiling;
+        timeoutNanos = timeoutSeconds * 1_000_000_000L;
+        intervalNanos = Math.max(floor, Math.min(ceiling, intervalNanos));
+    }
+
+    /**
+     * A new connection starts with a fresh idle clock and no probe outstanding.
+     */
+    synchronized void connected(long now) {
+        lastInbound = now;
+        probeSentAt = 0;
+    }
+
+    /**
+     * Something arrived from the relay.
+     */
+    void onInbound(long now) {
+        lastInbound = now;
+    }
+
+    /**
+     * Runs the keepalive state machine. Calls {@code sendProbe} when a KEEPALIVE
+     * is due and returns the nanoseconds until the next call, or -1 once the peer
+     * is considered dead.
+     */
+    synchronized long tick(long now, Runnable sendProbe) {
+        long inbound = lastInbound;
+        if (probeSentAt != 0) {
+            if (inbound > probeSentAt) {
+                probeAnswered();
+            } else if (now - probeSentAt >= timeoutNanos) {
+                probeLost();
+                return -1;
+            } else {
+                return probeSentAt + timeoutNanos - now;
+            }
+        }
+
+        long idle = now - inbound;
+        if (idle < intervalNanos) {
+            // Traffic kept the link alive; look again when it would have gone idle
+            return intervalNanos - idle;
+        }
+        probeSentAt = now;
+        probeIdle = idle;
+        sendProbe.run();
+        return timeoutNanos;
+    }
+
+    private void probeAnswered() {
+        probeSentAt = 0;
+        longestGoodIdle = Math.max(longestGoodIdle, probeIdle);
+        long next = (long) (intervalNanos * GROWTH);
+        if (learnedLimit != Long.MAX_VALUE) {
+            next = Math.min(next, (long) (learnedLimit * SETTLE_FRACTION));
+        }
+        intervalNanos = Math.max(floorNanos, Math.min(ceilingNanos, next));
+    }
+
+    private void probeLost() {
+        probeSentAt = 0;
+        // A loss within a gap that already worked says nothing about the NAT timeout
+        if (probeIdle > longestGoodIdle) {
+            learnedLimit = Math.min(learnedLimit, probeIdle);
+            intervalNanos = Math.max(floorNanos, Math.min(ceilingNanos, (long) (learnedLimit * SETTLE_FRACTION)));
+        }
+    }
+
+    public synchronized String getStats() {
+        return String.format("interval=%ds longestIdle=%ds limit=%s",
+                intervalNanos / 1_000_000_000L, longestGoodIdle / 1_000_000_000L,
+                learnedLimit == Long.MAX_VALUE ? "unknown" : learnedLimit / 1_000_000_000L + "s");
+    }
+}
@@ -0,0 +1,196 @@
+package com.darsh.portbridge.tunnel;
+
+import com.darsh.portbridge.Config;
+import com.darsh.portbridge.PortBridge;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps a few connections to the local server open so a tunnelled player can be
+ * bound to one immediately. Idle sockets are checked for a close from the server
+ * before use and replaced well before the vanilla 30 second read timeout.
+ *
+ * {@link #poll} is called from the relay reader thread only.
+ */
+public class LocalConnectionPool {
+    private static final Logger LOGGER = PortBridge.LOGGER;
+    private static final long MAINTENANCE_INTERVAL_MS = 2000;
+
+    private final InetSocketAddress target;
+    private final int size;
+    private final int connectTimeoutMs;
+    private final long maxIdleNanos;
+    private final ConcurrentLinkedDeque<Warm> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final ScheduledExecutorService executor;
+    private volatile boolean closed;
+    // Written by the relay reader thread only, read by stats from any thread
+    private volatile long hits;
+    private volatile long misses;
+
+    private static final class Warm {
+        final SocketChannel channel;
+        final long createdAt;
+
+        Warm(SocketChannel channel, long createdAt) {
+            this.channel = channel;
+            this.createdAt = createdAt;
+        }
+    }
+
+    public LocalConnectionPool(int localPort) {
+        this(localPort, Config.TUNNEL_LOCAL_POOL_SIZE.get(), Config.TUNNEL_LOCAL_CONNECT_TIMEOUT.get(),
+                Config.TUNNEL_LOCAL_POOL_MAX_IDLE.get());
+    }
+
+    LocalConnectionPool(int localPort, int size, int connectTimeoutMs, long maxIdleSeconds) {
+        this.target = new InetSocketAddress("127.0.0.1", localPort);
+        this.size = size;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.maxIdleNanos = TimeUnit.SECONDS.toNanos(maxIdleSeconds);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "PortBridge-LocalPool");
+            t.setDaemon(true);
+            return t;
+        });
+        if (size > 0) {
+            executor.scheduleWithFixedDelay(this::maintain, 0, MAINTENANCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns a healthy pre-connected socket, or null if none is ready. Never blocks.
+     */
+    public Socket poll() {
+        Warm warm;
+        while ((warm = idle.pollFirst()) != null) {
+            if (isUsable(warm, System.nanoTime())) {
+                try {
+                    warm.channel.configureBlocking(true);
+                    hits++;
+                    requestRefill();
+                    return warm.channel.socket();
+                } catch (IOException e) {
+                    closeQuietly(warm.channel);
+                }
+            } else {
+                closeQuietly(warm.channel);
+            }
+        }
+        misses++;
+        requestRefill();
+        return null;
+    }
+
+    /**
+     * Connects a fresh socket with the configured timeout, for when the pool is empty.
+     */
+    public Socket connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(target, connectTimeoutMs);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void requestRefill() {
+        if (size > 0 && !closed && refilling.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                try {
+                    refill();
+                } finally {
+                    refilling.set(false);
+                }
+            });
+        }
+    }
+
+    private void maintain() {
+        long now = System.nanoTime();
+        for (Iterator<Warm> it = idle.iterator(); it.hasNext(); ) {
+            Warm warm = it.next();
+            // Age only: probing here could race with poll() handing the same socket out
+            if (isExpired(warm, now) && idle.remove(warm)) {
+                closeQuietly(warm.channel);
+            }
+        }
+        refill();
+    }
+
+    private void refill() {
+        while (!closed && idle.size() < size) {
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().connect(target, connectTimeoutMs);
+                // Non-blocking while idle so the health check can probe for EOF without waiting
+                channel.configureBlocking(false);
+                idle.addLast(new Warm(channel, System.nanoTime()));
+            } catch (IOException e) {
+                closeQuietly(channel);
+                if (Config.DEBUG_LOGGING.get()) {
+                    LOGGER.debug("[PortBridge] Could not pre-connect to local server: {}", e.getMessage());
+                }
+                return;
+            }
+        }
+    }
+
+    private boolean isExpired(Warm warm, long now) {
+        return now - warm.createdAt > maxIdleNanos || !warm.channel.isConnected();
+    }
+
+    // Caller must own the socket (already removed from the idle queue)
+    private boolean isUsable(Warm warm, long now) {
+        if (isExpired(warm, now)) {
+            return false;
+        }
+        try {
+            // The server never speaks first, so any readable byte or EOF means the socket is dead
+            return warm.channel.read(ByteBuffer.allocate(1)) == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public String getStats() {
+        return "idle=" + idle.size() + "/" + size + " hits=" + hits + " misses=" + misses;
+    }
+
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+        Warm warm;
+        while ((warm = idle.pollFirst()) != null) {
+            closeQuietly(warm.channel);
+        }
+    }
+}
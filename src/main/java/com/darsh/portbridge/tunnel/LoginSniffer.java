@@ -0,0 +1,135 @@
+package com.darsh.portbridge.tunnel;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the player's name and UUID from the first bytes a client sends: the
+ * Handshake packet and, for logins, the Login Start packet that follows. Both
+ * are sent before compression or encryption is enabled, so their framing is
+ * plain VarInt-length packets. Status pings and anything unparseable end the
+ * sniff without a result.
+ */
+final class LoginSniffer {
+    // Handshake (host up to 255 chars) plus Login Start fit well inside this
+    private static final int MAX_BYTES = 1024;
+    private static final int STATE_LOGIN = 2;
+    private static final int STATE_TRANSFER = 3;
+    private static final int MAX_NAME_BYTES = 16 * 3;
+    private static final int NEED_MORE = 0;
+    private static final int FINISHED = 1;
+
+    private byte[] buffer = new byte[256];
+    private int length;
+    private int pos;
+    private boolean done;
+
+    String name;
+    long uuidMost;
+    long uuidLeast;
+
+    /**
+     * Feeds the next bytes from the client. Returns true once the sniff is over,
+     * whether or not a player was found ({@link #name} is null if not).
+     */
+    boolean feed(byte[] data, int offset, int count) {
+        if (done) return true;
+        int take = Math.min(count, MAX_BYTES - length);
+        if (length + take > buffer.length) {
+            byte[] grown = new byte[Math.min(MAX_BYTES, Math.max(buffer.length * 2, length + take))];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+        System.arraycopy(data, offset, buffer, length, take);
+        length += take;
+
+        int result = parse();
+        if (result != NEED_MORE || length >= MAX_BYTES) {
+            done = true;
+            buffer = null;
+        }
+        return done;
+    }
+
+    private int parse() {
+        pos = 0;
+        // Pre-1.7 server list ping; never a login
+        if (buffer[0] == (byte) 0xFE) return FINISHED;
+        try {
+            // Handshake: id 0x00, protocol, host, port, next state
+            int handshakeEnd = packetStart();
+            if (handshakeEnd < 0) return NEED_MORE;
+            if (readVarInt(handshakeEnd) != 0x00) return FINISHED;
+            readVarInt(handshakeEnd);
+            skipString(handshakeEnd, 255 * 3);
+            pos += 2;
+            int nextState = readVarInt(handshakeEnd);
+            if (nextState != STATE_LOGIN && nextState != STATE_TRANSFER) return FINISHED;
+            pos = handshakeEnd;
+
+            // Login Start: id 0x00, name, UUID
+            int loginEnd = packetStart();
+            if (loginEnd < 0) return NEED_MORE;
+            if (readVarInt(loginEnd) != 0x00) return FINISHED;
+            int nameLength = readVarInt(loginEnd);
+            if (nameLength <= 0 || nameLength > MAX_NAME_BYTES || pos + nameLength > loginEnd) return FINISHED;
+            String parsedName = new String(buffer, pos, nameLength, StandardCharsets.UTF_8);
+            pos += nameLength;
+            if (loginEnd - pos < 16) return FINISHED;
+            uuidMost = readLong();
+            uuidLeast = readLong();
+            name = parsedName;
+            return FINISHED;
+        } catch (IllegalStateException e) {
+            return FINISHED;
+        }
+    }
+
+    // Reads a packet length prefix; returns the end offset, or -1 if the packet is incomplete
+    private int packetStart() {
+        int start = pos;
+        int packetLength = readVarIntOrIncomplete();
+        if (packetLength == Integer.MIN_VALUE) {
+            pos = start;
+            return -1;
+        }
+        if (packetLength <= 0 || packetLength > MAX_BYTES) throw new IllegalStateException();
+        int end = pos + packetLength;
+        return end <= length ? end : -1;
+    }
+
+    private int readVarIntOrIncomplete() {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (pos >= length) return Integer.MIN_VALUE;
+            byte b = buffer[pos++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalStateException();
+    }
+
+    private int readVarInt(int limit) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (pos >= limit) throw new IllegalStateException();
+            byte b = buffer[pos++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalStateException();
+    }
+
+    private void skipString(int limit, int maxBytes) {
+        int stringLength = readVarInt(limit);
+        if (stringLength < 0 || stringLength > maxBytes || pos + stringLength > limit) throw new IllegalStateException();
+        pos += stringLength;
+    }
+
+    private long readLong() {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[pos++] & 0xff);
+        }
+        return value;
+    }
+}
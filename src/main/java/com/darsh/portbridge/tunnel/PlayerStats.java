@@ -0,0 +1,235 @@
+package com.darsh.portbridge.tunnel;
+
+import com.darsh.portbridge.Config;
+import com.darsh.portbridge.PortBridge;
+import org.slf4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Tunnel traffic per Minecraft profile, for bandwidth accounting. Players live
+ * in an open-addressed table keyed by UUID; a stream looks its player up once
+ * at login and afterwards updates counters by slot index, so the per-read cost
+ * is one atomic add. Entries are kept for the life of the server. Once the
+ * table is full, new players are counted only as {@link #getUntracked}.
+ */
+public class PlayerStats {
+    private static final Logger LOGGER = PortBridge.LOGGER;
+
+    // Counter layout per slot in the shared array
+    private static final int BYTES_IN = 0;
+    private static final int BYTES_OUT = 1;
+    private static final int READS_IN = 2;
+    private static final int READS_OUT = 3;
+    private static final int SESSIONS = 4;
+    private static final int ACTIVE = 5;
+    private static final int LATENCY_SUM = 6;
+    private static final int LATENCY_COUNT = 7;
+    private static final int LATENCY_MAX = 8;
+    private static final int FIELDS = 9;
+
+    // Rollup file: per rollup a header, then one record per player with traffic since the last rollup
+    private static final int ROLLUP_MAGIC = 0x50425053; // "PBPS"
+
+    private final int mask;
+    private final long[] uuidMost;
+    private final long[] uuidLeast;
+    // A non-null name publishes the slot's key
+    private final AtomicReferenceArray<String> names;
+    private final AtomicLongArray counters;
+    private final long[] rolledIn;
+    private final long[] rolledOut;
+    private final long[] rolledSessions;
+    private volatile int size;
+    private volatile long untracked;
+
+    public PlayerStats(int capacity) {
+        // Sized so capacity players fit under the 75% load limit
+        int slots = Integer.highestOneBit(Math.max(16, capacity + capacity / 3) - 1) << 1;
+        this.mask = slots - 1;
+        this.uuidMost = new long[slots];
+        this.uuidLeast = new long[slots];
+        this.names = new AtomicReferenceArray<>(slots);
+        this.counters = new AtomicLongArray(slots * FIELDS);
+        this.rolledIn = new long[slots];
+        this.rolledOut = new long[slots];
+        this.rolledSessions = new long[slots];
+    }
+
+    /**
+     * Starts a session for the player and returns its slot, or -1 if the table is full.
+     */
+    public int open(String name, long most, long least) {
+        int slot = find(most, least);
+        if (slot < 0) {
+            slot = insert(name, most, least);
+            if (slot < 0) return -1;
+        }
+        counters.incrementAndGet(slot * FIELDS + SESSIONS);
+        counters.incrementAndGet(slot * FIELDS + ACTIVE);
+        return slot;
+    }
+
+    public void close(int slot) {
+        counters.decrementAndGet(slot * FIELDS + ACTIVE);
+    }
+
+    public void addIn(int slot, long bytes, int reads) {
+        counters.addAndGet(slot * FIELDS + BYTES_IN, bytes);
+        counters.addAndGet(slot * FIELDS + READS_IN, reads);
+    }
+
+    public void addOut(int slot, long bytes, int reads) {
+        counters.addAndGet(slot * FIELDS + BYTES_OUT, bytes);
+        counters.addAndGet(slot * FIELDS + READS_OUT, reads);
+    }
+
+    /**
+     * Time from the relay announcing the connection to the server's first reply.
+     */
+    public void recordLatency(int slot, long millis) {
+        int base = slot * FIELDS;
+        counters.addAndGet(base + LATENCY_SUM, millis);
+        counters.incrementAndGet(base + LATENCY_COUNT);
+        long max;
+        while (millis > (max = counters.get(base + LATENCY_MAX))) {
+            if (counters.compareAndSet(base + LATENCY_MAX, max, millis)) break;
+        }
+    }
+
+    private int find(long most, long least) {
+        int slot = hash(most, least);
+        for (int probe = 0; probe <= mask; probe++) {
+            if (names.get(slot) == null) return -1;
+            if (uuidMost[slot] == most && uuidLeast[slot] == least) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // Logins are rare next to reads, so inserts simply serialize
+    private synchronized int insert(String name, long most, long least) {
+        int existing = find(most, least);
+        if (existing >= 0) return existing;
+        // Keep a quarter of the table free so probes stay short
+        if (size >= (mask + 1) - (mask + 1) / 4) {
+            untracked++;
+            return -1;
+        }
+        int slot = hash(most, least);
+        while (names.get(slot) != null) {
+            slot = (slot + 1) & mask;
+        }
+        uuidMost[slot] = most;
+        uuidLeast[slot] = least;
+        names.set(slot, name);
+        size++;
+        return slot;
+    }
+
+    private int hash(long most, long least) {
+        long h = (most ^ least) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getUntracked() {
+        return untracked;
+    }
+
+    /**
+     * One line per player, busiest first, for {@code /portbridge players}.
+     */
+    public List<String> describe(int limit) {
+        List<Integer> slots = new ArrayList<>();
+        for (int slot = 0; slot <= mask; slot++) {
+            if (names.get(slot) != null) slots.add(slot);
+        }
+        slots.sort(Comparator.comparingLong((Integer s) -> get(s, BYTES_IN) + get(s, BYTES_OUT)).reversed());
+
+        List<String> out = new ArrayList<>();
+        for (int i = 0; i < Math.min(limit, slots.size()); i++) {
+            int slot = slots.get(i);
+            long latencyCount = get(slot, LATENCY_COUNT);
+            out.add(String.format("%s in=%s out=%s reads=%d/%d sessions=%d active=%d latency=%s/%dms",
+                    names.get(slot),
+                    formatBytes(get(slot, BYTES_IN)), formatBytes(get(slot, BYTES_OUT)),
+                    get(slot, READS_IN), get(slot, READS_OUT),
+                    get(slot, SESSIONS), get(slot, ACTIVE),
+                    latencyCount > 0 ? Long.toString(get(slot, LATENCY_SUM) / latencyCount) : "-",
+                    get(slot, LATENCY_MAX)));
+        }
+        return out;
+    }
+
+    private long get(int slot, int field) {
+        return counters.get(slot * FIELDS + field);
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + "B";
+        if (bytes < 1024 * 1024) return String.format("%.1fKiB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024) return String.format("%.1fMiB", bytes / (1024.0 * 1024));
+        return String.format("%.2fGiB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    /**
+     * Appends the traffic each player had since the previous rollup, so summing
+     * records gives totals. Records are big-endian: per rollup
+     * {@code int magic, long epochMillis, int count}, then per player
+     * {@code long uuidMost, long uuidLeast, long bytesIn, long bytesOut,
+     * int newSessions, short nameLength, name (UTF-8)}. Called from one thread only.
+     */
+    public void rollup(Path file) throws IOException {
+        List<Integer> changed = new ArrayList<>();
+        long[] inDelta = new long[mask + 1];
+        long[] outDelta = new long[mask + 1];
+        long[] sessionDelta = new long[mask + 1];
+        for (int slot = 0; slot <= mask; slot++) {
+            if (names.get(slot) == null) continue;
+            inDelta[slot] = get(slot, BYTES_IN) - rolledIn[slot];
+            outDelta[slot] = get(slot, BYTES_OUT) - rolledOut[slot];
+            sessionDelta[slot] = get(slot, SESSIONS) - rolledSessions[slot];
+            if (inDelta[slot] != 0 || outDelta[slot] != 0) changed.add(slot);
+        }
+        if (changed.isEmpty()) return;
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile(), true)))) {
+            out.writeInt(ROLLUP_MAGIC);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(changed.size());
+            for (int slot : changed) {
+                byte[] name = names.get(slot).getBytes(StandardCharsets.UTF_8);
+                out.writeLong(uuidMost[slot]);
+                out.writeLong(uuidLeast[slot]);
+                out.writeLong(inDelta[slot]);
+                out.writeLong(outDelta[slot]);
+                out.writeInt((int) sessionDelta[slot]);
+                out.writeShort(name.length);
+                out.write(name);
+            }
+        }
+        // Only advance once the rollup is on disk, so a failed write is retried next time
+        for (int slot : changed) {
+            rolledIn[slot] += inDelta[slot];
+            rolledOut[slot] += outDelta[slot];
+            rolledSessions[slot] += sessionDelta[slot];
+        }
+        if (Config.DEBUG_LOGGING.get()) {
+            LOGGER.debug("[PortBridge] Wrote player traffic rollup for {} players", changed.size());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.darsh.portbridge.tunnel;
+
+import com.darsh.portbridge.IPLiterals;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * HAProxy PROXY protocol v2 header writer. Only the binary v2 form is produced;
+ * TCP over IPv4 and IPv6, or LOCAL when the relay did not report a source.
+ */
+public final class ProxyProtocol {
+    static final byte[] SIGNATURE = {0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A};
+    static final int FIXED_LENGTH = 16;
+    static final int VERSION_2 = 0x20;
+    static final int COMMAND_LOCAL = 0x00;
+    static final int COMMAND_PROXY = 0x01;
+    static final int FAMILY_UNSPEC = 0x00;
+    static final int FAMILY_TCP4 = 0x11;
+    static final int FAMILY_TCP6 = 0x21;
+    static final int TCP4_LENGTH = 12;
+    static final int TCP6_LENGTH = 36;
+
+    // Largest header we emit is TCP6 (52 bytes); one buffer per connecting thread
+    private static final ThreadLocal<ByteBuffer> BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(FIXED_LENGTH + TCP6_LENGTH));
+
+    private ProxyProtocol() {
+    }
+
+    /**
+     * Writes a v2 header for a connection from sourceIp:sourcePort to destination.
+     * A missing or unparseable source produces a LOCAL header, so the server keeps
+     * the socket's own address.
+     */
+    public static void writeHeader(OutputStream out, String sourceIp, int sourcePort, InetSocketAddress destination) throws IOException {
+        ByteBuffer buf = BUFFER.get();
+        buf.clear();
+        buf.put(SIGNATURE);
+
+        byte[] src = IPLiterals.parse(sourceIp);
+        byte[] dst = destination.getAddress().getAddress();
+        if (src == null || sourcePort < 0 || sourcePort > 65535) {
+            buf.put((byte) (VERSION_2 | COMMAND_LOCAL)).put((byte) FAMILY_UNSPEC).putShort((short) 0);
+        } else {
+            if (src.length != dst.length) {
+                // Families must match; lift the IPv4 side to ::ffff:a.b.c.d
+                if (src.length == 4) src = toMapped(src);
+                else dst = toMapped(dst);
+            }
+            boolean v4 = src.length == 4;
+            buf.put((byte) (VERSION_2 | COMMAND_PROXY))
+                    .put((byte) (v4 ? FAMILY_TCP4 : FAMILY_TCP6))
+                    .putShort((short) (v4 ? TCP4_LENGTH : TCP6_LENGTH))
+                    .put(src)
+                    .put(dst)
+                    .putShort((short) sourcePort)
+                    .putShort((short) destination.getPort());
+        }
+        out.write(buf.array(), 0, buf.position());
+        out.flush();
+    }
+
+    private static byte[] toMapped(byte[] v4) {
+        byte[] out = new byte[16];
+        out[10] = (byte) 0xff;
+        out[11] = (byte) 0xff;
+        System.arraycopy(v4, 0, out, 12, 4);
+        return out;
+    }
+}
@@ -0,0 +1,218 @@
+package com.darsh.portbridge.tunnel;
+
+import com.darsh.portbridge.Config;
+import com.darsh.portbridge.PortBridge;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import net.minecraft.network.Connection;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerConnectionListener;
+import org.slf4j.Logger;
+
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+
+/**
+ * Strips a PROXY v2 header written by the tunnel client and hands the real
+ * player address to the vanilla {@link Connection}, before the handshake packet
+ * is decoded. Only loopback connections are inspected, because that is where
+ * the tunnel client connects from; a connection without the signature passes
+ * through untouched.
+ */
+public class ProxyProtocolDecoder extends ChannelInboundHandlerAdapter {
+    private static final Logger LOGGER = PortBridge.LOGGER;
+    private static final String NAME = "portbridge_proxy";
+    // v2 headers with TLVs can exceed the address block, but never by this much
+    private static final int MAX_HEADER = 1024;
+
+    private static Field connectionAddress;
+
+    private ByteBuf cumulation;
+
+    /**
+     * Hooks every listener channel of the running server so that accepted loopback
+     * children get a decoder in front of the vanilla pipeline.
+     */
+    public static boolean install(MinecraftServer server) {
+        try {
+            ServerConnectionListener listener = server.getConnection();
+            if (listener == null) return false;
+
+            int hooked = 0;
+            for (ChannelFuture future : findChannels(listener)) {
+                Channel channel = future.channel();
+                if (channel.pipeline().get(NAME) == null) {
+                    channel.pipeline().addFirst(NAME, new Acceptor());
+                    hooked++;
+                }
+            }
+            LOGGER.info("[PortBridge] PROXY protocol decoder installed on {} listener(s)", hooked);
+            return hooked > 0;
+        } catch (Exception e) {
+            LOGGER.error("[PortBridge] Could not install PROXY protocol decoder", e);
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<ChannelFuture> findChannels(ServerConnectionListener listener) throws IllegalAccessException {
+        // Located by type rather than name so it survives mapping changes
+        for (Field field : ServerConnectionListener.class.getDeclaredFields()) {
+            if (!List.class.isAssignableFrom(field.getType())) continue;
+            field.setAccessible(true);
+            List<?> list = (List<?>) field.get(listener);
+            if (list != null && !list.isEmpty() && list.get(0) instanceof ChannelFuture) {
+                return (List<ChannelFuture>) list;
+            }
+        }
+        return List.of();
+    }
+
+    private static Field addressField() {
+        if (connectionAddress == null) {
+            for (Field field : Connection.class.getDeclaredFields()) {
+                if (field.getType() == SocketAddress.class) {
+                    field.setAccessible(true);
+                    connectionAddress = field;
+                    break;
+                }
+            }
+        }
+        return connectionAddress;
+    }
+
+    /**
+     * Sits on the listener channel and adds a decoder to each accepted child before
+     * the server's own initializer runs.
+     */
+    @ChannelHandler.Sharable
+    static final class Acceptor extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof Channel) {
+                Channel child = (Channel) msg;
+                SocketAddress remote = child.remoteAddress();
+                if (remote instanceof InetSocketAddress && ((InetSocketAddress) remote).getAddress().isLoopbackAddress()) {
+                    child.pipeline().addFirst(NAME, new ProxyProtocolDecoder());
+                }
+            }
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof ByteBuf)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        ByteBuf in = (ByteBuf) msg;
+        if (cumulation == null) {
+            cumulation = in;
+        } else {
+            ByteBuf merged = ctx.alloc().buffer(cumulation.readableBytes() + in.readableBytes());
+            merged.writeBytes(cumulation);
+            merged.writeBytes(in);
+            cumulation.release();
+            in.release();
+            cumulation = merged;
+        }
+
+        ByteBuf buf = cumulation;
+        int start = buf.readerIndex();
+        int available = buf.readableBytes();
+
+        // Bail out as soon as the bytes stop matching the signature
+        int check = Math.min(available, ProxyProtocol.SIGNATURE.length);
+        for (int i = 0; i < check; i++) {
+            if (buf.getByte(start + i) != ProxyProtocol.SIGNATURE[i]) {
+                passThrough(ctx);
+                return;
+            }
+        }
+        if (available < ProxyProtocol.FIXED_LENGTH) return;
+
+        int length = buf.getUnsignedShort(start + 14);
+        if (length > MAX_HEADER) {
+            LOGGER.warn("[PortBridge] Oversized PROXY header from {}, closing", ctx.channel().remoteAddress());
+            release();
+            ctx.close();
+            return;
+        }
+        if (available < ProxyProtocol.FIXED_LENGTH + length) return;
+
+        int versionCommand = buf.getUnsignedByte(start + 12);
+        int family = buf.getUnsignedByte(start + 13);
+        if ((versionCommand & 0xF0) == ProxyProtocol.VERSION_2 && (versionCommand & 0x0F) == ProxyProtocol.COMMAND_PROXY) {
+            InetSocketAddress source = readSource(buf, start + ProxyProtocol.FIXED_LENGTH, family, length);
+            if (source != null) {
+                applySource(ctx, source);
+            }
+        }
+
+        buf.skipBytes(ProxyProtocol.FIXED_LENGTH + length);
+        passThrough(ctx);
+    }
+
+    static InetSocketAddress readSource(ByteBuf buf, int offset, int family, int length) throws Exception {
+        int addrLength;
+        if (family == ProxyProtocol.FAMILY_TCP4 && length >= ProxyProtocol.TCP4_LENGTH) {
+            addrLength = 4;
+        } else if (family == ProxyProtocol.FAMILY_TCP6 && length >= ProxyProtocol.TCP6_LENGTH) {
+            addrLength = 16;
+        } else {
+            return null;
+        }
+        byte[] raw = new byte[addrLength];
+        buf.getBytes(offset, raw);
+        int port = buf.getUnsignedShort(offset + addrLength * 2);
+        return new InetSocketAddress(InetAddress.getByAddress(raw), port);
+    }
+
+    private static void applySource(ChannelHandlerContext ctx, InetSocketAddress source) {
+        Connection connection = ctx.pipeline().get(Connection.class);
+        Field field = addressField();
+        if (connection == null || field == null) return;
+        try {
+            field.set(connection, source);
+            if (Config.DEBUG_LOGGING.get()) {
+                LOGGER.debug("[PortBridge] PROXY header: {} is {}", ctx.channel().remoteAddress(), source);
+            }
+        } catch (IllegalAccessException e) {
+            LOGGER.debug("[PortBridge] Could not set connection address", e);
+        }
+    }
+
+    // Removes this decoder and forwards whatever is left to the vanilla pipeline
+    private void passThrough(ChannelHandlerContext ctx) {
+        ByteBuf rest = cumulation;
+        cumulation = null;
+        ctx.pipeline().remove(this);
+        if (rest.isReadable()) {
+            ctx.fireChannelRead(rest);
+        } else {
+            rest.release();
+        }
+    }
+
+    private void release() {
+        if (cumulation != null) {
+            cumulation.release();
+            cumulation = null;
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        release();
+        ctx.fireChannelInactive();
+    }
+}
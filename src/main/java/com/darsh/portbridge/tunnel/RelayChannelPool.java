@@ -0,0 +1,278 @@
+package com.darsh.portbridge.tunnel;
+
+import com.darsh.portbridge.Config;
+import com.darsh.portbridge.PortBridge;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Pool of authenticated, idle data connections to the relay for per-connection
+ * mode. A player is bound to a ready channel with one BIND line instead of a
+ * fresh TCP handshake. The target size follows the recent arrival rate: enough
+ * channels to cover the arrivals expected while one new channel is being opened.
+ *
+ * {@link #poll} is called from the relay reader thread only.
+ */
+public class RelayChannelPool {
+    private static final Logger LOGGER = PortBridge.LOGGER;
+    private static final long MAINTENANCE_INTERVAL_MS = 1000;
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int HANDSHAKE_TIMEOUT = 5000;
+    // Weight of the newest sample in the arrival-rate and handshake-time averages
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final String relayHost;
+    private final InetSocketAddress relay;
+    private final String serverUUID;
+    private final String token;
+    private final int minSize;
+    private final int maxSize;
+    private final long maxIdleNanos;
+    private final BooleanSupplier tls;
+    private final ConcurrentLinkedDeque<Idle> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger opening = new AtomicInteger();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final ScheduledExecutorService executor;
+    private volatile boolean closed;
+
+    // Arrival accounting, folded into the rate once per maintenance tick
+    private final AtomicInteger arrivals = new AtomicInteger();
+    private volatile double arrivalsPerSecond;
+    private volatile double handshakeSeconds = 0.1;
+    private volatile int targetSize;
+    // Written by the relay reader thread only, read by stats from any thread
+    private volatile long hits;
+    private volatile long misses;
+
+    private static final class Idle {
+        final Socket socket;
+        // Plain channels idle in non-blocking mode so they can be probed; TLS ones stay blocking
+        final SocketChannel probe;
+        final long since;
+
+        Idle(Socket socket, SocketChannel probe, long since) {
+            this.socket = socket;
+            this.probe = probe;
+            this.since = since;
+        }
+    }
+
+    /**
+     * {@code relay} is the address the control connection reached; {@code relayHost}
+     * is the configured name, which TLS checks the certificate against.
+     */
+    public RelayChannelPool(String relayHost, InetSocketAddress relay, String serverUUID, String token) {
+        this(relayHost, relay, serverUUID, token, Config.TUNNEL_DATA_POOL_MIN.get(), Config.TUNNEL_DATA_POOL_MAX.get(),
+                Config.TUNNEL_DATA_POOL_MAX_IDLE.get(), RelayTls::isEnabled);
+    }
+
+    RelayChannelPool(String relayHost, InetSocketAddress relay, String serverUUID, String token,
+                     int minSize, int maxSize, long maxIdleSeconds, BooleanSupplier tls) {
+        this.relayHost = relayHost;
+        this.relay = relay;
+        this.serverUUID = serverUUID;
+        this.token = token;
+        this.minSize = minSize;
+        this.maxSize = Math.max(minSize, maxSize);
+        this.maxIdleNanos = TimeUnit.SECONDS.toNanos(maxIdleSeconds);
+        this.tls = tls;
+        this.targetSize = minSize;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "PortBridge-RelayPool");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::maintain, 0, MAINTENANCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hands out a ready data channel in blocking mode, or null if none is idle.
+     */
+    public Socket poll() {
+        arrivals.incrementAndGet();
+        Idle entry;
+        while ((entry = idle.pollFirst()) != null) {
+            if (isUsable(entry, System.nanoTime())) {
+                try {
+                    if (entry.probe != null) entry.probe.configureBlocking(true);
+                    hits++;
+                    requestRefill();
+                    return entry.socket;
+                } catch (IOException e) {
+                    closeQuietly(entry.socket);
+                }
+            } else {
+                closeQuietly(entry.socket);
+            }
+        }
+        misses++;
+        requestRefill();
+        return null;
+    }
+
+    /**
+     * Opens and authenticates a data channel on the calling thread, for a pool miss.
+     */
+    public Socket open() throws IOException {
+        return openChannel();
+    }
+
+    private Socket openChannel() throws IOException {
+        long start = System.nanoTime();
+        Socket socket = SocketChannel.open().socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(relay, CONNECT_TIMEOUT);
+            if (tls.getAsBoolean()) {
+                // Resumes from the session cached by the control connection when the relay allows it
+                socket = RelayTls.wrap(socket, relayHost, relay.getPort());
+            }
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+
+            OutputStream out = socket.getOutputStream();
+            out.write(("DATA|" + serverUUID + "|" + token + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String reply = readLine(socket.getInputStream());
+            if (!"DATA_READY".equals(reply)) {
+                throw new IOException("Relay refused data channel: " + reply);
+            }
+            socket.setSoTimeout(0);
+
+            double sample = (System.nanoTime() - start) / 1e9;
+            handshakeSeconds = handshakeSeconds + EWMA_ALPHA * (sample - handshakeSeconds);
+            return socket;
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    // Unbuffered so nothing after the reply line is consumed
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder(16);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') sb.append((char) b);
+            if (sb.length() > 256) break;
+        }
+        return b == -1 && sb.length() == 0 ? null : sb.toString();
+    }
+
+    /**
+     * Writes the BIND line that attaches a data channel to a relay connection.
+     */
+    public static void bind(Socket channel, String connId) throws IOException {
+        OutputStream out = channel.getOutputStream();
+        out.write(("BIND|" + connId + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private void requestRefill() {
+        if (!closed && refilling.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                try {
+                    refill();
+                } finally {
+                    refilling.set(false);
+                }
+            });
+        }
+    }
+
+    private void maintain() {
+        double tickSeconds = MAINTENANCE_INTERVAL_MS / 1000.0;
+        double sample = arrivals.getAndSet(0) / tickSeconds;
+        double rate = arrivalsPerSecond + EWMA_ALPHA * (sample - arrivalsPerSecond);
+        arrivalsPerSecond = rate;
+        // Little's law: arrivals expected while one replacement channel is opening, with 2x headroom
+        int wanted = minSize + (int) Math.ceil(rate * handshakeSeconds * 2);
+        targetSize = Math.min(maxSize, wanted);
+
+        // Close channels that idled too long or that exceed the shrinking target
+        long now = System.nanoTime();
+        int surplus = idle.size() - targetSize;
+        for (Iterator<Idle> it = idle.iterator(); it.hasNext(); ) {
+            Idle entry = it.next();
+            boolean stale = now - entry.since > maxIdleNanos || entry.socket.isClosed();
+            if ((stale || surplus > 0) && idle.remove(entry)) {
+                closeQuietly(entry.socket);
+                surplus--;
+            }
+        }
+        refill();
+    }
+
+    private void refill() {
+        while (!closed && idle.size() + opening.get() < targetSize) {
+            opening.incrementAndGet();
+            try {
+                Socket socket = openChannel();
+                SocketChannel probe = socket.getChannel();
+                if (probe != null) probe.configureBlocking(false);
+                idle.addLast(new Idle(socket, probe, System.nanoTime()));
+            } catch (IOException e) {
+                if (Config.DEBUG_LOGGING.get()) {
+                    LOGGER.debug("[PortBridge] Could not open relay data channel: {}", e.getMessage());
+                }
+                return;
+            } finally {
+                opening.decrementAndGet();
+            }
+        }
+    }
+
+    // Caller must own the channel (already removed from the idle queue)
+    private boolean isUsable(Idle entry, long now) {
+        if (now - entry.since > maxIdleNanos || entry.socket.isClosed()) {
+            return false;
+        }
+        if (entry.probe == null) {
+            // TLS may legitimately deliver session tickets while idle; a dead channel fails at BIND instead
+            return true;
+        }
+        try {
+            // Nothing is sent on an idle channel before BIND, so data or EOF means it is gone
+            return entry.probe.read(ByteBuffer.allocate(1)) == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public String getStats() {
+        return String.format("idle=%d target=%d rate=%.2f/s handshake=%dms hits=%d misses=%d",
+                idle.size(), targetSize, arrivalsPerSecond, (long) (handshakeSeconds * 1000), hits, misses);
+    }
+
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+        Idle entry;
+        while ((entry = idle.pollFirst()) != null) {
+            closeQuietly(entry.socket);
+        }
+    }
+}
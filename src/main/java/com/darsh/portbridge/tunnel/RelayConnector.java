@@ -0,0 +1,220 @@
+package com.darsh.portbridge.tunnel;
+
+import com.darsh.portbridge.Config;
+import com.darsh.portbridge.PortBridge;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens the control connection to the relay in the style of RFC 8305 (Happy
+ * Eyeballs). Every address the relay name resolves to is a candidate, with
+ * IPv6 and IPv4 alternating. A new attempt starts every ATTEMPT_DELAY_MS, or
+ * as soon as the previous one fails. The first connection to complete wins
+ * and the others are closed, so a broken IPv6 path costs a quarter second
+ * instead of the whole connect timeout.
+ *
+ * Resolved addresses are cached for {@code tunnel.dnsCacheSeconds}, and the
+ * address that last worked is tried first. When every cached address fails,
+ * the name is resolved again before giving up, so a relay that moved by DNS is
+ * reached on the same reconnect.
+ */
+final class RelayConnector {
+    private static final Logger LOGGER = PortBridge.LOGGER;
+    // RFC 8305 recommends 250 ms between connection attempts
+    private static final long ATTEMPT_DELAY_MS = 250;
+    private static final Map<String, Resolved> CACHE = new ConcurrentHashMap<>();
+
+    static final class Resolved {
+        final List<InetAddress> addresses;
+        final long resolvedAt;
+        volatile InetAddress preferred;
+
+        Resolved(List<InetAddress> addresses, long resolvedAt, InetAddress preferred) {
+            this.addresses = addresses;
+            this.resolvedAt = resolvedAt;
+            this.preferred = preferred;
+        }
+    }
+
+    private RelayConnector() {
+    }
+
+    /**
+     * Connects to {@code host:port} within {@code timeoutMs} and returns a blocking socket.
+     */
+    static Socket connect(String host, int port, int timeoutMs) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        Resolved before = CACHE.get(host);
+        Resolved resolved = resolve(host, false);
+        try {
+            return race(resolved, port, deadline);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            // Only a cached answer is worth resolving again; a fresh one would come back the same
+            if (resolved != before || deadline - System.nanoTime() <= 0) throw e;
+            Resolved fresh = resolve(host, true);
+            if (fresh.addresses.equals(resolved.addresses)) throw e;
+            LOGGER.info("[PortBridge] Relay {} now resolves to {}, retrying", host, fresh.addresses);
+            return race(fresh, port, deadline);
+        }
+    }
+
+    private static Resolved resolve(String host, boolean force) throws UnknownHostException {
+        Resolved cached = CACHE.get(host);
+        long ttl = TimeUnit.SECONDS.toNanos(Config.TUNNEL_DNS_CACHE.get());
+        if (!force && cached != null && System.nanoTime() - cached.resolvedAt < ttl) {
+            return cached;
+        }
+        try {
+            Resolved fresh = new Resolved(List.of(InetAddress.getAllByName(host)), System.nanoTime(),
+                    cached != null ? cached.preferred : null);
+            CACHE.put(host, fresh);
+            return fresh;
+        } catch (UnknownHostException e) {
+            // A DNS outage should not keep us from a relay that still answers
+            if (cached == null) throw e;
+            if (Config.DEBUG_LOGGING.get()) {
+                LOGGER.debug("[PortBridge] Could not resolve {}, using cached addresses: {}", host, e.getMessage());
+            }
+            return cached;
+        }
+    }
+
+    // Alternates address families, starting with the one that last worked (IPv6 if none did)
+    static List<InetAddress> order(Resolved resolved) {
+        InetAddress preferred = resolved.preferred;
+        List<InetAddress> v6 = new ArrayList<>();
+        List<InetAddress> v4 = new ArrayList<>();
+        for (InetAddress address : resolved.addresses) {
+            if (!address.equals(preferred)) {
+                (address instanceof Inet6Address ? v6 : v4).add(address);
+            }
+        }
+        boolean v6First = preferred == null || preferred instanceof Inet6Address;
+        List<InetAddress> first = v6First ? v6 : v4;
+        List<InetAddress> second = v6First ? v4 : v6;
+
+        List<InetAddress> ordered = new ArrayList<>(resolved.addresses.size());
+        if (preferred != null && resolved.addresses.contains(preferred)) {
+            ordered.add(preferred);
+        }
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) ordered.add(first.get(i));
+            if (i < second.size()) ordered.add(second.get(i));
+        }
+        return ordered;
+    }
+
+    static Socket race(Resolved resolved, int port, long deadline) throws IOException {
+        List<InetAddress> addresses = order(resolved);
+        List<SocketChannel> pending = new ArrayList<>();
+        SocketChannel winner = null;
+        IOException failure = null;
+        try (Selector selector = Selector.open()) {
+            int next = 0;
+            long nextStart = System.nanoTime();
+            while (winner == null) {
+                long now = System.nanoTime();
+                if (next < addresses.size() && (now - nextStart >= 0 || pending.isEmpty())) {
+                    InetAddress address = addresses.get(next++);
+                    nextStart = now + TimeUnit.MILLISECONDS.toNanos(ATTEMPT_DELAY_MS);
+                    SocketChannel channel = null;
+                    try {
+                        channel = SocketChannel.open();
+                        channel.configureBlocking(false);
+                        if (channel.connect(new InetSocketAddress(address, port))) {
+                            winner = channel;
+                        } else {
+                            channel.register(selector, SelectionKey.OP_CONNECT);
+                            pending.add(channel);
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                        closeQuietly(channel);
+                    }
+                    continue;
+                }
+
+                if (pending.isEmpty()) {
+                    throw failure != null ? failure : new ConnectException("No addresses to connect to");
+                }
+                if (deadline - now <= 0) {
+                    throw new SocketTimeoutException("Connect timed out");
+                }
+                long wait = deadline - now;
+                if (next < addresses.size()) {
+                    wait = Math.min(wait, nextStart - now);
+                }
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Interrupted while connecting");
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (channel.finishConnect()) {
+                            pending.remove(channel);
+                            if (winner == null) {
+                                winner = channel;
+                            } else {
+                                closeQuietly(channel);
+                            }
+                        }
+                    } catch (IOException e) {
+                        // A refused attempt lets the next address start at once
+                        failure = e;
+                        pending.remove(channel);
+                        closeQuietly(channel);
+                        nextStart = now;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            closeQuietly(winner);
+            throw e;
+        } finally {
+            for (SocketChannel channel : pending) {
+                closeQuietly(channel);
+            }
+        }
+
+        // Closing the selector deregistered the winner, so it can go back to blocking mode
+        try {
+            winner.configureBlocking(true);
+            InetSocketAddress remote = (InetSocketAddress) winner.getRemoteAddress();
+            resolved.preferred = remote.getAddress();
+            return winner.socket();
+        } catch (IOException e) {
+            closeQuietly(winner);
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
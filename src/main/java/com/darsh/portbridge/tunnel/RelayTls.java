@@ -0,0 +1,135 @@
+package com.darsh.portbridge.tunnel;
+
+import com.darsh.portbridge.Config;
+import com.darsh.portbridge.PortBridge;
+import org.slf4j.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TLS for the relay link. One client context is shared by the control connection
+ * and every data channel, so its session cache lets reconnects and new channels
+ * resume (TLS 1.3 tickets or 1.2 session IDs) instead of doing a full handshake.
+ * ALPN carries the framing version the relay should speak.
+ */
+public final class RelayTls {
+    private static final Logger LOGGER = PortBridge.LOGGER;
+    public static final String FRAMING_V1 = "portbridge/1";
+    private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+    private static final int SESSION_CACHE_SIZE = 64;
+
+    private static volatile SSLContext context;
+    private static final AtomicLong fullHandshakes = new AtomicLong();
+    private static final AtomicLong resumedHandshakes = new AtomicLong();
+    // Last session seen per relay host:port, to tell a resumption from a full handshake
+    private static final Map<String, SessionMark> lastSessions = new ConcurrentHashMap<>();
+
+    /**
+     * Identifies the full handshake a session came from. TLS 1.2 resumption keeps
+     * the session ID; JSSE gives a resumed TLS 1.3 session a fresh ID but keeps the
+     * creation time of the session that issued the ticket.
+     */
+    private static final class SessionMark {
+        final byte[] id;
+        final long createdAt;
+
+        SessionMark(SSLSession session) {
+            this.id = session.getId();
+            this.createdAt = session.getCreationTime();
+        }
+
+        boolean sameOrigin(SessionMark other) {
+            return createdAt == other.createdAt || (id.length > 0 && Arrays.equals(id, other.id));
+        }
+    }
+
+    private RelayTls() {
+    }
+
+    public static boolean isEnabled() {
+        return Config.TUNNEL_TLS_ENABLED.get();
+    }
+
+    private static SSLContext context() throws IOException {
+        SSLContext ctx = context;
+        if (ctx == null) {
+            synchronized (RelayTls.class) {
+                ctx = context;
+                if (ctx == null) {
+                    try {
+                        ctx = SSLContext.getInstance("TLS");
+                        ctx.init(null, null, null);
+                    } catch (GeneralSecurityException e) {
+                        throw new IOException("TLS unavailable", e);
+                    }
+                    ctx.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+                    context = ctx;
+                }
+            }
+        }
+        return ctx;
+    }
+
+    /**
+     * Runs a client handshake over an already connected socket and returns the TLS
+     * socket; closing it closes the plain one. The relay certificate is checked
+     * against {@code tunnel.tls.serverName}, or the relay host if that is empty.
+     */
+    public static SSLSocket wrap(Socket plain, String relayHost, int relayPort) throws IOException {
+        String serverName = Config.TUNNEL_TLS_SERVER_NAME.get();
+        if (serverName == null || serverName.isBlank()) serverName = relayHost;
+
+        SSLSocket socket = createSocket(context(), plain, serverName, relayPort);
+        boolean resumed = handshake(socket, serverName + ":" + relayPort);
+        if (Config.DEBUG_LOGGING.get()) {
+            SSLSession session = socket.getSession();
+            LOGGER.debug("[PortBridge] Relay TLS {} {} {}", session.getProtocol(), session.getCipherSuite(), resumed ? "(resumed)" : "(full handshake)");
+        }
+        return socket;
+    }
+
+    static SSLSocket createSocket(SSLContext ctx, Socket plain, String serverName, int relayPort) throws IOException {
+        // The host and port select the cached session to resume
+        SSLSocket socket = (SSLSocket) ctx.getSocketFactory().createSocket(plain, serverName, relayPort, true);
+        SSLParameters params = socket.getSSLParameters();
+        params.setProtocols(PROTOCOLS);
+        params.setEndpointIdentificationAlgorithm("HTTPS");
+        params.setApplicationProtocols(new String[] {FRAMING_V1});
+        socket.setSSLParameters(params);
+        return socket;
+    }
+
+    /**
+     * Completes the handshake and checks the framing the relay chose. Returns true
+     * if a cached session was resumed.
+     */
+    static boolean handshake(SSLSocket socket, String endpoint) throws IOException {
+        socket.startHandshake();
+
+        String alpn = socket.getApplicationProtocol();
+        if (alpn != null && !alpn.isEmpty() && !FRAMING_V1.equals(alpn)) {
+            socket.close();
+            throw new IOException("Relay selected unsupported framing " + alpn);
+        }
+
+        SessionMark mark = new SessionMark(socket.getSession());
+        SessionMark previous = lastSessions.put(endpoint, mark);
+        boolean resumed = previous != null && mark.sameOrigin(previous);
+        (resumed ? resumedHandshakes : fullHandshakes).incrementAndGet();
+        return resumed;
+    }
+
+    public static String getStats() {
+        return "full=" + fullHandshakes.get() + " resumed=" + resumedHandshakes.get();
+    }
+}
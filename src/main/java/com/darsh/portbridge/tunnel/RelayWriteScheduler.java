@@ -0,0 +1,285 @@
+package com.darsh.portbridge.tunnel;
+
+import com.darsh.portbridge.PortBridge;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which player's data goes out next on the shared relay connection
+ * ({@code tunnel.dataMode = SHARED}). Each stream queues the chunks its server
+ * side produced, and one writer thread drains them.
+ *
+ * Unless the relay advertises FRAMES in REGISTERED, the connection carries raw
+ * bytes with no stream boundaries, and chunks go out strictly in the order
+ * they were queued, whichever stream they belong to.
+ *
+ * With FRAMES, each chunk is sent as {@code FRAME|connId|length} and a newline,
+ * then the bytes, so the relay can split streams apart again. Chunks are then
+ * drained in two classes:
+ *
+ * Interactive: a stream whose next chunk is at most SMALL_CHUNK bytes
+ * (movement, combat, chat, keepalives), or one still within its first
+ * LOGIN_BYTES (login and encryption). These go first, round-robin between
+ * streams.
+ *
+ * Bulk: everything else, mostly chunk data for a player who just joined.
+ * Streams take turns by deficit round-robin. Each turn earns QUANTUM bytes,
+ * so bulk streams share the spare capacity evenly whatever their chunk sizes.
+ *
+ * Chunks are never split or reordered within a stream, so each stream's bytes
+ * still arrive in order. Each stream may hold at most STREAM_LIMIT bytes in
+ * its queue before its forwarder blocks. A busy stream therefore pushes back
+ * on the server instead of queueing here. With FRAMES, a small packet never
+ * waits behind more than the one chunk being written.
+ */
+final class RelayWriteScheduler {
+    private static final Logger LOGGER = PortBridge.LOGGER;
+    private static final int SMALL_CHUNK = 512;
+    private static final long LOGIN_BYTES = 16384;
+    // At least the largest chunk a forwarder hands over, so every bulk turn sends something
+    private static final int QUANTUM = 16384;
+    private static final int STREAM_LIMIT = 65536;
+    // Weight of each new sample in the interactive wait average
+    private static final double WAIT_ALPHA = 0.05;
+
+    private final OutputStream out;
+    private final Object writeLock;
+    private final TunnelClient client;
+    private final boolean framed;
+    private final Thread thread;
+    // Streams with queued chunks, in bulk turn order; guarded by this
+    private final ArrayDeque<Stream> active = new ArrayDeque<>();
+    private boolean running = true;
+    private boolean turnStarted;
+    // Queue order across streams, for unframed writes
+    private long nextSeq;
+
+    private long interactiveChunks;
+    private long bulkChunks;
+    private double interactiveWaitMicros;
+    private long maxInteractiveWaitMicros;
+
+    private static final class Chunk {
+        final byte[] data;
+        // The FRAME line, or null when writes are unframed
+        final byte[] header;
+        final long queuedAt;
+        final long seq;
+
+        Chunk(byte[] data, byte[] header, long queuedAt, long seq) {
+            this.data = data;
+            this.header = header;
+            this.queuedAt = queuedAt;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * One player's outbound queue. {@link #offer} is called by that stream's forwarder thread only.
+     */
+    final class Stream {
+        private final String connId;
+        private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+        private int queuedBytes;
+        private long sentBytes;
+        private int deficit;
+        private boolean closed;
+
+        Stream(String connId) {
+            this.connId = connId;
+        }
+
+        /**
+         * Queues a copy of {@code length} bytes of {@code data}, waiting while the
+         * stream is at its limit. Throws once the stream or scheduler is closed.
+         */
+        void offer(byte[] data, int length) throws IOException {
+            byte[] copy = Arrays.copyOf(data, length);
+            byte[] header = framed ? ("FRAME|" + connId + "|" + length + "\n").getBytes(StandardCharsets.UTF_8) : null;
+            synchronized (RelayWriteScheduler.this) {
+                while (queuedBytes >= STREAM_LIMIT && !closed && running) {
+                    try {
+                        RelayWriteScheduler.this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while queueing for the relay");
+                    }
+                }
+                if (closed || !running) throw new IOException("Relay stream closed");
+                if (chunks.isEmpty()) active.add(this);
+                chunks.add(new Chunk(copy, header, System.nanoTime(), nextSeq++));
+                queuedBytes += length;
+                RelayWriteScheduler.this.notifyAll();
+            }
+        }
+
+        /**
+         * Accepts no more data; what is already queued is still sent.
+         */
+        void close() {
+            synchronized (RelayWriteScheduler.this) {
+                closed = true;
+                RelayWriteScheduler.this.notifyAll();
+            }
+        }
+
+        private boolean interactive() {
+            return sentBytes < LOGIN_BYTES || chunks.peek().data.length <= SMALL_CHUNK;
+        }
+
+        private Chunk take() {
+            Chunk chunk = chunks.poll();
+            queuedBytes -= chunk.data.length;
+            sentBytes += chunk.data.length;
+            if (chunks.isEmpty()) {
+                // An idle stream does not bank credit for later
+                deficit = 0;
+                if (active.peek() == this) turnStarted = false;
+                active.remove(this);
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * Writes to {@code out} while holding {@code writeLock}, the lock control messages are written under.
+     * With {@code framed} false, chunks keep their queue order across streams.
+     */
+    RelayWriteScheduler(OutputStream out, Object writeLock, TunnelClient client, boolean framed) {
+        this.out = out;
+        this.writeLock = writeLock;
+        this.client = client;
+        this.framed = framed;
+        this.thread = new Thread(this::run, "PortBridge-TunnelWriter");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Stream open(String connId) {
+        return new Stream(connId);
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Chunk chunk;
+                boolean more;
+                synchronized (this) {
+                    while (running && active.isEmpty()) {
+                        wait();
+                    }
+                    if (!running) return;
+                    chunk = next();
+                    more = !active.isEmpty();
+                    // Room in a stream's queue again
+                    notifyAll();
+                }
+                synchronized (writeLock) {
+                    if (chunk.header != null) out.write(chunk.header);
+                    out.write(chunk.data);
+                    // Chunks already waiting share one flush, and with TLS fewer records
+                    if (!more) out.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            boolean wasRunning;
+            synchronized (this) {
+                wasRunning = running;
+            }
+            if (wasRunning) {
+                LOGGER.debug("[PortBridge] Error writing player data to relay", e);
+                client.close("Send error");
+            }
+        }
+    }
+
+    // Interactive streams first, then one bulk chunk by deficit round-robin
+    private Chunk next() {
+        if (!framed) return oldest();
+        long now = System.nanoTime();
+        Iterator<Stream> it = active.iterator();
+        while (it.hasNext()) {
+            Stream stream = it.next();
+            if (!stream.interactive()) continue;
+            boolean current = stream == active.peek();
+            Chunk chunk = stream.take();
+            // Served streams go to the back so interactive streams alternate; a bulk turn in progress is kept
+            if (!stream.chunks.isEmpty() && !current) {
+                active.remove(stream);
+                active.add(stream);
+            }
+            interactiveChunks++;
+            long waited = TimeUnit.NANOSECONDS.toMicros(now - chunk.queuedAt);
+            interactiveWaitMicros += (waited - interactiveWaitMicros) * WAIT_ALPHA;
+            maxInteractiveWaitMicros = Math.max(maxInteractiveWaitMicros, waited);
+            return chunk;
+        }
+
+        while (true) {
+            Stream stream = active.peek();
+            if (!turnStarted) {
+                stream.deficit += QUANTUM;
+                turnStarted = true;
+            }
+            int size = stream.chunks.peek().data.length;
+            if (size <= stream.deficit) {
+                stream.deficit -= size;
+                bulkChunks++;
+                return stream.take();
+            }
+            // Turn over: the rest waits for the next round
+            active.add(active.poll());
+            turnStarted = false;
+        }
+    }
+
+    private Chunk oldest() {
+        Stream first = null;
+        for (Stream stream : active) {
+            if (first == null || stream.chunks.peek().seq < first.chunks.peek().seq) first = stream;
+        }
+        return first.take();
+    }
+
+    /**
+     * Stops the writer and drops anything still queued; forwarders blocked in offer are released.
+     */
+    void close() {
+        synchronized (this) {
+            running = false;
+            active.clear();
+            notifyAll();
+        }
+    }
+
+    void await(long deadlineNanos) throws InterruptedException {
+        long left = deadlineNanos - System.nanoTime();
+        if (left > 0) thread.join(Math.max(1, left / 1_000_000));
+    }
+
+    synchronized String getStats() {
+        int queued = 0;
+        for (Stream stream : active) {
+            queued += stream.queuedBytes;
+        }
+        if (!framed) {
+            return String.format("streams=%d queued=%dB in queue order (relay does not support FRAMES)", active.size(), queued);
+        }
+        return String.format("streams=%d queued=%dB interactive=%d bulk=%d interactiveWait avg=%.1fms max=%.1fms",
+                active.size(), queued, interactiveChunks, bulkChunks,
+                interactiveWaitMicros / 1000.0, maxInteractiveWaitMicros / 1000.0);
+    }
+}
@@ -1,16 +1,26 @@
 package com.darsh.portbridge.tunnel;
 
 import org.slf4j.Logger;
+import com.darsh.portbridge.Config;
+import com.darsh.portbridge.EventLog;
 import com.darsh.portbridge.PortBridge;
+import com.darsh.portbridge.PortBridgeEvents;
+import com.darsh.portbridge.metrics.PortBridgeMetrics;
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 
 public class TunnelClient {
     private static final Logger LOGGER = PortBridge.LOGGER;
-    private static final int KEEPALIVE_INTERVAL = 20000; // 20 seconds
     private static final int CONNECT_TIMEOUT = 5000; // 5 seconds
     private static final int READ_TIMEOUT = 10000; // 10 seconds
 
@@ -18,44 +28,151 @@ public class TunnelClient {
     private final int relayPort;
     private final TunnelSession session;
     private final ExecutorService executor;
+    private final ScheduledExecutorService keepaliveTimer;
+    private final KeepaliveController keepalive;
+    private ScheduledFuture<?> keepaliveTask;
+    private final ExecutorService connectionExecutor;
+    private final AdmissionController admission;
+    private final Map<String, TunnelForwarder> streams = new ConcurrentHashMap<>();
+    // Internal port to requested public port, for additionalPorts entries of protocol UDP
+    private final Map<Integer, Integer> udpPorts = new LinkedHashMap<>();
+    // Internal port to the public port the relay granted for it
+    private final Map<Integer, Integer> udpPublicPorts = new ConcurrentHashMap<>();
+    private volatile UdpForwarder udpForwarder;
+    private final UdpForwarder.Host udpHost = new UdpForwarder.Host() {
+        @Override
+        public void sendControl(String line) {
+            sendMessage(line);
+        }
+
+        @Override
+        public void recordTransfer(int bytes, boolean fromRelay) {
+            TunnelClient.this.recordTransfer(bytes, fromRelay);
+        }
+    };
+    // Writes player data on the shared connection; control messages go directly under writeLock
+    private volatile RelayWriteScheduler writer;
+    private final Object writeLock = new Object();
+    private LocalConnectionPool localPool;
+    private RelayChannelPool relayPool;
+    private String dataToken;
+    // The relay demultiplexes FRAME writes on the shared connection, so players' data may be reordered
+    private boolean framedWrites;
+    // The relay takes UDP_REGISTER and UDP_UNREGISTER at any time, not just after REGISTERED
+    private volatile boolean liveUdp;
 
     private Socket relaySocket;
     private InputStream relayIn;
     private OutputStream relayOut;
     private volatile boolean connected;
     private volatile boolean shouldRun;
-    private long lastKeepalive;
-    private long bytesTransferred;
+    private volatile long keepaliveSentAt;
+    private volatile long connectedAt;
+    private final PlayerStats playerStats;
+    private final LongAdder bytesTransferred = new LongAdder();
     private String lastDisconnectReason;
     private Thread clientThread;
 
-    public TunnelClient(String relayHost, int relayPort, TunnelSession session) {
+    public TunnelClient(String relayHost, int relayPort, TunnelSession session, PlayerStats playerStats, KeepaliveController keepalive) {
         this.relayHost = relayHost;
         this.relayPort = relayPort;
         this.session = session;
+        this.playerStats = playerStats;
+        this.keepalive = keepalive;
+        this.keepaliveTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "PortBridge-TunnelKeepalive");
+            t.setDaemon(true);
+            return t;
+        });
         this.executor = Executors.newSingleThreadExecutor(r -> {
             Thread t = new Thread(r, "PortBridge-TunnelIO");
             t.setDaemon(true);
             return t;
         });
+        this.connectionExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "PortBridge-TunnelConn");
+            t.setDaemon(true);
+            return t;
+        });
+        this.admission = new AdmissionController();
         this.connected = false;
         this.shouldRun = false;
-        this.bytesTransferred = 0;
+    }
+
+    /**
+     * Asks the relay to forward UDP on {@code externalPort} to {@code internalPort}.
+     * Takes effect on {@link #connect}.
+     */
+    public void forwardUdp(int internalPort, int externalPort) {
+        synchronized (udpPorts) {
+            udpPorts.put(internalPort, externalPort);
+        }
+    }
+
+    /**
+     * Brings the forwarded UDP ports in line with {@code wanted} (internal port to
+     * requested public port) without reconnecting. Returns false if the relay
+     * cannot change them on a live connection; they then apply at the next connect.
+     */
+    public boolean syncUdp(Map<Integer, Integer> wanted) {
+        if (!connected || !liveUdp) return false;
+        synchronized (udpPorts) {
+            for (Iterator<Map.Entry<Integer, Integer>> it = udpPorts.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Integer, Integer> entry = it.next();
+                if (entry.getValue().equals(wanted.get(entry.getKey()))) continue;
+                it.remove();
+                sendMessage("UDP_UNREGISTER|" + entry.getKey());
+                Integer publicPort = udpPublicPorts.remove(entry.getKey());
+                UdpForwarder udp = udpForwarder;
+                if (udp != null && publicPort != null) {
+                    udp.removePort(publicPort, entry.getKey());
+                }
+            }
+            for (Map.Entry<Integer, Integer> entry : wanted.entrySet()) {
+                if (udpPorts.putIfAbsent(entry.getKey(), entry.getValue()) == null) {
+                    sendMessage("UDP_REGISTER|" + entry.getKey() + "|" + entry.getValue());
+                }
+            }
+        }
+        return true;
     }
 
     public boolean connect() {
+        PortBridgeEvents.TunnelConnect event = new PortBridgeEvents.TunnelConnect();
+        event.begin();
+        long start = System.nanoTime();
+        boolean ok = doConnect();
+        long tookMs = (System.nanoTime() - start) / 1_000_000;
+        if (ok) {
+            connectedAt = System.nanoTime();
+            PortBridgeMetrics.TUNNEL_CONNECTS.increment();
+        }
+        EventLog.record(ok ? EventLog.Type.TUNNEL_CONNECTED : EventLog.Type.TUNNEL_CONNECT_FAILED, relayPort, 0, 0, tookMs);
+        if (event.shouldCommit()) {
+            event.relay = relayHost + ":" + relayPort;
+            event.tls = RelayTls.isEnabled();
+            event.success = ok;
+            event.publicAddress = ok ? session.getPublicAddress() : null;
+            event.error = ok ? null : lastDisconnectReason;
+            event.commit();
+        }
+        return ok;
+    }
+
+    private boolean doConnect() {
         try {
-            relaySocket = new Socket();
+            relaySocket = RelayConnector.connect(relayHost, relayPort, CONNECT_TIMEOUT);
             relaySocket.setKeepAlive(true);
             relaySocket.setSoTimeout(READ_TIMEOUT);
-            relaySocket.connect(new InetSocketAddress(relayHost, relayPort), CONNECT_TIMEOUT);
+            if (RelayTls.isEnabled()) {
+                relaySocket = RelayTls.wrap(relaySocket, relayHost, relayPort);
+            }
 
             relayIn = new BufferedInputStream(relaySocket.getInputStream());
             relayOut = new BufferedOutputStream(relaySocket.getOutputStream());
 
             shouldRun = true;
             connected = true;
-            lastKeepalive = System.currentTimeMillis();
 
             // Register with relay
             if (!registerWithRelay()) {
@@ -63,9 +180,33 @@ public class TunnelClient {
                 return false;
             }
 
-            // Start keepalive and message loop
+            // Warm local connections before the first player arrives
+            if (localPool == null) {
+                localPool = new LocalConnectionPool(session.getMinecraftPort());
+            }
+            if ("PER_CONNECTION".equalsIgnoreCase(Config.TUNNEL_DATA_MODE.get())) {
+                if (dataToken != null) {
+                    // The token is only valid on the relay instance this connection reached
+                    InetSocketAddress relayAddress = new InetSocketAddress(relaySocket.getInetAddress(), relayPort);
+                    relayPool = new RelayChannelPool(relayHost, relayAddress, session.getServerUUID(), dataToken);
+                } else {
+                    LOGGER.warn("[PortBridge] Relay does not offer data channels, using the shared tunnel connection");
+                }
+            }
+
+            writer = new RelayWriteScheduler(relayOut, writeLock, this, framedWrites);
+            writer.start();
+
+            // The read timeout only guarded registration; from here the keepalive controller detects a dead relay
+            relaySocket.setSoTimeout(0);
+            synchronized (udpPorts) {
+                for (Map.Entry<Integer, Integer> udp : udpPorts.entrySet()) {
+                    sendMessage("UDP_REGISTER|" + udp.getKey() + "|" + udp.getValue());
+                }
+            }
             executor.submit(this::messageLoop);
-            executor.submit(this::keepaliveLoop);
+            keepalive.connected(System.nanoTime());
+            scheduleKeepalive(0);
 
             LOGGER.info("[PortBridge] Tunnel connected to relay: {}:{}", relayHost, relayPort);
             return true;
@@ -98,6 +239,13 @@ public class TunnelClient {
                 if (parts.length >= 3) {
                     String publicHost = parts[1];
                     int publicPort = Integer.parseInt(parts[2]);
+                    // Relays that support per-connection data channels append a token for DATA
+                    dataToken = parts.length >= 4 && !parts[3].isEmpty() ? parts[3] : null;
+                    // Then a feature list; FRAMES means shared-connection data may be sent framed per player,
+                    // UDP_LIVE that UDP ports may be registered and unregistered on the live connection
+                    List<String> features = parts.length >= 5 ? Arrays.asList(parts[4].split(",")) : List.of();
+                    framedWrites = features.contains("FRAMES");
+                    liveUdp = features.contains("UDP_LIVE");
                     session.updateFromRelayResponse(publicHost, publicPort);
                     session.setActive(true);
                     LOGGER.info("[PortBridge] Tunnel registered. Public address: {}:{}", publicHost, publicPort);
@@ -120,15 +268,31 @@ public class TunnelClient {
             String line;
 
             while (shouldRun && (line = reader.readLine()) != null) {
+                keepalive.onInbound(System.nanoTime());
                 session.recordHeartbeat();
                 final String currentLine = line; // Make it effectively final for lambda
 
                 if (currentLine.startsWith("HEARTBEAT")) {
+                    long sent = keepaliveSentAt;
+                    if (sent != 0) {
+                        keepaliveSentAt = 0;
+                        long elapsed = System.nanoTime() - sent;
+                        PortBridgeMetrics.RELAY_RTT_SECONDS.observe(elapsed / 1e9);
+                        PortBridgeEvents.RelayRtt rtt = new PortBridgeEvents.RelayRtt();
+                        if (rtt.isEnabled()) {
+                            rtt.rtt = elapsed / 1_000_000;
+                            rtt.commit();
+                        }
+                    }
                     // Acknowledge heartbeat
                     sendMessage("HEARTBEAT_ACK");
                 } else if (currentLine.startsWith("CONNECTION|")) {
-                    // Handle new connection forward
-                    executor.submit(() -> handleConnection(currentLine));
+                    // Admission runs inline so a rejected connection costs no socket or thread
+                    onConnection(currentLine);
+                } else if (currentLine.startsWith("UDP_REGISTERED|")) {
+                    onUdpRegistered(currentLine);
+                } else if (currentLine.startsWith("UDP_ENDPOINT|")) {
+                    onUdpEndpoint(currentLine);
                 }
             }
 
@@ -143,46 +307,248 @@ public class TunnelClient {
         }
     }
 
-    private void handleConnection(String line) {
+    // CONNECTION|connId|sourceIp|sourcePort; relays that predate admission control omit the source
+    private void onConnection(String line) {
+        String[] parts = line.split("\\|");
+        if (parts.length < 2) return;
+
+        String connId = parts[1];
+        String sourceIp = parts.length >= 3 ? parts[2] : null;
+        int sourcePort = parsePort(parts.length >= 4 ? parts[3] : null);
+        AdmissionController.Verdict verdict = admission.admit(sourceIp);
+        if (verdict != AdmissionController.Verdict.ACCEPT) {
+            sendMessage("REJECT|" + connId);
+            EventLog.record(EventLog.Type.STREAM_REJECTED, sourcePort, 0, verdict.ordinal(), 0);
+            if (Config.DEBUG_LOGGING.get()) {
+                LOGGER.debug("[PortBridge] Rejected tunnel connection {} from {}: {}", connId, sourceIp, verdict);
+            }
+            return;
+        }
+
+        // Warm sockets are bound right here; only a pool miss pays for a connect on another thread
+        LocalConnectionPool pool = localPool;
+        RelayChannelPool dataPool = relayPool;
+        Socket local = pool != null ? pool.poll() : null;
+        Socket data = dataPool != null ? dataPool.poll() : relaySocket;
+        if (local != null && data != null) {
+            bindConnection(connId, local, data, sourceIp, sourcePort, true);
+        } else {
+            connectionExecutor.submit(() -> handleConnection(connId, local, data, sourceIp, sourcePort));
+        }
+    }
+
+    // UDP_REGISTERED|internalPort|publicPort|relayUdpPort|token, token as 16 hex digits
+    private void onUdpRegistered(String line) {
+        String[] parts = line.split("\\|");
+        if (parts.length < 5) return;
+        int internalPort = parsePort(parts[1]);
+        int publicPort = parsePort(parts[2]);
+        int relayUdpPort = parsePort(parts[3]);
+        long token;
         try {
-            String[] parts = line.split("\\|");
-            if (parts.length < 2) return;
+            token = Long.parseUnsignedLong(parts[4].trim(), 16);
+        } catch (NumberFormatException e) {
+            LOGGER.warn("[PortBridge] Relay sent an invalid UDP registration: {}", line);
+            return;
+        }
+        if (internalPort < 0 || publicPort < 0 || relayUdpPort < 0) return;
+        synchronized (udpPorts) {
+            // Unregistered while the reply was on its way
+            if (!udpPorts.containsKey(internalPort)) return;
+            udpPublicPorts.put(internalPort, publicPort);
+        }
 
-            String connId = parts[1];
-            int localPort = session.getMinecraftPort();
+        UdpForwarder udp = udpForwarder;
+        if (udp == null) {
+            try {
+                udp = new UdpForwarder(udpHost, new InetSocketAddress(relaySocket.getInetAddress(), relayUdpPort), token,
+                        Config.TUNNEL_UDP_MAX_FLOWS.get(), Config.TUNNEL_UDP_IDLE_TIMEOUT.get());
+            } catch (IOException e) {
+                LOGGER.warn("[PortBridge] Could not open UDP channel to relay: {}", e.getMessage());
+                return;
+            }
+            udpForwarder = udp;
+            udp.start();
+            if (!shouldRun) {
+                udp.close();
+                return;
+            }
+        } else if (udp.getToken() != token) {
+            LOGGER.warn("[PortBridge] Relay registered UDP port {} under a different session token, ignoring", publicPort);
+            return;
+        }
+        udp.addPort(publicPort, internalPort);
+        LOGGER.info("[PortBridge] UDP port {} reachable at {}:{}", internalPort, session.getPublicHost(), publicPort);
+        if (Config.TUNNEL_UDP_DIRECT.get()) {
+            udp.addDirect(internalPort);
+        }
+    }
 
-            // Create connection to local Minecraft server
-            Socket localSocket = new Socket("127.0.0.1", localPort);
-            TunnelForwarder forwarder = new TunnelForwarder(connId, relaySocket, localSocket, this);
-            forwarder.start();
+    // UDP_ENDPOINT|internalPort|ip|port|nonce: the relay saw our direct channel there and will probe it
+    private void onUdpEndpoint(String line) {
+        String[] parts = line.split("\\|");
+        UdpForwarder udp = udpForwarder;
+        if (parts.length < 5 || udp == null) return;
+        int internalPort = parsePort(parts[1]);
+        int port = parsePort(parts[3]);
+        if (internalPort < 0 || port < 0) return;
+        long nonce;
+        InetSocketAddress endpoint;
+        try {
+            nonce = Long.parseUnsignedLong(parts[4].trim(), 16);
+            // The relay sends a literal address, so this does no lookup
+            endpoint = new InetSocketAddress(InetAddress.getByName(parts[2].trim()), port);
+        } catch (NumberFormatException | UnknownHostException e) {
+            LOGGER.warn("[PortBridge] Relay sent an invalid UDP endpoint: {}", line);
+            return;
+        }
+        udp.onEndpoint(internalPort, endpoint, nonce);
+    }
 
+    private void handleConnection(String connId, Socket local, Socket data, String sourceIp, int sourcePort) {
+        boolean warmLocal = local != null;
+        try {
+            if (local == null) {
+                LocalConnectionPool pool = localPool;
+                local = pool != null ? pool.connect() : new Socket("127.0.0.1", session.getMinecraftPort());
+            }
+            if (data == null) {
+                RelayChannelPool dataPool = relayPool;
+                if (dataPool == null) throw new IOException("Tunnel closed");
+                data = dataPool.open();
+            }
         } catch (Exception e) {
+            closeUnbound(local, data);
+            admission.release(true);
+            sendMessage("REJECT|" + connId);
             LOGGER.error("[PortBridge] Error handling tunnel connection", e);
+            return;
         }
+        bindConnection(connId, local, data, sourceIp, sourcePort, warmLocal);
     }
 
-    private void keepaliveLoop() {
-        while (shouldRun) {
-            try {
-                long now = System.currentTimeMillis();
-                if (now - lastKeepalive > KEEPALIVE_INTERVAL) {
-                    sendMessage("KEEPALIVE");
-                    lastKeepalive = now;
-                    session.recordHeartbeat();
-                }
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
+    private void bindConnection(String connId, Socket localSocket, Socket dataSocket, String sourceIp, int sourcePort, boolean warmLocal) {
+        PortBridgeEvents.StreamOpen event = new PortBridgeEvents.StreamOpen();
+        event.begin();
+        try {
+            if (dataSocket != relaySocket) {
+                RelayChannelPool.bind(dataSocket, connId);
+            }
+            if (Config.TUNNEL_PROXY_PROTOCOL.get()) {
+                // Lets the server see the player's address instead of 127.0.0.1
+                ProxyProtocol.writeHeader(localSocket.getOutputStream(), sourceIp, sourcePort,
+                        (InetSocketAddress) localSocket.getRemoteSocketAddress());
+            }
+            RelayWriteScheduler shared = writer;
+            if (dataSocket == relaySocket && shared == null) throw new IOException("Tunnel closed");
+            TunnelForwarder forwarder = new TunnelForwarder(connId, dataSocket, localSocket, this,
+                    dataSocket == relaySocket ? shared.open(connId) : null);
+            streams.put(connId, forwarder);
+            forwarder.start();
+            PortBridgeMetrics.TUNNEL_STREAMS_OPENED.increment();
+            EventLog.record(EventLog.Type.STREAM_OPENED, sourcePort);
+            if (event.shouldCommit()) {
+                event.connectionId = connId;
+                event.source = sourceIp;
+                event.warmLocal = warmLocal;
+                event.dataChannel = dataSocket != relaySocket;
+                event.commit();
             }
+        } catch (Exception e) {
+            closeUnbound(localSocket, dataSocket);
+            admission.release(true);
+            sendMessage("REJECT|" + connId);
+            LOGGER.error("[PortBridge] Error handling tunnel connection", e);
+        }
+    }
+
+    // Closes sockets taken for a connection that never started; the shared relay socket is left alone
+    private void closeUnbound(Socket local, Socket data) {
+        try {
+            if (local != null) local.close();
+            if (data != null && data != relaySocket) data.close();
+        } catch (IOException e) {
+            LOGGER.debug("[PortBridge] Error closing unbound sockets", e);
         }
     }
 
-    private synchronized void sendMessage(String message) {
+    private static int parsePort(String value) {
         try {
-            if (relayOut != null && connected) {
-                relayOut.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+            return value != null ? Integer.parseInt(value.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    void connectionEstablished() {
+        admission.established();
+    }
+
+    void connectionClosed(String connId, boolean wasPending) {
+        streams.remove(connId);
+        admission.release(wasPending);
+    }
+
+    // One timer per connection, re-armed for exactly when the controller next needs to look
+    private synchronized void scheduleKeepalive(long delayNanos) {
+        if (!shouldRun || keepaliveTimer.isShutdown()) return;
+        keepaliveTask = keepaliveTimer.schedule(this::keepaliveTick, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void keepaliveTick() {
+        if (!shouldRun) return;
+        long next = keepalive.tick(System.nanoTime(), () -> {
+            keepaliveSentAt = System.nanoTime();
+            sendMessage("KEEPALIVE");
+        });
+        if (next < 0) {
+            close("Relay stopped answering keepalives");
+            return;
+        }
+        scheduleKeepalive(next);
+    }
+
+    /**
+     * Player traffic arrived over the shared relay connection, which proves it alive.
+     */
+    void relayActivity() {
+        keepalive.onInbound(System.nanoTime());
+    }
+
+    // Tells the relay to drop every open stream, then closes their local ends
+    private void closeStreams() {
+        if (streams.isEmpty()) return;
+        sendCloses(streams.keySet());
+        for (TunnelForwarder forwarder : streams.values()) {
+            forwarder.close();
+        }
+    }
+
+    // One write for all streams; a failure here must not re-enter close()
+    private void sendCloses(Collection<String> connIds) {
+        if (relayOut == null || !connected) return;
+        StringBuilder sb = new StringBuilder(connIds.size() * 24);
+        for (String connId : connIds) {
+            sb.append("CLOSE|").append(connId).append('\n');
+        }
+        synchronized (writeLock) {
+            try {
+                relayOut.write(sb.toString().getBytes(StandardCharsets.UTF_8));
                 relayOut.flush();
+            } catch (IOException e) {
+                LOGGER.debug("[PortBridge] Error sending CLOSE to relay", e);
+            }
+        }
+    }
+
+    // Not behind the player data queue: a control line waits for at most the chunk being written
+    private void sendMessage(String message) {
+        try {
+            synchronized (writeLock) {
+                if (relayOut != null && connected) {
+                    relayOut.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+                    relayOut.flush();
+                }
             }
         } catch (IOException e) {
             LOGGER.debug("[PortBridge] Error sending message to relay", e);
@@ -190,14 +556,35 @@ public class TunnelClient {
         }
     }
 
-    public void recordTransfer(int bytes) {
-        this.bytesTransferred += bytes;
+    public void recordTransfer(int bytes, boolean fromRelay) {
+        bytesTransferred.add(bytes);
+        (fromRelay ? PortBridgeMetrics.TUNNEL_BYTES_IN : PortBridgeMetrics.TUNNEL_BYTES_OUT).add(bytes);
     }
 
     public void close(String reason) {
         lastDisconnectReason = reason;
+        long since = connectedAt;
+        if (since != 0) {
+            connectedAt = 0;
+            EventLog.record(EventLog.Type.TUNNEL_DISCONNECTED, 0, 0, 0, (System.nanoTime() - since) / 1_000_000);
+        }
+        closeStreams();
         shouldRun = false;
         connected = false;
+        RelayWriteScheduler shared = writer;
+        if (shared != null) {
+            shared.close();
+        }
+        UdpForwarder udp = udpForwarder;
+        if (udp != null) {
+            udp.close();
+        }
+        synchronized (this) {
+            if (keepaliveTask != null) {
+                keepaliveTask.cancel(false);
+                keepaliveTask = null;
+            }
+        }
 
         try {
             if (relaySocket != null && !relaySocket.isClosed()) {
@@ -207,6 +594,15 @@ public class TunnelClient {
             LOGGER.debug("[PortBridge] Error closing relay socket", e);
         }
 
+        if (localPool != null) {
+            localPool.close();
+            localPool = null;
+        }
+        if (relayPool != null) {
+            relayPool.close();
+            relayPool = null;
+        }
+
         session.setActive(false);
         LOGGER.info("[PortBridge] Tunnel disconnected: {}", reason);
     }
@@ -220,7 +616,39 @@ public class TunnelClient {
     }
 
     public long getBytesTransferred() {
-        return bytesTransferred;
+        return bytesTransferred.sum();
+    }
+
+    public String getLocalPoolStats() {
+        LocalConnectionPool pool = localPool;
+        return pool != null ? pool.getStats() : "N/A";
+    }
+
+    public String getUdpStats() {
+        UdpForwarder udp = udpForwarder;
+        if (udp != null) return udp.getStats();
+        return udpPorts.isEmpty() ? "N/A" : "not offered by relay";
+    }
+
+    public String getWriterStats() {
+        RelayWriteScheduler shared = writer;
+        return shared != null ? shared.getStats() : "N/A";
+    }
+
+    public String getDataPoolStats() {
+        RelayChannelPool pool = relayPool;
+        return pool != null ? pool.getStats() : "N/A";
+    }
+
+    /**
+     * Per-player accounting shared across reconnects, or null when disabled.
+     */
+    public PlayerStats getPlayerStats() {
+        return playerStats;
+    }
+
+    public AdmissionController getAdmission() {
+        return admission;
     }
 
     public String getLastDisconnectReason() {
@@ -238,5 +666,29 @@ public class TunnelClient {
     public void shutdown() {
         close("Shutdown requested");
         executor.shutdownNow();
+        keepaliveTimer.shutdownNow();
+        connectionExecutor.shutdownNow();
+    }
+
+    /**
+     * After {@link #shutdown}, waits for stream and I/O threads to exit until the
+     * deadline. Returns the number of streams still open.
+     */
+    public int awaitTermination(long deadlineNanos) throws InterruptedException {
+        for (TunnelForwarder forwarder : streams.values()) {
+            if (!forwarder.await(deadlineNanos)) break;
+        }
+        UdpForwarder udp = udpForwarder;
+        if (udp != null) {
+            udp.await(deadlineNanos);
+        }
+        RelayWriteScheduler shared = writer;
+        if (shared != null) {
+            shared.await(deadlineNanos);
+        }
+        executor.awaitTermination(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        keepaliveTimer.awaitTermination(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        connectionExecutor.awaitTermination(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        return streams.size();
     }
 }
@@ -1,60 +1,253 @@
 package com.darsh.portbridge.tunnel;
 
 import org.slf4j.Logger;
+import com.darsh.portbridge.EventLog;
 import com.darsh.portbridge.PortBridge;
+import com.darsh.portbridge.PortBridgeEvents;
 import java.io.*;
 import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TunnelForwarder {
     private static final Logger LOGGER = PortBridge.LOGGER;
-    private static final int BUFFER_SIZE = 8192;
+    // One full TLS record of plaintext, so a burst goes out as few, full records
+    private static final int BUFFER_SIZE = 16384;
+    private static final int PENDING = 0;
+    private static final int ESTABLISHED = 1;
+    private static final int CLOSED = 2;
+    // Writes blocked longer than this are recorded as flow-control stalls
+    private static final long STALL_NANOS = 20_000_000L;
 
     private final String connectionId;
     private final Socket relaySocket;
     private final Socket localSocket;
     private final TunnelClient tunnelClient;
+    // The relay socket is the shared control connection rather than a dedicated data channel
+    private final boolean sharedRelay;
+    // Our queue on the shared connection's writer, or null on a dedicated data channel
+    private final RelayWriteScheduler.Stream relayStream;
+    private Thread relayToLocal;
+    private Thread localToRelay;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    private final PortBridgeEvents.StreamClose closeEvent = new PortBridgeEvents.StreamClose();
+    private volatile long bytesIn;
+    private volatile long bytesOut;
+    private final long openedAt = System.nanoTime();
 
-    public TunnelForwarder(String connectionId, Socket relaySocket, Socket localSocket, TunnelClient tunnelClient) {
+    // Per-player accounting; each direction credits only its own counters
+    private final PlayerStats playerStats;
+    private LoginSniffer sniffer;
+    private volatile int playerSlot = -1;
+    private final AtomicBoolean playerReleased = new AtomicBoolean();
+    private long creditedIn;
+    private long creditedOut;
+    private int readsIn;
+    private int readsOut;
+
+    public TunnelForwarder(String connectionId, Socket relaySocket, Socket localSocket, TunnelClient tunnelClient,
+                           RelayWriteScheduler.Stream relayStream) {
         this.connectionId = connectionId;
         this.relaySocket = relaySocket;
         this.localSocket = localSocket;
         this.tunnelClient = tunnelClient;
+        this.relayStream = relayStream;
+        this.sharedRelay = relayStream != null;
+        this.playerStats = tunnelClient.getPlayerStats();
+        this.sniffer = playerStats != null ? new LoginSniffer() : null;
+        closeEvent.begin();
     }
 
     public void start() {
-        new Thread(this::forwardRelayToLocal, "TunnelFwd-" + connectionId + "-R2L").start();
-        new Thread(this::forwardLocalToRelay, "TunnelFwd-" + connectionId + "-L2R").start();
+        relayToLocal = new Thread(this::forwardRelayToLocal, "TunnelFwd-" + connectionId + "-R2L");
+        localToRelay = new Thread(this::forwardLocalToRelay, "TunnelFwd-" + connectionId + "-L2R");
+        // A stream stuck on a dead peer must not hold the JVM open at server stop
+        relayToLocal.setDaemon(true);
+        localToRelay.setDaemon(true);
+        relayToLocal.start();
+        localToRelay.start();
+    }
+
+    /**
+     * Ends the stream from outside. Closing the sockets unblocks both threads,
+     * which then finish as if the peer had hung up. The shared relay connection
+     * is left to its owner.
+     */
+    void close() {
+        try {
+            localSocket.close();
+            if (sharedRelay) {
+                // Releases the L2R thread if it is waiting for room in the writer's queue
+                relayStream.close();
+            } else {
+                relaySocket.close();
+            }
+        } catch (IOException e) {
+            LOGGER.debug("[PortBridge] Error closing tunnel stream {}", connectionId, e);
+        }
+    }
+
+    /**
+     * Waits for both forwarding threads to exit; returns false if the deadline passed first.
+     */
+    boolean await(long deadlineNanos) throws InterruptedException {
+        for (Thread t : new Thread[] {relayToLocal, localToRelay}) {
+            if (t == null) continue;
+            long left = deadlineNanos - System.nanoTime();
+            if (left > 0) t.join(Math.max(1, left / 1_000_000));
+            if (t.isAlive()) return false;
+        }
+        return true;
     }
 
     private void forwardRelayToLocal() {
         byte[] buffer = new byte[BUFFER_SIZE];
-        try (InputStream relayIn = relaySocket.getInputStream();
+        // Closing the shared connection's stream would close the tunnel for every player
+        try (InputStream ownRelayIn = sharedRelay ? null : relaySocket.getInputStream();
              OutputStream localOut = localSocket.getOutputStream()) {
+            InputStream relayIn = sharedRelay ? relaySocket.getInputStream() : ownRelayIn;
 
             int bytesRead;
             while ((bytesRead = relayIn.read(buffer)) != -1) {
+                // Identify the player before the server sees the login, so its reply is attributed
+                if (sniffer != null && sniffer.feed(buffer, 0, bytesRead)) {
+                    identify();
+                }
+                long t0 = System.nanoTime();
                 localOut.write(buffer, 0, bytesRead);
                 localOut.flush();
-                tunnelClient.recordTransfer(bytesRead);
+                recordStall("relay->local", bytesRead, System.nanoTime() - t0);
+                bytesIn += bytesRead;
+                tunnelClient.recordTransfer(bytesRead, true);
+                if (sharedRelay) {
+                    tunnelClient.relayActivity();
+                }
+                readsIn++;
+                creditIn();
             }
         } catch (IOException e) {
             LOGGER.debug("[PortBridge] Error forwarding relay to local", e);
+        } finally {
+            creditIn();
+            finish();
         }
     }
 
     private void forwardLocalToRelay() {
         byte[] buffer = new byte[BUFFER_SIZE];
+        // The shared connection is written by the scheduler only; closing its stream would close the tunnel
         try (InputStream localIn = localSocket.getInputStream();
-             OutputStream relayOut = relaySocket.getOutputStream()) {
+             OutputStream relayOut = sharedRelay ? null : relaySocket.getOutputStream()) {
 
             int bytesRead;
             while ((bytesRead = localIn.read(buffer)) != -1) {
-                relayOut.write(buffer, 0, bytesRead);
-                relayOut.flush();
-                tunnelClient.recordTransfer(bytesRead);
+                // The server's first bytes end the pending-handshake phase for admission control
+                if (state.compareAndSet(PENDING, ESTABLISHED)) {
+                    tunnelClient.connectionEstablished();
+                    int slot = playerSlot;
+                    if (slot >= 0) {
+                        playerStats.recordLatency(slot, (System.nanoTime() - openedAt) / 1_000_000);
+                    }
+                }
+                // A lone small packet is sent at once; a burst already queued is coalesced into one write
+                int more;
+                while (bytesRead < buffer.length && localIn.available() > 0
+                        && (more = localIn.read(buffer, bytesRead, buffer.length - bytesRead)) > 0) {
+                    bytesRead += more;
+                }
+                long t0 = System.nanoTime();
+                if (sharedRelay) {
+                    relayStream.offer(buffer, bytesRead);
+                } else {
+                    relayOut.write(buffer, 0, bytesRead);
+                    relayOut.flush();
+                }
+                recordStall("local->relay", bytesRead, System.nanoTime() - t0);
+                bytesOut += bytesRead;
+                tunnelClient.recordTransfer(bytesRead, false);
+                readsOut++;
+                creditOut();
             }
         } catch (IOException e) {
             LOGGER.debug("[PortBridge] Error forwarding local to relay", e);
+        } finally {
+            if (sharedRelay) {
+                // What the server sent last, such as a kick message, still goes out
+                relayStream.close();
+            }
+            creditOut();
+            finish();
+        }
+    }
+
+    private void identify() {
+        LoginSniffer done = sniffer;
+        sniffer = null;
+        if (done.name != null) {
+            playerSlot = playerStats.open(done.name, done.uuidMost, done.uuidLeast);
+            // The stream may have closed while the login was being read
+            if (state.get() == CLOSED) {
+                releasePlayer();
+            }
+        }
+    }
+
+    private void releasePlayer() {
+        int slot = playerSlot;
+        if (slot >= 0 && playerReleased.compareAndSet(false, true)) {
+            playerStats.close(slot);
+        }
+    }
+
+    // Bytes read before the login was identified are credited with the first update after it
+    private void creditIn() {
+        int slot = playerSlot;
+        if (slot >= 0 && bytesIn > creditedIn) {
+            playerStats.addIn(slot, bytesIn - creditedIn, readsIn);
+            creditedIn = bytesIn;
+            readsIn = 0;
+        }
+    }
+
+    private void creditOut() {
+        int slot = playerSlot;
+        if (slot >= 0 && bytesOut > creditedOut) {
+            playerStats.addOut(slot, bytesOut - creditedOut, readsOut);
+            creditedOut = bytesOut;
+            readsOut = 0;
+        }
+    }
+
+    // Runs once, from whichever direction ends first
+    private void finish() {
+        int previous = state.getAndSet(CLOSED);
+        if (previous == CLOSED) return;
+        try {
+            localSocket.close();
+        } catch (IOException e) {
+            LOGGER.debug("[PortBridge] Error closing local socket", e);
+        }
+        tunnelClient.connectionClosed(connectionId, previous == PENDING);
+        releasePlayer();
+        EventLog.record(EventLog.Type.STREAM_CLOSED, 0, bytesIn + bytesOut, 0, (System.nanoTime() - openedAt) / 1_000_000);
+        if (closeEvent.shouldCommit()) {
+            closeEvent.connectionId = connectionId;
+            closeEvent.bytesIn = bytesIn;
+            closeEvent.bytesOut = bytesOut;
+            closeEvent.established = previous != PENDING;
+            closeEvent.commit();
+        }
+    }
+
+    private void recordStall(String direction, int bytes, long blocked) {
+        if (blocked < STALL_NANOS) return;
+        PortBridgeEvents.FlowStall event = new PortBridgeEvents.FlowStall();
+        if (event.isEnabled()) {
+            event.connectionId = connectionId;
+            event.direction = direction;
+            event.bytes = bytes;
+            event.blocked = blocked;
+            event.commit();
         }
     }
 }
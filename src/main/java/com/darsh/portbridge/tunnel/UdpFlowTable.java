@@ -0,0 +1,189 @@
+package com.darsh.portbridge.tunnel;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.util.Arrays;
+
+/**
+ * Open-addressing table of tunnelled UDP flows. A flow is keyed by its 5-tuple
+ * as the relay saw it. The protocol is always UDP and the relay end is fixed,
+ * so the key is the player's address and port plus the public port they sent
+ * to. Flows that reach us directly rather than through the relay are keyed by
+ * the internal port instead, and flagged as direct. Addresses are stored as
+ * two longs, with IPv4 mapped into IPv6, so a lookup per datagram allocates
+ * nothing. Each flow holds the selection key of the local channel that speaks
+ * for it, and that key's attachment is the flow's slot. Used from the UDP
+ * thread only.
+ */
+final class UdpFlowTable {
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+    private static final byte DELETED = 2;
+
+    private final int maxFlows;
+    private final int mask;
+    private final byte[] state;
+    private final long[] addressHigh;
+    private final long[] addressLow;
+    // Player port in the high 16 bits, public port in the low 16
+    private final int[] ports;
+    private final boolean[] direct;
+    // Where replies go for direct flows; relay flows are answered through the relay
+    private final InetSocketAddress[] peers;
+    private final SelectionKey[] keys;
+    private final long[] lastActive;
+    private int size;
+    private int deleted;
+
+    UdpFlowTable(int maxFlows) {
+        this.maxFlows = maxFlows;
+        // At most half full, so probe chains stay short
+        int capacity = Integer.highestOneBit(Math.max(2, maxFlows) * 2 - 1) << 1;
+        this.mask = capacity - 1;
+        this.state = new byte[capacity];
+        this.addressHigh = new long[capacity];
+        this.addressLow = new long[capacity];
+        this.ports = new int[capacity];
+        this.direct = new boolean[capacity];
+        this.peers = new InetSocketAddress[capacity];
+        this.keys = new SelectionKey[capacity];
+        this.lastActive = new long[capacity];
+    }
+
+    static int packPorts(int playerPort, int publicPort) {
+        return (playerPort & 0xffff) << 16 | (publicPort & 0xffff);
+    }
+
+    /**
+     * Slot of the flow, or -1.
+     */
+    int find(long high, long low, int packedPorts, boolean isDirect) {
+        for (int i = hash(high, low, packedPorts, isDirect) & mask, n = 0; n <= mask; i = (i + 1) & mask, n++) {
+            byte s = state[i];
+            if (s == EMPTY) return -1;
+            if (s == USED && addressHigh[i] == high && addressLow[i] == low && ports[i] == packedPorts
+                    && direct[i] == isDirect) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a flow the caller knows is absent. Returns its slot, or -1 at {@code maxFlows}.
+     */
+    int insert(long high, long low, int packedPorts, InetSocketAddress peer, SelectionKey key, long now) {
+        boolean isDirect = peer != null;
+        if (size >= maxFlows) return -1;
+        if (size + deleted >= (mask + 1) * 3 / 4) {
+            rebuild();
+        }
+        int i = hash(high, low, packedPorts, isDirect) & mask;
+        while (state[i] == USED) {
+            i = (i + 1) & mask;
+        }
+        if (state[i] == DELETED) deleted--;
+        state[i] = USED;
+        addressHigh[i] = high;
+        addressLow[i] = low;
+        ports[i] = packedPorts;
+        direct[i] = isDirect;
+        peers[i] = peer;
+        keys[i] = key;
+        lastActive[i] = now;
+        key.attach(i);
+        size++;
+        return i;
+    }
+
+    void remove(int slot) {
+        state[slot] = DELETED;
+        keys[slot] = null;
+        peers[slot] = null;
+        size--;
+        deleted++;
+    }
+
+    void touch(int slot, long now) {
+        lastActive[slot] = now;
+    }
+
+    SelectionKey key(int slot) {
+        return keys[slot];
+    }
+
+    long addressHigh(int slot) {
+        return addressHigh[slot];
+    }
+
+    long addressLow(int slot) {
+        return addressLow[slot];
+    }
+
+    int ports(int slot) {
+        return ports[slot];
+    }
+
+    /**
+     * The player's address for a direct flow, or null for one carried by the relay.
+     */
+    InetSocketAddress peer(int slot) {
+        return peers[slot];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Fills {@code out} with slots of flows idle since before {@code cutoff} and
+     * returns how many; the caller removes them.
+     */
+    int collectIdle(long cutoff, int[] out) {
+        int n = 0;
+        for (int i = 0; i <= mask && n < out.length; i++) {
+            if (state[i] == USED && lastActive[i] - cutoff < 0) {
+                out[n++] = i;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Slots of every flow, for closing them all.
+     */
+    int[] slots() {
+        int[] out = new int[size];
+        int n = 0;
+        for (int i = 0; i <= mask; i++) {
+            if (state[i] == USED) out[n++] = i;
+        }
+        return out;
+    }
+
+    // Reinserts the live flows to clear tombstones; keys are re-attached with their new slots
+    private void rebuild() {
+        byte[] oldState = state.clone();
+        long[] oldHigh = addressHigh.clone();
+        long[] oldLow = addressLow.clone();
+        int[] oldPorts = ports.clone();
+        InetSocketAddress[] oldPeers = peers.clone();
+        SelectionKey[] oldKeys = keys.clone();
+        long[] oldActive = lastActive.clone();
+        Arrays.fill(state, EMPTY);
+        Arrays.fill(keys, null);
+        Arrays.fill(peers, null);
+        size = 0;
+        deleted = 0;
+        for (int i = 0; i < oldState.length; i++) {
+            if (oldState[i] == USED) {
+                insert(oldHigh[i], oldLow[i], oldPorts[i], oldPeers[i], oldKeys[i], oldActive[i]);
+            }
+        }
+    }
+
+    private static int hash(long high, long low, int packedPorts, boolean isDirect) {
+        long h = high * 0x9E3779B97F4A7C15L ^ low * 0xC2B2AE3D27D4EB4FL ^ packedPorts ^ (isDirect ? 1L << 40 : 0);
+        h ^= h >>> 31;
+        h *= 0x165667B19E3779F9L;
+        return (int) (h ^ h >>> 32);
+    }
+}
@@ -0,0 +1,663 @@
+package com.darsh.portbridge.tunnel;
+
+import com.darsh.portbridge.PortBridge;
+import com.darsh.portbridge.metrics.PortBridgeMetrics;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries the UDP entries of {@code additionalPorts} (voice chat, Bedrock via
+ * Geyser) between the relay and the local server. Datagrams travel as UDP
+ * frames to the relay's datagram port and never touch the TCP control
+ * connection. A voice packet is never queued behind stream data, and a lost
+ * one stays lost instead of stalling the ones after it.
+ *
+ * Each player flow gets its own local DatagramChannel connected to the server
+ * port, so the server sees one peer per player. Flows idle for
+ * {@code tunnel.udp.idleTimeoutSeconds} are closed. One thread serves every
+ * channel. Each wakeup drains up to BATCH datagrams per ready channel through
+ * one buffer, with no allocation per datagram.
+ *
+ * Frame, in both directions: type (1 byte), session token (8), address length
+ * (1, 4 or 16), player address, player port (2), public port (2), payload.
+ * HELLO frames carry only type and token. They keep our NAT binding to the
+ * relay open and tell the relay where to send.
+ *
+ * With {@code tunnel.udp.direct}, the relay also acts as a rendezvous so that
+ * players can skip it. Each UDP port gets a second, unconnected channel that
+ * sends DIRECT_HELLO (type, token, internal port) to the relay. The relay
+ * replies on the control connection with the endpoint it observed and a nonce.
+ * It then sends PROBE (type, token, nonce) to that endpoint from a different
+ * source. A probe only gets through a NAT that maps and filters independently
+ * of the destination. A probe that beats the control line is held until the
+ * line arrives. Once a probe matches, datagrams from anyone on that endpoint
+ * are served directly, and the relay is told it may hand the endpoint out.
+ * If the endpoint moves, it is withdrawn and probed again. The relay path
+ * keeps working throughout.
+ */
+final class UdpForwarder {
+    private static final Logger LOGGER = PortBridge.LOGGER;
+    private static final byte TYPE_DATA = 1;
+    private static final byte TYPE_HELLO = 2;
+    private static final byte TYPE_DIRECT_HELLO = 3;
+    private static final byte TYPE_PROBE = 4;
+    private static final int PROBE_LENGTH = 17;
+    private static final long PROBE_TIMEOUT_MS = 5000;
+    // Datagrams taken from one channel per wakeup, so a busy flow cannot starve the rest
+    private static final int BATCH = 64;
+    private static final int MAX_PAYLOAD = 65507;
+    private static final int ADDRESS_AT = 10;
+    private static final int MAX_HEADER = ADDRESS_AT + 16 + 4;
+    private static final long HELLO_INTERVAL_MS = 15_000;
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    private final Host host;
+    private final long token;
+    private final int maxFlows;
+    private final long idleNanos;
+    private final UdpFlowTable flows;
+    private final Selector selector;
+    private final DatagramChannel relayChannel;
+    private final InetSocketAddress relay;
+    // Direct paths, touched by the UDP thread only; the control thread hands work over through tasks
+    private final List<Direct> directs = new ArrayList<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    // Public port and internal port pairs, replaced whole when the relay confirms another port
+    private volatile int[] portMap = new int[0];
+
+    private volatile long datagramsIn;
+    private volatile long datagramsOut;
+    private volatile long dropped;
+    private volatile String directSummary = "";
+
+    private enum DirectState {
+        // Waiting for the relay to report the endpoint it sees
+        UNKNOWN,
+        PROBING,
+        VERIFIED,
+        // The NAT drops unsolicited datagrams; only the relay path is used
+        UNREACHABLE
+    }
+
+    /**
+     * What the forwarder needs from the tunnel connection it belongs to.
+     */
+    interface Host {
+        void sendControl(String line);
+
+        void recordTransfer(int bytes, boolean fromRelay);
+    }
+
+    private static final class Direct {
+        final int internalPort;
+        final DatagramChannel channel;
+        DirectState state = DirectState.UNKNOWN;
+        InetSocketAddress endpoint;
+        long nonce;
+        long probeDeadline;
+        // A probe that overtook the control line announcing it; checked when that line arrives
+        boolean earlyProbe;
+        long earlyNonce;
+
+        Direct(int internalPort, DatagramChannel channel) {
+            this.internalPort = internalPort;
+            this.channel = channel;
+        }
+    }
+
+    UdpForwarder(Host host, InetSocketAddress relay, long token, int maxFlows, int idleTimeoutSeconds) throws IOException {
+        this.host = host;
+        this.token = token;
+        this.maxFlows = maxFlows;
+        this.idleNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+        this.flows = new UdpFlowTable(maxFlows);
+        this.relay = relay;
+        this.selector = Selector.open();
+        try {
+            this.relayChannel = DatagramChannel.open();
+            relayChannel.configureBlocking(false);
+            // Connected, so only the relay can feed us datagrams
+            relayChannel.connect(relay);
+            relayChannel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            selector.close();
+            throw e;
+        }
+        this.thread = new Thread(this::run, "PortBridge-TunnelUDP");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Routes datagrams the relay receives on {@code publicPort} to {@code internalPort}.
+     */
+    synchronized void addPort(int publicPort, int internalPort) {
+        int[] current = portMap;
+        for (int i = 0; i < current.length; i += 2) {
+            if (current[i] == publicPort) {
+                current = current.clone();
+                current[i + 1] = internalPort;
+                portMap = current;
+                return;
+            }
+        }
+        int[] grown = Arrays.copyOf(current, current.length + 2);
+        grown[current.length] = publicPort;
+        grown[current.length + 1] = internalPort;
+        portMap = grown;
+    }
+
+    /**
+     * Stops routing {@code publicPort} to {@code internalPort}, and closes its
+     * flows and its direct path.
+     */
+    void removePort(int publicPort, int internalPort) {
+        synchronized (this) {
+            int[] current = portMap;
+            int[] kept = new int[current.length];
+            int n = 0;
+            for (int i = 0; i < current.length; i += 2) {
+                if (current[i] == publicPort) continue;
+                kept[n++] = current[i];
+                kept[n++] = current[i + 1];
+            }
+            portMap = Arrays.copyOf(kept, n);
+        }
+        submit(() -> {
+            // Relay flows are keyed by public port, direct ones by internal port
+            for (int slot : flows.slots()) {
+                int port = flows.ports(slot) & 0xffff;
+                if (flows.peer(slot) != null ? port == internalPort : port == publicPort) {
+                    closeFlow(slot);
+                }
+            }
+            for (Iterator<Direct> it = directs.iterator(); it.hasNext(); ) {
+                Direct d = it.next();
+                if (d.internalPort == internalPort) {
+                    it.remove();
+                    closeQuietly(d.channel);
+                }
+            }
+            summarizeDirects();
+        });
+    }
+
+    /**
+     * Starts looking for a direct path to {@code internalPort}.
+     */
+    void addDirect(int internalPort) {
+        submit(() -> {
+            for (Direct d : directs) {
+                if (d.internalPort == internalPort) return;
+            }
+            DatagramChannel channel = null;
+            try {
+                channel = DatagramChannel.open();
+                channel.configureBlocking(false);
+                channel.bind(null);
+                Direct direct = new Direct(internalPort, channel);
+                channel.register(selector, SelectionKey.OP_READ, direct);
+                directs.add(direct);
+                sendDirectHello(direct, ByteBuffer.allocate(ADDRESS_AT + 1));
+            } catch (IOException e) {
+                LOGGER.debug("[PortBridge] Could not open direct UDP channel for port {}", internalPort, e);
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    /**
+     * The relay observed {@code endpoint} for the direct channel of {@code internalPort}
+     * and is about to probe it with {@code nonce}.
+     */
+    void onEndpoint(int internalPort, InetSocketAddress endpoint, long nonce) {
+        submit(() -> {
+            for (Direct d : directs) {
+                if (d.internalPort != internalPort) continue;
+                if (d.state == DirectState.VERIFIED && !endpoint.equals(d.endpoint)) {
+                    withdraw(d, "public endpoint moved to " + endpoint);
+                }
+                d.endpoint = endpoint;
+                d.nonce = nonce;
+                d.probeDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MS);
+                if (d.state != DirectState.VERIFIED) {
+                    d.state = DirectState.PROBING;
+                    if (d.earlyProbe && d.earlyNonce == nonce) verify(d);
+                }
+                d.earlyProbe = false;
+                summarizeDirects();
+            }
+        });
+    }
+
+    private void submit(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    long getToken() {
+        return token;
+    }
+
+    private int internalPortFor(int publicPort) {
+        int[] map = portMap;
+        for (int i = 0; i < map.length; i += 2) {
+            if (map[i] == publicPort) return map[i + 1];
+        }
+        return -1;
+    }
+
+    private void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_HEADER + MAX_PAYLOAD);
+        long now = System.nanoTime();
+        long nextHello = now;
+        long nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MS);
+        try {
+            while (running) {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                if (now - nextHello >= 0) {
+                    sendHello(buffer);
+                    nextHello = now + TimeUnit.MILLISECONDS.toNanos(HELLO_INTERVAL_MS);
+                }
+                if (now - nextSweep >= 0) {
+                    expire(now);
+                    checkProbes(now);
+                    nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MS);
+                }
+                selector.select(SWEEP_INTERVAL_MS);
+                now = System.nanoTime();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) continue;
+                    if (key.channel() == relayChannel) {
+                        fromRelay(buffer, now);
+                    } else if (key.attachment() instanceof Direct) {
+                        fromDirect((Direct) key.attachment(), buffer, now);
+                    } else {
+                        fromServer(key, buffer, now);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            if (running) {
+                LOGGER.warn("[PortBridge] UDP forwarding stopped: {}", e.getMessage());
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void fromRelay(ByteBuffer buffer, long now) throws IOException {
+        for (int n = 0; n < BATCH; n++) {
+            buffer.clear();
+            if (relayChannel.receive(buffer) == null) break;
+            buffer.flip();
+            int length = buffer.limit();
+            if (length < ADDRESS_AT + 1 || buffer.get(0) != TYPE_DATA || buffer.getLong(1) != token) {
+                drop();
+                continue;
+            }
+            int addressLength = buffer.get(9);
+            int portsAt = ADDRESS_AT + addressLength;
+            if (addressLength != 4 && addressLength != 16 || length < portsAt + 4) {
+                drop();
+                continue;
+            }
+            long high;
+            long low;
+            if (addressLength == 4) {
+                // IPv4-mapped, so both families share one key layout
+                high = 0;
+                low = 0xffff_0000_0000L | (buffer.getInt(ADDRESS_AT) & 0xffffffffL);
+            } else {
+                high = buffer.getLong(ADDRESS_AT);
+                low = buffer.getLong(ADDRESS_AT + 8);
+            }
+            int publicPort = buffer.getShort(portsAt + 2) & 0xffff;
+            int packedPorts = UdpFlowTable.packPorts(buffer.getShort(portsAt) & 0xffff, publicPort);
+
+            int slot = flows.find(high, low, packedPorts, false);
+            if (slot < 0) {
+                slot = openFlow(high, low, packedPorts, internalPortFor(publicPort), null, now);
+                if (slot < 0) {
+                    drop();
+                    continue;
+                }
+            } else {
+                flows.touch(slot, now);
+            }
+
+            buffer.position(portsAt + 4);
+            int payload = buffer.remaining();
+            DatagramChannel local = (DatagramChannel) flows.key(slot).channel();
+            try {
+                if (local.write(buffer) == 0) {
+                    // Socket buffer full; UDP is allowed to lose it
+                    drop();
+                    continue;
+                }
+            } catch (IOException e) {
+                // Usually ICMP port unreachable: nothing is listening on the server port yet
+                drop();
+                continue;
+            }
+            datagramsIn++;
+            PortBridgeMetrics.TUNNEL_DATAGRAMS_IN.increment();
+            host.recordTransfer(payload, true);
+        }
+    }
+
+    private void fromDirect(Direct direct, ByteBuffer buffer, long now) throws IOException {
+        for (int n = 0; n < BATCH; n++) {
+            buffer.clear();
+            SocketAddress from = direct.channel.receive(buffer);
+            if (from == null) break;
+            buffer.flip();
+            InetSocketAddress peer = (InetSocketAddress) from;
+            // The relay may probe from any address of its own; token and nonce are what prove it
+            if (buffer.limit() == PROBE_LENGTH && buffer.get(0) == TYPE_PROBE && buffer.getLong(1) == token) {
+                long nonce = buffer.getLong(9);
+                if (direct.state == DirectState.PROBING && nonce == direct.nonce) {
+                    verify(direct);
+                } else if (direct.state != DirectState.VERIFIED) {
+                    // The probe goes by UDP and its announcement by TCP, so it can arrive first
+                    direct.earlyProbe = true;
+                    direct.earlyNonce = nonce;
+                }
+                continue;
+            }
+            if (direct.state != DirectState.VERIFIED) {
+                drop();
+                continue;
+            }
+
+            byte[] raw = peer.getAddress().getAddress();
+            long high = 0;
+            long low;
+            if (raw.length == 4) {
+                low = 0xffff_0000_0000L | (ByteBuffer.wrap(raw).getInt() & 0xffffffffL);
+            } else {
+                ByteBuffer wrapped = ByteBuffer.wrap(raw);
+                high = wrapped.getLong();
+                low = wrapped.getLong();
+            }
+            int packedPorts = UdpFlowTable.packPorts(peer.getPort(), direct.internalPort);
+            int slot = flows.find(high, low, packedPorts, true);
+            if (slot < 0) {
+                slot = openFlow(high, low, packedPorts, direct.internalPort, peer, now);
+                if (slot < 0) {
+                    drop();
+                    continue;
+                }
+            } else {
+                flows.touch(slot, now);
+            }
+            int payload = buffer.remaining();
+            try {
+                if (((DatagramChannel) flows.key(slot).channel()).write(buffer) == 0) {
+                    drop();
+                    continue;
+                }
+            } catch (IOException e) {
+                drop();
+                continue;
+            }
+            datagramsIn++;
+            PortBridgeMetrics.TUNNEL_DATAGRAMS_IN.increment();
+            host.recordTransfer(payload, true);
+        }
+    }
+
+    // Answers a direct flow from the channel the player reached us on
+    private void fromServerDirect(int slot, InetSocketAddress peer, DatagramChannel local, ByteBuffer buffer, long now) {
+        int internalPort = flows.ports(slot) & 0xffff;
+        Direct direct = null;
+        for (Direct d : directs) {
+            if (d.internalPort == internalPort) direct = d;
+        }
+        for (int n = 0; n < BATCH; n++) {
+            buffer.clear();
+            try {
+                if (local.receive(buffer) == null) break;
+            } catch (IOException e) {
+                break;
+            }
+            buffer.flip();
+            int payload = buffer.remaining();
+            try {
+                if (direct == null || direct.state != DirectState.VERIFIED || direct.channel.send(buffer, peer) == 0) {
+                    drop();
+                    continue;
+                }
+            } catch (IOException e) {
+                drop();
+                continue;
+            }
+            flows.touch(slot, now);
+            datagramsOut++;
+            PortBridgeMetrics.TUNNEL_DATAGRAMS_OUT.increment();
+            host.recordTransfer(payload, false);
+        }
+    }
+
+    private void fromServer(SelectionKey key, ByteBuffer buffer, long now) {
+        int slot = (Integer) key.attachment();
+        DatagramChannel local = (DatagramChannel) key.channel();
+        InetSocketAddress peer = flows.peer(slot);
+        if (peer != null) {
+            fromServerDirect(slot, peer, local, buffer, now);
+            return;
+        }
+        long high = flows.addressHigh(slot);
+        long low = flows.addressLow(slot);
+        int packedPorts = flows.ports(slot);
+        boolean v4 = high == 0 && (low >>> 32) == 0xffff;
+        int portsAt = ADDRESS_AT + (v4 ? 4 : 16);
+        int headerLength = portsAt + 4;
+
+        // The header is the same for the whole batch; only the payload behind it changes
+        buffer.clear();
+        buffer.put(0, TYPE_DATA);
+        buffer.putLong(1, token);
+        buffer.put(9, (byte) (v4 ? 4 : 16));
+        if (v4) {
+            buffer.putInt(ADDRESS_AT, (int) low);
+        } else {
+            buffer.putLong(ADDRESS_AT, high);
+            buffer.putLong(ADDRESS_AT + 8, low);
+        }
+        buffer.putShort(portsAt, (short) (packedPorts >>> 16));
+        buffer.putShort(portsAt + 2, (short) packedPorts);
+
+        for (int n = 0; n < BATCH; n++) {
+            buffer.limit(buffer.capacity()).position(headerLength);
+            try {
+                if (local.receive(buffer) == null) break;
+            } catch (IOException e) {
+                break;
+            }
+            int payload = buffer.position() - headerLength;
+            buffer.flip();
+            try {
+                if (relayChannel.write(buffer) == 0) {
+                    drop();
+                    continue;
+                }
+            } catch (IOException e) {
+                drop();
+                continue;
+            }
+            flows.touch(slot, now);
+            datagramsOut++;
+            PortBridgeMetrics.TUNNEL_DATAGRAMS_OUT.increment();
+            host.recordTransfer(payload, false);
+        }
+    }
+
+    private int openFlow(long high, long low, int packedPorts, int internalPort, InetSocketAddress peer, long now) {
+        if (internalPort < 0 || flows.size() >= maxFlows) return -1;
+        DatagramChannel local = null;
+        try {
+            local = DatagramChannel.open();
+            local.configureBlocking(false);
+            local.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), internalPort));
+            SelectionKey key = local.register(selector, SelectionKey.OP_READ);
+            return flows.insert(high, low, packedPorts, peer, key, now);
+        } catch (IOException e) {
+            LOGGER.debug("[PortBridge] Could not open local UDP flow to port {}", internalPort, e);
+            closeQuietly(local);
+            return -1;
+        }
+    }
+
+    private void sendDirectHello(Direct direct, ByteBuffer buffer) {
+        buffer.clear();
+        buffer.put(TYPE_DIRECT_HELLO).putLong(token).putShort((short) direct.internalPort).flip();
+        try {
+            direct.channel.send(buffer, relay);
+        } catch (IOException e) {
+            LOGGER.debug("[PortBridge] Could not send direct UDP hello to relay: {}", e.getMessage());
+        }
+    }
+
+    private void verify(Direct direct) {
+        direct.state = DirectState.VERIFIED;
+        summarizeDirects();
+        host.sendControl("UDP_DIRECT|" + direct.internalPort + "|"
+                + direct.endpoint.getAddress().getHostAddress() + "|" + direct.endpoint.getPort());
+        LOGGER.info("[PortBridge] UDP port {} is also reachable directly at {}", direct.internalPort, direct.endpoint);
+    }
+
+    // A probe that did not arrive means the NAT filters by destination, or the path changed
+    private void checkProbes(long now) {
+        for (Direct d : directs) {
+            if (d.state != DirectState.PROBING || now - d.probeDeadline < 0) continue;
+            d.state = DirectState.UNREACHABLE;
+            LOGGER.info("[PortBridge] UDP port {} stays on the relay: the NAT drops datagrams nobody asked for", d.internalPort);
+            summarizeDirects();
+        }
+    }
+
+    private void withdraw(Direct direct, String reason) {
+        direct.state = DirectState.UNKNOWN;
+        host.sendControl("UDP_DIRECT_OFF|" + direct.internalPort);
+        LOGGER.info("[PortBridge] Direct UDP path for port {} withdrawn ({}), using the relay", direct.internalPort, reason);
+        // Flows on the old endpoint are dead; closing them frees their local sockets at once
+        for (int slot : flows.slots()) {
+            if (flows.peer(slot) != null && (flows.ports(slot) & 0xffff) == direct.internalPort) {
+                closeFlow(slot);
+            }
+        }
+        summarizeDirects();
+    }
+
+    private void summarizeDirects() {
+        StringBuilder sb = new StringBuilder();
+        for (Direct d : directs) {
+            sb.append(" direct[").append(d.internalPort).append("]=").append(d.state.name().toLowerCase());
+            if (d.state == DirectState.VERIFIED) sb.append('@').append(d.endpoint);
+        }
+        directSummary = sb.toString();
+    }
+
+    private void expire(long now) {
+        int[] idle = new int[64];
+        int n;
+        while ((n = flows.collectIdle(now - idleNanos, idle)) > 0) {
+            for (int i = 0; i < n; i++) {
+                closeFlow(idle[i]);
+            }
+        }
+    }
+
+    private void closeFlow(int slot) {
+        SelectionKey key = flows.key(slot);
+        flows.remove(slot);
+        key.cancel();
+        closeQuietly((DatagramChannel) key.channel());
+    }
+
+    private void sendHello(ByteBuffer buffer) {
+        buffer.clear();
+        buffer.put(TYPE_HELLO).putLong(token).flip();
+        try {
+            relayChannel.write(buffer);
+        } catch (IOException e) {
+            LOGGER.debug("[PortBridge] Could not send UDP hello to relay: {}", e.getMessage());
+        }
+        // Also refreshes each direct channel's NAT binding, so the endpoint handed out stays the same
+        for (Direct d : directs) {
+            sendDirectHello(d, buffer);
+        }
+    }
+
+    private void drop() {
+        dropped++;
+        PortBridgeMetrics.TUNNEL_DATAGRAMS_DROPPED.increment();
+    }
+
+    private void closeAll() {
+        for (int slot : flows.slots()) {
+            closeFlow(slot);
+        }
+        for (Direct d : directs) {
+            closeQuietly(d.channel);
+        }
+        closeQuietly(relayChannel);
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void closeQuietly(DatagramChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Waits for the forwarding thread to finish closing its channels; false if the deadline passed first.
+     */
+    boolean await(long deadlineNanos) throws InterruptedException {
+        long left = deadlineNanos - System.nanoTime();
+        if (left > 0) {
+            TimeUnit.NANOSECONDS.timedJoin(thread, left);
+        }
+        return !thread.isAlive();
+    }
+
+    String getStats() {
+        return String.format("flows=%d in=%d out=%d dropped=%d", flows.size(), datagramsIn, datagramsOut, dropped) + directSummary;
+    }
+}
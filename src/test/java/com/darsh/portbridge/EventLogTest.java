@@ -0,0 +1,66 @@
+package com.darsh.portbridge;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The log is process-wide, so each test looks only at what it recorded last
+class EventLogTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void recentIsOldestFirstWithLabelledFields() {
+        EventLog.record(EventLog.Type.UPNP_MAPPED, 25565, 3600, 0, 0);
+        EventLog.record(EventLog.Type.EXPOSED, 0, 0, EventLog.methodCode("NAT-PMP"), 0);
+        EventLog.record(EventLog.Type.TUNNEL_RECONNECT_SCHEDULED, 0, 3, 0, 1500);
+
+        List<String> recent = EventLog.recent(3);
+        assertEquals(3, recent.size());
+        assertTrue(recent.get(0).endsWith(" UPNP_MAPPED port=25565 lease=3600"), recent.get(0));
+        assertTrue(recent.get(1).endsWith(" EXPOSED method=NAT-PMP"), recent.get(1));
+        assertTrue(recent.get(2).endsWith(" TUNNEL_RECONNECT_SCHEDULED attempt=3 delay=1500ms"), recent.get(2));
+    }
+
+    @Test
+    void oldestEventsAreOverwrittenOnceFull() {
+        for (int i = 0; i < EventLog.CAPACITY + 10; i++) {
+            EventLog.record(EventLog.Type.STREAM_OPENED, i);
+        }
+
+        List<String> recent = EventLog.recent(EventLog.CAPACITY * 2);
+        assertEquals(EventLog.CAPACITY, recent.size());
+        assertTrue(recent.get(0).endsWith(" srcPort=10"), recent.get(0));
+        assertTrue(recent.get(recent.size() - 1).endsWith(" srcPort=" + (EventLog.CAPACITY + 9)));
+    }
+
+    @Test
+    void mappedFileHoldsCompleteRecords() throws Exception {
+        Path file = dir.resolve("events.bin");
+        EventLog.mapTo(file);
+        try {
+            EventLog.record(EventLog.Type.NATPMP_MAPPED, 24454, 7200, 0, 0);
+        } finally {
+            EventLog.unmap();
+        }
+        long seq = EventLog.getTotalRecorded() - 1;
+
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x50424556, bytes.getInt(0));
+        assertEquals(EventLog.CAPACITY, bytes.getInt(8));
+        int recordSize = bytes.getInt(12);
+        int at = 32 + (int) (seq % EventLog.CAPACITY) * recordSize;
+        assertEquals(seq + 1, bytes.getLong(at), "the sequence marks the record complete");
+        assertEquals(EventLog.Type.NATPMP_MAPPED.ordinal(), bytes.getInt(at + 16));
+        assertEquals(24454, bytes.getInt(at + 20));
+        assertEquals(7200, bytes.getLong(at + 24));
+    }
+}
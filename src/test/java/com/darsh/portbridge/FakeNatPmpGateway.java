@@ -0,0 +1,156 @@
+package com.darsh.portbridge;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A NAT-PMP (RFC 6886) and PCP (RFC 6887) gateway on a loopback port that
+ * speaks either protocol or both. It keeps a mapping table, honours lifetime 0 as delete, can cap the
+ * lifetime it grants, and reports whatever epoch the test sets. Every request
+ * is recorded so tests can check the bytes on the wire.
+ */
+final class FakeNatPmpGateway implements AutoCloseable {
+    static final byte[] EXTERNAL_IP = {(byte) 203, 0, 113, 7};
+
+    private final DatagramSocket socket;
+    private final Thread thread;
+    private final boolean speaksPcp;
+    private final boolean speaksNatPmp;
+    private final List<byte[]> requests = new CopyOnWriteArrayList<>();
+    // "TCP:25565" to {external port, lifetime}
+    private final Map<String, int[]> table = new ConcurrentHashMap<>();
+    private volatile long epoch = 1000;
+    private volatile int maxLifetime = Integer.MAX_VALUE;
+    private volatile int portOffset;
+
+    FakeNatPmpGateway(boolean speaksPcp) throws SocketException {
+        this(speaksPcp, true);
+    }
+
+    FakeNatPmpGateway(boolean speaksPcp, boolean speaksNatPmp) throws SocketException {
+        this.speaksPcp = speaksPcp;
+        this.speaksNatPmp = speaksNatPmp;
+        this.socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.thread = new Thread(this::serve, "FakeNatPmpGateway");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int port() {
+        return socket.getLocalPort();
+    }
+
+    List<byte[]> requests() {
+        return requests;
+    }
+
+    Map<String, int[]> table() {
+        return table;
+    }
+
+    void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    void setMaxLifetime(int maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    // Assigns external ports this far from the suggested ones, to tell the two apart in replies
+    void setPortOffset(int portOffset) {
+        this.portOffset = portOffset;
+    }
+
+    /**
+     * A restart: the table is lost and the epoch starts again near zero.
+     */
+    void reboot() {
+        table.clear();
+        epoch = 5;
+    }
+
+    private void serve() {
+        byte[] in = new byte[1100];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(in, in.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                return;
+            }
+            byte[] request = Arrays.copyOf(packet.getData(), packet.getLength());
+            requests.add(request);
+            // A PCP-only gateway does not answer NAT-PMP at all
+            if (request[0] != 2 && !speaksNatPmp) continue;
+            byte[] reply = request[0] == 2 ? pcp(ByteBuffer.wrap(request)) : natPmp(ByteBuffer.wrap(request));
+            try {
+                socket.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private byte[] natPmp(ByteBuffer request) {
+        int op = request.get(1) & 0xff;
+        if (op == 0) {
+            return ByteBuffer.allocate(12).put((byte) 0).put((byte) 128).putShort((short) 0)
+                    .putInt((int) epoch).put(EXTERNAL_IP).array();
+        }
+        String protocol = op == 1 ? "UDP" : "TCP";
+        int internal = request.getShort(4) & 0xffff;
+        int suggested = request.getShort(6) & 0xffff;
+        int lifetime = request.getInt(8);
+        int[] granted = apply(protocol, internal, suggested, lifetime);
+        return ByteBuffer.allocate(16).put((byte) 0).put((byte) (128 + op)).putShort((short) 0)
+                .putInt((int) epoch).putShort((short) internal).putShort((short) granted[0]).putInt(granted[1]).array();
+    }
+
+    private byte[] pcp(ByteBuffer request) {
+        if (!speaksPcp) {
+            // RFC 6887 section 9: a NAT-PMP gateway answers version 2 with UNSUPP_VERSION in NAT-PMP format
+            return ByteBuffer.allocate(8).put((byte) 0).put((byte) (128 + request.get(1))).putShort((short) 1)
+                    .putInt((int) epoch).array();
+        }
+        String protocol = request.get(36) == 17 ? "UDP" : "TCP";
+        int internal = request.getShort(40) & 0xffff;
+        int suggested = request.getShort(42) & 0xffff;
+        int[] granted = apply(protocol, internal, suggested, request.getInt(4));
+
+        ByteBuffer reply = ByteBuffer.allocate(60);
+        reply.put((byte) 2).put((byte) 0x81).put((byte) 0).put((byte) 0);
+        reply.putInt(granted[1]).putInt((int) epoch).put(new byte[12]);
+        reply.put(request.array(), 24, 12); // nonce
+        reply.put(request.get(36)).put(new byte[3]);
+        reply.putShort((short) internal).putShort((short) granted[0]);
+        reply.put(new byte[10]).putShort((short) 0xffff).put(EXTERNAL_IP);
+        return reply.array();
+    }
+
+    // Returns {external port, lifetime}; lifetime 0 deletes
+    private int[] apply(String protocol, int internal, int suggested, int lifetime) {
+        String key = protocol + ":" + internal;
+        if (lifetime == 0) {
+            table.remove(key);
+            return new int[] {0, 0};
+        }
+        int[] entry = {(suggested == 0 ? internal : suggested) + portOffset, Math.min(lifetime, maxLifetime)};
+        table.put(key, entry);
+        return entry;
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
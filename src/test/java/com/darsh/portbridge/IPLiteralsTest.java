@@ -0,0 +1,84 @@
+package com.darsh.portbridge;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+// Every accepted literal must give the same bytes as the JDK, which is only safe to call on literals
+class IPLiteralsTest {
+    private static void assertParsesLikeJdk(String literal) throws Exception {
+        assertArrayEquals(InetAddress.getByName(literal).getAddress(), IPLiterals.parse(literal), literal);
+    }
+
+    @Test
+    void ipv4() throws Exception {
+        assertParsesLikeJdk("192.0.2.1");
+        assertParsesLikeJdk("0.0.0.0");
+        assertParsesLikeJdk("255.255.255.255");
+        for (String bad : new String[] {"256.0.0.1", "1.2.3", "1.2.3.4.5", "1..2.3", "1.2.3.", "0001.2.3.4", "a.b.c.d", "", " "}) {
+            assertNull(IPLiterals.parse(bad), bad);
+        }
+    }
+
+    @Test
+    void ipv6Compression() throws Exception {
+        assertArrayEquals(new byte[16], IPLiterals.parse("::"));
+        assertParsesLikeJdk("::1");
+        assertParsesLikeJdk("1::");
+        assertParsesLikeJdk("2001:db8::ff00:42:8329");
+        assertParsesLikeJdk("2001:db8:0:0:1:0:0:1");
+        assertParsesLikeJdk("1:2:3:4:5:6:7::");
+        assertParsesLikeJdk("::2:3:4:5:6:7:8");
+        assertParsesLikeJdk("FFFF:ffff:FFFF:ffff:FFFF:ffff:FFFF:ffff");
+        for (String bad : new String[] {":::", "1::2::3", "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7:8::", "1:", ":1",
+                "12345::", "1:2:3:4:5:6:7", "g::1", "1:::2"}) {
+            assertNull(IPLiterals.parse(bad), bad);
+        }
+    }
+
+    @Test
+    void ipv6WithEmbeddedIpv4() throws Exception {
+        assertParsesLikeJdk("1:2:3:4:5:6:192.0.2.1");
+        assertParsesLikeJdk("::192.0.2.1");
+        byte[] mapped = IPLiterals.parse("::ffff:192.0.2.1");
+        assertEquals(16, mapped.length, "kept as IPv6, unlike the JDK which unmaps it");
+        assertArrayEquals(new byte[] {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, -1, -1, (byte) 192, 0, 2, 1}, mapped);
+        for (String bad : new String[] {"::ffff:192.0.2", "::ffff:192.0.2.256", "1:2:3:4:5:6:7:192.0.2.1", "::192.0.2.1:1",
+                "::ffff:a.0.2.1"}) {
+            assertNull(IPLiterals.parse(bad), bad);
+        }
+    }
+
+    @Test
+    void bracketsAndZoneIds() throws Exception {
+        assertParsesLikeJdk("[::1]");
+        byte[] linkLocal = InetAddress.getByName("fe80::1").getAddress();
+        assertArrayEquals(linkLocal, IPLiterals.parse("fe80::1%eth0"));
+        assertArrayEquals(linkLocal, IPLiterals.parse("fe80::1%2"));
+        assertArrayEquals(linkLocal, IPLiterals.parse("[fe80::1%eth0]"));
+        assertNull(IPLiterals.parse("fe80::1%"));
+        assertNull(IPLiterals.parse("192.0.2.1%eth0"), "zone IDs are IPv6 only");
+        assertNull(IPLiterals.parse("[::1"));
+        assertNull(IPLiterals.parse("[]"));
+    }
+
+    @Test
+    void hostnamesAreNotLiterals() {
+        for (String host : new String[] {"localhost", "example.com", "cafe", "::1.example"}) {
+            assertNull(IPLiterals.parse(host), host);
+        }
+    }
+
+    @Test
+    void addressesAreSplitAndFormattedWithBrackets() {
+        assertEquals("[2001:db8::1]:25565", IPLiterals.formatAddress("2001:db8::1", 25565));
+        assertEquals("192.0.2.1:25565", IPLiterals.formatAddress("192.0.2.1", 25565));
+        assertArrayEquals(new String[] {"2001:db8::1", "25565"}, IPLiterals.splitAddress("[2001:db8::1]:25565"));
+        assertArrayEquals(new String[] {"192.0.2.1", "25565"}, IPLiterals.splitAddress("192.0.2.1:25565"));
+        assertArrayEquals(new String[] {"2001:db8::1", ""}, IPLiterals.splitAddress("2001:db8::1"));
+    }
+}
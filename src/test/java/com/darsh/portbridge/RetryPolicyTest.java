@@ -0,0 +1,83 @@
+package com.darsh.portbridge;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Retries that sleep log through the config, so calls here either succeed or give up at once
+class RetryPolicyTest {
+    private final RetryPolicy policy = new RetryPolicy("test", () -> 100, () -> 2000, () -> 0);
+
+    @Test
+    void backoffStaysBetweenBaseAndThreeTimesThePreviousDelay() {
+        for (int run = 0; run < 50; run++) {
+            RetryPolicy.Backoff backoff = policy.backoff();
+            long previous = 100;
+            for (int i = 0; i < 10; i++) {
+                long delay = backoff.nextDelayMs();
+                assertTrue(delay >= 100 && delay <= Math.min(2000, previous * 3), "delay " + delay + " after " + previous);
+                previous = delay;
+            }
+        }
+    }
+
+    @Test
+    void resetBackoffStartsFromTheBaseAgain() {
+        RetryPolicy.Backoff backoff = policy.backoff();
+        for (int i = 0; i < 10; i++) backoff.nextDelayMs();
+        backoff.reset();
+        assertTrue(backoff.nextDelayMs() <= 300);
+    }
+
+    @Test
+    void breakerOpensAfterConsecutiveFailures() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            assertTrue(policy.allow("gw"));
+            policy.failure("gw");
+        }
+        assertEquals(0, policy.openRemainingMs("gw"));
+        policy.failure("gw");
+
+        assertFalse(policy.allow("gw"));
+        long remaining = policy.openRemainingMs("gw");
+        assertTrue(remaining > 0 && remaining <= 300, "cooldown " + remaining);
+
+        AtomicInteger calls = new AtomicInteger();
+        assertThrows(IOException.class, () -> policy.call("gw", false, calls::incrementAndGet));
+        assertEquals(0, calls.get(), "an open breaker does not reach the target");
+        assertTrue(policy.allow("other"), "breakers are per target");
+    }
+
+    @Test
+    void successClosesTheBreaker() {
+        for (int i = 0; i < 4; i++) policy.failure("gw");
+        policy.success("gw");
+        policy.failure("gw");
+
+        assertTrue(policy.allow("gw"));
+        assertEquals(0, policy.openRemainingMs("gw"));
+    }
+
+    @Test
+    void callReturnsNullResultsAndRethrowsWithoutRetries() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        assertNull(policy.call("gw", true, () -> {
+            calls.incrementAndGet();
+            return null;
+        }));
+
+        IOException failure = new IOException("refused");
+        assertEquals(failure, assertThrows(IOException.class, () -> policy.call("gw", true, () -> {
+            calls.incrementAndGet();
+            throw failure;
+        })));
+        assertEquals(2, calls.get());
+    }
+}
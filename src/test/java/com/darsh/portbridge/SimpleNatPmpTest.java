@@ -0,0 +1,184 @@
+package com.darsh.portbridge;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SimpleNatPmpTest {
+    private FakeNatPmpGateway gateway;
+    private SimpleNatPmp client;
+
+    private SimpleNatPmp connect(boolean speaksPcp) throws Exception {
+        gateway = new FakeNatPmpGateway(speaksPcp);
+        client = new SimpleNatPmp(InetAddress.getLoopbackAddress(), gateway.port());
+        return client;
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (client != null) client.close();
+        if (gateway != null) gateway.close();
+    }
+
+    private ByteBuffer lastRequest() {
+        return ByteBuffer.wrap(gateway.requests().get(gateway.requests().size() - 1));
+    }
+
+    @Test
+    void pcpMapRequestAndResponseOffsets() throws Exception {
+        SimpleNatPmp natPmp = connect(true);
+        gateway.setMaxLifetime(600);
+        gateway.setPortOffset(1);
+
+        SimpleNatPmp.Mapping mapping = natPmp.map("UDP", 25565, 25565, 7200);
+
+        ByteBuffer request = lastRequest();
+        assertEquals(60, request.limit());
+        assertEquals(2, request.get(0));
+        assertEquals(1, request.get(1));
+        assertEquals(7200, request.getInt(4));
+        byte[] clientIp = Arrays.copyOfRange(request.array(), 8, 24);
+        assertArrayEquals(new byte[] {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xff, (byte) 0xff, 127, 0, 0, 1}, clientIp);
+        assertEquals(17, request.get(36));
+        assertEquals(25565, request.getShort(40) & 0xffff);
+        assertEquals(25565, request.getShort(42) & 0xffff);
+
+        assertNotNull(mapping);
+        assertEquals(25566, mapping.externalPort, "external port is read from offset 42 of the reply");
+        assertEquals(600, mapping.lifetime, "the granted lifetime, not the requested one");
+        assertEquals("203.0.113.7", mapping.externalAddress);
+        assertTrue(natPmp.isPcpSupported());
+    }
+
+    @Test
+    void natPmpMapRequestAndResponseOffsets() throws Exception {
+        SimpleNatPmp natPmp = connect(false);
+        gateway.setMaxLifetime(3600);
+        gateway.setPortOffset(10);
+
+        SimpleNatPmp.Mapping mapping = natPmp.map("TCP", 25565, 25565, 7200);
+
+        ByteBuffer request = lastRequest();
+        assertEquals(12, request.limit());
+        assertEquals(0, request.get(0));
+        assertEquals(2, request.get(1), "op 2 maps TCP");
+        assertEquals(25565, request.getShort(4) & 0xffff);
+        assertEquals(25565, request.getShort(6) & 0xffff);
+        assertEquals(7200, request.getInt(8));
+
+        assertNotNull(mapping);
+        assertEquals(25565, mapping.internalPort);
+        assertEquals(25575, mapping.externalPort);
+        assertEquals(3600, mapping.lifetime);
+    }
+
+    @Test
+    void fallsBackToNatPmpWhenGatewayRejectsPcpVersion() throws Exception {
+        SimpleNatPmp natPmp = connect(false);
+
+        SimpleNatPmp.Mapping mapping = natPmp.map("TCP", 25565, 25565, 7200);
+
+        assertNotNull(mapping, "the same call retries in NAT-PMP");
+        assertFalse(natPmp.isPcpSupported());
+        assertEquals(2, gateway.requests().size());
+        assertEquals(2, gateway.requests().get(0)[0]);
+        assertEquals(0, gateway.requests().get(1)[0]);
+        assertTrue(gateway.table().containsKey("TCP:25565"));
+
+        // The decision sticks: later requests go straight to NAT-PMP
+        natPmp.map("UDP", 25565, 25565, 7200);
+        assertEquals(3, gateway.requests().size());
+        assertEquals(0, lastRequest().get(0));
+    }
+
+    @Test
+    void epochResetIsReportedOnceAndMappingsCanBeRecreated() throws Exception {
+        SimpleNatPmp natPmp = connect(true);
+        assertNotNull(natPmp.map("TCP", 25565, 25565, 7200));
+        assertNotNull(natPmp.map("TCP", 25565, 25565, 7200));
+        assertFalse(natPmp.consumeRebootDetected(), "a steady epoch is not a reboot");
+
+        gateway.reboot();
+        assertTrue(gateway.table().isEmpty());
+        assertNotNull(natPmp.map("UDP", 25565, 25565, 7200));
+        assertTrue(natPmp.consumeRebootDetected());
+        assertFalse(natPmp.consumeRebootDetected(), "reported once");
+
+        // What the exposure service does on a reboot: map everything again
+        assertNotNull(natPmp.map("TCP", 25565, 25565, 7200));
+        assertTrue(gateway.table().containsKey("TCP:25565"));
+        assertFalse(natPmp.consumeRebootDetected());
+    }
+
+    @Test
+    void epochResetSeenByExternalAddressQuery() throws Exception {
+        SimpleNatPmp natPmp = connect(false);
+        assertEquals("203.0.113.7", natPmp.getExternalAddress());
+        assertFalse(natPmp.consumeRebootDetected());
+
+        gateway.reboot();
+        assertEquals("203.0.113.7", natPmp.getExternalAddress());
+        assertTrue(natPmp.consumeRebootDetected());
+    }
+
+    @Test
+    void pcpOnlyGatewayIsPolledWithMapRenewals() throws Exception {
+        gateway = new FakeNatPmpGateway(true, false);
+        client = new SimpleNatPmp(InetAddress.getLoopbackAddress(), gateway.port());
+        assertNotNull(client.map("TCP", 25565, 25565, 7200));
+
+        long start = System.nanoTime();
+        assertEquals("203.0.113.7", client.getExternalAddress());
+        assertTrue(System.nanoTime() - start < 1_000_000_000L, "answered without waiting out NAT-PMP retransmits");
+        assertEquals(2, lastRequest().get(0), "polled with PCP");
+        assertEquals(25565, lastRequest().getShort(40) & 0xffff);
+        assertFalse(client.consumeRebootDetected());
+
+        gateway.reboot();
+        assertEquals("203.0.113.7", client.getExternalAddress());
+        assertTrue(client.consumeRebootDetected(), "the renewal's epoch shows the reboot");
+        for (byte[] request : gateway.requests()) {
+            assertEquals(2, request[0], "no NAT-PMP request went out");
+        }
+    }
+
+    @Test
+    void pcpUnmapSendsLifetimeZero() throws Exception {
+        SimpleNatPmp natPmp = connect(true);
+        natPmp.map("TCP", 25565, 25565, 7200);
+        assertTrue(gateway.table().containsKey("TCP:25565"));
+
+        assertTrue(natPmp.unmap("TCP", 25565));
+
+        ByteBuffer request = lastRequest();
+        assertEquals(2, request.get(0));
+        assertEquals(0, request.getInt(4));
+        assertEquals(25565, request.getShort(40) & 0xffff);
+        assertFalse(gateway.table().containsKey("TCP:25565"));
+    }
+
+    @Test
+    void natPmpUnmapSendsLifetimeZero() throws Exception {
+        SimpleNatPmp natPmp = connect(false);
+        natPmp.map("UDP", 25565, 25565, 7200);
+        assertTrue(gateway.table().containsKey("UDP:25565"));
+
+        assertTrue(natPmp.unmap("UDP", 25565));
+
+        ByteBuffer request = lastRequest();
+        assertEquals(0, request.get(0));
+        assertEquals(1, request.get(1));
+        assertEquals(0, request.getShort(6));
+        assertEquals(0, request.getInt(8));
+        assertFalse(gateway.table().containsKey("UDP:25565"));
+    }
+}
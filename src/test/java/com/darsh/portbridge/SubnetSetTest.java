@@ -0,0 +1,111 @@
+package com.darsh.portbridge;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SubnetSetTest {
+    @Test
+    void overlappingAndAdjacentRangesMerge() {
+        assertEquals(1, SubnetSet.parse("10.0.0.0/25, 10.0.0.128/25").size());
+        assertEquals(1, SubnetSet.parse("10.1.0.0/16, 10.0.0.0/8, 10.2.3.4").size());
+        // Adjacent across the 64-bit halves of the key
+        assertEquals(1, SubnetSet.parse("2001:db8:0:1::/64, 2001:db8::/64").size());
+
+        SubnetSet gap = SubnetSet.parse("10.0.2.0/24, 10.0.0.0/24");
+        assertEquals(2, gap.size());
+        assertTrue(gap.contains("10.0.0.255"));
+        assertFalse(gap.contains("10.0.1.5"));
+        assertTrue(gap.contains("10.0.2.0"));
+        assertFalse(gap.contains("10.0.3.0"));
+        assertFalse(gap.contains("9.255.255.255"));
+    }
+
+    @Test
+    void hostBitsOfTheNetworkAreIgnored() {
+        SubnetSet set = SubnetSet.parse("192.0.2.77/24");
+        assertTrue(set.contains("192.0.2.0"));
+        assertTrue(set.contains("192.0.2.255"));
+        assertFalse(set.contains("192.0.3.0"));
+    }
+
+    @Test
+    void ipv4MatchesItsMappedForm() throws Exception {
+        SubnetSet v4 = SubnetSet.parse("192.0.2.0/24");
+        assertTrue(v4.contains("::ffff:192.0.2.7"));
+        assertTrue(v4.contains("::ffff:c000:207"));
+        assertTrue(v4.contains(InetAddress.getByName("192.0.2.7")));
+        assertTrue(v4.containsV4(0xc0000207));
+        assertFalse(v4.contains("::192.0.2.7"), "IPv4-compatible is not IPv4-mapped");
+
+        SubnetSet mapped = SubnetSet.parse("::ffff:192.0.2.0/120");
+        assertTrue(mapped.contains("192.0.2.7"));
+        assertFalse(mapped.contains("192.0.3.7"));
+    }
+
+    @Test
+    void zeroPrefixCoversItsWholeFamily() {
+        SubnetSet anyV4 = SubnetSet.parse("0.0.0.0/0");
+        assertTrue(anyV4.contains("0.0.0.0"));
+        assertTrue(anyV4.contains("255.255.255.255"));
+        assertFalse(anyV4.contains("2001:db8::1"));
+
+        SubnetSet any = SubnetSet.parse("::/0");
+        assertTrue(any.contains("::"));
+        assertTrue(any.contains("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertTrue(any.contains("203.0.113.1"));
+    }
+
+    @Test
+    void fullPrefixIsOneAddress() {
+        SubnetSet set = SubnetSet.parse("2001:db8::1/128, 198.51.100.1/32, ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff");
+        assertTrue(set.contains("2001:db8::1"));
+        assertFalse(set.contains("2001:db8::2"));
+        assertFalse(set.contains("2001:db8::"));
+        assertTrue(set.contains("198.51.100.1"));
+        assertFalse(set.contains("198.51.100.2"));
+        assertTrue(set.contains("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertFalse(set.contains("ffff:ffff:ffff:ffff:ffff:ffff:ffff:fffe"));
+    }
+
+    @Test
+    void ipv6PrefixesInsideEitherHalf() {
+        SubnetSet set = SubnetSet.parse("2001:db8::/32, fd00:1:2:3:8000::/65");
+        assertTrue(set.contains("2001:db8:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertFalse(set.contains("2001:db9::"));
+        assertTrue(set.contains("fd00:1:2:3:ffff::1"));
+        assertFalse(set.contains("fd00:1:2:3:7fff:ffff:ffff:ffff"));
+    }
+
+    @Test
+    void scopedLiteralsMatchByAddress() {
+        SubnetSet linkLocal = SubnetSet.parse("fe80::/10");
+        assertTrue(linkLocal.contains("fe80::1%eth0"));
+        assertTrue(linkLocal.contains("[febf::1%3]"));
+        assertFalse(linkLocal.contains("fec0::1"));
+    }
+
+    @Test
+    void invalidEntriesAreReportedAndNeverResolved() {
+        SubnetSet set = SubnetSet.parse("10.0.0.0/33, localhost, 10.0.0.0/x, ::1/129, 10.0.0.0/-1, , 192.0.2.0/24");
+        assertEquals(List.of("10.0.0.0/33", "localhost", "10.0.0.0/x", "::1/129", "10.0.0.0/-1"), set.getInvalidEntries());
+        assertEquals(1, set.size());
+        assertFalse(set.contains("127.0.0.1"));
+        assertFalse(set.contains("not an address"));
+        assertFalse(set.contains((String) null));
+    }
+
+    @Test
+    void blankListIsTheEmptySet() {
+        assertSame(SubnetSet.EMPTY, SubnetSet.parse(null));
+        assertSame(SubnetSet.EMPTY, SubnetSet.parse("  "));
+        assertTrue(SubnetSet.EMPTY.isEmpty());
+        assertFalse(SubnetSet.EMPTY.contains("0.0.0.0"));
+    }
+}
@@ -0,0 +1,140 @@
+package com.darsh.portbridge.exposure;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExposureServiceTest {
+    private StubService service;
+    private final List<String> events = new ArrayList<>();
+
+    // Drives the state machine by hand; nothing runs on its own
+    private static final class StubService extends ExposureService {
+        int attempt;
+
+        StubService() {
+            super("TUNNEL");
+        }
+
+        @Override
+        protected void onStart(int attempt, int internalPort, int externalPort) {
+            this.attempt = attempt;
+        }
+
+        @Override
+        protected void onStop(boolean releaseMappings) {
+        }
+
+        boolean degrade() {
+            return transition(State.ACTIVE, State.DEGRADED);
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        service = new StubService();
+        service.setListener(new ExposureListener() {
+            @Override
+            public void onExposed(ExposureService s, String address) {
+                events.add("exposed " + address);
+            }
+
+            @Override
+            public void onFailed(ExposureService s, String error) {
+                events.add("failed " + error);
+            }
+
+            @Override
+            public void onAddressChanged(ExposureService s, String oldAddress, String newAddress) {
+                events.add("changed " + oldAddress + " -> " + newAddress);
+            }
+        });
+    }
+
+    @Test
+    void recoveringWithTheSameAddressNotifiesNobody() {
+        service.start(25565, 25565);
+        assertTrue(service.markExposed(service.attempt, "relay.example:40001"));
+        assertTrue(service.degrade());
+
+        assertTrue(service.markExposed(service.attempt, "relay.example:40001"));
+
+        assertEquals(ExposureService.State.ACTIVE, service.getState());
+        assertEquals(List.of("exposed relay.example:40001"), events);
+    }
+
+    @Test
+    void recoveringWithANewAddressReportsTheChangeOnly() {
+        service.start(25565, 25565);
+        service.markExposed(service.attempt, "relay.example:40001");
+        service.degrade();
+
+        assertTrue(service.markExposed(service.attempt, "relay.example:40002"));
+
+        assertEquals(List.of("exposed relay.example:40001",
+                "changed relay.example:40001 -> relay.example:40002"), events);
+        assertEquals("relay.example:40002", service.getPublicAddress());
+    }
+
+    @Test
+    void eachAttemptGetsItsOwnReadyFuture() {
+        service.start(25565, 25565);
+        CompletableFuture<String> first = service.whenReady();
+        service.markFailed(service.attempt, "no gateway");
+        assertTrue(first.isCompletedExceptionally());
+
+        assertTrue(service.start(25565, 25565));
+        CompletableFuture<String> second = service.whenReady();
+        assertNotSame(first, second);
+        assertFalse(second.isDone(), "a new attempt does not inherit the old failure");
+
+        service.markExposed(service.attempt, "203.0.113.7:25565");
+        assertEquals("203.0.113.7:25565", second.join());
+    }
+
+    @Test
+    void retryReplacesTheFailedReadyFuture() {
+        service.start(25565, 25565);
+        CompletableFuture<String> first = service.whenReady();
+        service.markRetrying(service.attempt, "relay down");
+        assertTrue(first.isCompletedExceptionally());
+        assertEquals(ExposureService.State.DISCOVERING, service.getState());
+
+        CompletableFuture<String> next = service.whenReady();
+        assertNotSame(first, next);
+        assertFalse(next.isDone(), "the next try starts with a pending future");
+        service.markExposed(service.attempt, "relay.example:40001");
+        assertEquals("relay.example:40001", next.join());
+    }
+
+    @Test
+    void recoveryCompletesAFutureARetryReplaced() {
+        service.start(25565, 25565);
+        service.markExposed(service.attempt, "relay.example:40001");
+        service.degrade();
+        service.markRetrying(service.attempt, "relay down");
+        CompletableFuture<String> next = service.whenReady();
+        assertFalse(next.isDone());
+
+        service.markExposed(service.attempt, "relay.example:40001");
+        assertEquals("relay.example:40001", next.join());
+        assertEquals(List.of("exposed relay.example:40001", "failed relay down"), events);
+    }
+
+    @Test
+    void startIsRefusedWhileRunning() {
+        assertTrue(service.start(25565, 25565));
+        CompletableFuture<String> ready = service.whenReady();
+
+        assertFalse(service.start(25565, 25565));
+        assertEquals(ready, service.whenReady(), "a refused start leaves the running attempt's future alone");
+    }
+}
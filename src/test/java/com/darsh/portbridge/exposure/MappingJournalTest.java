@@ -0,0 +1,54 @@
+package com.darsh.portbridge.exposure;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappingJournalTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void liveEntriesSurviveReopening() throws Exception {
+        Path file = dir.resolve("upnp.journal");
+        MappingJournal journal = MappingJournal.open(file);
+        journal.added(25565, 25565, 3600);
+        journal.added(24454, 24454, 3600);
+        journal.added(19132, 19132, 3600);
+        journal.removed(24454);
+
+        assertEquals(List.of(25565, 19132), MappingJournal.open(file).live());
+    }
+
+    @Test
+    void resetForgetsEverything() throws Exception {
+        Path file = dir.resolve("upnp.journal");
+        MappingJournal journal = MappingJournal.open(file);
+        journal.added(25565, 25565, 3600);
+        journal.reset();
+
+        assertTrue(MappingJournal.open(file).live().isEmpty());
+    }
+
+    @Test
+    void compactionKeepsTheLiveSet() throws Exception {
+        Path file = dir.resolve("upnp.journal");
+        MappingJournal journal = MappingJournal.open(file);
+        journal.added(25565, 25565, 3600);
+        journal.added(24454, 24454, 0);
+        // Several times the capacity, so the journal compacts repeatedly
+        for (int i = 0; i < 1000; i++) {
+            journal.added(30000 + i % 7, 30000, 600);
+            journal.removed(30000 + i % 7);
+        }
+        journal.added(30001, 30001, 600);
+
+        assertEquals(List.of(25565, 24454, 30001), journal.live());
+        assertEquals(List.of(25565, 24454, 30001), MappingJournal.open(file).live());
+    }
+}
@@ -0,0 +1,41 @@
+package com.darsh.portbridge.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HistogramTest {
+    @Test
+    void bucketsAreCumulativeWithOverflowInInf() {
+        Histogram histogram = new Histogram(1, 10, 100);
+        histogram.observe(0.5);
+        histogram.observe(1);
+        histogram.observe(7);
+        histogram.observe(250);
+
+        StringBuilder out = new StringBuilder();
+        histogram.write(out, "portbridge_test");
+
+        assertEquals("""
+                portbridge_test_bucket{le="1.0"} 2
+                portbridge_test_bucket{le="10.0"} 3
+                portbridge_test_bucket{le="100.0"} 3
+                portbridge_test_bucket{le="+Inf"} 4
+                portbridge_test_sum 258.5
+                portbridge_test_count 4
+                """, out.toString());
+    }
+
+    @Test
+    void emptyHistogramWritesZeroes() {
+        StringBuilder out = new StringBuilder();
+        new Histogram(5).write(out, "portbridge_test");
+
+        assertEquals("""
+                portbridge_test_bucket{le="5.0"} 0
+                portbridge_test_bucket{le="+Inf"} 0
+                portbridge_test_sum 0.0
+                portbridge_test_count 0
+                """, out.toString());
+    }
+}
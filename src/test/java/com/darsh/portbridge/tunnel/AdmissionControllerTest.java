@@ -0,0 +1,163 @@
+package com.darsh.portbridge.tunnel;
+
+import com.darsh.portbridge.SubnetSet;
+import com.darsh.portbridge.tunnel.AdmissionController.RateTable;
+import com.darsh.portbridge.tunnel.AdmissionController.Verdict;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drives the controller with an explicit clock. Rates are per minute, so 60
+ * means one token a second.
+ */
+class AdmissionControllerTest {
+    private static final long T0 = 1_000_000_000_000L;
+    private static final long MS = 1_000_000L;
+    private static final long SECOND = 1_000_000_000L;
+
+    // Admits and closes again at once, so only the rate buckets are exercised
+    private static Verdict connect(AdmissionController ac, String ip, long now) {
+        Verdict verdict = ac.admit(ip, now);
+        if (verdict == Verdict.ACCEPT) ac.release(true);
+        return verdict;
+    }
+
+    @Test
+    void burstIsSpentThenRefills() {
+        AdmissionController ac = new AdmissionController(60, 3, 6000, 100, 100, 100, 0, SubnetSet.EMPTY);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Verdict.ACCEPT, connect(ac, "203.0.113.5", T0));
+        }
+        assertEquals(Verdict.IP_RATE, connect(ac, "203.0.113.5", T0));
+        assertEquals(Verdict.IP_RATE, connect(ac, "203.0.113.5", T0 + 500 * MS));
+
+        // One token a second, never more than the burst
+        assertEquals(Verdict.ACCEPT, connect(ac, "203.0.113.5", T0 + 1500 * MS));
+        assertEquals(Verdict.IP_RATE, connect(ac, "203.0.113.5", T0 + 1500 * MS));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Verdict.ACCEPT, connect(ac, "203.0.113.5", T0 + 60 * SECOND));
+        }
+        assertEquals(Verdict.IP_RATE, connect(ac, "203.0.113.5", T0 + 60 * SECOND));
+        assertEquals(Verdict.ACCEPT, connect(ac, "203.0.113.6", T0 + 60 * SECOND), "other sources keep their own bucket");
+    }
+
+    @Test
+    void sourceOverItsRateIsBlockedForThePenalty() {
+        AdmissionController ac = new AdmissionController(60, 1, 6000, 100, 100, 100, 10, SubnetSet.EMPTY);
+        assertEquals(Verdict.ACCEPT, connect(ac, "203.0.113.5", T0));
+        assertEquals(Verdict.IP_RATE, connect(ac, "203.0.113.5", T0));
+        // Refilled after a second, but still serving the penalty
+        assertEquals(Verdict.BLOCKED, connect(ac, "203.0.113.5", T0 + 5 * SECOND));
+        assertEquals(Verdict.ACCEPT, connect(ac, "203.0.113.5", T0 + 11 * SECOND));
+        assertEquals(1, ac.getCount(Verdict.BLOCKED));
+        assertEquals(2, ac.getRejectedCount());
+    }
+
+    @Test
+    void ipv4SubnetSharesOneBucketPer24() {
+        AdmissionController ac = new AdmissionController(600, 10, 60, 4, 100, 100, 0, SubnetSet.EMPTY);
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(Verdict.ACCEPT, connect(ac, "198.51.100." + i, T0));
+        }
+        assertEquals(Verdict.SUBNET_RATE, connect(ac, "198.51.100.200", T0));
+        assertEquals(Verdict.ACCEPT, connect(ac, "198.51.101.1", T0), "the next /24 is a subnet of its own");
+        assertEquals(Verdict.ACCEPT, connect(ac, "198.51.100.200", T0 + 1500 * MS));
+    }
+
+    @Test
+    void ipv6SubnetSharesOneBucketPer64() {
+        AdmissionController ac = new AdmissionController(600, 10, 60, 4, 100, 100, 0, SubnetSet.EMPTY);
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(Verdict.ACCEPT, connect(ac, "2001:db8:1:2::" + i, T0));
+        }
+        assertEquals(Verdict.SUBNET_RATE, connect(ac, "2001:db8:1:2:ffff:ffff:ffff:9", T0));
+        assertEquals(Verdict.ACCEPT, connect(ac, "2001:db8:1:3::1", T0), "the next /64 is a subnet of its own");
+    }
+
+    @Test
+    void sourceOverItsOwnRateLeavesTheSubnetBucketAlone() {
+        AdmissionController ac = new AdmissionController(60, 2, 60, 3, 100, 100, 0, SubnetSet.EMPTY);
+        assertEquals(Verdict.ACCEPT, connect(ac, "198.51.100.1", T0));
+        assertEquals(Verdict.ACCEPT, connect(ac, "198.51.100.1", T0));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Verdict.IP_RATE, connect(ac, "198.51.100.1", T0));
+        }
+        assertEquals(Verdict.ACCEPT, connect(ac, "198.51.100.2", T0), "the neighbour gets the subnet's last token");
+        assertEquals(Verdict.SUBNET_RATE, connect(ac, "198.51.100.3", T0));
+    }
+
+    @Test
+    void exemptAndUnknownSourcesSkipTheRateLimits() {
+        AdmissionController ac = new AdmissionController(60, 1, 60, 1, 100, 100, 60, SubnetSet.parse("10.0.0.0/8"));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Verdict.ACCEPT, connect(ac, "10.1.2.3", T0));
+            assertEquals(Verdict.ACCEPT, connect(ac, null, T0));
+        }
+    }
+
+    @Test
+    void pendingSlotsComeBackWhenTheServerAnswersOrTheConnectionCloses() {
+        AdmissionController ac = new AdmissionController(6000, 100, 6000, 100, 100, 2, 0, SubnetSet.EMPTY);
+        assertEquals(Verdict.ACCEPT, ac.admit("203.0.113.1", T0));
+        assertEquals(Verdict.ACCEPT, ac.admit("203.0.113.2", T0));
+        assertEquals(Verdict.TOO_MANY_PENDING, ac.admit("203.0.113.3", T0));
+
+        ac.established();
+        assertEquals(1, ac.getPendingConnections());
+        assertEquals(Verdict.ACCEPT, ac.admit("203.0.113.3", T0));
+        assertEquals(Verdict.TOO_MANY_PENDING, ac.admit("203.0.113.4", T0));
+
+        ac.release(true);
+        assertEquals(Verdict.ACCEPT, ac.admit("203.0.113.4", T0));
+        assertEquals(3, ac.getOpenConnections());
+        assertEquals(2, ac.getPendingConnections());
+    }
+
+    @Test
+    void globalCapCountsOpenConnections() {
+        AdmissionController ac = new AdmissionController(6000, 100, 6000, 100, 2, 100, 0, SubnetSet.EMPTY);
+        assertEquals(Verdict.ACCEPT, ac.admit("203.0.113.1", T0));
+        assertEquals(Verdict.ACCEPT, ac.admit("203.0.113.2", T0));
+        ac.established();
+        ac.established();
+        assertEquals(Verdict.TOO_MANY_CONNECTIONS, ac.admit("203.0.113.3", T0));
+
+        ac.release(false);
+        assertEquals(Verdict.ACCEPT, ac.admit("203.0.113.3", T0));
+        assertEquals(2, ac.getOpenConnections());
+        assertEquals(1, ac.getPendingConnections());
+        assertTrue(ac.getStats().contains("too_many_connections=1"), ac.getStats());
+    }
+
+    @Test
+    void fullTableEvictsTheStalestBucket() {
+        // Eight slots, all inside one probe window
+        RateTable table = new RateTable(8, 60, 1);
+        for (int key = 1; key <= 8; key++) {
+            assertTrue(table.tryAcquire(0, key, T0 + key * MS));
+        }
+        assertTrue(table.tryAcquire(0, 9, T0 + 9 * MS));
+        assertFalse(table.tryAcquire(0, 2, T0 + 10 * MS), "key 2 kept its empty bucket");
+        assertTrue(table.tryAcquire(0, 1, T0 + 11 * MS), "key 1 was evicted and starts with a full bucket");
+    }
+
+    @Test
+    void refilledBucketsMakeWayBeforeABlockedSource() {
+        RateTable table = new RateTable(8, 60, 1);
+        table.tryAcquire(0, 1, T0 + MS);
+        table.block(0, 1, T0 + MS, T0 + 60 * SECOND);
+        for (int key = 2; key <= 8; key++) {
+            table.tryAcquire(0, key, T0 + key * MS);
+        }
+        // Keys 2 to 4 have refilled; key 1 is older but still blocked
+        long now = T0 + SECOND + 4 * MS;
+        for (int key = 9; key <= 11; key++) {
+            assertTrue(table.tryAcquire(0, key, now));
+        }
+        assertTrue(table.isBlocked(0, 1, now));
+        assertFalse(table.tryAcquire(0, 5, now), "key 5 is still within its refill time");
+    }
+}
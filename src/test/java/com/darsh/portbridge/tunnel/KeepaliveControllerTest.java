@@ -0,0 +1,82 @@
+package com.darsh.portbridge.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class KeepaliveControllerTest {
+    private static final long S = 1_000_000_000L;
+
+    private final AtomicInteger probes = new AtomicInteger();
+    // Floor 10s, ceiling 100s, 5s to answer
+    private final KeepaliveController keepalive = new KeepaliveController(10, 100, 5);
+
+    private long tick(long seconds) {
+        return keepalive.tick(seconds * S, probes::incrementAndGet);
+    }
+
+    @Test
+    void inboundTrafficMakesProbesUnnecessary() {
+        keepalive.connected(0);
+        for (long t = 5; t <= 60; t += 5) {
+            keepalive.onInbound(t * S);
+            assertEquals(10 * S, tick(t));
+        }
+        assertEquals(0, probes.get());
+    }
+
+    @Test
+    void answeredProbesLengthenTheInterval() {
+        keepalive.connected(0);
+        assertEquals(5 * S, tick(5));
+        assertEquals(5 * S, tick(10));
+        assertEquals(1, probes.get());
+
+        keepalive.onInbound(11 * S);
+        // Answered after 10s idle, so the next probe waits 15s
+        assertEquals(11 * S, tick(15));
+        assertEquals("interval=15s longestIdle=10s limit=unknown", keepalive.getStats());
+    }
+
+    @Test
+    void lostProbeSettlesTheIntervalUnderTheGapThatFailed() {
+        keepalive.connected(0);
+        tick(10);
+        keepalive.onInbound(11 * S);
+        tick(15);
+        // Idle 15s; no answer within the timeout
+        assertEquals(5 * S, tick(26));
+        assertEquals(-1, tick(31));
+        assertEquals(2, probes.get());
+        assertEquals("interval=12s longestIdle=10s limit=15s", keepalive.getStats());
+
+        // The next connection keeps what was learned and stays under the limit
+        keepalive.connected(40 * S);
+        tick(52);
+        keepalive.onInbound(53 * S);
+        tick(54);
+        assertEquals("interval=12s longestIdle=12s limit=15s", keepalive.getStats());
+    }
+
+    @Test
+    void lossWithinAKnownGoodGapTeachesNothing() {
+        keepalive.connected(0);
+        tick(10);
+        keepalive.onInbound(11 * S);
+        tick(15);
+        // Pin the interval back to the 10s gap that already worked once
+        keepalive.configure(10, 10, 5);
+        keepalive.connected(20 * S);
+        tick(30);
+        assertEquals(-1, tick(35));
+        assertEquals("interval=10s longestIdle=10s limit=unknown", keepalive.getStats());
+    }
+
+    @Test
+    void reconfiguringClampsTheCurrentInterval() {
+        keepalive.configure(20, 30, 5);
+        assertEquals("interval=20s longestIdle=0s limit=unknown", keepalive.getStats());
+    }
+}
@@ -0,0 +1,167 @@
+package com.darsh.portbridge.tunnel;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the pool against a loopback listener standing in for the local server.
+ * Accepted sockets are queued so the test can see what the pool opened and
+ * close them from the server's side.
+ */
+class LocalConnectionPoolTest {
+    private final BlockingQueue<Socket> accepted = new LinkedBlockingQueue<>();
+    private final List<Socket> opened = new ArrayList<>();
+    private ServerSocket server;
+    private Thread acceptor;
+    private LocalConnectionPool pool;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    accepted.add(server.accept());
+                }
+            } catch (IOException e) {
+                // Closed at teardown
+            }
+        }, "pool-test-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (pool != null) pool.close();
+        server.close();
+        acceptor.join(2000);
+        opened.addAll(accepted);
+        for (Socket s : opened) s.close();
+    }
+
+    private Socket nextAccepted() throws InterruptedException {
+        Socket s = accepted.poll(5, TimeUnit.SECONDS);
+        assertNotNull(s, "the pool did not connect");
+        opened.add(s);
+        return s;
+    }
+
+    private void awaitIdle(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pool.getIdleCount() != count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, pool.getIdleCount(), pool.getStats());
+    }
+
+    // The pooled client socket and the server's end of it share a port pair
+    private static boolean samePair(Socket client, Socket serverSide) {
+        return client.getLocalPort() == serverSide.getPort();
+    }
+
+    @Test
+    void pollHandsOutAWarmSocketAndRefills() throws Exception {
+        pool = new LocalConnectionPool(server.getLocalPort(), 2, 1000, 20);
+        Socket first = nextAccepted();
+        Socket second = nextAccepted();
+        awaitIdle(2);
+
+        Socket socket = pool.poll();
+        assertNotNull(socket);
+        assertTrue(socket.isConnected());
+        assertTrue(samePair(socket, first) || samePair(socket, second));
+        assertEquals(0, socket.getSoTimeout());
+        socket.getOutputStream().write(42);
+        Socket serverSide = samePair(socket, first) ? first : second;
+        assertEquals(42, serverSide.getInputStream().read(), "handed out in blocking mode and usable");
+
+        // The slot it left is filled again without waiting for maintenance
+        nextAccepted();
+        awaitIdle(2);
+        assertTrue(pool.getStats().contains("hits=1 misses=0"), pool.getStats());
+        socket.close();
+    }
+
+    @Test
+    void socketTheServerClosedIsDiscarded() throws Exception {
+        pool = new LocalConnectionPool(server.getLocalPort(), 2, 1000, 20);
+        Socket first = nextAccepted();
+        Socket second = nextAccepted();
+        awaitIdle(2);
+
+        // The pool connects one at a time, so the first accepted is at the head of its queue
+        first.close();
+        Thread.sleep(200);
+        Socket socket = pool.poll();
+        assertNotNull(socket);
+        assertTrue(samePair(socket, second), "the socket the server closed was skipped");
+        assertTrue(pool.getStats().contains("hits=1 misses=0"), pool.getStats());
+        socket.close();
+
+        // Both slots are filled again; once those are closed too, the pool has nothing to give
+        Socket third = nextAccepted();
+        Socket fourth = nextAccepted();
+        awaitIdle(2);
+        third.close();
+        fourth.close();
+        Thread.sleep(200);
+        assertNull(pool.poll());
+        assertTrue(pool.getStats().contains("hits=1 misses=1"), pool.getStats());
+    }
+
+    @Test
+    void idleSocketsAreReplacedBeforeTheyAge() throws Exception {
+        pool = new LocalConnectionPool(server.getLocalPort(), 1, 1000, 1);
+        Socket old = nextAccepted();
+
+        // Maintenance runs every 2 s and replaces sockets idle for over a second
+        Socket replacement = accepted.poll(6, TimeUnit.SECONDS);
+        assertNotNull(replacement, "the aged socket was not replaced");
+        opened.add(replacement);
+        old.setSoTimeout(2000);
+        assertEquals(-1, old.getInputStream().read(), "the pool closed the aged socket");
+
+        awaitIdle(1);
+        Socket socket = pool.poll();
+        assertNotNull(socket);
+        assertTrue(samePair(socket, replacement));
+        socket.close();
+    }
+
+    @Test
+    void emptyPoolCountsAMiss() {
+        pool = new LocalConnectionPool(server.getLocalPort(), 0, 1000, 20);
+        assertNull(pool.poll());
+        assertNull(pool.poll());
+        assertTrue(pool.getStats().startsWith("idle=0/0 hits=0 misses=2"), pool.getStats());
+        assertEquals(0, accepted.size(), "a disabled pool opens nothing");
+    }
+
+    @Test
+    void connectReachesTheServerDirectly() throws Exception {
+        pool = new LocalConnectionPool(server.getLocalPort(), 0, 1000, 20);
+        try (Socket socket = pool.connect()) {
+            assertTrue(socket.getTcpNoDelay());
+            assertEquals(new InetSocketAddress("127.0.0.1", server.getLocalPort()), socket.getRemoteSocketAddress());
+            assertTrue(samePair(socket, nextAccepted()));
+        }
+    }
+}
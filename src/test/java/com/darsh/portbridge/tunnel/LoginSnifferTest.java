@@ -0,0 +1,104 @@
+package com.darsh.portbridge.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoginSnifferTest {
+    private static final long MOST = 0x069a79f444e94726L;
+    private static final long LEAST = 0xa5befca90e38aaf5L;
+
+    private static void varInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void string(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        varInt(out, bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    private static void packet(ByteArrayOutputStream out, ByteArrayOutputStream body) {
+        varInt(out, body.size());
+        out.writeBytes(body.toByteArray());
+    }
+
+    private static byte[] handshake(int nextState) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        varInt(body, 0x00);
+        varInt(body, 767);
+        string(body, "play.example.net");
+        body.write(0x63);
+        body.write(0xdd);
+        varInt(body, nextState);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        packet(out, body);
+        return out.toByteArray();
+    }
+
+    private static byte[] login(String name) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(handshake(2));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        varInt(body, 0x00);
+        string(body, name);
+        for (int shift = 56; shift >= 0; shift -= 8) body.write((int) (MOST >>> shift));
+        for (int shift = 56; shift >= 0; shift -= 8) body.write((int) (LEAST >>> shift));
+        packet(out, body);
+        return out.toByteArray();
+    }
+
+    @Test
+    void readsNameAndUuidFromALogin() {
+        LoginSniffer sniffer = new LoginSniffer();
+        byte[] data = login("Notch");
+
+        assertTrue(sniffer.feed(data, 0, data.length));
+        assertEquals("Notch", sniffer.name);
+        assertEquals(MOST, sniffer.uuidMost);
+        assertEquals(LEAST, sniffer.uuidLeast);
+    }
+
+    @Test
+    void waitsForPacketsSplitAcrossReads() {
+        LoginSniffer sniffer = new LoginSniffer();
+        byte[] data = login("Notch");
+
+        for (int i = 0; i < data.length - 1; i++) {
+            assertFalse(sniffer.feed(data, i, 1), "finished early at byte " + i);
+        }
+        assertTrue(sniffer.feed(data, data.length - 1, 1));
+        assertEquals("Notch", sniffer.name);
+    }
+
+    @Test
+    void statusPingEndsWithoutAPlayer() {
+        LoginSniffer sniffer = new LoginSniffer();
+        byte[] data = handshake(1);
+
+        assertTrue(sniffer.feed(data, 0, data.length));
+        assertNull(sniffer.name);
+    }
+
+    @Test
+    void legacyPingAndGarbageEndWithoutAPlayer() {
+        LoginSniffer legacy = new LoginSniffer();
+        assertTrue(legacy.feed(new byte[] {(byte) 0xFE, 0x01}, 0, 2));
+        assertNull(legacy.name);
+
+        LoginSniffer garbage = new LoginSniffer();
+        byte[] data = {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x00};
+        assertTrue(garbage.feed(data, 0, data.length));
+        assertNull(garbage.name);
+    }
+}
@@ -0,0 +1,50 @@
+package com.darsh.portbridge.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PlayerStatsTest {
+    @Test
+    void sessionsOfOnePlayerShareASlot() {
+        PlayerStats stats = new PlayerStats(8);
+        int first = stats.open("Alex", 1, 2);
+        stats.addIn(first, 100, 2);
+        stats.close(first);
+        int second = stats.open("Alex", 1, 2);
+        stats.addOut(second, 50, 1);
+        stats.recordLatency(second, 30);
+        stats.recordLatency(second, 10);
+
+        assertEquals(first, second);
+        assertEquals(1, stats.size());
+        assertEquals(List.of("Alex in=100B out=50B reads=2/1 sessions=2 active=1 latency=20/30ms"), stats.describe(10));
+    }
+
+    @Test
+    void busiestPlayerIsListedFirst() {
+        PlayerStats stats = new PlayerStats(8);
+        stats.addIn(stats.open("Quiet", 1, 1), 10, 1);
+        stats.addIn(stats.open("Busy", 2, 2), 900, 9);
+
+        List<String> lines = stats.describe(1);
+        assertEquals(1, lines.size());
+        assertEquals("Busy", lines.get(0).split(" ")[0]);
+    }
+
+    @Test
+    void playersBeyondCapacityAreCountedAsUntracked() {
+        // 16 slots at the smallest, of which three quarters are used
+        PlayerStats stats = new PlayerStats(1);
+        for (int i = 0; i < 12; i++) {
+            assertTrue(stats.open("p" + i, i, i) >= 0);
+        }
+
+        assertEquals(-1, stats.open("late", 99, 99));
+        assertEquals(1, stats.getUntracked());
+        assertEquals(12, stats.size());
+    }
+}
@@ -0,0 +1,125 @@
+package com.darsh.portbridge.tunnel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Feeds headers from {@link ProxyProtocol} through the decoder on an embedded
+ * channel. No vanilla Connection is in the pipeline, so these check what is
+ * stripped and forwarded; the source it would be given comes from readSource.
+ */
+class ProxyProtocolDecoderTest {
+    private static final InetSocketAddress SERVER = new InetSocketAddress(InetAddress.getLoopbackAddress(), 25565);
+    // Start of a vanilla handshake: length, packet id 0, protocol version
+    private static final byte[] HANDSHAKE = {0x10, 0x00, (byte) 0xff, 0x05, 0x09};
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+
+    private static byte[] readAll(EmbeddedChannel channel) {
+        ByteBuf buf;
+        byte[] out = new byte[0];
+        while ((buf = channel.readInbound()) != null) {
+            byte[] chunk = new byte[buf.readableBytes()];
+            buf.readBytes(chunk);
+            buf.release();
+            out = concat(out, chunk);
+        }
+        return out;
+    }
+
+    private static InetSocketAddress decodeSource(byte[] header) throws Exception {
+        ByteBuf buf = Unpooled.wrappedBuffer(header);
+        try {
+            return ProxyProtocolDecoder.readSource(buf, ProxyProtocol.FIXED_LENGTH, buf.getUnsignedByte(13), buf.getUnsignedShort(14));
+        } finally {
+            buf.release();
+        }
+    }
+
+    // A child channel as the listener would accept it, from the given peer
+    private static EmbeddedChannel acceptedFrom(String peer) throws Exception {
+        SocketAddress remote = new InetSocketAddress(InetAddress.getByName(peer), 40000);
+        return new EmbeddedChannel() {
+            @Override
+            protected SocketAddress remoteAddress0() {
+                return remote;
+            }
+        };
+    }
+
+    @Test
+    void headerRoundTripsForBothFamilies() throws Exception {
+        assertEquals(new InetSocketAddress(InetAddress.getByName("203.0.113.7"), 50000),
+                decodeSource(ProxyProtocolTest.header("203.0.113.7", 50000, SERVER)));
+        assertEquals(new InetSocketAddress(InetAddress.getByName("2001:db8::7"), 443),
+                decodeSource(ProxyProtocolTest.header("2001:db8::7", 443, SERVER)));
+        assertNull(decodeSource(ProxyProtocolTest.header(null, 0, SERVER)), "LOCAL carries no source");
+    }
+
+    @Test
+    void headerIsStrippedBeforeTheHandshake() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new ProxyProtocolDecoder());
+        byte[] stream = concat(ProxyProtocolTest.header("2001:db8::7", 50000, SERVER), HANDSHAKE);
+        // Split inside the signature and again inside the address block
+        channel.writeInbound(Unpooled.wrappedBuffer(Arrays.copyOfRange(stream, 0, 5)));
+        channel.writeInbound(Unpooled.wrappedBuffer(Arrays.copyOfRange(stream, 5, 30)));
+        assertArrayEquals(new byte[0], readAll(channel), "nothing reaches vanilla before the header is complete");
+        channel.writeInbound(Unpooled.wrappedBuffer(Arrays.copyOfRange(stream, 30, stream.length)));
+
+        assertArrayEquals(HANDSHAKE, readAll(channel));
+        assertNull(channel.pipeline().get(ProxyProtocolDecoder.class), "the decoder steps aside after the header");
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void streamWithoutTheSignaturePassesThroughUnchanged() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ProxyProtocolDecoder());
+        channel.writeInbound(Unpooled.wrappedBuffer(HANDSHAKE));
+        assertArrayEquals(HANDSHAKE, readAll(channel));
+        assertNull(channel.pipeline().get(ProxyProtocolDecoder.class));
+
+        // Matches the signature for three bytes, then not
+        channel = new EmbeddedChannel(new ProxyProtocolDecoder());
+        byte[] almost = {0x0D, 0x0A, 0x0D, 0x00};
+        channel.writeInbound(Unpooled.wrappedBuffer(almost));
+        assertArrayEquals(almost, readAll(channel));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void headerFromANonLoopbackPeerIsNotHonoured() throws Exception {
+        EmbeddedChannel listener = new EmbeddedChannel(new ProxyProtocolDecoder.Acceptor());
+
+        EmbeddedChannel tunnel = acceptedFrom("127.0.0.1");
+        listener.writeInbound(tunnel);
+        assertNotNull(tunnel.pipeline().get(ProxyProtocolDecoder.class), "the tunnel client connects over loopback");
+
+        EmbeddedChannel player = acceptedFrom("203.0.113.9");
+        listener.writeInbound(player);
+        assertNull(player.pipeline().get(ProxyProtocolDecoder.class));
+        // A forged header reaches vanilla as-is, and the socket's own address stands
+        byte[] forged = concat(ProxyProtocolTest.header("198.51.100.1", 50000, SERVER), HANDSHAKE);
+        player.writeInbound(Unpooled.wrappedBuffer(forged));
+        assertArrayEquals(forged, readAll(player));
+
+        tunnel.finishAndReleaseAll();
+        player.finishAndReleaseAll();
+        listener.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,82 @@
+package com.darsh.portbridge.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ProxyProtocolTest {
+    private static final InetSocketAddress LOCAL_V4 = new InetSocketAddress(InetAddress.getLoopbackAddress(), 25565);
+
+    static byte[] header(String sourceIp, int sourcePort, InetSocketAddress destination) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProxyProtocol.writeHeader(out, sourceIp, sourcePort, destination);
+        return out.toByteArray();
+    }
+
+    private static byte[] address(String literal) throws Exception {
+        return InetAddress.getByName(literal).getAddress();
+    }
+
+    private static void assertFixedPart(byte[] header, int versionCommand, int family, int length) {
+        assertArrayEquals(ProxyProtocol.SIGNATURE, Arrays.copyOf(header, 12));
+        assertEquals(versionCommand, header[12] & 0xff);
+        assertEquals(family, header[13] & 0xff);
+        assertEquals(length, ByteBuffer.wrap(header).getShort(14) & 0xffff);
+        assertEquals(ProxyProtocol.FIXED_LENGTH + length, header.length);
+    }
+
+    @Test
+    void ipv4SourceGivesTcp4Block() throws Exception {
+        byte[] header = header("203.0.113.7", 50000, LOCAL_V4);
+        assertFixedPart(header, 0x21, 0x11, 12);
+        ByteBuffer block = ByteBuffer.wrap(header, 16, 12);
+        byte[] src = new byte[4];
+        byte[] dst = new byte[4];
+        block.get(src).get(dst);
+        assertArrayEquals(address("203.0.113.7"), src);
+        assertArrayEquals(address("127.0.0.1"), dst);
+        assertEquals(50000, block.getShort() & 0xffff);
+        assertEquals(25565, block.getShort() & 0xffff);
+    }
+
+    @Test
+    void ipv6SourceGivesTcp6Block() throws Exception {
+        byte[] header = header("[2001:db8::7]", 65535, new InetSocketAddress(InetAddress.getByName("::1"), 25565));
+        assertFixedPart(header, 0x21, 0x21, 36);
+        ByteBuffer block = ByteBuffer.wrap(header, 16, 36);
+        byte[] src = new byte[16];
+        byte[] dst = new byte[16];
+        block.get(src).get(dst);
+        assertArrayEquals(address("2001:db8::7"), src);
+        assertArrayEquals(address("::1"), dst);
+        assertEquals(65535, block.getShort() & 0xffff);
+        assertEquals(25565, block.getShort() & 0xffff);
+    }
+
+    @Test
+    void mixedFamiliesAreLiftedToIpv6() throws Exception {
+        byte[] mapped = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, -1, -1, (byte) 203, 0, 113, 7};
+        byte[] header = header("203.0.113.7", 50000, new InetSocketAddress(InetAddress.getByName("::1"), 25565));
+        assertFixedPart(header, 0x21, 0x21, 36);
+        assertArrayEquals(mapped, Arrays.copyOfRange(header, 16, 32));
+
+        header = header("2001:db8::7", 50000, LOCAL_V4);
+        assertFixedPart(header, 0x21, 0x21, 36);
+        assertArrayEquals(new byte[] {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, -1, -1, 127, 0, 0, 1}, Arrays.copyOfRange(header, 32, 48));
+    }
+
+    @Test
+    void unknownSourceGivesLocalHeader() throws Exception {
+        for (String source : new String[] {null, "", "relay.example", "203.0.113.7"}) {
+            int port = "203.0.113.7".equals(source) ? 70000 : 50000;
+            assertFixedPart(header(source, port, LOCAL_V4), 0x20, 0x00, 0);
+        }
+    }
+}
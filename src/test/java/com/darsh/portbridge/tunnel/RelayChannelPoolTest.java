@@ -0,0 +1,177 @@
+package com.darsh.portbridge.tunnel;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the pool against a loopback relay stand-in that answers each DATA line
+ * with {@link #reply}, over plain TCP.
+ */
+class RelayChannelPoolTest {
+    private static final String UUID = "0f8fad5b-d9cb-469f-a165-70867728950e";
+    private static final String TOKEN = "secret";
+
+    private final BlockingQueue<DataChannel> accepted = new LinkedBlockingQueue<>();
+    private final List<DataChannel> opened = new ArrayList<>();
+    private volatile String reply = "DATA_READY";
+    private ServerSocket relay;
+    private Thread acceptor;
+    private RelayChannelPool pool;
+
+    // The relay's end of one data channel, after the DATA line
+    private static final class DataChannel {
+        final Socket socket;
+        final BufferedReader in;
+        final String hello;
+
+        DataChannel(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.hello = in.readLine();
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        relay = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = relay.accept();
+                    DataChannel channel = new DataChannel(socket);
+                    socket.getOutputStream().write((reply + "\n").getBytes(StandardCharsets.UTF_8));
+                    accepted.add(channel);
+                }
+            } catch (IOException e) {
+                // Closed at teardown
+            }
+        }, "relay-pool-test");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (pool != null) pool.close();
+        relay.close();
+        acceptor.join(2000);
+        opened.addAll(accepted);
+        for (DataChannel c : opened) c.socket.close();
+    }
+
+    private RelayChannelPool newPool(int minSize, long maxIdleSeconds) {
+        return new RelayChannelPool("localhost", (InetSocketAddress) relay.getLocalSocketAddress(), UUID, TOKEN,
+                minSize, 8, maxIdleSeconds, () -> false);
+    }
+
+    private DataChannel nextChannel() throws InterruptedException {
+        DataChannel c = accepted.poll(5, TimeUnit.SECONDS);
+        assertNotNull(c, "the pool did not open a data channel");
+        opened.add(c);
+        assertEquals("DATA|" + UUID + "|" + TOKEN, c.hello);
+        return c;
+    }
+
+    private void awaitIdle(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!pool.getStats().startsWith("idle=" + count + " ") && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(pool.getStats().startsWith("idle=" + count + " "), pool.getStats());
+    }
+
+    private static boolean samePair(Socket client, DataChannel relaySide) {
+        return client.getLocalPort() == relaySide.socket.getPort();
+    }
+
+    @Test
+    void pooledChannelIsAuthenticatedAndBindsOnPoll() throws Exception {
+        pool = newPool(2, 20);
+        DataChannel first = nextChannel();
+        DataChannel second = nextChannel();
+        awaitIdle(2);
+
+        Socket socket = pool.poll();
+        assertNotNull(socket);
+        assertTrue(socket.getChannel().isBlocking(), "handed out in blocking mode");
+        RelayChannelPool.bind(socket, "c-17");
+        DataChannel relaySide = samePair(socket, first) ? first : second;
+        assertEquals("BIND|c-17", relaySide.in.readLine());
+
+        // The slot it left is opened again without waiting for maintenance
+        nextChannel();
+        awaitIdle(2);
+        assertTrue(pool.getStats().contains("hits=1 misses=0"), pool.getStats());
+        socket.close();
+    }
+
+    @Test
+    void channelTheRelayClosedIsSkipped() throws Exception {
+        pool = newPool(2, 20);
+        DataChannel first = nextChannel();
+        DataChannel second = nextChannel();
+        awaitIdle(2);
+
+        // Opened one at a time, so the first accepted is at the head of the queue
+        first.socket.close();
+        Thread.sleep(200);
+        Socket socket = pool.poll();
+        assertNotNull(socket);
+        assertTrue(samePair(socket, second), "the channel the relay closed was skipped");
+        socket.close();
+    }
+
+    @Test
+    void idleChannelsAreReplaced() throws Exception {
+        pool = newPool(1, 1);
+        DataChannel old = nextChannel();
+
+        // Maintenance runs every second and closes channels idle for over a second
+        DataChannel replacement = nextChannel();
+        old.socket.setSoTimeout(3000);
+        assertNull(old.in.readLine(), "the pool closed the aged channel");
+
+        awaitIdle(1);
+        Socket socket = pool.poll();
+        assertNotNull(socket);
+        assertTrue(samePair(socket, replacement));
+        socket.close();
+    }
+
+    @Test
+    void refusedChannelIsNeitherPooledNorReturned() throws Exception {
+        reply = "ERROR|unknown server";
+        // No minimum, so the only channel is the one opened for the miss
+        pool = newPool(0, 20);
+        assertNull(pool.poll());
+
+        IOException e = assertThrows(IOException.class, pool::open);
+        assertTrue(e.getMessage().contains("ERROR|unknown server"), e.getMessage());
+        DataChannel refused = nextChannel();
+        refused.socket.setSoTimeout(2000);
+        assertNull(refused.in.readLine(), "the refused channel was closed");
+        assertTrue(pool.getStats().startsWith("idle=0 "), pool.getStats());
+        assertTrue(pool.getStats().contains("hits=0 misses=1"), pool.getStats());
+    }
+}
@@ -0,0 +1,81 @@
+package com.darsh.portbridge.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RelayConnectorTest {
+    private static InetAddress address(String literal) throws Exception {
+        return InetAddress.getByName(literal);
+    }
+
+    private static long deadline() {
+        return System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    }
+
+    // A port nothing listens on, so connecting to it is refused
+    private static int closedPort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Test
+    void familiesAlternateStartingWithIpv6() throws Exception {
+        InetAddress a4 = address("192.0.2.1");
+        InetAddress b4 = address("192.0.2.2");
+        InetAddress c4 = address("192.0.2.3");
+        InetAddress a6 = address("2001:db8::1");
+        RelayConnector.Resolved resolved = new RelayConnector.Resolved(List.of(a4, b4, a6, c4), 0, null);
+
+        assertEquals(List.of(a6, a4, b4, c4), RelayConnector.order(resolved));
+    }
+
+    @Test
+    void addressThatLastWorkedGoesFirstAndSetsTheFamily() throws Exception {
+        InetAddress a4 = address("192.0.2.1");
+        InetAddress b4 = address("192.0.2.2");
+        InetAddress a6 = address("2001:db8::1");
+        InetAddress b6 = address("2001:db8::2");
+        RelayConnector.Resolved resolved = new RelayConnector.Resolved(List.of(a6, b6, a4, b4), 0, b4);
+
+        assertEquals(List.of(b4, a4, a6, b6), RelayConnector.order(resolved));
+    }
+
+    @Test
+    void refusedAddressHandsOverToTheNextAtOnce() throws Exception {
+        try (ServerSocket relay = new ServerSocket(0, 1, address("127.0.0.1"))) {
+            int port = relay.getLocalPort();
+            // Same port on another loopback address, where nothing listens
+            RelayConnector.Resolved resolved = new RelayConnector.Resolved(
+                    List.of(address("127.0.0.2"), address("127.0.0.1")), 0, null);
+
+            long started = System.nanoTime();
+            try (Socket socket = RelayConnector.race(resolved, port, deadline())) {
+                assertEquals(port, socket.getPort());
+                assertEquals(address("127.0.0.1"), socket.getInetAddress());
+            }
+            // Well inside the 250 ms stagger, so the refusal started the next attempt
+            long tookMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            assertTrue(tookMs < 200, "took " + tookMs + " ms");
+            assertEquals(address("127.0.0.1"), resolved.preferred, "the winner is tried first next time");
+        }
+    }
+
+    @Test
+    void everyAddressRefusedThrowsTheLastFailure() throws Exception {
+        RelayConnector.Resolved resolved = new RelayConnector.Resolved(
+                List.of(InetAddress.getLoopbackAddress()), 0, null);
+
+        assertThrows(ConnectException.class, () -> RelayConnector.race(resolved, closedPort(), deadline()));
+    }
+}
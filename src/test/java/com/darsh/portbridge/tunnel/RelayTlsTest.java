@@ -0,0 +1,170 @@
+package com.darsh.portbridge.tunnel;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Handshakes against a loopback SSLServerSocket holding a throwaway certificate
+ * for "localhost" made with the JDK's keytool. The server sends one byte after
+ * each handshake, so the client reads the TLS 1.3 session ticket before the next.
+ */
+class RelayTlsTest {
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    @TempDir
+    static Path dir;
+    private static KeyStore keyStore;
+
+    private final List<SSLServerSocket> servers = new ArrayList<>();
+
+    @BeforeAll
+    static void createCertificate() throws Exception {
+        Path file = dir.resolve("relay.p12");
+        Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "relay", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost", "-validity", "1",
+                "-keystore", file.toString(), "-storetype", "PKCS12", "-storepass", "changeit", "-keypass", "changeit")
+                .redirectErrorStream(true).start();
+        keytool.getInputStream().transferTo(OutputStream.nullOutputStream());
+        assertTrue(keytool.waitFor(30, TimeUnit.SECONDS) && keytool.exitValue() == 0, "keytool failed");
+        keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(file)) {
+            keyStore.load(in, PASSWORD);
+        }
+    }
+
+    @AfterEach
+    void closeServers() throws IOException {
+        for (SSLServerSocket server : servers) server.close();
+    }
+
+    // A relay that speaks only {@code protocol} and offers {@code alpn} (none if empty)
+    private SSLServerSocket startRelay(String protocol, String... alpn) throws Exception {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, PASSWORD);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), null, null);
+        SSLServerSocket server = (SSLServerSocket) ctx.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        SSLParameters params = server.getSSLParameters();
+        params.setProtocols(new String[] {protocol});
+        params.setApplicationProtocols(alpn);
+        server.setSSLParameters(params);
+        servers.add(server);
+
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    SSLSocket socket = (SSLSocket) server.accept();
+                    try {
+                        socket.startHandshake();
+                        socket.getOutputStream().write(1);
+                        socket.getOutputStream().flush();
+                    } catch (IOException e) {
+                        socket.close();
+                    }
+                }
+            } catch (IOException e) {
+                // Closed after the test
+            }
+        }, "tls-test-relay");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    private static SSLContext trustingClient() throws Exception {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, tmf.getTrustManagers(), null);
+        return ctx;
+    }
+
+    private static SSLSocket connect(SSLContext client, SSLServerSocket server) throws IOException {
+        Socket plain = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        return RelayTls.createSocket(client, plain, "localhost", server.getLocalPort());
+    }
+
+    // Handshakes, takes the server's byte (and any ticket before it), and reports resumption
+    private static boolean handshakeOnce(SSLContext client, SSLServerSocket server, String expectedProtocol) throws Exception {
+        try (SSLSocket socket = connect(client, server)) {
+            socket.setSoTimeout(5000);
+            boolean resumed = RelayTls.handshake(socket, "localhost:" + server.getLocalPort());
+            assertEquals(expectedProtocol, socket.getSession().getProtocol());
+            assertEquals(1, socket.getInputStream().read());
+            return resumed;
+        }
+    }
+
+    @Test
+    void tls13NegotiatesFramingAndResumes() throws Exception {
+        SSLServerSocket relay = startRelay("TLSv1.3", RelayTls.FRAMING_V1);
+        SSLContext client = trustingClient();
+        try (SSLSocket socket = connect(client, relay)) {
+            RelayTls.handshake(socket, "alpn-check");
+            assertEquals(RelayTls.FRAMING_V1, socket.getApplicationProtocol());
+        }
+
+        SSLContext fresh = trustingClient();
+        assertFalse(handshakeOnce(fresh, relay, "TLSv1.3"), "nothing cached yet");
+        assertTrue(handshakeOnce(fresh, relay, "TLSv1.3"));
+        assertTrue(handshakeOnce(fresh, relay, "TLSv1.3"), "a resumed session resumes again");
+    }
+
+    @Test
+    void tls12ResumesBySessionId() throws Exception {
+        SSLServerSocket relay = startRelay("TLSv1.2", RelayTls.FRAMING_V1);
+        SSLContext client = trustingClient();
+        assertFalse(handshakeOnce(client, relay, "TLSv1.2"));
+        assertTrue(handshakeOnce(client, relay, "TLSv1.2"));
+    }
+
+    @Test
+    void newClientContextIsAFullHandshake() throws Exception {
+        SSLServerSocket relay = startRelay("TLSv1.3", RelayTls.FRAMING_V1);
+        assertFalse(handshakeOnce(trustingClient(), relay, "TLSv1.3"));
+        assertFalse(handshakeOnce(trustingClient(), relay, "TLSv1.3"), "no shared cache, so no resumption");
+    }
+
+    @Test
+    void relayWithoutAlpnIsAccepted() throws Exception {
+        SSLServerSocket relay = startRelay("TLSv1.3");
+        try (SSLSocket socket = connect(trustingClient(), relay)) {
+            RelayTls.handshake(socket, "no-alpn");
+            assertTrue(socket.getApplicationProtocol() == null || socket.getApplicationProtocol().isEmpty());
+        }
+    }
+
+    @Test
+    void relayOfferingOnlyOtherFramingIsRefused() throws Exception {
+        SSLServerSocket relay = startRelay("TLSv1.3", "portbridge/9");
+        try (SSLSocket socket = connect(trustingClient(), relay)) {
+            assertThrows(IOException.class, () -> RelayTls.handshake(socket, "other-alpn"));
+        }
+    }
+}
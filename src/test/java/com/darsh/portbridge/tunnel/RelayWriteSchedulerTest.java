@@ -0,0 +1,102 @@
+package com.darsh.portbridge.tunnel;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RelayWriteSchedulerTest {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private RelayWriteScheduler scheduler;
+
+    @AfterEach
+    void tearDown() {
+        if (scheduler != null) scheduler.close();
+    }
+
+    private static byte[] chunk(int length, char fill) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) fill);
+        return data;
+    }
+
+    private void awaitWritten(int bytes) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (out.size() < bytes && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(bytes, out.size());
+    }
+
+    @Test
+    void unframedWritesKeepQueueOrderAcrossStreams() throws Exception {
+        scheduler = new RelayWriteScheduler(out, new Object(), null, false);
+        RelayWriteScheduler.Stream bulk = scheduler.open("a");
+        RelayWriteScheduler.Stream small = scheduler.open("b");
+        // Queued before the writer starts, so the framed rules would reorder them
+        bulk.offer(chunk(16384, 'a'), 16384);
+        bulk.offer(chunk(16384, 'A'), 16384);
+        small.offer(chunk(100, 'b'), 100);
+        bulk.offer(chunk(16384, 'c'), 16384);
+        scheduler.start();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(chunk(16384, 'a'));
+        expected.write(chunk(16384, 'A'));
+        expected.write(chunk(100, 'b'));
+        expected.write(chunk(16384, 'c'));
+        awaitWritten(expected.size());
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+    }
+
+    @Test
+    void framedWritesLetSmallPacketsPassBulkData() throws Exception {
+        scheduler = new RelayWriteScheduler(out, new Object(), null, true);
+        RelayWriteScheduler.Stream bulk = scheduler.open("a");
+        RelayWriteScheduler.Stream small = scheduler.open("b");
+        bulk.offer(chunk(16384, 'a'), 16384);
+        bulk.offer(chunk(16384, 'A'), 16384);
+        bulk.offer(chunk(16384, 'c'), 16384);
+        small.offer(chunk(100, 'b'), 100);
+        scheduler.start();
+
+        int payload = 3 * 16384 + 100;
+        int headers = 3 * "FRAME|a|16384\n".length() + "FRAME|b|100\n".length();
+        awaitWritten(payload + headers);
+
+        // Split the output back into frames as the relay would
+        List<String> order = new ArrayList<>();
+        Map<String, ByteArrayOutputStream> streams = new LinkedHashMap<>();
+        byte[] bytes = out.toByteArray();
+        int at = 0;
+        while (at < bytes.length) {
+            int newline = at;
+            while (bytes[newline] != '\n') newline++;
+            String[] header = new String(bytes, at, newline - at, StandardCharsets.UTF_8).split("\\|");
+            assertEquals("FRAME", header[0]);
+            int length = Integer.parseInt(header[2]);
+            streams.computeIfAbsent(header[1], k -> new ByteArrayOutputStream()).write(bytes, newline + 1, length);
+            order.add(header[1]);
+            at = newline + 1 + length;
+        }
+
+        ByteArrayOutputStream a = new ByteArrayOutputStream();
+        a.write(chunk(16384, 'a'));
+        a.write(chunk(16384, 'A'));
+        a.write(chunk(16384, 'c'));
+        assertArrayEquals(a.toByteArray(), streams.get("a").toByteArray(), "each stream stays in order");
+        assertArrayEquals(chunk(100, 'b'), streams.get("b").toByteArray());
+        assertTrue(order.indexOf("b") < order.lastIndexOf("a"), "the small packet went ahead of queued bulk data: " + order);
+    }
+}
@@ -0,0 +1,105 @@
+package com.darsh.portbridge.tunnel;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class UdpFlowTableTest {
+    // ::ffff:198.51.100.x as the two longs the forwarder keys by
+    private static final long MAPPED_HIGH = 0;
+    private static final long MAPPED_LOW = 0x0000_ffff_c633_6400L;
+
+    private Selector selector;
+    private final List<DatagramChannel> channels = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        selector = Selector.open();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (DatagramChannel channel : channels) channel.close();
+        selector.close();
+    }
+
+    private SelectionKey key() throws Exception {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channels.add(channel);
+        return channel.register(selector, 0);
+    }
+
+    @Test
+    void relayAndDirectFlowsAreKeptApart() throws Exception {
+        UdpFlowTable table = new UdpFlowTable(8);
+        int ports = UdpFlowTable.packPorts(50000, 24454);
+        int relayed = table.insert(MAPPED_HIGH, MAPPED_LOW | 9, ports, null, key(), 0);
+        InetSocketAddress peer = new InetSocketAddress("198.51.100.9", 50000);
+        int direct = table.insert(MAPPED_HIGH, MAPPED_LOW | 9, ports, peer, key(), 0);
+
+        assertNotEquals(relayed, direct);
+        assertEquals(relayed, table.find(MAPPED_HIGH, MAPPED_LOW | 9, ports, false));
+        assertEquals(direct, table.find(MAPPED_HIGH, MAPPED_LOW | 9, ports, true));
+        assertNull(table.peer(relayed));
+        assertEquals(peer, table.peer(direct));
+        assertEquals(relayed, table.key(relayed).attachment());
+        assertEquals(-1, table.find(MAPPED_HIGH, MAPPED_LOW | 9, UdpFlowTable.packPorts(50001, 24454), false));
+    }
+
+    @Test
+    void insertStopsAtMaxFlows() throws Exception {
+        UdpFlowTable table = new UdpFlowTable(2);
+        table.insert(MAPPED_HIGH, MAPPED_LOW | 1, 1, null, key(), 0);
+        table.insert(MAPPED_HIGH, MAPPED_LOW | 2, 1, null, key(), 0);
+
+        assertEquals(-1, table.insert(MAPPED_HIGH, MAPPED_LOW | 3, 1, null, key(), 0));
+        assertEquals(2, table.size());
+    }
+
+    @Test
+    void churnKeepsLookupsAndKeyAttachmentsInStep() throws Exception {
+        UdpFlowTable table = new UdpFlowTable(4);
+        for (int i = 1; i <= 3; i++) {
+            table.insert(MAPPED_HIGH, MAPPED_LOW | i, i, null, key(), 0);
+        }
+        // Each removal leaves a tombstone, so this forces several rebuilds
+        for (int i = 100; i < 200; i++) {
+            int slot = table.insert(MAPPED_HIGH, MAPPED_LOW | i, i, null, key(), 0);
+            table.remove(slot);
+        }
+
+        assertEquals(3, table.size());
+        for (int i = 1; i <= 3; i++) {
+            int slot = table.find(MAPPED_HIGH, MAPPED_LOW | i, i, false);
+            assertEquals(slot, table.key(slot).attachment(), "flow " + i + " moved without its key");
+            assertEquals(i, table.ports(slot));
+        }
+        assertEquals(-1, table.find(MAPPED_HIGH, MAPPED_LOW | 150, 150, false));
+    }
+
+    @Test
+    void idleFlowsAreCollected() throws Exception {
+        UdpFlowTable table = new UdpFlowTable(8);
+        int stale = table.insert(MAPPED_HIGH, MAPPED_LOW | 1, 1, null, key(), 1_000);
+        int touched = table.insert(MAPPED_HIGH, MAPPED_LOW | 2, 2, null, key(), 1_000);
+        table.insert(MAPPED_HIGH, MAPPED_LOW | 3, 3, null, key(), 5_000);
+        table.touch(touched, 6_000);
+
+        int[] idle = new int[8];
+        assertEquals(1, table.collectIdle(4_000, idle));
+        assertEquals(stale, idle[0]);
+        assertEquals(3, table.slots().length);
+    }
+}
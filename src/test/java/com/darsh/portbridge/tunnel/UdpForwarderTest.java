@@ -0,0 +1,237 @@
+package com.darsh.portbridge.tunnel;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Runs the forwarder against a relay stand-in, a local server and a player,
+ * all on loopback. The test plays the relay's part of the rendezvous by hand:
+ * it reads the DIRECT_HELLO, reports the endpoint, and sends the probe.
+ */
+class UdpForwarderTest {
+    private static final long TOKEN = 0x0123_4567_89ab_cdefL;
+    private static final int PUBLIC_PORT = 24454;
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    private final BlockingQueue<String> control = new LinkedBlockingQueue<>();
+    private DatagramSocket relay;
+    private DatagramSocket server;
+    private DatagramSocket player;
+    private UdpForwarder forwarder;
+    // Where the relay sees the forwarder's relay channel, from its HELLO
+    private InetSocketAddress relayPath;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        relay = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+        server = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+        player = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+        for (DatagramSocket socket : new DatagramSocket[] {relay, server, player}) {
+            socket.setSoTimeout(2000);
+        }
+        UdpForwarder.Host host = new UdpForwarder.Host() {
+            @Override
+            public void sendControl(String line) {
+                control.add(line);
+            }
+
+            @Override
+            public void recordTransfer(int bytes, boolean fromRelay) {
+            }
+        };
+        forwarder = new UdpForwarder(host, (InetSocketAddress) relay.getLocalSocketAddress(), TOKEN, 16, 60);
+        forwarder.start();
+        forwarder.addPort(PUBLIC_PORT, server.getLocalPort());
+        forwarder.addDirect(server.getLocalPort());
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        forwarder.close();
+        forwarder.await(System.nanoTime() + TimeUnit.SECONDS.toNanos(2));
+        relay.close();
+        server.close();
+        player.close();
+    }
+
+    // The rendezvous half: the relay learns the direct channel's public endpoint from its hello
+    private InetSocketAddress awaitDirectHello() throws Exception {
+        InetSocketAddress endpoint = null;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((endpoint == null || relayPath == null) && System.nanoTime() < deadline) {
+            DatagramPacket packet = receive(relay);
+            ByteBuffer frame = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+            assertEquals(TOKEN, frame.getLong(1));
+            if (frame.get(0) == 2) {
+                relayPath = (InetSocketAddress) packet.getSocketAddress();
+            } else if (frame.get(0) == 3) {
+                assertEquals(11, packet.getLength());
+                assertEquals(server.getLocalPort(), frame.getShort(9) & 0xffff);
+                endpoint = (InetSocketAddress) packet.getSocketAddress();
+            }
+        }
+        if (endpoint == null || relayPath == null) fail("no HELLO and DIRECT_HELLO reached the relay");
+        assertNotEquals(relayPath, endpoint, "the direct channel is a socket of its own");
+        return endpoint;
+    }
+
+    private void probe(InetSocketAddress endpoint, long nonce) throws Exception {
+        byte[] probe = ByteBuffer.allocate(17).put((byte) 4).putLong(TOKEN).putLong(nonce).array();
+        // From another socket than the one the hello went to, as the relay does
+        try (DatagramSocket prober = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0))) {
+            prober.send(new DatagramPacket(probe, probe.length, endpoint));
+        }
+    }
+
+    private static DatagramPacket receive(DatagramSocket socket) throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+        socket.receive(packet);
+        return packet;
+    }
+
+    private static String text(DatagramPacket packet) {
+        return new String(packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.UTF_8);
+    }
+
+    private static void send(DatagramSocket socket, String text, InetSocketAddress to) throws Exception {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        socket.send(new DatagramPacket(data, data.length, to));
+    }
+
+    // A DATA frame from player 198.51.100.9:50000 to the public port
+    private void sendViaRelay(String text) throws Exception {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(18 + payload.length);
+        frame.put((byte) 1).putLong(TOKEN).put((byte) 4).put(new byte[] {(byte) 198, 51, 100, 9})
+                .putShort((short) 50000).putShort((short) PUBLIC_PORT).put(payload);
+        relay.send(new DatagramPacket(frame.array(), frame.capacity(), relayPath));
+    }
+
+    private static DatagramPacket receiveOrNull(DatagramSocket socket, int timeoutMs) throws Exception {
+        socket.setSoTimeout(timeoutMs);
+        try {
+            return receive(socket);
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+    }
+
+    // Stats are updated on the UDP thread, so wait for them to settle
+    private String awaitStats(Predicate<String> done) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        String stats = forwarder.getStats();
+        while (!done.test(stats) && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+            stats = forwarder.getStats();
+        }
+        assertTrue(done.test(stats), stats);
+        return stats;
+    }
+
+    @Test
+    void verifiedEndpointCarriesPlayerTrafficDirectly() throws Exception {
+        InetSocketAddress endpoint = awaitDirectHello();
+        forwarder.onEndpoint(server.getLocalPort(), endpoint, 42);
+        probe(endpoint, 42);
+
+        String announced = control.poll(2, TimeUnit.SECONDS);
+        assertEquals("UDP_DIRECT|" + server.getLocalPort() + "|" + endpoint.getAddress().getHostAddress()
+                + "|" + endpoint.getPort(), announced);
+        assertTrue(forwarder.getStats().contains("direct[" + server.getLocalPort() + "]=verified@"));
+
+        send(player, "ping", endpoint);
+        DatagramPacket atServer = receive(server);
+        assertEquals("ping", text(atServer));
+
+        send(server, "pong", (InetSocketAddress) atServer.getSocketAddress());
+        DatagramPacket atPlayer = receive(player);
+        assertEquals("pong", text(atPlayer));
+        assertEquals(endpoint.getPort(), atPlayer.getPort(), "answered from the endpoint the player used");
+    }
+
+    @Test
+    void probeThatOvertakesItsAnnouncementStillVerifies() throws Exception {
+        InetSocketAddress endpoint = awaitDirectHello();
+        probe(endpoint, 7);
+        Thread.sleep(200);
+        assertNull(control.poll(), "not announced before the relay reported the endpoint");
+
+        forwarder.onEndpoint(server.getLocalPort(), endpoint, 7);
+        assertEquals("UDP_DIRECT|" + server.getLocalPort() + "|" + endpoint.getAddress().getHostAddress()
+                + "|" + endpoint.getPort(), control.poll(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void failedVerificationFallsBackToTheRelay() throws Exception {
+        InetSocketAddress endpoint = awaitDirectHello();
+        forwarder.onEndpoint(server.getLocalPort(), endpoint, 42);
+        // A probe with the wrong nonce proves nothing, and the right one never comes
+        probe(endpoint, 41);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(8);
+        while (!forwarder.getStats().contains("=unreachable") && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+        assertTrue(forwarder.getStats().contains("direct[" + server.getLocalPort() + "]=unreachable"), forwarder.getStats());
+        assertNull(control.poll(), "an unverified endpoint is never offered to players");
+
+        // Datagrams straight to the endpoint are not served
+        send(player, "sneaky", endpoint);
+        assertNull(receiveOrNull(server, 500));
+
+        // The relay path still works both ways
+        sendViaRelay("via relay");
+        server.setSoTimeout(2000);
+        DatagramPacket atServer = receive(server);
+        assertEquals("via relay", text(atServer));
+
+        send(server, "back", (InetSocketAddress) atServer.getSocketAddress());
+        DatagramPacket atRelay;
+        do {
+            atRelay = receive(relay);
+        } while (atRelay.getData()[0] != 1);
+        ByteBuffer reply = ByteBuffer.wrap(atRelay.getData(), 0, atRelay.getLength());
+        assertEquals(TOKEN, reply.getLong(1));
+        assertEquals(4, reply.get(9));
+        assertEquals(50000, reply.getShort(14) & 0xffff);
+        assertEquals(PUBLIC_PORT, reply.getShort(16) & 0xffff);
+        assertEquals("back", new String(Arrays.copyOfRange(atRelay.getData(), 18, atRelay.getLength()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void removedPortStopsForwardingWithoutReconnecting() throws Exception {
+        InetSocketAddress endpoint = awaitDirectHello();
+        forwarder.onEndpoint(server.getLocalPort(), endpoint, 42);
+        sendViaRelay("before");
+        assertEquals("before", text(receive(server)));
+        String probing = "direct[" + server.getLocalPort() + "]=probing";
+        awaitStats(s -> s.contains(probing));
+
+        forwarder.removePort(PUBLIC_PORT, server.getLocalPort());
+        // The relay flow and the direct path both go with the port
+        awaitStats(s -> s.startsWith("flows=0 ") && !s.contains("direct["));
+
+        sendViaRelay("after");
+        assertNull(receiveOrNull(server, 500));
+    }
+}